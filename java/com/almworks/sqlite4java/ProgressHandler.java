@@ -31,6 +31,7 @@ class ProgressHandler {
   private SWIGTYPE_p_direct_buffer myPointer;
   private ByteBuffer myBuffer;
   private LongBuffer myLongs;
+  private long myTotalSteps;
 
   public ProgressHandler(SWIGTYPE_p_direct_buffer pointer, ByteBuffer buffer, int stepsPerCallback) {
     myStepsPerCallback = stepsPerCallback;
@@ -57,6 +58,7 @@ class ProgressHandler {
   public synchronized void reset() {
     if (myLongs == null)
       return;
+    myTotalSteps += myLongs.get(OFFSET_STEPCOUNT) * myStepsPerCallback;
     myLongs.put(OFFSET_CANCEL, 0L);
     myLongs.put(OFFSET_STEPCOUNT, 0L);
   }
@@ -72,4 +74,12 @@ class ProgressHandler {
       return -1;
     return myLongs.get(OFFSET_STEPCOUNT) * myStepsPerCallback;
   }
+
+  /**
+   * @return the number of steps counted since the handler has been installed, including the current operation
+   */
+  public synchronized long getTotalSteps() {
+    long current = myLongs == null ? 0 : myLongs.get(OFFSET_STEPCOUNT) * myStepsPerCallback;
+    return myTotalSteps + current;
+  }
 }
@@ -27,6 +27,7 @@ import java.util.jar.Manifest;
 import java.util.logging.*;
 
 import static com.almworks.sqlite4java.SQLiteConstants.WRAPPER_CANNOT_LOAD_LIBRARY;
+import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_OK;
 
 /**
  * SQLite class has several utility methods that are applicable to the whole instance of
@@ -46,6 +47,7 @@ public final class SQLite {
   private static boolean libraryLoaded = false;
   private static String jarVersion = null;
   private static Boolean threadSafe = null;
+  private static volatile SQLiteEventListener eventListener = null;
 
   /**
    * Native sqlite4java code, including SQLite itself, is compiled in <code>DEBUG</code> and <code>RELEASE</code>
@@ -177,6 +179,27 @@ public final class SQLite {
     return _SQLiteSwigged.sqlite3_complete(sql) != 0;
   }
 
+  /**
+   * Installs a listener that receives timing events for database operations of all connections in this process,
+   * replacing the previously installed listener.
+   * <p/>
+   * Operations check for the listener on every call, so it can be installed or removed at any time, for example
+   * only while a recording is in progress.
+   *
+   * @param listener the listener, or null to stop reporting events
+   * @see SQLiteEventListener
+   */
+  public static void setEventListener(SQLiteEventListener listener) {
+    eventListener = listener;
+  }
+
+  /**
+   * @return the listener installed with {@link #setEventListener}, or null
+   */
+  public static SQLiteEventListener getEventListener() {
+    return eventListener;
+  }
+
   /**
    * Gets the amount of memory currently used by SQLite library. The returned value shows the amount of non-heap
    * "native" memory taken up by SQLite caches and anything else allocated with sqlite3_malloc.
@@ -207,6 +230,43 @@ public final class SQLite {
     return _SQLiteSwigged.sqlite3_memory_highwater(reset ? 1 : 0);
   }
 
+  /**
+   * Returns the current value of a process-wide status parameter, such as the number of pages used in the
+   * page cache, the number of outstanding allocations or memory used.
+   *
+   * @param op status parameter, one of <code>SQLITE_STATUS_*</code> constants
+   * @return the current value
+   * @throws SQLiteException if native library cannot be loaded, or if the parameter is not supported
+   * @see <a href="http://www.sqlite.org/c3ref/status.html">sqlite3_status64</a>
+   */
+  public static long getStatus(int op) throws SQLiteException {
+    return status(op, false)[0];
+  }
+
+  /**
+   * Returns the highwater value of a process-wide status parameter. For some parameters, such as
+   * <code>SQLITE_STATUS_MALLOC_SIZE</code> and <code>SQLITE_STATUS_PARSER_STACK</code>, only the highwater value
+   * is meaningful.
+   *
+   * @param op status parameter, one of <code>SQLITE_STATUS_*</code> constants
+   * @param reset if true, the highwater value is reset to the current value after this call
+   * @return the highwater value
+   * @throws SQLiteException if native library cannot be loaded, or if the parameter is not supported
+   * @see <a href="http://www.sqlite.org/c3ref/status.html">sqlite3_status64</a>
+   */
+  public static long getStatusHighwater(int op, boolean reset) throws SQLiteException {
+    return status(op, reset)[1];
+  }
+
+  private static long[] status(int op, boolean reset) throws SQLiteException {
+    loadLibrary();
+    long[] r = new long[2];
+    int rc = _SQLiteManual.wrapper_status64(op, reset, r);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "status(" + op + ")");
+    return r;
+  }
+
   /**
    * Requests SQLite to try to release some memory from its heap. This could be called to clear cache.
    *
@@ -247,6 +307,207 @@ public final class SQLite {
     return _SQLiteSwigged.sqlite3_soft_heap_limit64(limit);
   }
 
+  /**
+   * Sets the process-wide default and maximum size of memory-mapped I/O. The default applies to connections that
+   * do not set <code>PRAGMA mmap_size</code>; the maximum limits the value that connections may set. Both are
+   * further limited by the <code>SQLITE_MAX_MMAP_SIZE</code> compile-time option.
+   * <p/>
+   * SQLite accepts this setting only before it is initialized, which happens when the first connection is opened,
+   * so this method must be called at application start-up.
+   *
+   * @param defaultSize default mmap size in bytes, 0 to disable memory-mapped I/O by default
+   * @param maxSize maximum mmap size in bytes
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see SQLiteConnection#setMmapSize
+   * @see <a href="http://www.sqlite.org/c3ref/c_config_covering_index_scan.html#sqliteconfigmmapsize">SQLITE_CONFIG_MMAP_SIZE</a>
+   */
+  public static synchronized void setMmapSizeLimits(long defaultSize, long maxSize) throws SQLiteException {
+    if (defaultSize < 0 || maxSize < defaultSize)
+      throw new IllegalArgumentException(defaultSize + " " + maxSize);
+    loadLibrary();
+    int rc = _SQLiteManual.wrapper_config_mmap_size(defaultSize, maxSize);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot configure mmap size" + (rc == SQLiteConstants.SQLITE_MISUSE ? ": SQLite is already initialized" : ""));
+  }
+
+  /**
+   * Sets the default size of the lookaside memory of each connection. Lookaside is a small per-connection pool of
+   * fixed-size slots that SQLite uses for short-lived allocations, such as parsed statements and row values, instead
+   * of the global allocator. Allocations served from lookaside do not take the global memory mutex, so larger pools
+   * help when many connections work in parallel. Individual connections may override the default with
+   * {@link SQLiteConnection#setLookaside}.
+   * <p/>
+   * This method must be called before the first connection is opened.
+   *
+   * @param slotSize the size of each slot in bytes, rounded down to a multiple of 8; 0 disables lookaside
+   * @param slotCount the number of slots in each connection
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see <a href="http://www.sqlite.org/malloc.html#lookaside">Lookaside Memory Allocator</a>
+   */
+  public static synchronized void setDefaultLookaside(int slotSize, int slotCount) throws SQLiteException {
+    configure(SQLiteConstants.SQLITE_CONFIG_LOOKASIDE, slotSize, slotCount, "lookaside");
+  }
+
+  /**
+   * Makes SQLite allocate page cache memory from a preallocated pool of fixed-size slots. Page allocations that do
+   * not fit in the pool or in a slot use the general allocator. The pool is not used by the shared page cache,
+   * see {@link #installSharedPageCache}.
+   * <p/>
+   * This method must be called before the first connection is opened.
+   *
+   * @param slotSize the size of each slot, which should be the database page size plus a small header, for example
+   * 4096 + 256
+   * @param slotCount the number of slots
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see <a href="http://www.sqlite.org/c3ref/c_config_covering_index_scan.html#sqliteconfigpagecache">SQLITE_CONFIG_PAGECACHE</a>
+   */
+  public static synchronized void setPageCachePool(int slotSize, int slotCount) throws SQLiteException {
+    configure(SQLiteConstants.SQLITE_CONFIG_PAGECACHE, slotSize, slotCount, "page cache pool");
+  }
+
+  /**
+   * Enables or disables collection of memory statistics. With statistics enabled (the default), every allocation
+   * takes a global mutex, which limits the throughput of many connections working in parallel. With statistics
+   * disabled, {@link #getMemoryUsed}, the memory values of {@link #getStatus} and the soft heap limit do not work.
+   * <p/>
+   * This method must be called before the first connection is opened.
+   *
+   * @param enabled false to stop collecting memory statistics
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see <a href="http://www.sqlite.org/c3ref/c_config_covering_index_scan.html#sqliteconfigmemstatus">SQLITE_CONFIG_MEMSTATUS</a>
+   */
+  public static synchronized void setMemoryStatistics(boolean enabled) throws SQLiteException {
+    configure(SQLiteConstants.SQLITE_CONFIG_MEMSTATUS, enabled ? 1 : 0, 0, "memory statistics");
+  }
+
+  /**
+   * Sets the threading mode of SQLite. The library is compiled in serialized mode, where connections opened without
+   * <code>SQLITE_OPEN_NOMUTEX</code> are protected by a mutex. In multi-thread mode, connections get a mutex only
+   * if opened with <code>SQLITE_OPEN_FULLMUTEX</code>. Connections opened with {@link SQLiteConnection#open} have no
+   * mutex in both modes, unless {@link SQLiteConnection#setFullMutex} is set, so this setting matters mostly for
+   * connections opened with {@link SQLiteConnection#openV2}. Process-wide mutexes, such as the one that protects
+   * the allocator, are used in both modes.
+   * <p/>
+   * This method must be called before the first connection is opened.
+   *
+   * @param multiThread true for multi-thread mode, false for serialized mode
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see <a href="http://www.sqlite.org/threadsafe.html">Using SQLite In Multi-Threaded Applications</a>
+   */
+  public static synchronized void setMultiThreadMode(boolean multiThread) throws SQLiteException {
+    configure(multiThread ? SQLiteConstants.SQLITE_CONFIG_MULTITHREAD : SQLiteConstants.SQLITE_CONFIG_SERIALIZED, 0, 0,
+      "threading mode");
+  }
+
+  private static void configure(int op, int a, int b, String name) throws SQLiteException {
+    if (a < 0 || b < 0)
+      throw new IllegalArgumentException(name + " " + a + " " + b);
+    loadLibrary();
+    int rc = _SQLiteManual.wrapper_config(op, a, b);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot configure " + name + (rc == SQLiteConstants.SQLITE_MISUSE ? ": SQLite is already initialized" : ""));
+  }
+
+  /**
+   * Replaces SQLite's page cache with a shared page cache, which keeps pages of all connections in the process
+   * under a single memory budget. Unpinned pages of all connections are kept in one LRU list: when the budget is
+   * reached, the least recently used page is evicted, whichever connection it belongs to. This way memory goes to
+   * the hot databases rather than being split evenly by <code>PRAGMA cache_size</code>, which each connection
+   * still honors as its own upper limit. To let the budget alone govern the cache, set a large cache_size.
+   * <p/>
+   * Pages are not shared between connections: each connection holds its own copy of a database page, as SQLite
+   * requires. Pages of in-memory and temporary databases are counted, but never evicted.
+   * <p/>
+   * SQLite accepts a page cache only before it is initialized, which happens when the first connection is opened,
+   * so this method must be called at application start-up. Calling it again has no effect.
+   *
+   * @param budgetBytes the maximum memory used by all cached pages of all connections, including page headers;
+   * pinned pages and pages of in-memory databases are counted, and if they alone exceed the budget, the cache
+   * grows beyond it
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite has already been initialized
+   * @see #setSharedPageCacheBudget
+   * @see #getSharedPageCacheStats
+   * @see <a href="http://www.sqlite.org/c3ref/pcache_methods2.html">sqlite3_pcache_methods2</a>
+   */
+  public static synchronized void installSharedPageCache(long budgetBytes) throws SQLiteException {
+    if (budgetBytes <= 0)
+      throw new IllegalArgumentException("budget " + budgetBytes);
+    loadLibrary();
+    int rc = _SQLiteManual.wrapper_install_shared_pcache(budgetBytes);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot install shared page cache" + (rc == SQLiteConstants.SQLITE_MISUSE ? ": SQLite is already initialized" : ""));
+    Internal.logInfo(SQLite.class, "shared page cache installed, budget " + budgetBytes);
+  }
+
+  /**
+   * Changes the budget of the shared page cache. If the cache uses more memory than the new budget, least recently
+   * used pages are evicted immediately.
+   *
+   * @param budgetBytes the new budget in bytes
+   * @throws SQLiteException if native library cannot be loaded, or if the shared page cache is not in use
+   * @see #installSharedPageCache
+   */
+  public static void setSharedPageCacheBudget(long budgetBytes) throws SQLiteException {
+    if (budgetBytes <= 0)
+      throw new IllegalArgumentException("budget " + budgetBytes);
+    loadLibrary();
+    int rc = _SQLiteManual.wrapper_shared_pcache(budgetBytes, null);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "shared page cache is not in use");
+  }
+
+  /**
+   * @return the current state of the shared page cache, or null if it is not in use
+   * @throws SQLiteException if native library cannot be loaded
+   * @see #installSharedPageCache
+   */
+  public static SQLitePageCacheStats getSharedPageCacheStats() throws SQLiteException {
+    loadLibrary();
+    long[] values = new long[SQLitePageCacheStats.VALUES];
+    int rc = _SQLiteManual.wrapper_shared_pcache(0, values);
+    if (rc == SQLiteConstants.SQLITE_MISUSE)
+      return null;
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot read shared page cache stats");
+    return new SQLitePageCacheStats(values);
+  }
+
+  /**
+   * Registers the I/O statistics VFS with the name {@link SQLiteIOStats#VFS_NAME}, on top of the default VFS.
+   * See {@link #registerIOStatsVfs(String, String, boolean)} for details.
+   *
+   * @param makeDefault if true, the VFS becomes the default VFS for connections opened after this call
+   * @return the name of the VFS
+   * @throws SQLiteException if native library cannot be loaded, or if SQLite returns an error
+   */
+  public static String registerIOStatsVfs(boolean makeDefault) throws SQLiteException {
+    registerIOStatsVfs(SQLiteIOStats.VFS_NAME, null, makeDefault);
+    return SQLiteIOStats.VFS_NAME;
+  }
+
+  /**
+   * Registers a pass-through VFS that counts reads, writes and syncs of database, journal and WAL files and
+   * measures their latency. Connections opened with this VFS report the statistics with
+   * {@link SQLiteConnection#getIOStats}. The overhead is two clock readings per I/O operation.
+   * <p/>
+   * If a VFS with this name is already registered, this method only makes it default, if requested.
+   *
+   * @param name the name of the new VFS
+   * @param parentVfs the name of the VFS that performs the actual I/O, or null for the default VFS
+   * @param makeDefault if true, the VFS becomes the default VFS for connections opened after this call
+   * @throws SQLiteException if native library cannot be loaded, if the parent VFS is not found, or if SQLite
+   * returns an error
+   * @see <a href="http://www.sqlite.org/c3ref/vfs_find.html">sqlite3_vfs_register</a>
+   */
+  public static synchronized void registerIOStatsVfs(String name, String parentVfs, boolean makeDefault) throws SQLiteException {
+    if (name == null)
+      throw new NullPointerException();
+    loadLibrary();
+    int rc = _SQLiteManual.wrapper_register_iostat_vfs(name, parentVfs, makeDefault, false);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot register VFS " + name + " over " + (parentVfs == null ? "default VFS" : parentVfs));
+  }
+
   /**
    * Sets whether <a href="http://www.sqlite.org/sharedcache.html">shared cache mode</a> will be used
    * for the connections that are opened after this call. All existing connections are not affected.
@@ -110,7 +110,11 @@ public class SQLiteBackup {
       Internal.logFine(this, "backupStep(" + pagesToBackup + ")");
     }
     SWIGTYPE_p_sqlite3_backup handle = handle();
+    SQLiteEventListener listener = SQLite.getEventListener();
+    long from = listener == null ? 0 : System.nanoTime();
     int rc = _SQLiteSwigged.sqlite3_backup_step(handle, pagesToBackup);
+    if (listener != null)
+      listener.backupStep(pagesToBackup, _SQLiteSwigged.sqlite3_backup_remaining(handle), System.nanoTime() - from, rc);
     throwResult(rc, "backupStep failed");
     if (rc == SQLITE_DONE) {
       if (Internal.isFineLogging()) {
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteBackupScheduler runs an online backup of a queue's database in the background, interleaving backup steps
+ * with the queue's jobs. It is started with {@link SQLiteQueue#scheduleBackup}:
+ * <pre>
+ * SQLiteBackupScheduler backup = queue.scheduleBackup(new SQLiteBackupScheduler(backupFile).setDutyCycle(0.1));
+ * ...
+ * System.out.println("backup " + (int)(backup.getProgress() * 100) + "% done");
+ * ...
+ * if (backup.await(1, TimeUnit.HOURS) &amp;&amp; backup.getError() == null) ...
+ * </pre>
+ * Pacing is controlled by two parameters:
+ * <ul>
+ * <li>The <i>step time</i> limits how long a single backup step may delay the queue's jobs. The number of pages copied
+ * in a step is adjusted after each step to match it.</li>
+ * <li>The <i>duty cycle</i> is the share of the queue thread's time given to the backup. After a step, the next one
+ * is delayed accordingly, even if there are no jobs in the queue, to leave I/O bandwidth to other processes.</li>
+ * </ul>
+ * When the source or the destination database is locked, the step is retried with an exponential backoff.
+ * Changes made by the queue's connection during the backup are copied into the backup as they happen; changes
+ * made by other connections restart the backup.
+ * <p/>
+ * If the queue thread stops abnormally and the queue reincarnates, the backup starts over in the new thread. If
+ * the queue stops, the backup fails.
+ * <p/>
+ * Setters should be called before the backup is scheduled. Other methods are <strong>thread-safe</strong>.
+ */
+public final class SQLiteBackupScheduler {
+  public static final double DEFAULT_DUTY_CYCLE = 0.2;
+  public static final long DEFAULT_STEP_MILLIS = 20;
+  public static final int DEFAULT_INITIAL_PAGES = 64;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2000;
+
+  private static final int MAX_PAGES = 1 << 20;
+  private static final long MIN_BACKOFF_MILLIS = 10;
+
+  private final String mySourceDbName;
+  private final File myDestination;
+  private final CountDownLatch myDone = new CountDownLatch(1);
+
+  private volatile double myDutyCycle = DEFAULT_DUTY_CYCLE;
+  private volatile long myStepNanos = DEFAULT_STEP_MILLIS * 1000000L;
+  private volatile int myInitialPages = DEFAULT_INITIAL_PAGES;
+  private volatile long myMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+  /**
+   * The backup in progress, or null if it has not started or has been released. <p/><i>confined to the queue thread</i>
+   */
+  private SQLiteBackup myBackup;
+  private int myPages;
+  private long myBackoffMillis;
+
+  /**
+   * The value of System.nanoTime() when the next step is due. <p/><i>written by the queue thread</i>
+   */
+  private volatile long myNextStepTime;
+
+  private volatile int myPageCount = -1;
+  private volatile int myRemaining = -1;
+  private volatile long myStepCount;
+  private volatile long myBusyCount;
+  private volatile long myBackupNanos;
+  private volatile boolean myCancelled;
+  private volatile boolean myFinished;
+  private volatile Throwable myError;
+
+  /**
+   * @param destination the file to write the backup of the main database to
+   */
+  public SQLiteBackupScheduler(File destination) {
+    this(SQLiteConnection.DEFAULT_DB_NAME, destination);
+  }
+
+  /**
+   * @param sourceDbName the name of the database to back up, usually "main", or the name used in ATTACH
+   * @param destination the file to write the backup to
+   */
+  public SQLiteBackupScheduler(String sourceDbName, File destination) {
+    if (sourceDbName == null || destination == null)
+      throw new NullPointerException();
+    mySourceDbName = sourceDbName;
+    myDestination = destination;
+  }
+
+  /**
+   * @param dutyCycle the share of the queue thread's time used by the backup, more than 0 and up to 1; with 1,
+   * backup steps follow each other without delay when there are no jobs
+   * @return this scheduler
+   */
+  public SQLiteBackupScheduler setDutyCycle(double dutyCycle) {
+    if (!(dutyCycle > 0 && dutyCycle <= 1))
+      throw new IllegalArgumentException("duty cycle " + dutyCycle);
+    myDutyCycle = dutyCycle;
+    return this;
+  }
+
+  /**
+   * @param millis the target duration of a single backup step
+   * @return this scheduler
+   */
+  public SQLiteBackupScheduler setStepMillis(long millis) {
+    if (millis <= 0)
+      throw new IllegalArgumentException("step " + millis);
+    myStepNanos = millis * 1000000L;
+    return this;
+  }
+
+  /**
+   * @param pages the number of pages copied by the first step, before the step time is measured
+   * @return this scheduler
+   */
+  public SQLiteBackupScheduler setInitialPages(int pages) {
+    if (pages <= 0)
+      throw new IllegalArgumentException("pages " + pages);
+    myInitialPages = pages;
+    return this;
+  }
+
+  /**
+   * @param millis the longest delay before retrying a step that failed because a database was locked
+   * @return this scheduler
+   */
+  public SQLiteBackupScheduler setMaxBackoffMillis(long millis) {
+    if (millis < MIN_BACKOFF_MILLIS)
+      throw new IllegalArgumentException("backoff " + millis);
+    myMaxBackoffMillis = millis;
+    return this;
+  }
+
+  public File getDestination() {
+    return myDestination;
+  }
+
+  /**
+   * @return the number of pages in the source database as of the last step, or -1 if the backup has not started
+   */
+  public int getPageCount() {
+    return myPageCount;
+  }
+
+  /**
+   * @return the number of pages still to be copied as of the last step, or -1 if the backup has not started
+   */
+  public int getRemaining() {
+    return myRemaining;
+  }
+
+  /**
+   * @return the share of pages copied, from 0 to 1
+   */
+  public double getProgress() {
+    if (myFinished && myError == null)
+      return 1;
+    int count = myPageCount;
+    int remaining = myRemaining;
+    return count <= 0 || remaining < 0 ? 0 : (double) (count - remaining) / count;
+  }
+
+  /**
+   * @return the number of backup steps made, including steps retried because of locks
+   */
+  public long getStepCount() {
+    return myStepCount;
+  }
+
+  /**
+   * @return the number of steps that failed because the source or destination database was locked
+   */
+  public long getBusyCount() {
+    return myBusyCount;
+  }
+
+  /**
+   * @return the total time spent in backup steps, in nanoseconds
+   */
+  public long getBackupNanos() {
+    return myBackupNanos;
+  }
+
+  /**
+   * @return true if the backup has completed, failed or was cancelled
+   */
+  public boolean isFinished() {
+    return myFinished;
+  }
+
+  /**
+   * @return the reason why the backup failed or null
+   */
+  public Throwable getError() {
+    return myError;
+  }
+
+  /**
+   * Stops the backup. The partially written destination is left as is.
+   */
+  public void cancel() {
+    myCancelled = true;
+    myNextStepTime = System.nanoTime();
+  }
+
+  /**
+   * Waits until the backup is finished.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   * @return true if the backup is finished, check {@link #getError} to see if it succeeded
+   * @throws InterruptedException if the current thread is interrupted
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return myDone.await(timeout, unit);
+  }
+
+  public String toString() {
+    return "backup[" + mySourceDbName + " to " + myDestination.getName() + "]";
+  }
+
+  long getNextStepTime() {
+    return myNextStepTime;
+  }
+
+  boolean isDue(long now) {
+    return !myFinished && now - myNextStepTime >= 0;
+  }
+
+  /**
+   * Makes one step of the backup. Called in the queue thread.
+   */
+  void step(SQLiteConnection connection) {
+    if (myFinished)
+      return;
+    if (myCancelled) {
+      finish(new SQLiteException(WRAPPER_USER_ERROR, "backup cancelled"));
+      return;
+    }
+    long start = System.nanoTime();
+    boolean done;
+    try {
+      if (myBackup == null) {
+        myBackup = connection.initializeBackup(mySourceDbName, myDestination, SQLITE_OPEN_CREATE | SQLITE_OPEN_READWRITE);
+        myPages = myInitialPages;
+        if (Internal.isFineLogging())
+          Internal.logFine(this, "started");
+      }
+      myStepCount++;
+      done = myBackup.backupStep(myPages);
+      myPageCount = myBackup.getPageCount();
+      myRemaining = myBackup.getRemaining();
+    } catch (SQLiteBusyException e) {
+      myBusyCount++;
+      myBackoffMillis = Math.min(myMaxBackoffMillis, Math.max(MIN_BACKOFF_MILLIS, myBackoffMillis * 2));
+      if (Internal.isFineLogging())
+        Internal.logFine(this, "busy, retrying in " + myBackoffMillis + "ms");
+      myNextStepTime = System.nanoTime() + myBackoffMillis * 1000000L;
+      return;
+    } catch (SQLiteException e) {
+      finish(e);
+      return;
+    }
+    long now = System.nanoTime();
+    long elapsed = Math.max(1, now - start);
+    myBackupNanos += elapsed;
+    myBackoffMillis = 0;
+    if (done) {
+      finish(null);
+      return;
+    }
+    // scale the batch towards the target step time, changing it at most twice per step to smooth out noise
+    double scale = Math.max(0.5, Math.min(2.0, (double) myStepNanos / elapsed));
+    myPages = (int) Math.max(1, Math.min(MAX_PAGES, myPages * scale));
+    double duty = myDutyCycle;
+    myNextStepTime = now + (long) (elapsed * (1 - duty) / duty);
+  }
+
+  /**
+   * Disposes the backup in progress, because the queue's connection is about to be closed. If the queue
+   * reincarnates, the backup starts over with the next connection.
+   */
+  void release() {
+    disposeBackup();
+    myPageCount = -1;
+    myRemaining = -1;
+  }
+
+  void fail(Throwable error) {
+    if (!myFinished)
+      finish(error);
+  }
+
+  private void finish(Throwable error) {
+    disposeBackup();
+    myError = error;
+    myFinished = true;
+    myDone.countDown();
+    if (error == null) {
+      Internal.logInfo(this, "finished in " + myStepCount + " steps, " + myBackupNanos / 1000000L + "ms");
+    } else {
+      Internal.log(Level.WARNING, this, "failed", error);
+    }
+  }
+
+  private void disposeBackup() {
+    SQLiteBackup backup = myBackup;
+    myBackup = null;
+    if (backup != null) {
+      try {
+        backup.dispose();
+      } catch (Exception e) {
+        Internal.log(Level.WARNING, this, "cannot dispose backup", e);
+      }
+    }
+  }
+}
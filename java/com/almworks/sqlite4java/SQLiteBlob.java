@@ -134,7 +134,11 @@ public final class SQLiteBlob {
     myController.validate();
     if (Internal.isFineLogging())
       Internal.logFine(this, "read[" + blobOffset + "," + length + "]");
+    SQLiteEventListener listener = SQLite.getEventListener();
+    long from = listener == null ? 0 : System.nanoTime();
     int rc = _SQLiteManual.sqlite3_blob_read(handle(), blobOffset, buffer, offset, length);
+    if (listener != null)
+      listener.blobIO(false, length, System.nanoTime() - from, rc);
     myController.throwResult(rc, "read", this);
   }
 
@@ -164,7 +168,11 @@ public final class SQLiteBlob {
     myController.validate();
     if (Internal.isFineLogging())
       Internal.logFine(this, "write[" + blobOffset + "," + length + "]");
+    SQLiteEventListener listener = SQLite.getEventListener();
+    long from = listener == null ? 0 : System.nanoTime();
     int rc = _SQLiteManual.sqlite3_blob_write(handle(), blobOffset, buffer, offset, length);
+    if (listener != null)
+      listener.blobIO(true, length, System.nanoTime() - from, rc);
     myController.throwResult(rc, "write", this);
   }
 
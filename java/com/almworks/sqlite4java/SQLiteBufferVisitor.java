@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SQLiteBufferVisitor receives a read-only view of a column value that points directly into memory owned by
+ * SQLite, see {@link SQLiteStatement#withColumnBuffer}.
+ * <p/>
+ * <strong>The buffer is valid only during the call to {@link #visit}.</strong> Neither the buffer nor any buffer
+ * derived from it with <code>duplicate()</code>, <code>slice()</code> or similar methods may be kept or used after
+ * the method returns. SQLite frees that memory on the next step, reset or dispose of the statement, and the JVM
+ * cannot detect access to freed memory, so such use may return garbage or crash the process. Copy the bytes
+ * if they are needed later.
+ * <p/>
+ * Reading the same column as text, with {@link SQLiteStatement#columnString} or a similar method, makes SQLite
+ * convert the value and may free the memory, so while the visitor runs such calls fail, as do calls to step,
+ * reset and dispose of the statement. Other columns and numeric accessors may be read.
+ *
+ * @param <T> type of the result
+ */
+public interface SQLiteBufferVisitor<T> {
+  /**
+   * Processes the column value in place.
+   *
+   * @param buffer a read-only direct buffer with the value, or null if the value is NULL
+   * @return a result that is passed back to the caller of {@link SQLiteStatement#withColumnBuffer}
+   * @throws SQLiteException if the value cannot be processed
+   * @throws IOException if writing the value somewhere fails
+   */
+  T visit(ByteBuffer buffer) throws SQLiteException, IOException;
+}
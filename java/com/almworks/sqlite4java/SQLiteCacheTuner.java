@@ -0,0 +1,226 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.almworks.sqlite4java;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteCacheTuner adjusts <code>PRAGMA cache_size</code> of a connection according to the observed page cache
+ * hit ratio, within a memory budget.
+ * <p/>
+ * On every run, the tuner compares the connection's {@link SQLiteConnection#getDbStatus status} with the previous
+ * run and makes one of the following decisions:
+ * <ul>
+ * <li>if the cache is full and the miss ratio is above {@link #setGrowMissRatio the threshold}, the cache size is
+ * doubled, up to the memory budget;</li>
+ * <li>if the connection was almost idle, or the cached pages occupy less than a half of the cache, the cache size
+ * is halved, down to {@link #setMinCacheSize the minimum}, and unused memory is released with
+ * <code>sqlite3_db_release_memory</code>;</li>
+ * <li>otherwise the cache size is kept.</li>
+ * </ul>
+ * This lets processes that run many databases with different working sets give memory to the busy databases and
+ * take it back from the idle ones.
+ * <p/>
+ * Install a tuner with {@link SQLiteConnection#setCacheTuner} or {@link SQLiteQueue#setCacheTuner}; the tuner
+ * then runs in the database thread at most once per {@link #getIntervalMillis interval}. It can also be run
+ * manually with {@link #tune}. The PRAGMAs run by the tuner are not seen by the profiler, event listeners or
+ * the slow query log.
+ * <p/>
+ * The tuner keeps the state of a single connection; use a separate instance for every connection. It is
+ * not thread-safe and must be used in the connection's thread.
+ */
+public final class SQLiteCacheTuner {
+  /**
+   * Default interval between runs, in milliseconds.
+   */
+  public static final long DEFAULT_INTERVAL = 10000;
+
+  /**
+   * Default minimum cache size, in pages.
+   */
+  public static final int DEFAULT_MIN_CACHE_SIZE = 64;
+
+  /**
+   * Default miss ratio above which the cache is grown.
+   */
+  public static final double DEFAULT_GROW_MISS_RATIO = 0.05;
+
+  /**
+   * Default number of page reads per interval below which the connection is considered idle.
+   */
+  public static final int DEFAULT_IDLE_ACCESSES = 100;
+
+  private final long myBudget;
+  private final long myIntervalMillis;
+  private int myMinCacheSize = DEFAULT_MIN_CACHE_SIZE;
+  private double myGrowMissRatio = DEFAULT_GROW_MISS_RATIO;
+  private int myIdleAccesses = DEFAULT_IDLE_ACCESSES;
+
+  private SQLiteConnection myConnection;
+  private SQLiteDbStatus myLastStatus;
+  private int myPageSize;
+  private int myCacheSize;
+  private int myGrowCount;
+  private int myShrinkCount;
+
+  /**
+   * Creates a tuner that runs every {@link #DEFAULT_INTERVAL} milliseconds.
+   *
+   * @param budget maximum memory for the page cache of the connection, in bytes
+   */
+  public SQLiteCacheTuner(long budget) {
+    this(budget, DEFAULT_INTERVAL);
+  }
+
+  /**
+   * @param budget maximum memory for the page cache of the connection, in bytes
+   * @param intervalMillis minimum interval between automatic runs, in milliseconds
+   */
+  public SQLiteCacheTuner(long budget, long intervalMillis) {
+    if (budget <= 0)
+      throw new IllegalArgumentException("budget " + budget);
+    if (intervalMillis < 0)
+      throw new IllegalArgumentException("intervalMillis " + intervalMillis);
+    myBudget = budget;
+    myIntervalMillis = intervalMillis;
+  }
+
+  /**
+   * @param pages the cache is never shrunk below this size, in pages
+   * @return this tuner
+   */
+  public SQLiteCacheTuner setMinCacheSize(int pages) {
+    if (pages <= 0)
+      throw new IllegalArgumentException("pages " + pages);
+    myMinCacheSize = pages;
+    return this;
+  }
+
+  /**
+   * @param ratio the cache is grown when the ratio of misses to all page reads exceeds this value
+   * @return this tuner
+   */
+  public SQLiteCacheTuner setGrowMissRatio(double ratio) {
+    if (ratio < 0 || ratio > 1)
+      throw new IllegalArgumentException("ratio " + ratio);
+    myGrowMissRatio = ratio;
+    return this;
+  }
+
+  /**
+   * @param accesses the connection is considered idle when it reads fewer pages than this between two runs
+   * @return this tuner
+   */
+  public SQLiteCacheTuner setIdleAccesses(int accesses) {
+    if (accesses < 0)
+      throw new IllegalArgumentException("accesses " + accesses);
+    myIdleAccesses = accesses;
+    return this;
+  }
+
+  /**
+   * @return the memory budget, in bytes
+   */
+  public long getBudget() {
+    return myBudget;
+  }
+
+  /**
+   * @return minimum interval between automatic runs, in milliseconds
+   */
+  public long getIntervalMillis() {
+    return myIntervalMillis;
+  }
+
+  /**
+   * @return the cache size set by the last run, in pages, or 0 if the tuner has not run yet
+   */
+  public int getCacheSize() {
+    return myCacheSize;
+  }
+
+  /**
+   * @return the number of times the cache has been grown
+   */
+  public int getGrowCount() {
+    return myGrowCount;
+  }
+
+  /**
+   * @return the number of times the cache has been shrunk
+   */
+  public int getShrinkCount() {
+    return myShrinkCount;
+  }
+
+  /**
+   * Samples the connection's page cache counters and adjusts the cache size. The first run on a connection
+   * only reads the current settings.
+   *
+   * @param connection the connection, which must be open
+   * @return the cache size after this run, in pages
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of the connection
+   */
+  public int tune(SQLiteConnection connection) throws SQLiteException {
+    SQLiteDbStatus status = connection.getDbStatus();
+    if (connection != myConnection) {
+      int pageSize = connection.pragmaInternal("PRAGMA page_size");
+      int size = connection.pragmaInternal("PRAGMA cache_size");
+      if (pageSize <= 0)
+        throw new SQLiteException(WRAPPER_WEIRD, "page_size " + pageSize);
+      // negative cache_size is the limit in KiB
+      myCacheSize = size >= 0 ? size : (int) (-1024L * size / pageSize);
+      myPageSize = pageSize;
+      myLastStatus = status;
+      myConnection = connection;
+      return myCacheSize;
+    }
+    SQLiteDbStatus delta = status.delta(myLastStatus);
+    myLastStatus = status;
+    long hits = delta.getCount(SQLITE_DBSTATUS_CACHE_HIT);
+    long misses = delta.getCount(SQLITE_DBSTATUS_CACHE_MISS);
+    long accesses = hits + misses;
+    // cache_used includes per-page overhead, so a full cache may exceed cache_size * page_size a little
+    double occupancy = (double) status.getCurrent(SQLITE_DBSTATUS_CACHE_USED) / ((long) myCacheSize * myPageSize);
+    int maxCacheSize = (int) Math.max(myMinCacheSize, Math.min(Integer.MAX_VALUE, myBudget / myPageSize));
+    int size = myCacheSize;
+    if (accesses < myIdleAccesses || occupancy < 0.5) {
+      size = Math.max(myMinCacheSize, myCacheSize / 2);
+    } else if (misses > accesses * myGrowMissRatio && occupancy >= 0.9) {
+      size = (int) Math.min(maxCacheSize, 2L * myCacheSize);
+    }
+    size = Math.min(size, maxCacheSize);
+    if (size != myCacheSize) {
+      if (Internal.isFineLogging())
+        Internal.logFine(connection, "cache_size " + myCacheSize + " => " + size + " (" + misses + "/" + accesses + " misses)");
+      connection.pragmaInternal("PRAGMA cache_size = " + size);
+      if (size < myCacheSize) {
+        connection.releaseMemory();
+        myShrinkCount++;
+      } else {
+        myGrowCount++;
+      }
+      myCacheSize = size;
+    }
+    return size;
+  }
+
+  public String toString() {
+    return "SQLiteCacheTuner[" + myCacheSize + " pages, budget " + myBudget + "]";
+  }
+}
@@ -20,6 +20,7 @@ import javolution.util.stripped.FastMap;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.logging.Level;
 
@@ -144,18 +145,84 @@ public final class SQLiteConnection {
   /**
    * Native byte buffer to communicate between Java and SQLite to report progress and cancel execution.
    */
-  private ProgressHandler myProgressHandler;
+  private volatile ProgressHandler myProgressHandler;
+
+  /**
+   * Statement cache and busy counters, exposed through {@link SQLiteManagement}. <p/><i>written by the confining thread only</i>
+   */
+  private volatile long myStatementCacheHits;
+  private volatile long myStatementCacheMisses;
+  private volatile long myBusyCount;
+
+  /**
+   * Cache tuner installed with setCacheTuner(), or null. <p/><i>confined</i>
+   */
+  private SQLiteCacheTuner myCacheTuner;
+
+  /**
+   * The value of System.nanoTime() when the cache tuner should run next. <p/><i>confined</i>
+   */
+  private long myCacheTuneTime;
+
+  /**
+   * Buffers that SQLite uses without copying, after deserializeNoCopy(), by schema name. Kept until the connection
+   * is closed so that they are not garbage-collected while in use. <p/><i>confined</i>
+   */
+  private final Map<String, ByteBuffer> myImages = new HashMap<String, ByteBuffer>();
+
+  /**
+   * Native trace started with startTrace(), or null.
+   */
+  private SQLiteTrace myTrace;
 
   /**
    * May be set only before first exec() or step().
    */
   private volatile int myStepsPerCallback = DEFAULT_STEPS_PER_CALLBACK;
 
+  /**
+   * The name of the VFS to open the database with, or null for the default VFS.
+   */
+  private volatile String myVfs;
+
+  /**
+   * Settings applied when the connection is opened, or null.
+   */
+  private volatile SQLiteConnectionConfig myConfig;
+
+  /**
+   * If true, the connection is opened with SQLITE_OPEN_FULLMUTEX rather than SQLITE_OPEN_NOMUTEX.
+   */
+  private volatile boolean myFullMutex;
+
+  /**
+   * True if the open connection has no mutex, so native calls from threads other than the confining thread are
+   * not safe.
+   */
+  private volatile boolean myMutexFree;
+
+  /**
+   * For a connection without mutex: the status published by the confining thread for other threads, and the
+   * flag that other threads set to ask for a fresh one.
+   */
+  private volatile SQLiteDbStatus myPublishedStatus;
+  private volatile boolean myStatusRequested;
+
   /**
    * If initialized, all subsequent statements are analyzed for speed and stats are
    * collected in the profiler.
    */
-  private volatile SQLiteProfiler myProfiler;
+  private volatile SQLiteProfiler myProfiler = SQLiteProfiler.getDefault();
+
+  /**
+   * If set, installed into all subsequently prepared statements.
+   */
+  private SQLiteStringCache myStringCache;
+
+  /**
+   * If set, statements that run longer than the log's threshold are recorded.
+   */
+  private volatile SQLiteSlowQueryLog mySlowQueryLog;
 
   /**
    * Contains inactive (initialized, but not in use) long arrays, mapped by the name.
@@ -250,6 +317,107 @@ public final class SQLiteConnection {
     }
   }
 
+  /**
+   * Sets the VFS that will be used to open the database. Must be called before the connection is opened.
+   * <p/>
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @param vfs the name of a registered VFS, or null to use the default VFS
+   * @return this connection
+   * @see SQLite#registerIOStatsVfs
+   * @see <a href="http://www.sqlite.org/vfs.html">SQLite VFS</a>
+   */
+  public SQLiteConnection setVfs(String vfs) {
+    synchronized (myLock) {
+      if (myHandle != null || myDisposed) {
+        Internal.recoverableError(this, "cannot change VFS after connection has been opened", true);
+        return this;
+      }
+      myVfs = vfs;
+    }
+    return this;
+  }
+
+  /**
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @return the name of the VFS set with {@link #setVfs}, or null if the default VFS is used
+   */
+  public String getVfs() {
+    return myVfs;
+  }
+
+  /**
+   * Tells whether SQLite should protect the connection with a mutex. Must be called before the connection is
+   * opened.
+   * <p/>
+   * Since a connection is confined to a single thread, the methods {@link #open(boolean)}, {@link #open()} and
+   * {@link #openReadonly()} by default open it with <code>SQLITE_OPEN_NOMUTEX</code>, which saves acquiring and
+   * releasing a mutex in every SQLite API call. {@link #interrupt()} remains safe to call from any thread. Set full
+   * mutex only if the native handle is used from other threads, for example by native code of your own.
+   * Connections opened with {@link #openV2} use the given flags as is.
+   * <p/>
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @param fullMutex true to open the connection with <code>SQLITE_OPEN_FULLMUTEX</code>
+   * @return this connection
+   * @see SQLite#setMultiThreadMode
+   * @see <a href="http://www.sqlite.org/threadsafe.html">Using SQLite In Multi-Threaded Applications</a>
+   */
+  public SQLiteConnection setFullMutex(boolean fullMutex) {
+    synchronized (myLock) {
+      if (myHandle != null || myDisposed) {
+        Internal.recoverableError(this, "cannot change mutex mode after connection has been opened", true);
+        return this;
+      }
+      myFullMutex = fullMutex;
+    }
+    return this;
+  }
+
+  /**
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @return true if the connection is set to be opened with a full mutex
+   * @see #setFullMutex
+   */
+  public boolean isFullMutex() {
+    return myFullMutex;
+  }
+
+  /**
+   * Sets the configuration that is applied when the connection is opened. If the configuration cannot be applied
+   * or validated, open fails and the connection is disposed. Must be called before the connection is opened.
+   * <p/>
+   * The connection keeps a copy of the configuration, so later changes to it have no effect.
+   * <p/>
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @param config the configuration, or null
+   * @return this connection
+   * @see SQLiteConnectionConfig
+   */
+  public SQLiteConnection setConfig(SQLiteConnectionConfig config) {
+    synchronized (myLock) {
+      if (myHandle != null || myDisposed) {
+        Internal.recoverableError(this, "cannot change configuration after connection has been opened", true);
+        return this;
+      }
+      myConfig = config == null ? null : new SQLiteConnectionConfig(config);
+    }
+    return this;
+  }
+
+  /**
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @return a copy of the configuration set with {@link #setConfig}, or null
+   */
+  public SQLiteConnectionConfig getConfig() {
+    SQLiteConnectionConfig config = myConfig;
+    return config == null ? null : new SQLiteConnectionConfig(config);
+  }
+
   /**
    * Allows the size of various constructs for the current connection to be limited.
    *
@@ -304,7 +472,7 @@ public final class SQLiteConnection {
     } else {
       flags |= SQLITE_OPEN_CREATE;
     }
-    open0(flags);
+    open0(flags | mutexFlag());
     return this;
   }
 
@@ -329,7 +497,7 @@ public final class SQLiteConnection {
     if (isMemoryDatabase()) {
       throw new SQLiteException(WRAPPER_WEIRD, "cannot open memory database in read-only mode");
     }
-    open0(SQLITE_OPEN_READONLY);
+    open0(SQLITE_OPEN_READONLY | mutexFlag());
     return this;
   }
 
@@ -353,6 +521,10 @@ public final class SQLiteConnection {
     return this;
   }
 
+  private int mutexFlag() {
+    return myFullMutex ? SQLITE_OPEN_FULLMUTEX : SQLITE_OPEN_NOMUTEX;
+  }
+
   /**
    * Tells whether connection is open. This method is <strong>thread-safe</strong>.
    *
@@ -509,6 +681,7 @@ public final class SQLiteConnection {
     finalizeBuffers();
     finalizeArrays();
     finalizeProgressHandler(handle);
+    finalizeTrace(handle);
     int rc = _SQLiteSwigged.sqlite3_close(handle);
     // rc may be SQLiteConstants.Result.SQLITE_BUSY if statements are open
     if (rc != SQLiteConstants.SQLITE_OK) {
@@ -520,7 +693,9 @@ public final class SQLiteConnection {
       }
       Internal.logWarn(this, "close error " + rc + (errmsg == null ? "" : ": " + errmsg));
     }
+    myImages.clear();
     Internal.logInfo(this, "connection closed");
+    SQLiteManagement.unregister(this);
     myConfinement = null;
   }
 
@@ -540,6 +715,8 @@ public final class SQLiteConnection {
    */
   public SQLiteConnection exec(String sql) throws SQLiteException {
     checkThread();
+    tuneCacheIfDue();
+    publishStatusIfRequested();
     SQLiteProfiler profiler = myProfiler;
     if (Internal.isFineLogging())
       Internal.logFine(this, "exec [" + sql + "]");
@@ -548,9 +725,18 @@ public final class SQLiteConnection {
     ph.reset();
     try {
       String[] error = {null};
-      long from = profiler == null ? 0 : System.nanoTime();
+      SQLiteEventListener listener = SQLite.getEventListener();
+      SQLiteSlowQueryLog slowQueryLog = mySlowQueryLog;
+      boolean timed = profiler != null || listener != null || slowQueryLog != null;
+      long from = timed ? System.nanoTime() : 0;
       int rc = _SQLiteManual.sqlite3_exec(handle, sql, error);
-      if (profiler != null) profiler.reportExec(sql, from, System.nanoTime(), rc);
+      if (timed) {
+        long to = System.nanoTime();
+        if (profiler != null) profiler.reportExec(sql, from, to, rc);
+        if (listener != null) listener.executed(sql, to - from, rc);
+        if (slowQueryLog != null && to - from >= slowQueryLog.getThresholdNanos())
+          slowQueryLog.record(new SQLParts(sql), null, to - from, null, null);
+      }
       throwResult(rc, "exec()", error[0]);
     } finally {
       if (Internal.isFineLogging())
@@ -603,6 +789,8 @@ public final class SQLiteConnection {
    */
   public SQLiteStatement prepare(SQLParts sql, boolean cached, int flags) throws SQLiteException {
     checkThread();
+    tuneCacheIfDue();
+    publishStatusIfRequested();
     SQLiteProfiler profiler = myProfiler;
     if (Internal.isFineLogging())
       Internal.logFine(this, "prepare [" + sql + "]");
@@ -625,19 +813,29 @@ public final class SQLiteConnection {
             e.setValue(null);
           }
         }
+        if (stmt != null) {
+          myStatementCacheHits++;
+        } else {
+          myStatementCacheMisses++;
+        }
       }
       handle = handle();
     }
     if (stmt == null) {
       if (Internal.isFineLogging())
         Internal.logFine(this, "calling sqlite3_prepare_v2 for [" + sql + "]");
-      long from = profiler == null ? 0 : System.nanoTime();
+      SQLiteEventListener listener = SQLite.getEventListener();
+      long from = profiler == null && listener == null ? 0 : System.nanoTime();
       String sqlString = sql.toString();
       if (sqlString.trim().length() == 0)
         throw new SQLiteException(WRAPPER_USER_ERROR, "empty SQL");
       stmt = mySQLiteManual.sqlite3_prepare_v3(handle, sqlString, flags);
       int rc = mySQLiteManual.getLastReturnCode();
-      if (profiler != null) profiler.reportPrepare(sqlString, from, System.nanoTime(), rc);
+      if (profiler != null || listener != null) {
+        long to = System.nanoTime();
+        if (profiler != null) profiler.reportPrepare(sql, from, to, rc);
+        if (listener != null) listener.prepared(sql, to - from, rc);
+      }
       throwResult(rc, "prepare()", sql);
       if (stmt == null)
         throw new SQLiteException(WRAPPER_WEIRD, "sqlite did not return stmt");
@@ -654,6 +852,8 @@ public final class SQLiteConnection {
         if (fixedKey == null)
           fixedKey = sql.getFixedParts();
         statement = new SQLiteStatement(controller, stmt, fixedKey, myProfiler);
+        statement.setStringCache(myStringCache);
+        statement.setSlowQueryLog(mySlowQueryLog);
         myStatements.add(statement);
       } else {
         Internal.logWarn(this, "connection disposed while preparing statement for [" + sql + "]");
@@ -911,7 +1111,10 @@ public final class SQLiteConnection {
    * @see <a href="http://www.sqlite.org/c3ref/interrupt.html">sqlite3_interrupt</a>
    */
   public void interrupt() throws SQLiteException {
-    _SQLiteSwigged.sqlite3_interrupt(handle());
+    // holding the lock keeps dispose() from closing the handle during the call
+    synchronized (myLock) {
+      _SQLiteSwigged.sqlite3_interrupt(handle());
+    }
   }
 
   /**
@@ -960,6 +1163,23 @@ public final class SQLiteConnection {
     return profiler;
   }
 
+  /**
+   * Starts SQL profiling into the specified profiler, replacing the current profiler if there is one. Use this
+   * method to share one profiler between several connections.
+   * <p/>
+   * This method is thread-safe, in a sense that it can be called from non-session threads.
+   * <p/>
+   * Only instances of SQLiteStatement created after this method is called will be profiled.
+   *
+   * @param profiler the profiler to collect stats for all subsequent operations, or null to stop profiling
+   * @return this connection
+   * @see SQLiteProfiler#setDefault
+   */
+  public SQLiteConnection profile(SQLiteProfiler profiler) {
+    myProfiler = profiler;
+    return this;
+  }
+
   /**
    * Stops the profiling and returns the profiler instance with data. If the profiling was not running,
    * returns null.
@@ -975,6 +1195,287 @@ public final class SQLiteConnection {
     return profiler;
   }
 
+  /**
+   * Takes a snapshot of this connection's status values without resetting them. See
+   * {@link #getDbStatus(boolean)} for details.
+   *
+   * @return the snapshot
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   */
+  public SQLiteDbStatus getDbStatus() throws SQLiteException {
+    return getDbStatus(false);
+  }
+
+  /**
+   * Takes a snapshot of this connection's status values, such as page cache hits and misses and memory used by
+   * the schema and prepared statements. All values are read with a single native call.
+   * <p/>
+   * To measure activity over a period of time, prefer taking two snapshots without reset and calling
+   * {@link SQLiteDbStatus#delta}, so that independent observers do not disturb each other's counters.
+   *
+   * @param reset if true, counters and highwater values are reset after they have been read
+   * @return the snapshot
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/db_status.html">sqlite3_db_status</a>
+   */
+  public SQLiteDbStatus getDbStatus(boolean reset) throws SQLiteException {
+    checkThread();
+    int[] values = new int[SQLiteDbStatus.VALUES];
+    int rc = _SQLiteManual.wrapper_db_status(handle(), reset, values);
+    throwResult(rc, "getDbStatus()");
+    return new SQLiteDbStatus(values, System.currentTimeMillis());
+  }
+
+  /**
+   * Takes a snapshot of the file I/O statistics of this connection's database without resetting them.
+   *
+   * @return the snapshot, or null if the database has not been opened with the I/O statistics VFS
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see SQLite#registerIOStatsVfs
+   */
+  public SQLiteIOStats getIOStats() throws SQLiteException {
+    return getIOStats(false);
+  }
+
+  /**
+   * Takes a snapshot of the file I/O statistics of this connection's database. The statistics are shared by all
+   * connections to the same database file.
+   *
+   * @param reset if true, the statistics are reset after they have been read
+   * @return the snapshot, or null if the database has not been opened with the I/O statistics VFS
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see SQLiteIOStats
+   */
+  public SQLiteIOStats getIOStats(boolean reset) throws SQLiteException {
+    checkThread();
+    long[] values = new long[SQLiteIOStats.VALUES];
+    int rc = _SQLiteManual.wrapper_iostat(handle(), reset, values);
+    if (rc == SQLITE_NOTFOUND)
+      return null;
+    throwResult(rc, "getIOStats()");
+    return new SQLiteIOStats(values, System.currentTimeMillis());
+  }
+
+  /**
+   * Starts native tracing with the default buffer capacity and SQL length. See
+   * {@link #startTrace(int, int, int)} for details.
+   *
+   * @param mask the events to trace, a combination of SQLITE_TRACE_STMT, SQLITE_TRACE_PROFILE and
+   * SQLITE_TRACE_ROW
+   * @return the trace to drain events from
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   */
+  public SQLiteTrace startTrace(int mask) throws SQLiteException {
+    return startTrace(mask, SQLiteTrace.DEFAULT_CAPACITY, SQLiteTrace.DEFAULT_MAX_SQL_LENGTH);
+  }
+
+  /**
+   * Starts native tracing of this connection with <code>sqlite3_trace_v2</code>. Events are written into a ring
+   * buffer in native memory of the specified capacity and must be drained periodically with
+   * {@link SQLiteTrace#drain}. If a trace is already running, it is stopped and its undrained events are lost.
+   * <p/>
+   * Each event takes 32 bytes plus the length of the copied SQL, rounded up to 8 bytes.
+   * SQLITE_TRACE_ROW generates an event for every row, so use it only with a large enough buffer.
+   * SQLITE_TRACE_CLOSE is not supported, because the trace is stopped before the connection is closed.
+   *
+   * @param mask the events to trace, a combination of SQLITE_TRACE_STMT, SQLITE_TRACE_PROFILE and
+   * SQLITE_TRACE_ROW
+   * @param capacity the size of the ring buffer in bytes, at least 1024
+   * @param maxSqlLength maximum number of bytes of SQL to copy into each STMT and PROFILE event
+   * @return the trace to drain events from
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/trace_v2.html">sqlite3_trace_v2</a>
+   */
+  public SQLiteTrace startTrace(int mask, int capacity, int maxSqlLength) throws SQLiteException {
+    checkThread();
+    if ((mask & ~(SQLITE_TRACE_STMT | SQLITE_TRACE_PROFILE | SQLITE_TRACE_ROW)) != 0 || mask == 0)
+      throw new IllegalArgumentException("mask " + mask);
+    if (capacity < 1024)
+      throw new IllegalArgumentException("capacity " + capacity);
+    if (maxSqlLength < 0)
+      throw new IllegalArgumentException("maxSqlLength " + maxSqlLength);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "startTrace(" + mask + "," + capacity + "," + maxSqlLength + ")");
+    SWIGTYPE_p_sqlite3 handle = handle();
+    finalizeTrace(handle);
+    SQLiteTrace trace = mySQLiteManual.install_trace(handle, mask, (capacity + 7) & ~7, maxSqlLength);
+    int rc = mySQLiteManual.getLastReturnCode();
+    if (rc != SQLITE_OK && trace != null) {
+      _SQLiteManual.uninstall_trace(handle, trace);
+    }
+    throwResult(rc, "startTrace()");
+    if (trace == null)
+      throw new SQLiteException(WRAPPER_WEIRD, "cannot install trace");
+    trace.setConnection(this);
+    myTrace = trace;
+    return trace;
+  }
+
+  /**
+   * Stops native tracing started with {@link #startTrace} and frees the buffer.
+   *
+   * @return events that have not been drained yet, possibly empty
+   * @throws SQLiteException if the call violates the contract of this class
+   */
+  public List<SQLiteTrace.Event> stopTrace() throws SQLiteException {
+    checkThread();
+    SQLiteTrace trace = myTrace;
+    List<SQLiteTrace.Event> r = new ArrayList<SQLiteTrace.Event>();
+    if (trace != null) {
+      trace.drain(r);
+      finalizeTrace(handle());
+    }
+    return r;
+  }
+
+  /**
+   * Starts recording statements that run longer than the threshold of the specified log. The log applies to
+   * statements prepared after this call and to {@link #exec}.
+   * <p/>
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @param log the log, or null to stop recording slow statements
+   * @return this connection
+   * @see SQLiteSlowQueryLog
+   */
+  public SQLiteConnection setSlowQueryLog(SQLiteSlowQueryLog log) {
+    mySlowQueryLog = log;
+    return this;
+  }
+
+  /**
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @return the slow query log installed with {@link #setSlowQueryLog}, or null
+   */
+  public SQLiteSlowQueryLog getSlowQueryLog() {
+    return mySlowQueryLog;
+  }
+
+  /**
+   * Installs a tuner that adjusts the page cache size of this connection. The tuner runs in this connection's
+   * thread when a statement is prepared or SQL is executed, if at least {@link SQLiteCacheTuner#getIntervalMillis}
+   * passed since its previous run. Errors in the tuner are logged and do not affect the statement.
+   *
+   * @param tuner the tuner, or null to stop tuning; the cache size set by the tuner is kept
+   * @return this connection
+   * @throws SQLiteException if the call violates the contract of this class
+   * @see SQLiteCacheTuner
+   */
+  public SQLiteConnection setCacheTuner(SQLiteCacheTuner tuner) throws SQLiteException {
+    checkThread();
+    myCacheTuner = tuner;
+    myCacheTuneTime = System.nanoTime();
+    return this;
+  }
+
+  /**
+   * @return the tuner installed with {@link #setCacheTuner}, or null
+   */
+  public SQLiteCacheTuner getCacheTuner() {
+    return myCacheTuner;
+  }
+
+  /**
+   * Sets the maximum number of bytes of the database file that are accessed with memory-mapped I/O. Memory-mapped
+   * I/O avoids read system calls and copying pages from the operating system cache, which speeds up read-heavy
+   * workloads on large databases. The value is limited by {@link SQLite#setMmapSizeLimits the process-wide
+   * maximum}.
+   * <p/>
+   * To find out how many pages are actually served with memory-mapped I/O, open the connection with the
+   * {@link SQLiteIOStats I/O statistics VFS} and check {@link SQLiteIOStats#getMmapRatio}.
+   *
+   * @param bytes mmap size in bytes, 0 to disable memory-mapped I/O
+   * @return the effective mmap size, which may be lower than requested
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/mmap.html">Memory-Mapped I/O</a>
+   */
+  public long setMmapSize(long bytes) throws SQLiteException {
+    if (bytes < 0)
+      throw new IllegalArgumentException("bytes " + bytes);
+    return pragmaLong("PRAGMA mmap_size = " + bytes);
+  }
+
+  /**
+   * @return the effective mmap size in bytes, 0 if memory-mapped I/O is disabled
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see #setMmapSize
+   */
+  public long getMmapSize() throws SQLiteException {
+    return pragmaLong("PRAGMA mmap_size");
+  }
+
+  /**
+   * Changes the lookaside memory of this connection, overriding the default set with
+   * {@link SQLite#setDefaultLookaside}. Lookaside can be changed only when none of its memory is in use, so call
+   * this method right after opening the connection, before statements are prepared.
+   * <p/>
+   * To check whether the pool is large enough, compare {@link SQLiteConstants#SQLITE_DBSTATUS_LOOKASIDE_HIT} and
+   * <code>SQLITE_DBSTATUS_LOOKASIDE_MISS_FULL</code> values of {@link #getDbStatus}.
+   *
+   * @param slotSize the size of each slot in bytes, rounded down to a multiple of 8; 0 disables lookaside
+   * @param slotCount the number of slots
+   * @return this connection
+   * @throws SQLiteException if lookaside memory is in use, if SQLite returns an error, or if the call violates the
+   * contract of this class
+   * @see <a href="http://www.sqlite.org/malloc.html#lookaside">Lookaside Memory Allocator</a>
+   */
+  public SQLiteConnection setLookaside(int slotSize, int slotCount) throws SQLiteException {
+    if (slotSize < 0 || slotCount < 0)
+      throw new IllegalArgumentException(slotSize + " " + slotCount);
+    checkThread();
+    int rc = _SQLiteManual.wrapper_db_config_lookaside(handle(), slotSize, slotCount);
+    throwResult(rc, "setLookaside()");
+    return this;
+  }
+
+  private long pragmaLong(String sql) throws SQLiteException {
+    SQLiteStatement st = prepare(sql, false);
+    try {
+      return st.step() ? st.columnLong(0) : 0;
+    } finally {
+      st.dispose();
+    }
+  }
+
+  /**
+   * Asks SQLite to free as much memory used by this connection as possible, such as unused pages of the page cache.
+   *
+   * @return this connection
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/db_release_memory.html">sqlite3_db_release_memory</a>
+   */
+  public SQLiteConnection releaseMemory() throws SQLiteException {
+    checkThread();
+    int rc = _SQLiteSwigged.sqlite3_db_release_memory(handle());
+    throwResult(rc, "releaseMemory()");
+    return this;
+  }
+
+  /**
+   * Sets the cache of String values to be used by all statements prepared after this call. Statements share the
+   * cache, so repeated text values are returned as the same String instances across queries.
+   * <p/>
+   * The cache is confined to the connection's thread.
+   *
+   * @param cache the cache, or null to stop caching in subsequently prepared statements
+   * @throws SQLiteException if called from a different thread
+   * @see SQLiteStatement#setStringCache
+   */
+  public void setStringCache(SQLiteStringCache cache) throws SQLiteException {
+    checkThread();
+    myStringCache = cache;
+  }
+
+  /**
+   * @return the cache of String values installed into new statements, or null
+   * @throws SQLiteException if called from a different thread
+   */
+  public SQLiteStringCache getStringCache() throws SQLiteException {
+    checkThread();
+    return myStringCache;
+  }
+
   /**
    * Creates a virtual table within the current session, to represent an array of long values (functionality provided
    * by test_intarray module from SQLite sources). After SQLiteLongArray
@@ -1081,20 +1582,49 @@ public final class SQLiteConnection {
   public SQLiteBackup initializeBackup(String sourceDbName, File destinationDbFile, int flags) throws SQLiteException {
     checkThread();
     SQLiteConnection destination = new SQLiteConnection(destinationDbFile).openV2(flags);
+    boolean initialized = false;
+    try {
+      SQLiteBackup backup = initializeBackup(sourceDbName, destination, DEFAULT_DB_NAME);
+      initialized = true;
+      return backup;
+    } finally {
+      if (!initialized)
+        destination.dispose();
+    }
+  }
+
+  /**
+   * <p>
+   * Initializes backup of the database with the given name from the current connection to a database of another
+   * open connection, for example to load a database file into an in-memory database, or to save it back.
+   * </p><p>
+   * Both connections must be confined to the current thread. The destination connection remains owned by the
+   * caller, so the backup should be disposed with <code>dispose(false)</code>, before the destination connection
+   * is disposed. The destination database must not be in use by a read transaction.
+   * </p>
+   *
+   * @param sourceDbName name of the source database in this connection (usually "main")
+   * @param destination an open connection that receives the backup
+   * @param destinationDbName name of the destination database in the destination connection (usually "main")
+   * @return a new instance of {@link SQLiteBackup}
+   * @throws SQLiteException if SQLite return an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/backup_finish.html#sqlite3backupinit">sqlite3_backup_init</a>
+   */
+  public SQLiteBackup initializeBackup(String sourceDbName, SQLiteConnection destination, String destinationDbName)
+    throws SQLiteException
+  {
+    checkThread();
+    destination.checkThread();
     if (Internal.isFineLogging()) {
       Internal.logFine(this, "initializeBackup to " + destination);
     }
     SWIGTYPE_p_sqlite3 sourceDb = handle();
     SWIGTYPE_p_sqlite3 destinationDb = destination.handle();
-    SWIGTYPE_p_sqlite3_backup backup = _SQLiteSwigged.sqlite3_backup_init(destinationDb, DEFAULT_DB_NAME, sourceDb, sourceDbName);
+    SWIGTYPE_p_sqlite3_backup backup = _SQLiteSwigged.sqlite3_backup_init(destinationDb, destinationDbName, sourceDb, sourceDbName);
     if (backup == null) {
-      try {
-        int errorCode = destination.getErrorCode();
-        destination.throwResult(errorCode, "backup initialization");
-        throw new SQLiteException(SQLiteConstants.WRAPPER_WEIRD, "backup failed to start but error code is 0");
-      } finally {
-        destination.dispose();
-      }
+      int errorCode = destination.getErrorCode();
+      destination.throwResult(errorCode, "backup initialization");
+      throw new SQLiteException(SQLiteConstants.WRAPPER_WEIRD, "backup failed to start but error code is 0");
     }
     SQLiteController destinationController = destination.myUncachedController;
     return new SQLiteBackup(myUncachedController, destinationController, backup, this, destination);
@@ -1117,6 +1647,146 @@ public final class SQLiteConnection {
     return initializeBackup(DEFAULT_DB_NAME, destinationDbFile, SQLITE_OPEN_CREATE | SQLITE_OPEN_READWRITE);
   }
 
+  /**
+   * Returns the main database as an image, the same bytes that the database file would contain. See
+   * {@link #serialize(String)} for details.
+   *
+   * @return a direct buffer with the database image
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   */
+  public ByteBuffer serialize() throws SQLiteException {
+    return serialize(DEFAULT_DB_NAME);
+  }
+
+  /**
+   * Returns a database as an image, the same bytes that the database file would contain. The image can be stored,
+   * sent elsewhere, or loaded into another connection with {@link #deserialize}. This is the fastest way to
+   * snapshot an in-memory database.
+   * <p/>
+   * The image is copied once, from the memory of an in-memory database or from the pages read from a database
+   * file, into a new direct buffer, which is not tied to the connection. If the connection is not in a transaction,
+   * the image is read in a read transaction, so it is consistent even if other connections write to the database.
+   *
+   * @param dbName the name of the database, usually "main", or the name used in ATTACH
+   * @return a direct buffer with the database image, positioned at 0
+   * @throws SQLiteException if there is no such database, if the database is larger than 2 GB, if SQLite returns
+   * an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/serialize.html">sqlite3_serialize</a>
+   */
+  public ByteBuffer serialize(String dbName) throws SQLiteException {
+    checkThread();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "serializing " + dbName);
+    SWIGTYPE_p_sqlite3 handle = handle();
+    boolean transaction = getAutoCommit();
+    if (transaction)
+      exec("BEGIN");
+    boolean success = false;
+    try {
+      long[] size = {0};
+      int rc = _SQLiteManual.wrapper_serialize(handle, dbName, null, size);
+      throwResult(rc, "serialize()", dbName);
+      while (true) {
+        if (size[0] > Integer.MAX_VALUE)
+          throw new SQLiteException(WRAPPER_USER_ERROR, "database " + dbName + " is too large to serialize: " + size[0]);
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size[0]);
+        rc = _SQLiteManual.wrapper_serialize(handle, dbName, buffer, size);
+        if (rc == WRAPPER_BUFFER_TOO_SMALL) {
+          // the database has grown between the calls; size now holds the new size
+          continue;
+        }
+        throwResult(rc, "serialize()", dbName);
+        buffer.limit((int) size[0]);
+        success = true;
+        return buffer;
+      }
+    } finally {
+      if (transaction && !getAutoCommit())
+        endReadTransaction(success);
+    }
+  }
+
+  private void endReadTransaction(boolean success) throws SQLiteException {
+    try {
+      exec("COMMIT");
+    } catch (SQLiteException e) {
+      if (success)
+        throw e;
+      Internal.log(Level.WARNING, this, "cannot end read transaction", e);
+    }
+  }
+
+  /**
+   * Replaces a database with an in-memory copy of the image, which is read from the buffer's position to its
+   * limit. The buffer is not changed and may be reused after the call.
+   * <p/>
+   * The database becomes an in-memory database that has nothing to do with the file it was opened from. If the
+   * database is writable, it grows as needed. Use {@link #serialize} to get the changed image back. To load
+   * a read-only image without copying, see {@link #deserializeNoCopy}.
+   * <p/>
+   * Typically, a connection is opened to an in-memory database and then the image is loaded into "main":
+   * <pre>
+   * SQLiteConnection db = new SQLiteConnection().open();
+   * db.deserialize("main", image, false);
+   * </pre>
+   *
+   * @param dbName the name of the database, usually "main", or the name used in ATTACH; cannot be "temp"
+   * @param image the database image, such as returned by {@link #serialize}
+   * @param readOnly if true, the database cannot be modified
+   * @return this connection
+   * @throws SQLiteException if there is no such database, if the database is in use by a read transaction or
+   * a backup, if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/deserialize.html">sqlite3_deserialize</a>
+   */
+  public SQLiteConnection deserialize(String dbName, ByteBuffer image, boolean readOnly) throws SQLiteException {
+    checkThread();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "deserializing " + dbName + " (" + image.remaining() + " bytes)");
+    SWIGTYPE_p_sqlite3 handle = handle();
+    int rc;
+    if (image.isDirect()) {
+      rc = _SQLiteManual.wrapper_deserialize(handle, dbName, image, null, image.position(), image.remaining(), true, readOnly);
+    } else if (image.hasArray()) {
+      rc = _SQLiteManual.wrapper_deserialize(handle, dbName, null, image.array(), image.arrayOffset() + image.position(),
+        image.remaining(), true, readOnly);
+    } else {
+      byte[] bytes = new byte[image.remaining()];
+      image.duplicate().get(bytes);
+      rc = _SQLiteManual.wrapper_deserialize(handle, dbName, null, bytes, 0, bytes.length, true, readOnly);
+    }
+    throwResult(rc, "deserialize()", dbName);
+    myImages.remove(dbName);
+    return this;
+  }
+
+  /**
+   * Replaces a database with a read-only image that SQLite reads directly from the buffer, without copying. This
+   * is the cheapest way to open a reference database shipped as a resource, for example one that was read or
+   * mapped into a direct buffer.
+   * <p/>
+   * The image is read from the buffer's position to its limit. The buffer's contents must not change while the
+   * database is in use. The connection keeps a reference to the buffer until it is closed, so that the buffer's
+   * memory is not freed.
+   *
+   * @param dbName the name of the database, usually "main", or the name used in ATTACH; cannot be "temp"
+   * @param image a direct buffer with the database image
+   * @return this connection
+   * @throws SQLiteException if there is no such database, if the database is in use by a read transaction or
+   * a backup, if SQLite returns an error, or if the call violates the contract of this class
+   * @see #deserialize
+   */
+  public SQLiteConnection deserializeNoCopy(String dbName, ByteBuffer image) throws SQLiteException {
+    if (!image.isDirect())
+      throw new IllegalArgumentException("buffer is not direct");
+    checkThread();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "deserializing " + dbName + " without copy (" + image.remaining() + " bytes)");
+    int rc = _SQLiteManual.wrapper_deserialize(handle(), dbName, image, null, image.position(), image.remaining(), false, true);
+    throwResult(rc, "deserializeNoCopy()", dbName);
+    myImages.put(dbName, image);
+    return this;
+  }
+
   /**
    * Enables or disables SQLite extension loading for this connection. By default, extension loading is disabled.
    *
@@ -1218,6 +1888,16 @@ public final class SQLiteConnection {
     }
   }
 
+  private void finalizeTrace(SWIGTYPE_p_sqlite3 handle) {
+    if (Thread.currentThread() == myConfinement) {
+      SQLiteTrace trace = myTrace;
+      if (trace != null) {
+        myTrace = null;
+        _SQLiteManual.uninstall_trace(handle, trace);
+      }
+    }
+  }
+
   private void finalizeBuffers() {
     DirectBuffer[] buffers;
     synchronized (myLock) {
@@ -1250,6 +1930,72 @@ public final class SQLiteConnection {
     return handler;
   }
 
+  /**
+   * Runs EXPLAIN QUERY PLAN directly on the handle, so that the query is not seen by the profiler, listeners
+   * or the slow query log.
+   */
+  private String explainQueryPlan(String sql) {
+    SWIGTYPE_p_sqlite3 handle;
+    try {
+      checkThread();
+      handle = handle();
+    } catch (SQLiteException e) {
+      return null;
+    }
+    SWIGTYPE_p_sqlite3_stmt stmt = mySQLiteManual.sqlite3_prepare_v3(handle, "EXPLAIN QUERY PLAN " + sql, 0);
+    int rc = mySQLiteManual.getLastReturnCode();
+    if (rc != SQLITE_OK || stmt == null) {
+      if (Internal.isFineLogging())
+        Internal.logFine(this, "cannot explain [" + sql + "]: " + rc);
+      return null;
+    }
+    try {
+      StringBuilder b = new StringBuilder();
+      Map<Integer, Integer> depths = new HashMap<Integer, Integer>();
+      while ((rc = _SQLiteSwigged.sqlite3_step(stmt)) == SQLITE_ROW) {
+        int id = _SQLiteSwigged.sqlite3_column_int(stmt, 0);
+        Integer parentDepth = depths.get(_SQLiteSwigged.sqlite3_column_int(stmt, 1));
+        int depth = parentDepth == null ? 0 : parentDepth + 1;
+        depths.put(id, depth);
+        if (b.length() > 0)
+          b.append('\n');
+        for (int i = 0; i < depth; i++)
+          b.append("  ");
+        b.append(mySQLiteManual.sqlite3_column_text(stmt, 3));
+      }
+      return rc == SQLITE_DONE ? b.toString() : null;
+    } finally {
+      _SQLiteSwigged.sqlite3_finalize(stmt);
+    }
+  }
+
+  /**
+   * Runs a PRAGMA directly on the handle, like {@link #explainQueryPlan}, so that housekeeping such as cache tuning
+   * is not seen by the profiler, listeners or the slow query log.
+   *
+   * @return the first column of the first row as an integer, or 0 if there are no rows
+   */
+  int pragmaInternal(String sql) throws SQLiteException {
+    checkThread();
+    SWIGTYPE_p_sqlite3 handle = handle();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "running [" + sql + "]");
+    SWIGTYPE_p_sqlite3_stmt stmt = mySQLiteManual.sqlite3_prepare_v3(handle, sql, 0);
+    throwResult(mySQLiteManual.getLastReturnCode(), "pragmaInternal()", sql);
+    if (stmt == null)
+      throw new SQLiteException(WRAPPER_WEIRD, "sqlite did not return stmt");
+    try {
+      int rc = _SQLiteSwigged.sqlite3_step(stmt);
+      if (rc == SQLITE_ROW)
+        return _SQLiteSwigged.sqlite3_column_int(stmt, 0);
+      if (rc != SQLITE_DONE)
+        throwResult(rc, "pragmaInternal()", sql);
+      return 0;
+    } finally {
+      _SQLiteSwigged.sqlite3_finalize(stmt);
+    }
+  }
+
   private void finalizeStatements() {
     boolean alienThread = myConfinement != Thread.currentThread();
     if (!alienThread) {
@@ -1542,6 +2288,7 @@ public final class SQLiteConnection {
       }
     }
     if (resultCode == SQLITE_BUSY || resultCode == SQLITE_IOERR_BLOCKED) {
+      myBusyCount++;
       throw new SQLiteBusyException(resultCode, message);
     } else if (resultCode == SQLITE_INTERRUPT) {
       throw new SQLiteInterruptedException(resultCode, message);
@@ -1575,7 +2322,13 @@ public final class SQLiteConnection {
     String dbname = getSqliteDbName();
     if (Internal.isFineLogging())
       Internal.logFine(this, "dbname [" + dbname + "]");
-    handle = mySQLiteManual.sqlite3_open_v2(dbname, flags);
+    SQLiteConnectionConfig config = myConfig;
+    String vfs = myVfs;
+    if (vfs == null && config != null)
+      vfs = config.getVfs();
+    if (Internal.isFineLogging() && vfs != null)
+      Internal.logFine(this, "vfs [" + vfs + "]");
+    handle = mySQLiteManual.sqlite3_open_v2(dbname, flags, vfs);
     int rc = mySQLiteManual.getLastReturnCode();
     if (rc != SQLITE_OK) {
       if (handle != null) {
@@ -1596,11 +2349,28 @@ public final class SQLiteConnection {
       throw new SQLiteException(WRAPPER_WEIRD, "sqlite didn't return db handle");
     }
     configureConnection(handle);
+    boolean mutexFree = !_SQLiteManual.wrapper_db_has_mutex(handle);
+    if (Internal.isFineLogging() && mutexFree)
+      Internal.logFine(this, "no mutex");
     synchronized (myLock) {
       myHandle = handle;
       myOpenFlags = flags;
+      myMutexFree = mutexFree;
+    }
+    if (config != null) {
+      if (Internal.isFineLogging())
+        Internal.logFine(this, "applying " + config);
+      boolean applied = false;
+      try {
+        config.apply(this);
+        applied = true;
+      } finally {
+        if (!applied)
+          dispose();
+      }
     }
     Internal.logInfo(this, "opened");
+    SQLiteManagement.register(this);
   }
 
   private void configureConnection(SWIGTYPE_p_sqlite3 handle) {
@@ -1627,6 +2397,92 @@ public final class SQLiteConnection {
     }
   }
 
+  boolean isCacheTuningDue() {
+    return myCacheTuner != null && System.nanoTime() - myCacheTuneTime >= 0;
+  }
+
+  /**
+   * Runs the cache tuner if it is due. The tuner runs its PRAGMAs with {@link #pragmaInternal}, so it does not
+   * call this method again.
+   */
+  void tuneCacheIfDue() {
+    SQLiteCacheTuner tuner = myCacheTuner;
+    if (tuner == null || System.nanoTime() - myCacheTuneTime < 0)
+      return;
+    myCacheTuneTime = System.nanoTime() + tuner.getIntervalMillis() * 1000000L;
+    try {
+      tuner.tune(this);
+    } catch (SQLiteException e) {
+      Internal.log(Level.WARNING, this, "cannot tune cache", e);
+    }
+  }
+
+  int getCachedStatementCount() {
+    synchronized (myLock) {
+      int count = 0;
+      for (SWIGTYPE_p_sqlite3_stmt stmt : myStatementCache.values()) {
+        if (stmt != null)
+          count++;
+      }
+      return count;
+    }
+  }
+
+  long getStatementCacheHits() {
+    return myStatementCacheHits;
+  }
+
+  long getStatementCacheMisses() {
+    return myStatementCacheMisses;
+  }
+
+  long getBusyCount() {
+    return myBusyCount;
+  }
+
+  long getProgressSteps() {
+    ProgressHandler handler = myProgressHandler;
+    return handler == null ? 0 : handler.getTotalSteps();
+  }
+
+  /**
+   * Reads status values from any thread. Holding the lock guarantees that the handle is not closed concurrently.
+   * A connection without mutex cannot be accessed by other threads at all, so they get the status last published
+   * by the confining thread, which is asked to publish a fresh one on its next call to exec() or prepare().
+   *
+   * @return the snapshot, or null if the connection is not open or no status has been published yet
+   */
+  SQLiteDbStatus readDbStatus() {
+    if (myMutexFree && Thread.currentThread() != myConfinement) {
+      myStatusRequested = true;
+      return myPublishedStatus;
+    }
+    synchronized (myLock) {
+      SWIGTYPE_p_sqlite3 handle = myHandle;
+      if (handle == null)
+        return null;
+      int[] values = new int[SQLiteDbStatus.VALUES];
+      if (_SQLiteManual.wrapper_db_status(handle, false, values) != SQLITE_OK)
+        return null;
+      return new SQLiteDbStatus(values, System.currentTimeMillis());
+    }
+  }
+
+  boolean isMutexFree() {
+    return myMutexFree;
+  }
+
+  private void publishStatusIfRequested() {
+    if (!myStatusRequested)
+      return;
+    myStatusRequested = false;
+    myPublishedStatus = readDbStatus();
+  }
+
+  int getNumber() {
+    return myNumber;
+  }
+
   void checkThread() throws SQLiteException {
     Thread confinement = myConfinement;
     if (confinement == null) {
@@ -1844,6 +2700,10 @@ public final class SQLiteConnection {
     public ProgressHandler getProgressHandler() throws SQLiteException {
       return SQLiteConnection.this.getProgressHandler();
     }
+
+    public String explainQueryPlan(String sql) {
+      return SQLiteConnection.this.explainQueryPlan(sql);
+    }
   }
 
 
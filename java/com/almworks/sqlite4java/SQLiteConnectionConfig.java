@@ -0,0 +1,424 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.almworks.sqlite4java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.almworks.sqlite4java.SQLiteConstants.WRAPPER_USER_ERROR;
+
+/**
+ * SQLiteConnectionConfig is a set of connection settings that are usually made with <code>PRAGMA</code>
+ * statements: journal mode, synchronous mode, page cache size, memory-mapped I/O, temporary storage, page size,
+ * WAL auto-checkpoint and busy timeout. Settings that are not set are left as SQLite defaults them.
+ * <p/>
+ * A configuration set with {@link SQLiteConnection#setConfig} or {@link SQLiteQueue#setConnectionConfig} is
+ * applied when the connection is opened, before it is used by anybody. After the settings have been applied, their
+ * effective values are read back; if SQLite did not accept a value (for example, WAL is not available for the
+ * database), opening fails and the connection is disposed, unless the configuration is {@link #setStrict not strict},
+ * in which case a warning is logged.
+ * <p/>
+ * Presets for common workloads are available with {@link #readMostly}, {@link #bulkLoad} and {@link #durableOLTP};
+ * they can be further adjusted with setters:
+ * <pre>
+ * SQLiteConnectionConfig config = SQLiteConnectionConfig.readMostly().setCacheSize(-131072);
+ * SQLiteConnection connection = new SQLiteConnection(file).setConfig(config).open();
+ * </pre>
+ * This class is not thread-safe. Connections and queues keep their own copies of the configuration.
+ *
+ * @see <a href="http://www.sqlite.org/pragma.html">PRAGMA statements</a>
+ */
+public final class SQLiteConnectionConfig {
+  public static final String JOURNAL_DELETE = "DELETE";
+  public static final String JOURNAL_TRUNCATE = "TRUNCATE";
+  public static final String JOURNAL_PERSIST = "PERSIST";
+  public static final String JOURNAL_MEMORY = "MEMORY";
+  public static final String JOURNAL_WAL = "WAL";
+  public static final String JOURNAL_OFF = "OFF";
+
+  public static final int SYNCHRONOUS_OFF = 0;
+  public static final int SYNCHRONOUS_NORMAL = 1;
+  public static final int SYNCHRONOUS_FULL = 2;
+  public static final int SYNCHRONOUS_EXTRA = 3;
+
+  public static final int TEMP_STORE_DEFAULT = 0;
+  public static final int TEMP_STORE_FILE = 1;
+  public static final int TEMP_STORE_MEMORY = 2;
+
+  private String myVfs;
+  private Integer myPageSize;
+  private String myJournalMode;
+  private Integer mySynchronous;
+  private Integer myCacheSize;
+  private Long myMmapSize;
+  private Integer myTempStore;
+  private Integer myWalAutocheckpoint;
+  private Long myBusyTimeout;
+  private boolean myStrict = true;
+
+  /**
+   * Creates an empty configuration, which does not change any settings.
+   */
+  public SQLiteConnectionConfig() {
+  }
+
+  /**
+   * Creates a copy of another configuration.
+   *
+   * @param copyFrom the source configuration
+   */
+  public SQLiteConnectionConfig(SQLiteConnectionConfig copyFrom) {
+    myVfs = copyFrom.myVfs;
+    myPageSize = copyFrom.myPageSize;
+    myJournalMode = copyFrom.myJournalMode;
+    mySynchronous = copyFrom.mySynchronous;
+    myCacheSize = copyFrom.myCacheSize;
+    myMmapSize = copyFrom.myMmapSize;
+    myTempStore = copyFrom.myTempStore;
+    myWalAutocheckpoint = copyFrom.myWalAutocheckpoint;
+    myBusyTimeout = copyFrom.myBusyTimeout;
+    myStrict = copyFrom.myStrict;
+  }
+
+  /**
+   * Preset for databases that are mostly read by several connections: WAL, <code>synchronous=NORMAL</code>,
+   * 64 MB page cache, 256 MB memory-mapped I/O, temporary storage in memory and 5 seconds busy timeout.
+   *
+   * @return a new configuration
+   */
+  public static SQLiteConnectionConfig readMostly() {
+    return new SQLiteConnectionConfig()
+      .setJournalMode(JOURNAL_WAL)
+      .setSynchronous(SYNCHRONOUS_NORMAL)
+      .setCacheSize(-65536)
+      .setMmapSize(256L << 20)
+      .setTempStore(TEMP_STORE_MEMORY)
+      .setBusyTimeout(5000);
+  }
+
+  /**
+   * Preset for loading large amounts of data by a single connection: rollback journal in memory, no syncs,
+   * 256 MB page cache and temporary storage in memory. <strong>The database may be corrupted if the process or
+   * the machine crashes during loading</strong>, so load into a new file and replace the old one when done.
+   *
+   * @return a new configuration
+   */
+  public static SQLiteConnectionConfig bulkLoad() {
+    return new SQLiteConnectionConfig()
+      .setJournalMode(JOURNAL_MEMORY)
+      .setSynchronous(SYNCHRONOUS_OFF)
+      .setCacheSize(-262144)
+      .setTempStore(TEMP_STORE_MEMORY);
+  }
+
+  /**
+   * Preset for transactional workloads that must not lose committed transactions: WAL, <code>synchronous=FULL</code>,
+   * 16 MB page cache, checkpoint every 1000 pages and 10 seconds busy timeout.
+   *
+   * @return a new configuration
+   */
+  public static SQLiteConnectionConfig durableOLTP() {
+    return new SQLiteConnectionConfig()
+      .setJournalMode(JOURNAL_WAL)
+      .setSynchronous(SYNCHRONOUS_FULL)
+      .setCacheSize(-16384)
+      .setWalAutocheckpoint(1000)
+      .setBusyTimeout(10000);
+  }
+
+  /**
+   * @param vfs the name of the VFS to open the database with, used unless the connection has its own VFS set
+   * with {@link SQLiteConnection#setVfs}; null for the default VFS
+   * @return this configuration
+   */
+  public SQLiteConnectionConfig setVfs(String vfs) {
+    myVfs = vfs;
+    return this;
+  }
+
+  /**
+   * @param pageSize page size for a new database, a power of two from 512 to 65536; it is not changed for
+   * existing databases, and is not validated for them
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_page_size">PRAGMA page_size</a>
+   */
+  public SQLiteConnectionConfig setPageSize(int pageSize) {
+    if (pageSize < 512 || pageSize > 65536 || (pageSize & (pageSize - 1)) != 0)
+      throw new IllegalArgumentException("pageSize " + pageSize);
+    myPageSize = pageSize;
+    return this;
+  }
+
+  /**
+   * @param journalMode one of <code>JOURNAL_*</code> constants
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_journal_mode">PRAGMA journal_mode</a>
+   */
+  public SQLiteConnectionConfig setJournalMode(String journalMode) {
+    String mode = journalMode.toUpperCase(Locale.US);
+    if (!mode.equals(JOURNAL_DELETE) && !mode.equals(JOURNAL_TRUNCATE) && !mode.equals(JOURNAL_PERSIST) &&
+      !mode.equals(JOURNAL_MEMORY) && !mode.equals(JOURNAL_WAL) && !mode.equals(JOURNAL_OFF))
+      throw new IllegalArgumentException("journalMode " + journalMode);
+    myJournalMode = mode;
+    return this;
+  }
+
+  /**
+   * @param synchronous one of <code>SYNCHRONOUS_*</code> constants
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_synchronous">PRAGMA synchronous</a>
+   */
+  public SQLiteConnectionConfig setSynchronous(int synchronous) {
+    if (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_EXTRA)
+      throw new IllegalArgumentException("synchronous " + synchronous);
+    mySynchronous = synchronous;
+    return this;
+  }
+
+  /**
+   * @param cacheSize page cache size: the number of pages if positive, or the size in KiB if negative
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_cache_size">PRAGMA cache_size</a>
+   */
+  public SQLiteConnectionConfig setCacheSize(int cacheSize) {
+    myCacheSize = cacheSize;
+    return this;
+  }
+
+  /**
+   * @param mmapSize maximum number of bytes of the database file to access with memory-mapped I/O, 0 to disable
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_mmap_size">PRAGMA mmap_size</a>
+   */
+  public SQLiteConnectionConfig setMmapSize(long mmapSize) {
+    if (mmapSize < 0)
+      throw new IllegalArgumentException("mmapSize " + mmapSize);
+    myMmapSize = mmapSize;
+    return this;
+  }
+
+  /**
+   * @param tempStore one of <code>TEMP_STORE_*</code> constants
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_temp_store">PRAGMA temp_store</a>
+   */
+  public SQLiteConnectionConfig setTempStore(int tempStore) {
+    if (tempStore < TEMP_STORE_DEFAULT || tempStore > TEMP_STORE_MEMORY)
+      throw new IllegalArgumentException("tempStore " + tempStore);
+    myTempStore = tempStore;
+    return this;
+  }
+
+  /**
+   * @param pages WAL size in pages that triggers automatic checkpoint, 0 to disable automatic checkpoints
+   * @return this configuration
+   * @see <a href="http://www.sqlite.org/pragma.html#pragma_wal_autocheckpoint">PRAGMA wal_autocheckpoint</a>
+   */
+  public SQLiteConnectionConfig setWalAutocheckpoint(int pages) {
+    if (pages < 0)
+      throw new IllegalArgumentException("pages " + pages);
+    myWalAutocheckpoint = pages;
+    return this;
+  }
+
+  /**
+   * @param millis busy timeout, in milliseconds
+   * @return this configuration
+   * @see SQLiteConnection#setBusyTimeout
+   */
+  public SQLiteConnectionConfig setBusyTimeout(long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("millis " + millis);
+    myBusyTimeout = millis;
+    return this;
+  }
+
+  /**
+   * @param strict if true (default), a setting that is not in effect after it has been applied is an error;
+   * otherwise it is logged as a warning
+   * @return this configuration
+   */
+  public SQLiteConnectionConfig setStrict(boolean strict) {
+    myStrict = strict;
+    return this;
+  }
+
+  public String getVfs() {
+    return myVfs;
+  }
+
+  public Integer getPageSize() {
+    return myPageSize;
+  }
+
+  public String getJournalMode() {
+    return myJournalMode;
+  }
+
+  public Integer getSynchronous() {
+    return mySynchronous;
+  }
+
+  public Integer getCacheSize() {
+    return myCacheSize;
+  }
+
+  public Long getMmapSize() {
+    return myMmapSize;
+  }
+
+  public Integer getTempStore() {
+    return myTempStore;
+  }
+
+  public Integer getWalAutocheckpoint() {
+    return myWalAutocheckpoint;
+  }
+
+  public Long getBusyTimeout() {
+    return myBusyTimeout;
+  }
+
+  public boolean isStrict() {
+    return myStrict;
+  }
+
+  /**
+   * Applies the settings to an open connection and validates their effective values. This method is called
+   * automatically when a connection with a configuration is opened, but can be used to re-apply the settings
+   * later. Must be called outside of a transaction, because journal mode cannot be changed in a transaction.
+   *
+   * @param connection an open connection
+   * @throws SQLiteException if SQLite returns an error, or if a setting is not in effect and this configuration
+   * is strict
+   */
+  public void apply(SQLiteConnection connection) throws SQLiteException {
+    // page size must be set before switching to WAL
+    if (myPageSize != null)
+      connection.exec("PRAGMA page_size = " + myPageSize);
+    if (myJournalMode != null)
+      connection.exec("PRAGMA journal_mode = " + myJournalMode);
+    if (mySynchronous != null)
+      connection.exec("PRAGMA synchronous = " + mySynchronous);
+    if (myCacheSize != null)
+      connection.exec("PRAGMA cache_size = " + myCacheSize);
+    if (myMmapSize != null)
+      connection.exec("PRAGMA mmap_size = " + myMmapSize);
+    if (myTempStore != null)
+      connection.exec("PRAGMA temp_store = " + myTempStore);
+    if (myWalAutocheckpoint != null)
+      connection.exec("PRAGMA wal_autocheckpoint = " + myWalAutocheckpoint);
+    if (myBusyTimeout != null)
+      connection.setBusyTimeout(myBusyTimeout);
+
+    List<String> mismatches = validate(connection);
+    if (mismatches.isEmpty())
+      return;
+    String message = "settings not in effect: " + mismatches;
+    if (myStrict)
+      throw new SQLiteException(WRAPPER_USER_ERROR, message);
+    Internal.logWarn(connection, message);
+  }
+
+  /**
+   * Reads back the effective values of the settings. Settings that SQLite does not report for this database,
+   * such as <code>mmap_size</code> of an in-memory database, are not applicable and are not checked.
+   *
+   * @param connection an open connection
+   * @return descriptions of settings that differ from this configuration, empty if all settings are in effect
+   * @throws SQLiteException if SQLite returns an error
+   */
+  public List<String> validate(SQLiteConnection connection) throws SQLiteException {
+    List<String> r = new ArrayList<String>();
+    if (myPageSize != null) {
+      Long pageCount = pragmaLong(connection, "page_count");
+      if (pageCount != null && pageCount <= 1)
+        check(r, "page_size", myPageSize, pragmaLong(connection, "page_size"));
+    }
+    if (myJournalMode != null) {
+      String mode = pragmaString(connection, "journal_mode");
+      if (mode != null && !myJournalMode.equalsIgnoreCase(mode))
+        r.add("journal_mode=" + mode + " (expected " + myJournalMode + ")");
+    }
+    if (mySynchronous != null)
+      check(r, "synchronous", mySynchronous, pragmaLong(connection, "synchronous"));
+    if (myCacheSize != null)
+      check(r, "cache_size", myCacheSize, pragmaLong(connection, "cache_size"));
+    if (myMmapSize != null)
+      check(r, "mmap_size", myMmapSize, pragmaLong(connection, "mmap_size"));
+    if (myTempStore != null)
+      check(r, "temp_store", myTempStore, pragmaLong(connection, "temp_store"));
+    if (myWalAutocheckpoint != null)
+      check(r, "wal_autocheckpoint", myWalAutocheckpoint, pragmaLong(connection, "wal_autocheckpoint"));
+    if (myBusyTimeout != null)
+      check(r, "busy_timeout", myBusyTimeout, pragmaLong(connection, "busy_timeout"));
+    return r;
+  }
+
+  /**
+   * @param actual the effective value, or null if the setting is not applicable
+   */
+  private static void check(List<String> r, String name, long expected, Long actual) {
+    if (actual != null && expected != actual)
+      r.add(name + "=" + actual + " (expected " + expected + ")");
+  }
+
+  /**
+   * @return the value of the pragma, or null if it returns no row
+   */
+  private static Long pragmaLong(SQLiteConnection connection, String name) throws SQLiteException {
+    SQLiteStatement st = connection.prepare("PRAGMA " + name, false);
+    try {
+      return st.step() ? st.columnLong(0) : null;
+    } finally {
+      st.dispose();
+    }
+  }
+
+  private static String pragmaString(SQLiteConnection connection, String name) throws SQLiteException {
+    SQLiteStatement st = connection.prepare("PRAGMA " + name, false);
+    try {
+      return st.step() ? st.columnString(0) : null;
+    } finally {
+      st.dispose();
+    }
+  }
+
+  public String toString() {
+    StringBuilder r = new StringBuilder("config[");
+    append(r, "vfs", myVfs);
+    append(r, "page_size", myPageSize);
+    append(r, "journal_mode", myJournalMode);
+    append(r, "synchronous", mySynchronous);
+    append(r, "cache_size", myCacheSize);
+    append(r, "mmap_size", myMmapSize);
+    append(r, "temp_store", myTempStore);
+    append(r, "wal_autocheckpoint", myWalAutocheckpoint);
+    append(r, "busy_timeout", myBusyTimeout);
+    return r.append(']').toString();
+  }
+
+  private static void append(StringBuilder r, String name, Object value) {
+    if (value == null)
+      return;
+    if (r.charAt(r.length() - 1) != '[')
+      r.append(',');
+    r.append(name).append('=').append(value);
+  }
+}
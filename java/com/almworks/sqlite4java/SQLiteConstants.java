@@ -162,6 +162,44 @@ public interface SQLiteConstants {
 
   int SQLITE_PREPARE_PERSISTENT = 0x01;
 
+  // SQLITE_STATUS_* identify process-wide status values, see SQLite.getStatus()
+  int SQLITE_STATUS_MEMORY_USED = 0;
+  int SQLITE_STATUS_PAGECACHE_USED = 1;
+  int SQLITE_STATUS_PAGECACHE_OVERFLOW = 2;
+  int SQLITE_STATUS_MALLOC_SIZE = 5;
+  int SQLITE_STATUS_PARSER_STACK = 6;
+  int SQLITE_STATUS_PAGECACHE_SIZE = 7;
+  int SQLITE_STATUS_MALLOC_COUNT = 9;
+
+  // SQLITE_CONFIG_* identify process-wide options that are set before SQLite is initialized
+  int SQLITE_CONFIG_MULTITHREAD = 2;
+  int SQLITE_CONFIG_SERIALIZED = 3;
+  int SQLITE_CONFIG_PAGECACHE = 7;
+  int SQLITE_CONFIG_MEMSTATUS = 9;
+  int SQLITE_CONFIG_LOOKASIDE = 13;
+
+  // SQLITE_DBSTATUS_* identify per-connection status values, see SQLiteConnection.getDbStatus()
+  int SQLITE_DBSTATUS_LOOKASIDE_USED = 0;
+  int SQLITE_DBSTATUS_CACHE_USED = 1;
+  int SQLITE_DBSTATUS_SCHEMA_USED = 2;
+  int SQLITE_DBSTATUS_STMT_USED = 3;
+  int SQLITE_DBSTATUS_LOOKASIDE_HIT = 4;
+  int SQLITE_DBSTATUS_LOOKASIDE_MISS_SIZE = 5;
+  int SQLITE_DBSTATUS_LOOKASIDE_MISS_FULL = 6;
+  int SQLITE_DBSTATUS_CACHE_HIT = 7;
+  int SQLITE_DBSTATUS_CACHE_MISS = 8;
+  int SQLITE_DBSTATUS_CACHE_WRITE = 9;
+  int SQLITE_DBSTATUS_DEFERRED_FKS = 10;
+  int SQLITE_DBSTATUS_CACHE_USED_SHARED = 11;
+  int SQLITE_DBSTATUS_CACHE_SPILL = 12;
+  int SQLITE_DBSTATUS_MAX = 12;
+
+  // SQLITE_TRACE_* identify trace events, see SQLiteConnection.startTrace()
+  int SQLITE_TRACE_STMT = 0x01;
+  int SQLITE_TRACE_PROFILE = 0x02;
+  int SQLITE_TRACE_ROW = 0x04;
+  int SQLITE_TRACE_CLOSE = 0x08;
+
   int SQLITE_WIN32_DATA_DIRECTORY_TYPE = 1;
   int SQLITE_WIN32_TEMP_DIRECTORY_TYPE = 2;
 
@@ -179,6 +217,17 @@ public interface SQLiteConstants {
   int SQLITE_LIMIT_TRIGGER_DEPTH = 10;
   int SQLITE_LIMIT_WORKER_THREADS = 11;
 
+  // SQLITE_STMTSTATUS_* identify per-statement counters, see SQLiteStatement.getStatus()
+  int SQLITE_STMTSTATUS_FULLSCAN_STEP = 1;
+  int SQLITE_STMTSTATUS_SORT = 2;
+  int SQLITE_STMTSTATUS_AUTOINDEX = 3;
+  int SQLITE_STMTSTATUS_VM_STEP = 4;
+  int SQLITE_STMTSTATUS_REPREPARE = 5;
+  int SQLITE_STMTSTATUS_RUN = 6;
+  int SQLITE_STMTSTATUS_FILTER_MISS = 7;
+  int SQLITE_STMTSTATUS_FILTER_HIT = 8;
+  int SQLITE_STMTSTATUS_MEMUSED = 99;
+
   /**
    * Something strange happened.
    */
@@ -230,6 +279,11 @@ public interface SQLiteConstants {
   int WRAPPER_CANNOT_ALLOCATE_STRING = -21;
   int WRAPPER_OUT_OF_MEMORY = -22;
 
+  /**
+   * The buffer passed to the wrapper is smaller than the data, for example because the database has grown
+   */
+  int WRAPPER_BUFFER_TOO_SMALL = -23;
+
   int WRAPPER_WEIRD_2 = -199;
 
   int WRAPPER_CANNOT_LOAD_LIBRARY = -91;
@@ -58,6 +58,13 @@ abstract class SQLiteController {
 
   public abstract ProgressHandler getProgressHandler() throws SQLiteException;
 
+  /**
+   * Runs EXPLAIN QUERY PLAN for the given SQL on the controlled connection.
+   *
+   * @return the query plan, or null if it cannot be obtained
+   */
+  public abstract String explainQueryPlan(String sql);
+
   public static SQLiteController getDisposed(SQLiteController controller) {
     if (controller instanceof Disposed) {
       return controller;
@@ -119,5 +126,9 @@ abstract class SQLiteController {
     public ProgressHandler getProgressHandler() {
       return ProgressHandler.DISPOSED;
     }
+
+    public String explainQueryPlan(String sql) {
+      return null;
+    }
   }
 }
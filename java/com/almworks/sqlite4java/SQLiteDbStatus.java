@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteDbStatus is an immutable snapshot of the status values of a single connection, as reported by
+ * <code>sqlite3_db_status</code>: page cache hits, misses and writes, memory used by the page cache, schema and
+ * prepared statements, lookaside memory usage and the number of deferred foreign key violations.
+ * <p/>
+ * Snapshots are taken with {@link SQLiteConnection#getDbStatus}. Some values are counters that grow while the
+ * connection is used (cache hits, misses, writes and spills, lookaside hits and misses); use {@link #delta} to get
+ * the activity between two snapshots:
+ * <pre>
+ * SQLiteDbStatus before = connection.getDbStatus();
+ * ... run the workload ...
+ * SQLiteDbStatus activity = connection.getDbStatus().delta(before);
+ * double hitRatio = activity.getCacheHitRatio();
+ * </pre>
+ * The other values describe the current state and are kept as is by {@link #delta}.
+ *
+ * @see <a href="http://www.sqlite.org/c3ref/db_status.html">sqlite3_db_status</a>
+ */
+public final class SQLiteDbStatus {
+  static final int VALUES = 2 * (SQLITE_DBSTATUS_MAX + 1);
+
+  private final int[] myValues;
+  private final long myTime;
+
+  SQLiteDbStatus(int[] values, long time) {
+    assert values.length == VALUES : values.length;
+    myValues = values;
+    myTime = time;
+  }
+
+  /**
+   * Returns the current value of a status parameter. For lookaside hits and misses, SQLite reports the number
+   * in the highwater value; use {@link #getCount} to get counters regardless of where they are reported.
+   *
+   * @param op status parameter, one of <code>SQLITE_DBSTATUS_*</code> constants
+   * @return the current value, or -1 if the parameter is not supported
+   */
+  public int getCurrent(int op) {
+    return myValues[index(op)];
+  }
+
+  /**
+   * @param op status parameter, one of <code>SQLITE_DBSTATUS_*</code> constants
+   * @return the highwater value, or -1 if the parameter is not supported
+   */
+  public int getHighwater(int op) {
+    return myValues[index(op) + 1];
+  }
+
+  /**
+   * Returns the meaningful value of a status parameter: the highwater value for
+   * <code>SQLITE_DBSTATUS_LOOKASIDE_HIT</code>, <code>LOOKASIDE_MISS_SIZE</code> and <code>LOOKASIDE_MISS_FULL</code>,
+   * and the current value for all other parameters.
+   *
+   * @param op status parameter, one of <code>SQLITE_DBSTATUS_*</code> constants
+   * @return the value, or -1 if the parameter is not supported
+   */
+  public int getCount(int op) {
+    return isHighwaterCounter(op) ? getHighwater(op) : getCurrent(op);
+  }
+
+  /**
+   * @return the time when the snapshot was taken, as returned by <code>System.currentTimeMillis()</code>
+   */
+  public long getTime() {
+    return myTime;
+  }
+
+  /**
+   * @return the share of page cache hits among all page requests, from 0 to 1, or NaN if there were no requests
+   */
+  public double getCacheHitRatio() {
+    long hits = getCurrent(SQLITE_DBSTATUS_CACHE_HIT);
+    long misses = getCurrent(SQLITE_DBSTATUS_CACHE_MISS);
+    if (hits < 0 || misses < 0 || hits + misses == 0)
+      return Double.NaN;
+    return (double) hits / (hits + misses);
+  }
+
+  /**
+   * Calculates the activity since an earlier snapshot of the same connection. Counters are replaced with their
+   * increments since the earlier snapshot; other values are taken from this snapshot.
+   * <p/>
+   * If the counters have been reset between the snapshots, the result is meaningless.
+   *
+   * @param earlier an earlier snapshot
+   * @return a new snapshot with the differences
+   */
+  public SQLiteDbStatus delta(SQLiteDbStatus earlier) {
+    int[] values = myValues.clone();
+    for (int op = 0; op <= SQLITE_DBSTATUS_MAX; op++) {
+      if (!isCounter(op))
+        continue;
+      int i = index(op);
+      int k = isHighwaterCounter(op) ? i + 1 : i;
+      if (values[k] >= 0 && earlier.myValues[k] >= 0)
+        values[k] -= earlier.myValues[k];
+    }
+    return new SQLiteDbStatus(values, myTime);
+  }
+
+  /**
+   * @param op status parameter, one of <code>SQLITE_DBSTATUS_*</code> constants
+   * @return true if the parameter is a counter that grows while the connection is used
+   */
+  public static boolean isCounter(int op) {
+    switch (op) {
+      case SQLITE_DBSTATUS_CACHE_HIT:
+      case SQLITE_DBSTATUS_CACHE_MISS:
+      case SQLITE_DBSTATUS_CACHE_WRITE:
+      case SQLITE_DBSTATUS_CACHE_SPILL:
+        return true;
+      default:
+        return isHighwaterCounter(op);
+    }
+  }
+
+  private static boolean isHighwaterCounter(int op) {
+    return op == SQLITE_DBSTATUS_LOOKASIDE_HIT || op == SQLITE_DBSTATUS_LOOKASIDE_MISS_SIZE ||
+      op == SQLITE_DBSTATUS_LOOKASIDE_MISS_FULL;
+  }
+
+  private static int index(int op) {
+    if (op < 0 || op > SQLITE_DBSTATUS_MAX)
+      throw new IllegalArgumentException("op " + op);
+    return 2 * op;
+  }
+
+  public String toString() {
+    return "dbstatus[cacheHit=" + getCount(SQLITE_DBSTATUS_CACHE_HIT) +
+      ",cacheMiss=" + getCount(SQLITE_DBSTATUS_CACHE_MISS) +
+      ",cacheWrite=" + getCount(SQLITE_DBSTATUS_CACHE_WRITE) +
+      ",cacheSpill=" + getCount(SQLITE_DBSTATUS_CACHE_SPILL) +
+      ",cacheUsed=" + getCount(SQLITE_DBSTATUS_CACHE_USED) +
+      ",schemaUsed=" + getCount(SQLITE_DBSTATUS_SCHEMA_USED) +
+      ",stmtUsed=" + getCount(SQLITE_DBSTATUS_STMT_USED) +
+      ",lookasideUsed=" + getCount(SQLITE_DBSTATUS_LOOKASIDE_USED) +
+      ",lookasideHit=" + getCount(SQLITE_DBSTATUS_LOOKASIDE_HIT) +
+      ",deferredFks=" + getCount(SQLITE_DBSTATUS_DEFERRED_FKS) + "]";
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+/**
+ * SQLiteEventListener receives timing events for the main database operations: preparing, stepping and
+ * executing statements, incremental BLOB I/O, backup steps and execution of queue jobs. It is installed
+ * process-wide with {@link SQLite#setEventListener}.
+ * <p/>
+ * Events are intended to be forwarded to an external recording facility. For example, an application running on
+ * JDK 11 or later can subclass this listener and commit <code>jdk.jfr.Event</code> instances, which lets
+ * database latency be correlated with GC pauses and thread states in Java Flight Recorder. Implementations should
+ * check whether the event is enabled before allocating anything:
+ * <pre>
+ * public void stepped(SQLParts sql, long nanos, int rc, int rows) {
+ *   StepEvent event = new StepEvent();
+ *   if (event.isEnabled()) {
+ *     event.sql = sql.toString();
+ *     ...
+ *     event.commit();
+ *   }
+ * }
+ * </pre>
+ * When no listener is installed, the only cost for the operations is a volatile read. When a listener is installed,
+ * operations additionally measure their duration with <code>System.nanoTime()</code>.
+ * <p/>
+ * Methods are called synchronously, in the thread that performs the operation, after the operation has completed
+ * but before a possible exception is thrown. All methods in this class do nothing, so subclasses need to override
+ * only the events they are interested in. Implementations must be <strong>thread-safe</strong>, must not throw
+ * exceptions and must not call back into the connection that has reported the event.
+ *
+ * @see SQLite#setEventListener
+ */
+public abstract class SQLiteEventListener {
+  /**
+   * Called after a statement has been compiled with sqlite3_prepare. Not called when a statement is taken from
+   * the connection's cache.
+   *
+   * @param sql the SQL of the statement
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rc the result code
+   */
+  public void prepared(SQLParts sql, long nanos, int rc) {
+  }
+
+  /**
+   * Called after a statement has been stepped with {@link SQLiteStatement#step}, {@link SQLiteStatement#loadInts}
+   * or {@link SQLiteStatement#loadLongs}.
+   *
+   * @param sql the SQL of the statement
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rc the result code
+   * @param rows the number of rows that were read by the operation
+   */
+  public void stepped(SQLParts sql, long nanos, int rc, int rows) {
+  }
+
+  /**
+   * Called after SQL has been executed with {@link SQLiteConnection#exec}.
+   *
+   * @param sql the executed SQL
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rc the result code
+   */
+  public void executed(String sql, long nanos, int rc) {
+  }
+
+  /**
+   * Called after {@link SQLiteBlob#read} or {@link SQLiteBlob#write}.
+   *
+   * @param write true if bytes have been written to the blob
+   * @param bytes the number of bytes that were read or written
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rc the result code
+   */
+  public void blobIO(boolean write, int bytes, long nanos, int rc) {
+  }
+
+  /**
+   * Called after {@link SQLiteBackup#backupStep}.
+   *
+   * @param pages the number of pages that were requested to be copied, or a negative number to copy all pages
+   * @param remaining the number of pages that are left to copy after this step
+   * @param nanos the duration of the operation, in nanoseconds
+   * @param rc the result code
+   */
+  public void backupStep(int pages, int remaining, long nanos, int rc) {
+  }
+
+  /**
+   * Called after a job has been executed by {@link SQLiteQueue}.
+   *
+   * @param job the executed job
+   * @param nanos the duration of the job, in nanoseconds
+   * @param error an exception thrown by the job, or null
+   */
+  public void jobExecuted(SQLiteJob<?> job, long nanos, Throwable error) {
+  }
+}
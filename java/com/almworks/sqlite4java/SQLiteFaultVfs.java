@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.almworks.sqlite4java;
+
+import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_OK;
+
+/**
+ * SQLiteFaultVfs controls a test VFS that makes file I/O slow or unreliable in a reproducible way. It is intended
+ * for benchmarking tail latency, timeouts and busy handling on an ordinary machine.
+ * <p/>
+ * For every kind of operation &mdash; read, write, sync and lock &mdash; the VFS can add:
+ * <ul>
+ * <li>latency: a fixed delay plus a uniformly distributed random jitter;</li>
+ * <li>stalls: a long additional delay that happens with the given probability, like an occasional slow fsync;</li>
+ * <li>errors: the operation is not performed and the given result code, such as <code>SQLITE_IOERR_READ</code> or
+ * <code>SQLITE_BUSY</code>, is returned with the given probability.</li>
+ * </ul>
+ * Random decisions are made with a generator initialized with {@link #setSeed the seed}, so a single-threaded
+ * workload experiences the same faults on every run. Faults apply to the main database file, the rollback journal
+ * and the WAL, which can be limited with {@link #setFiles}; temporary files are never affected.
+ * <p/>
+ * The VFS also counts I/O like the {@link SQLiteIOStats I/O statistics VFS}, so injected latency shows in
+ * {@link SQLiteConnection#getIOStats}.
+ * <pre>
+ * SQLiteFaultVfs vfs = SQLiteFaultVfs.register("slowdisk", null);
+ * vfs.setSeed(42).setLatency(SQLiteFaultVfs.OP_SYNC, 2000, 8000).setStall(SQLiteFaultVfs.OP_SYNC, 0.01, 500000);
+ * SQLiteConnection connection = new SQLiteConnection(file).setVfs(vfs.getName()).open();
+ * </pre>
+ * Changing the configuration resets the counters of injected faults and restarts the random sequence.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class SQLiteFaultVfs {
+  public static final int OP_READ = 0;
+  public static final int OP_WRITE = 1;
+  public static final int OP_SYNC = 2;
+  public static final int OP_LOCK = 3;
+
+  private static final int OPS = 4;
+  private static final int HEADER = 2;
+  private static final int OP_LONGS = 6;
+  private static final int CONFIG = HEADER + OPS * OP_LONGS;
+  private static final int COUNTERS = OPS * 3;
+  private static final int ALL_FILES = (1 << SQLiteIOStats.FILE_MAIN_DB) | (1 << SQLiteIOStats.FILE_JOURNAL) |
+    (1 << SQLiteIOStats.FILE_WAL);
+
+  private final String myName;
+
+  /**
+   * The configuration in the native layout. <p/><i>protected by this</i>
+   */
+  private final long[] myConfig = new long[CONFIG];
+
+  private SQLiteFaultVfs(String name) {
+    myName = name;
+    myConfig[1] = ALL_FILES;
+  }
+
+  /**
+   * Registers a fault-injecting VFS, or gets control over an already registered one. The VFS is not made default;
+   * open connections with {@link SQLiteConnection#setVfs}. Any previous configuration of the VFS is cleared.
+   *
+   * @param name the name of the VFS
+   * @param parentVfs the name of the VFS that performs the actual I/O, or null for the default VFS
+   * @return the controller of the VFS
+   * @throws SQLiteException if native library cannot be loaded, if a different VFS with this name exists,
+   * or if SQLite returns an error
+   */
+  public static SQLiteFaultVfs register(String name, String parentVfs) throws SQLiteException {
+    if (name == null)
+      throw new NullPointerException();
+    SQLite.loadLibrary();
+    int rc = _SQLiteManual.wrapper_register_iostat_vfs(name, parentVfs, false, true);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot register fault VFS " + name);
+    SQLiteFaultVfs vfs = new SQLiteFaultVfs(name);
+    synchronized (vfs) {
+      vfs.apply();
+    }
+    return vfs;
+  }
+
+  /**
+   * @return the name of the VFS, to be used with {@link SQLiteConnection#setVfs}
+   */
+  public String getName() {
+    return myName;
+  }
+
+  /**
+   * @param seed the seed for random decisions
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs setSeed(long seed) throws SQLiteException {
+    myConfig[0] = seed;
+    return apply();
+  }
+
+  /**
+   * Limits faults to the specified kinds of files.
+   *
+   * @param files <code>FILE_*</code> constants from {@link SQLiteIOStats}
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs setFiles(int... files) throws SQLiteException {
+    int mask = 0;
+    for (int file : files) {
+      if (file < SQLiteIOStats.FILE_MAIN_DB || file > SQLiteIOStats.FILE_WAL)
+        throw new IllegalArgumentException("file " + file);
+      mask |= 1 << file;
+    }
+    myConfig[1] = mask;
+    return apply();
+  }
+
+  /**
+   * Sets the delay added to every operation of the given kind.
+   *
+   * @param op one of <code>OP_*</code> constants
+   * @param baseMicros fixed delay, in microseconds
+   * @param jitterMicros maximum random delay added to the fixed delay, in microseconds
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs setLatency(int op, long baseMicros, long jitterMicros) throws SQLiteException {
+    if (baseMicros < 0 || jitterMicros < 0)
+      throw new IllegalArgumentException(baseMicros + " " + jitterMicros);
+    int i = index(op);
+    myConfig[i] = baseMicros;
+    myConfig[i + 1] = jitterMicros;
+    return apply();
+  }
+
+  /**
+   * Sets occasional long delays of operations of the given kind.
+   *
+   * @param op one of <code>OP_*</code> constants
+   * @param probability probability of a stall, from 0 to 1
+   * @param stallMicros the length of a stall, in microseconds
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs setStall(int op, double probability, long stallMicros) throws SQLiteException {
+    if (stallMicros < 0)
+      throw new IllegalArgumentException("stallMicros " + stallMicros);
+    int i = index(op);
+    myConfig[i + 2] = ppm(probability);
+    myConfig[i + 3] = stallMicros;
+    return apply();
+  }
+
+  /**
+   * Sets transient failures of operations of the given kind. A failed operation is not passed to the underlying
+   * VFS.
+   *
+   * @param op one of <code>OP_*</code> constants
+   * @param probability probability of a failure, from 0 to 1
+   * @param resultCode the result code to return, for example <code>SQLITE_IOERR_WRITE</code>, or
+   * <code>SQLITE_BUSY</code> for lock requests
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs setError(int op, double probability, int resultCode) throws SQLiteException {
+    int i = index(op);
+    myConfig[i + 4] = ppm(probability);
+    myConfig[i + 5] = resultCode;
+    return apply();
+  }
+
+  /**
+   * Removes all latency, stalls and errors. The seed and the file kinds are kept.
+   *
+   * @return this instance
+   * @throws SQLiteException if the configuration cannot be applied
+   */
+  public synchronized SQLiteFaultVfs clear() throws SQLiteException {
+    for (int i = HEADER; i < CONFIG; i++) {
+      myConfig[i] = 0;
+    }
+    return apply();
+  }
+
+  /**
+   * @param op one of <code>OP_*</code> constants
+   * @return the number of operations that have been delayed since the configuration was last changed
+   * @throws SQLiteException if the counters cannot be read
+   */
+  public long getDelayedCount(int op) throws SQLiteException {
+    return counters()[counter(op)];
+  }
+
+  /**
+   * @param op one of <code>OP_*</code> constants
+   * @return the number of stalls injected since the configuration was last changed
+   * @throws SQLiteException if the counters cannot be read
+   */
+  public long getStallCount(int op) throws SQLiteException {
+    return counters()[counter(op) + 1];
+  }
+
+  /**
+   * @param op one of <code>OP_*</code> constants
+   * @return the number of errors injected since the configuration was last changed
+   * @throws SQLiteException if the counters cannot be read
+   */
+  public long getErrorCount(int op) throws SQLiteException {
+    return counters()[counter(op) + 2];
+  }
+
+  private SQLiteFaultVfs apply() throws SQLiteException {
+    assert Thread.holdsLock(this);
+    int rc = _SQLiteManual.wrapper_configure_fault_vfs(myName, myConfig, null);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot configure fault VFS " + myName);
+    return this;
+  }
+
+  private long[] counters() throws SQLiteException {
+    long[] r = new long[COUNTERS];
+    int rc = _SQLiteManual.wrapper_configure_fault_vfs(myName, null, r);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "cannot read fault VFS " + myName);
+    return r;
+  }
+
+  private static int index(int op) {
+    if (op < 0 || op >= OPS)
+      throw new IllegalArgumentException("op " + op);
+    return HEADER + op * OP_LONGS;
+  }
+
+  private static int counter(int op) {
+    if (op < 0 || op >= OPS)
+      throw new IllegalArgumentException("op " + op);
+    return op * 3;
+  }
+
+  private static long ppm(double probability) {
+    if (probability < 0 || probability > 1)
+      throw new IllegalArgumentException("probability " + probability);
+    return Math.round(probability * 1000000);
+  }
+
+  public String toString() {
+    return "SQLiteFaultVfs[" + myName + "]";
+  }
+}
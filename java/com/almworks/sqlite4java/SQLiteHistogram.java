@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SQLiteHistogram is a fixed-memory log-linear histogram of non-negative values, usually durations in nanoseconds.
+ * <p/>
+ * Each power of two is split into {@link #SUB_BUCKETS} equal buckets, so percentiles are reported with a relative
+ * error of at most 1/{@link #SUB_BUCKETS}. Values up to 2<sup>40</sup> (about 18 minutes, if measured in
+ * nanoseconds) are recorded in separate buckets; larger values are counted in the last bucket.
+ * <p/>
+ * This class is <strong>thread-safe</strong>. Recording is lock-free and does not allocate memory, so the same
+ * histogram may be updated concurrently from several connections. To keep contention low, the number of values is
+ * derived from the bucket counters, and the sum, minimum and maximum are kept in several cells that are chosen by
+ * the recording thread and merged when read.
+ */
+public final class SQLiteHistogram {
+  /**
+   * The number of buckets that each power of two is split into.
+   */
+  public static final int SUB_BUCKETS = 8;
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int MAX_EXPONENT = 40;
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private static final int STRIPE_BITS = 3;
+  private static final int STRIPES = 1 << STRIPE_BITS;
+
+  /**
+   * Distance between the cells of neighbouring stripes, in longs, so that they do not share a cache line.
+   */
+  private static final int STRIPE_WIDTH = 8;
+  private static final int TOTAL = 0;
+  private static final int MIN = 1;
+  private static final int MAX = 2;
+
+  private final AtomicLongArray myCounts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * Sum, minimum and maximum of values, for each stripe. The first STRIPE_WIDTH cells are padding.
+   */
+  private final AtomicLongArray myCells = new AtomicLongArray((STRIPES + 1) * STRIPE_WIDTH);
+
+  /**
+   * Creates an empty histogram.
+   */
+  public SQLiteHistogram() {
+    clearCells();
+  }
+
+  /**
+   * Records a value. Negative values are ignored.
+   *
+   * @param value the value
+   */
+  public void record(long value) {
+    if (value < 0)
+      return;
+    myCounts.incrementAndGet(bucketIndex(value));
+    int stripe = stripe();
+    myCells.addAndGet(stripe + TOTAL, value);
+    updateMin(stripe, value);
+    updateMax(stripe, value);
+  }
+
+  /**
+   * @return the number of recorded values
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+      count += myCounts.get(i);
+    return count;
+  }
+
+  /**
+   * @return the sum of recorded values
+   */
+  public long getTotal() {
+    long total = 0;
+    for (int s = STRIPE_WIDTH; s < myCells.length(); s += STRIPE_WIDTH)
+      total += myCells.get(s + TOTAL);
+    return total;
+  }
+
+  /**
+   * @return the minimum recorded value, or 0 if nothing was recorded
+   */
+  public long getMin() {
+    long min = Long.MAX_VALUE;
+    for (int s = STRIPE_WIDTH; s < myCells.length(); s += STRIPE_WIDTH)
+      min = Math.min(min, myCells.get(s + MIN));
+    return min == Long.MAX_VALUE ? 0 : min;
+  }
+
+  /**
+   * @return the maximum recorded value, or 0 if nothing was recorded
+   */
+  public long getMax() {
+    long max = Long.MIN_VALUE;
+    for (int s = STRIPE_WIDTH; s < myCells.length(); s += STRIPE_WIDTH)
+      max = Math.max(max, myCells.get(s + MAX));
+    return max == Long.MIN_VALUE ? 0 : max;
+  }
+
+  /**
+   * @return the average of recorded values, or 0 if nothing was recorded
+   */
+  public long getMean() {
+    long count = getCount();
+    return count > 0 ? getTotal() / count : 0;
+  }
+
+  /**
+   * Estimates a percentile of recorded values. The result is the upper bound of the bucket that contains the
+   * percentile, limited by the maximum recorded value.
+   *
+   * @param percentile percentile, from 0 to 100, for example 99.9
+   * @return the estimated value, or 0 if nothing was recorded
+   */
+  public long getPercentile(double percentile) {
+    long count = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = myCounts.get(i);
+      count += counts[i];
+    }
+    if (count == 0)
+      return 0;
+    long rank = (long) Math.ceil(Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * count);
+    if (rank < 1)
+      rank = 1;
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Adds all values recorded in another histogram to this histogram.
+   *
+   * @param other the source histogram
+   */
+  public void add(SQLiteHistogram other) {
+    if (other == null || other == this)
+      return;
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = other.myCounts.get(i);
+      if (c != 0)
+        myCounts.addAndGet(i, c);
+    }
+    if (other.getCount() == 0)
+      return;
+    int stripe = stripe();
+    myCells.addAndGet(stripe + TOTAL, other.getTotal());
+    updateMin(stripe, other.getMin());
+    updateMax(stripe, other.getMax());
+  }
+
+  /**
+   * Adds values counted elsewhere with the same bucket layout, for example by the native code.
+   *
+   * @param counts array holding {@link #BUCKETS} bucket counts
+   * @param offset index of the first bucket count in the array
+   * @param total the sum of the values
+   * @param min the minimum value
+   * @param max the maximum value
+   */
+  void add(long[] counts, int offset, long total, long min, long max) {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = counts[offset + i];
+      if (c != 0) {
+        myCounts.addAndGet(i, c);
+        count += c;
+      }
+    }
+    if (count == 0)
+      return;
+    int stripe = stripe();
+    myCells.addAndGet(stripe + TOTAL, total);
+    updateMin(stripe, min);
+    updateMax(stripe, max);
+  }
+
+  /**
+   * Forgets all recorded values.
+   */
+  public void clear() {
+    for (int i = 0; i < BUCKETS; i++)
+      myCounts.set(i, 0);
+    clearCells();
+  }
+
+  private void clearCells() {
+    for (int s = STRIPE_WIDTH; s < myCells.length(); s += STRIPE_WIDTH) {
+      myCells.set(s + TOTAL, 0);
+      myCells.set(s + MIN, Long.MAX_VALUE);
+      myCells.set(s + MAX, Long.MIN_VALUE);
+    }
+  }
+
+  /**
+   * @return index of the first cell of the stripe used by the current thread
+   */
+  private static int stripe() {
+    long id = Thread.currentThread().getId();
+    return ((int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_BITS)) + 1) * STRIPE_WIDTH;
+  }
+
+  private void updateMin(int stripe, long value) {
+    while (true) {
+      long min = myCells.get(stripe + MIN);
+      if (value >= min || myCells.compareAndSet(stripe + MIN, min, value))
+        return;
+    }
+  }
+
+  private void updateMax(int stripe, long value) {
+    while (true) {
+      long max = myCells.get(stripe + MAX);
+      if (value <= max || myCells.compareAndSet(stripe + MAX, max, value))
+        return;
+    }
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT)
+      return BUCKETS - 1;
+    int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    if (index >= BUCKETS - 1)
+      return Long.MAX_VALUE;
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int sub = index % SUB_BUCKETS;
+    long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BUCKET_BITS));
+    return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.almworks.sqlite4java;
+
+/**
+ * SQLiteIOStats is an immutable snapshot of the file I/O performed on a database, as counted by the I/O statistics
+ * VFS. For the main database file, the rollback journal and the WAL file, it holds the number of reads, writes and
+ * syncs, the number of bytes transferred, the total time spent in the operating system, and a latency histogram.
+ * Pages that SQLite accessed with memory-mapped I/O are counted as {@link #OP_FETCH} operations.
+ * <p/>
+ * To collect statistics, register the VFS with {@link SQLite#registerIOStatsVfs} and open connections with it,
+ * either by making it the default VFS, or with {@link SQLiteConnection#setVfs}:
+ * <pre>
+ * SQLite.registerIOStatsVfs(false);
+ * SQLiteConnection connection = new SQLiteConnection(file).setVfs(SQLiteIOStats.VFS_NAME).open();
+ * ...
+ * SQLiteIOStats before = connection.getIOStats();
+ * ... run the workload ...
+ * SQLiteIOStats io = connection.getIOStats().delta(before);
+ * long syncNanos = io.getNanos(SQLiteIOStats.FILE_WAL, SQLiteIOStats.OP_SYNC);
+ * </pre>
+ * Statistics are kept per database file and shared by all connections to it. They are discarded when all
+ * connections to the database are closed. Temporary files are not counted.
+ * <p/>
+ * Comparing the time spent in I/O with the time of a statement tells whether it was CPU-bound, cache-bound
+ * (many reads) or sync-bound.
+ */
+public final class SQLiteIOStats {
+  /**
+   * The name of the VFS registered by {@link SQLite#registerIOStatsVfs(boolean)}.
+   */
+  public static final String VFS_NAME = "sqlite4java-iostats";
+
+  public static final int FILE_MAIN_DB = 0;
+  public static final int FILE_JOURNAL = 1;
+  public static final int FILE_WAL = 2;
+
+  public static final int OP_READ = 0;
+  public static final int OP_WRITE = 1;
+  public static final int OP_SYNC = 2;
+
+  /**
+   * Pages of the database served with memory-mapped I/O instead of reads, see {@link SQLiteConnection#setMmapSize}.
+   */
+  public static final int OP_FETCH = 3;
+
+  private static final int FILES = 3;
+  private static final int OPS = 4;
+  private static final int HEADER = 5;
+  private static final int OP_LONGS = HEADER + SQLiteHistogram.BUCKETS;
+  static final int VALUES = FILES * OPS * OP_LONGS;
+
+  private static final String[] FILE_NAMES = {"db", "journal", "wal"};
+  private static final String[] OP_NAMES = {"read", "write", "sync", "mmap"};
+
+  private final long[] myValues;
+  private final long myTime;
+
+  SQLiteIOStats(long[] values, long time) {
+    assert values.length == VALUES : values.length;
+    myValues = values;
+    myTime = time;
+  }
+
+  /**
+   * @param file one of <code>FILE_*</code> constants
+   * @param op one of <code>OP_*</code> constants
+   * @return the number of operations
+   */
+  public long getCount(int file, int op) {
+    return myValues[index(file, op)];
+  }
+
+  /**
+   * @param file one of <code>FILE_*</code> constants
+   * @param op one of <code>OP_*</code> constants
+   * @return the number of bytes read, written or mapped; 0 for syncs
+   */
+  public long getBytes(int file, int op) {
+    return myValues[index(file, op) + 1];
+  }
+
+  /**
+   * @param file one of <code>FILE_*</code> constants
+   * @param op one of <code>OP_*</code> constants
+   * @return the total time spent in the operations, in nanoseconds
+   */
+  public long getNanos(int file, int op) {
+    return myValues[index(file, op) + 2];
+  }
+
+  /**
+   * @param op one of <code>OP_*</code> constants
+   * @return the total time spent in the operations on all files, in nanoseconds
+   */
+  public long getTotalNanos(int op) {
+    long r = 0;
+    for (int file = 0; file < FILES; file++) {
+      r += getNanos(file, op);
+    }
+    return r;
+  }
+
+  /**
+   * @return the share of pages of the main database file that were accessed with memory-mapped I/O rather than
+   * read, or NaN if there were no accesses
+   */
+  public double getMmapRatio() {
+    long fetched = getCount(FILE_MAIN_DB, OP_FETCH);
+    long read = getCount(FILE_MAIN_DB, OP_READ);
+    return fetched + read == 0 ? Double.NaN : (double) fetched / (fetched + read);
+  }
+
+  /**
+   * Creates a histogram of latencies of the operations, in nanoseconds.
+   *
+   * @param file one of <code>FILE_*</code> constants
+   * @param op one of <code>OP_*</code> constants
+   * @return a new histogram
+   */
+  public SQLiteHistogram getHistogram(int file, int op) {
+    int i = index(file, op);
+    SQLiteHistogram histogram = new SQLiteHistogram();
+    histogram.add(myValues, i + HEADER, myValues[i + 2], myValues[i + 3], myValues[i + 4]);
+    return histogram;
+  }
+
+  /**
+   * @return the time when the snapshot has been taken, as returned by <code>System.currentTimeMillis()</code>
+   */
+  public long getTime() {
+    return myTime;
+  }
+
+  /**
+   * Calculates the I/O since an earlier snapshot of the same database. Minimum and maximum latencies are
+   * taken from this snapshot.
+   * <p/>
+   * If the statistics have been reset or discarded between the snapshots, the result is meaningless.
+   *
+   * @param earlier an earlier snapshot
+   * @return a new snapshot with the differences
+   */
+  public SQLiteIOStats delta(SQLiteIOStats earlier) {
+    long[] values = myValues.clone();
+    for (int file = 0; file < FILES; file++) {
+      for (int op = 0; op < OPS; op++) {
+        int i = index(file, op);
+        for (int k = 0; k < OP_LONGS; k++) {
+          if (k != 3 && k != 4)
+            values[i + k] -= earlier.myValues[i + k];
+        }
+      }
+    }
+    return new SQLiteIOStats(values, myTime);
+  }
+
+  private static int index(int file, int op) {
+    if (file < 0 || file >= FILES)
+      throw new IllegalArgumentException("file " + file);
+    if (op < 0 || op >= OPS)
+      throw new IllegalArgumentException("op " + op);
+    return (file * OPS + op) * OP_LONGS;
+  }
+
+  public String toString() {
+    StringBuilder r = new StringBuilder("iostats[");
+    String sep = "";
+    for (int file = 0; file < FILES; file++) {
+      for (int op = 0; op < OPS; op++) {
+        long count = getCount(file, op);
+        if (count == 0)
+          continue;
+        r.append(sep).append(FILE_NAMES[file]).append('.').append(OP_NAMES[op]).append('=').append(count);
+        if (op != OP_SYNC)
+          r.append('/').append(getBytes(file, op)).append('b');
+        r.append('/').append(getNanos(file, op) / 1000).append("us");
+        sep = ",";
+      }
+    }
+    return r.append(']').toString();
+  }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.almworks.sqlite4java;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteManagement publishes sqlite4java metrics as JMX MXBeans in the platform MBean server, so they can be
+ * watched with jconsole, VisualVM or any JMX-based monitoring agent.
+ * <p/>
+ * Management is disabled by default. When enabled with {@link #setEnabled}, the following beans are registered
+ * under {@link #DOMAIN}:
+ * <ul>
+ * <li><code>type=Library</code> &mdash; process-wide memory and page cache status, see {@link SQLite#getStatus};</li>
+ * <li><code>type=Connection,name=N</code> &mdash; status of each open connection, see {@link SQLiteConnection#getDbStatus};</li>
+ * <li><code>type=StatementCache,name=N</code> &mdash; statement cache of each open connection;</li>
+ * <li><code>type=Queue,name=N</code> &mdash; jobs of each running {@link SQLiteQueue}.</li>
+ * </ul>
+ * Connections are registered when they are opened and unregistered when they are disposed; queues are registered
+ * when started and unregistered when stopped. Connections and queues that existed before management has been
+ * enabled are not registered.
+ * <p/>
+ * Attributes are read from the JMX thread without confining to the connection's thread. They are computed on demand,
+ * so an idle monitoring agent costs nothing, and connections only maintain a few plain counters.
+ * Failures to register a bean are logged and never affect the database code.
+ * <p/>
+ * This class is thread-safe.
+ */
+public final class SQLiteManagement {
+  /**
+   * The domain of all registered object names.
+   */
+  public static final String DOMAIN = "com.almworks.sqlite4java";
+
+  private static final AtomicInteger ourQueueCounter = new AtomicInteger();
+
+  /**
+   * Maps registered objects into their object names. <p/><i>protected by class lock</i>
+   */
+  private static final Map<Object, ObjectName[]> ourRegistered = new IdentityHashMap<Object, ObjectName[]>();
+
+  private static volatile boolean ourEnabled;
+
+  private SQLiteManagement() {
+  }
+
+  /**
+   * Enables or disables publishing of MXBeans. Disabling unregisters all beans registered by this class.
+   *
+   * @param enabled true to register beans for connections and queues opened from now on
+   */
+  public static void setEnabled(boolean enabled) {
+    synchronized (SQLiteManagement.class) {
+      if (ourEnabled == enabled)
+        return;
+      ourEnabled = enabled;
+      if (enabled) {
+        register(SQLiteManagement.class, new ObjectName[] {name("Library", null)},
+          new Object[] {new StandardMBean(new Library(), LibraryMXBean.class, true)});
+      } else {
+        for (ObjectName[] names : ourRegistered.values()) {
+          unregister(names);
+        }
+        ourRegistered.clear();
+      }
+    }
+  }
+
+  /**
+   * @return true if MXBeans are published
+   */
+  public static boolean isEnabled() {
+    return ourEnabled;
+  }
+
+  static void register(SQLiteConnection connection) {
+    if (!ourEnabled)
+      return;
+    String name = String.valueOf(connection.getNumber());
+    synchronized (SQLiteManagement.class) {
+      if (!ourEnabled)
+        return;
+      register(connection, new ObjectName[] {name("Connection", name), name("StatementCache", name)},
+        new Object[] {new StandardMBean(new Connection(connection), ConnectionMXBean.class, true),
+          new StandardMBean(new StatementCache(connection), StatementCacheMXBean.class, true)});
+    }
+  }
+
+  static void register(SQLiteQueue queue) {
+    if (!ourEnabled)
+      return;
+    synchronized (SQLiteManagement.class) {
+      if (!ourEnabled || ourRegistered.containsKey(queue))
+        return;
+      String name = String.valueOf(ourQueueCounter.incrementAndGet());
+      register(queue, new ObjectName[] {name("Queue", name)},
+        new Object[] {new StandardMBean(new Queue(queue), QueueMXBean.class, true)});
+    }
+  }
+
+  static void unregister(Object object) {
+    if (!ourEnabled)
+      return;
+    ObjectName[] names;
+    synchronized (SQLiteManagement.class) {
+      names = ourRegistered.remove(object);
+    }
+    if (names != null) {
+      unregister(names);
+    }
+  }
+
+  private static ObjectName name(String type, String name) {
+    try {
+      return new ObjectName(DOMAIN + ":type=" + type + (name == null ? "" : ",name=" + name));
+    } catch (Exception e) {
+      throw new IllegalArgumentException(type + " " + name, e);
+    }
+  }
+
+  private static void register(Object object, ObjectName[] names, Object[] beans) {
+    if (ourRegistered.containsKey(object))
+      return;
+    List<ObjectName> registered = new ArrayList<ObjectName>(names.length);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (int i = 0; i < names.length; i++) {
+        server.registerMBean(beans[i], names[i]);
+        registered.add(names[i]);
+      }
+    } catch (Exception e) {
+      Internal.log(Level.WARNING, object, "cannot register MXBean", e);
+    }
+    ourRegistered.put(object, registered.toArray(new ObjectName[registered.size()]));
+  }
+
+  private static void unregister(ObjectName[] names) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : names) {
+      try {
+        server.unregisterMBean(name);
+      } catch (Exception e) {
+        Internal.log(Level.WARNING, name, "cannot unregister MXBean", e);
+      }
+    }
+  }
+
+  private static long status(int op, boolean highwater) {
+    try {
+      return highwater ? SQLite.getStatusHighwater(op, false) : SQLite.getStatus(op);
+    } catch (SQLiteException e) {
+      return -1;
+    }
+  }
+
+  private static String fileName(File file) {
+    return file == null ? ":memory:" : file.getAbsolutePath();
+  }
+
+  /**
+   * Process-wide status, registered as <code>type=Library</code>. Values that cannot be read are reported as -1.
+   */
+  public interface LibraryMXBean {
+    String getSQLiteVersion();
+
+    String getLibraryVersion();
+
+    long getMemoryUsed();
+
+    long getMemoryHighwater();
+
+    long getMallocCount();
+
+    long getLargestAllocation();
+
+    long getPageCacheUsed();
+
+    long getPageCacheOverflow();
+
+    /**
+     * @return memory used by the shared page cache, or -1 if it is not installed
+     * @see SQLite#installSharedPageCache
+     */
+    long getSharedPageCacheUsed();
+
+    long getSharedPageCacheBudget();
+
+    long getSharedPageCacheEvictions();
+
+    double getSharedPageCacheHitRatio();
+
+    int getRegisteredConnectionCount();
+
+    /**
+     * Resets highwater values to the current values.
+     */
+    void resetHighwater();
+  }
+
+  /**
+   * Status of a connection, registered as <code>type=Connection,name=N</code>. Status values of a closed
+   * connection are reported as -1.
+   */
+  public interface ConnectionMXBean {
+    String getDatabaseFile();
+
+    boolean isOpen();
+
+    int getOpenStatementCount();
+
+    long getBusyCount();
+
+    long getProgressSteps();
+
+    long getCacheUsed();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getCacheWrites();
+
+    long getSchemaUsed();
+
+    long getStatementUsed();
+  }
+
+  /**
+   * Statement cache of a connection, registered as <code>type=StatementCache,name=N</code>.
+   */
+  public interface StatementCacheMXBean {
+    int getCachedStatementCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    double getHitRatio();
+  }
+
+  /**
+   * Jobs of a queue, registered as <code>type=Queue,name=N</code>.
+   */
+  public interface QueueMXBean {
+    String getDatabaseFile();
+
+    boolean isRunning();
+
+    boolean isStopped();
+
+    int getPendingJobCount();
+
+    long getExecutedJobCount();
+
+    long getFailedJobCount();
+  }
+
+  private static class Library implements LibraryMXBean {
+    public String getSQLiteVersion() {
+      try {
+        return SQLite.getSQLiteVersion();
+      } catch (SQLiteException e) {
+        return null;
+      }
+    }
+
+    public String getLibraryVersion() {
+      return SQLite.getLibraryVersion();
+    }
+
+    public long getMemoryUsed() {
+      return status(SQLITE_STATUS_MEMORY_USED, false);
+    }
+
+    public long getMemoryHighwater() {
+      return status(SQLITE_STATUS_MEMORY_USED, true);
+    }
+
+    public long getMallocCount() {
+      return status(SQLITE_STATUS_MALLOC_COUNT, false);
+    }
+
+    public long getLargestAllocation() {
+      return status(SQLITE_STATUS_MALLOC_SIZE, true);
+    }
+
+    public long getPageCacheUsed() {
+      return status(SQLITE_STATUS_PAGECACHE_USED, false);
+    }
+
+    public long getPageCacheOverflow() {
+      return status(SQLITE_STATUS_PAGECACHE_OVERFLOW, false);
+    }
+
+    public long getSharedPageCacheUsed() {
+      SQLitePageCacheStats stats = sharedPageCache();
+      return stats == null ? -1 : stats.getUsedBytes();
+    }
+
+    public long getSharedPageCacheBudget() {
+      SQLitePageCacheStats stats = sharedPageCache();
+      return stats == null ? -1 : stats.getBudget();
+    }
+
+    public long getSharedPageCacheEvictions() {
+      SQLitePageCacheStats stats = sharedPageCache();
+      return stats == null ? -1 : stats.getEvictionCount();
+    }
+
+    public double getSharedPageCacheHitRatio() {
+      SQLitePageCacheStats stats = sharedPageCache();
+      return stats == null ? -1 : stats.getHitRatio();
+    }
+
+    private SQLitePageCacheStats sharedPageCache() {
+      try {
+        return SQLite.getSharedPageCacheStats();
+      } catch (SQLiteException e) {
+        Internal.log(Level.FINE, this, "cannot read shared page cache stats", e);
+        return null;
+      }
+    }
+
+    public int getRegisteredConnectionCount() {
+      int count = 0;
+      synchronized (SQLiteManagement.class) {
+        for (Object object : ourRegistered.keySet()) {
+          if (object instanceof SQLiteConnection)
+            count++;
+        }
+      }
+      return count;
+    }
+
+    public void resetHighwater() {
+      int[] ops = {SQLITE_STATUS_MEMORY_USED, SQLITE_STATUS_MALLOC_SIZE, SQLITE_STATUS_MALLOC_COUNT,
+        SQLITE_STATUS_PAGECACHE_USED, SQLITE_STATUS_PAGECACHE_OVERFLOW, SQLITE_STATUS_PARSER_STACK};
+      for (int op : ops) {
+        try {
+          SQLite.getStatusHighwater(op, true);
+        } catch (SQLiteException e) {
+          Internal.log(Level.FINE, this, "cannot reset status " + op, e);
+        }
+      }
+    }
+  }
+
+  private static class Connection implements ConnectionMXBean {
+    private final SQLiteConnection myConnection;
+
+    public Connection(SQLiteConnection connection) {
+      myConnection = connection;
+    }
+
+    public String getDatabaseFile() {
+      return fileName(myConnection.getDatabaseFile());
+    }
+
+    public boolean isOpen() {
+      return myConnection.isOpen();
+    }
+
+    public int getOpenStatementCount() {
+      return myConnection.getStatementCount();
+    }
+
+    public long getBusyCount() {
+      return myConnection.getBusyCount();
+    }
+
+    public long getProgressSteps() {
+      return myConnection.getProgressSteps();
+    }
+
+    public long getCacheUsed() {
+      return current(SQLITE_DBSTATUS_CACHE_USED);
+    }
+
+    public long getCacheHits() {
+      return current(SQLITE_DBSTATUS_CACHE_HIT);
+    }
+
+    public long getCacheMisses() {
+      return current(SQLITE_DBSTATUS_CACHE_MISS);
+    }
+
+    public double getCacheHitRatio() {
+      SQLiteDbStatus status = myConnection.readDbStatus();
+      return status == null ? -1 : status.getCacheHitRatio();
+    }
+
+    public long getCacheWrites() {
+      return current(SQLITE_DBSTATUS_CACHE_WRITE);
+    }
+
+    public long getSchemaUsed() {
+      return current(SQLITE_DBSTATUS_SCHEMA_USED);
+    }
+
+    public long getStatementUsed() {
+      return current(SQLITE_DBSTATUS_STMT_USED);
+    }
+
+    private long current(int op) {
+      SQLiteDbStatus status = myConnection.readDbStatus();
+      return status == null ? -1 : status.getCurrent(op);
+    }
+  }
+
+  private static class StatementCache implements StatementCacheMXBean {
+    private final SQLiteConnection myConnection;
+
+    public StatementCache(SQLiteConnection connection) {
+      myConnection = connection;
+    }
+
+    public int getCachedStatementCount() {
+      return myConnection.getCachedStatementCount();
+    }
+
+    public long getHitCount() {
+      return myConnection.getStatementCacheHits();
+    }
+
+    public long getMissCount() {
+      return myConnection.getStatementCacheMisses();
+    }
+
+    public double getHitRatio() {
+      long hits = getHitCount();
+      long total = hits + getMissCount();
+      return total == 0 ? 0 : (double) hits / total;
+    }
+  }
+
+  private static class Queue implements QueueMXBean {
+    private final SQLiteQueue myQueue;
+
+    public Queue(SQLiteQueue queue) {
+      myQueue = queue;
+    }
+
+    public String getDatabaseFile() {
+      return fileName(myQueue.getDatabaseFile());
+    }
+
+    public boolean isRunning() {
+      return myQueue.isRunning();
+    }
+
+    public boolean isStopped() {
+      return myQueue.isStopped();
+    }
+
+    public int getPendingJobCount() {
+      return myQueue.getPendingJobCount();
+    }
+
+    public long getExecutedJobCount() {
+      return myQueue.getExecutedJobCount();
+    }
+
+    public long getFailedJobCount() {
+      return myQueue.getFailedJobCount();
+    }
+  }
+}
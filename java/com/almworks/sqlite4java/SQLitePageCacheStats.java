@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+/**
+ * SQLitePageCacheStats is an immutable snapshot of the shared page cache, installed with
+ * {@link SQLite#installSharedPageCache}. Counters are accumulated since the cache was installed; use
+ * {@link #delta} to get the values for a period of time.
+ *
+ * @see SQLite#getSharedPageCacheStats
+ */
+public final class SQLitePageCacheStats {
+  static final int VALUES = 8;
+
+  private final long[] myValues;
+
+  SQLitePageCacheStats(long[] values) {
+    assert values.length == VALUES : values.length;
+    myValues = values;
+  }
+
+  /**
+   * @return the maximum memory used by cached pages, in bytes; it is exceeded only while pinned pages or pages of
+   * in-memory databases take more memory
+   */
+  public long getBudget() {
+    return myValues[0];
+  }
+
+  /**
+   * @return memory used by all cached pages, including page headers, in bytes
+   */
+  public long getUsedBytes() {
+    return myValues[1];
+  }
+
+  /**
+   * @return the number of pages in the cache
+   */
+  public long getPageCount() {
+    return myValues[2];
+  }
+
+  /**
+   * @return the number of pages that are currently in use by SQLite and cannot be evicted
+   */
+  public long getPinnedPageCount() {
+    return myValues[3];
+  }
+
+  /**
+   * @return the number of page caches, which is usually the number of open database files
+   */
+  public long getCacheCount() {
+    return myValues[4];
+  }
+
+  /**
+   * @return the number of page requests served from the cache
+   */
+  public long getHitCount() {
+    return myValues[5];
+  }
+
+  /**
+   * @return the number of pages created in the cache, that is, read from disk or allocated for new pages
+   */
+  public long getMissCount() {
+    return myValues[6];
+  }
+
+  /**
+   * @return the number of pages evicted because of the budget or cache_size of a connection
+   */
+  public long getEvictionCount() {
+    return myValues[7];
+  }
+
+  /**
+   * @return the share of page requests served from the cache, or 0 if there were no requests
+   */
+  public double getHitRatio() {
+    long total = getHitCount() + getMissCount();
+    return total == 0 ? 0 : (double) getHitCount() / total;
+  }
+
+  /**
+   * Returns the difference between this snapshot and an earlier one. Counters are subtracted, while the budget
+   * and the current usage are taken from this snapshot.
+   *
+   * @param earlier an earlier snapshot
+   * @return a snapshot with counters for the period between the snapshots
+   */
+  public SQLitePageCacheStats delta(SQLitePageCacheStats earlier) {
+    long[] values = myValues.clone();
+    for (int i = 5; i < 8; i++) {
+      values[i] -= earlier.myValues[i];
+    }
+    return new SQLitePageCacheStats(values);
+  }
+
+  public String toString() {
+    return "pcache[used=" + getUsedBytes() + "/" + getBudget() + ",pages=" + getPageCount() + ",pinned=" +
+      getPinnedPageCount() + ",hits=" + getHitCount() + ",misses=" + getMissCount() + ",evictions=" +
+      getEvictionCount() + "]";
+  }
+}
@@ -18,9 +18,14 @@ package com.almworks.sqlite4java;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
-import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_DONE;
-import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_ROW;
+import static com.almworks.sqlite4java.SQLiteConstants.*;
 
 /**
  * SQLiteProfiler measures and accumulates statistics for various SQLite methods. The statistics is then available
@@ -29,6 +34,19 @@ import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_ROW;
  * To start profiling, call {@link SQLiteConnection#profile} and get the profiler. After profiling is done, call
  * {@link SQLiteConnection#stopProfiling} and inspect the profiler's results.
  * <p>
+ * Durations are recorded into fixed-memory histograms (see {@link SQLiteHistogram}), so the report contains
+ * percentiles as well as minimum, average and maximum times. Statistics are keyed by the SQL text of the statement,
+ * which {@link SQLParts} keeps once computed, so no strings are built when a statement is stepped.
+ * <p>
+ * The profiler is <strong>thread-safe</strong> and may be shared by several connections with
+ * {@link SQLiteConnection#profile(SQLiteProfiler)}. To aggregate statistics of all connections and queues in the
+ * process, install a profiler with {@link #setDefault} &mdash; all connections created after that will report to it.
+ * <p>
+ * To keep the profiler running in production, create it with {@link #SQLiteProfiler(int, boolean)}: statistics for
+ * queries that differ only in literal values or in the number of parameters in a list are then aggregated under
+ * a single normalized SQL (see {@link #normalize}), and only a limited number of the most expensive statements
+ * are kept.
+ * <p>
  * This is pure Java-based profiling, not related to <code>sqlite3_profile</code> method.
  *
  * @author Igor Sereda
@@ -37,7 +55,106 @@ import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_ROW;
  */
 public class SQLiteProfiler {
   private static final String HEADER = "-----------------------------------------------------------------------------";
-  private final Map<String, SQLStat> myStats = new HashMap<String, SQLStat>();
+
+  private static final int EXEC = 0;
+  private static final int PREPARE = 1;
+  private static final int STEP = 2;
+  private static final int STEP_FIRST = 3;
+  private static final int STEP_NEXT = 4;
+  private static final int LOAD_INTS = 5;
+  private static final int LOAD_INTS_FIRST = 6;
+  private static final int LOAD_INTS_NEXT = 7;
+  private static final int LOAD_LONGS = 8;
+  private static final int LOAD_LONGS_FIRST = 9;
+  private static final int LOAD_LONGS_NEXT = 10;
+  private static final String[] OPERATIONS = {"exec", "prepare", "step", "step:first", "step:next", "loadInts",
+    "loadInts:first", "loadInts:next", "loadLongs", "loadLongs:first", "loadLongs:next"};
+
+  /**
+   * Statement counters collected by the profiler, in the order they are passed to {@link #reportStatus}.
+   */
+  static final int[] STATUS_COUNTERS = {SQLITE_STMTSTATUS_FULLSCAN_STEP, SQLITE_STMTSTATUS_SORT,
+    SQLITE_STMTSTATUS_AUTOINDEX, SQLITE_STMTSTATUS_VM_STEP, SQLITE_STMTSTATUS_REPREPARE, SQLITE_STMTSTATUS_RUN,
+    SQLITE_STMTSTATUS_MEMUSED};
+  private static final String[] STATUS_NAMES = {"fullscan", "sort", "autoindex", "vm", "reprepare", "run", "mem"};
+
+  private static volatile SQLiteProfiler ourDefault;
+
+  private static final int MIN_RESOLVED_CACHE_SIZE = 1024;
+  private static final int EVICTION_SAMPLE = 8;
+  private static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\?(?: ?, ?\\?)*\\)");
+  private static final Pattern ROW_LIST = Pattern.compile("\\(\\?,\\.\\.\\.\\)(?: ?, ?\\(\\?,\\.\\.\\.\\))+");
+
+  private final ConcurrentMap<String, SQLStat> myStats = new ConcurrentHashMap<String, SQLStat>();
+
+  /**
+   * Maximum number of statements to keep statistics for, 0 if unlimited.
+   */
+  private final int myMaxStatements;
+
+  /**
+   * If true, statistics are keyed by normalized SQL.
+   */
+  private final boolean myNormalizing;
+
+  /**
+   * When normalizing, maps exact SQL to the statistics of the normalized SQL. Cleared when grows too large.
+   * Entries that point to evicted statistics are removed when they are looked up.
+   */
+  private final ConcurrentMap<String, SQLStat> myResolved;
+
+  private final AtomicLong myEvictedCount = new AtomicLong();
+
+  private final Object myEvictionLock = new Object();
+
+  /**
+   * Iterates over statistics to pick eviction candidates in round-robin order. Guarded by myEvictionLock.
+   */
+  private Iterator<SQLStat> myEvictionHand;
+
+  /**
+   * Creates a profiler that keeps statistics for each distinct SQL, without limits.
+   */
+  public SQLiteProfiler() {
+    this(0, false);
+  }
+
+  /**
+   * Creates a profiler with bounded memory use.
+   * <p/>
+   * When the number of distinct statements exceeds <code>maxStatements</code>, a statement with a small total time
+   * is evicted: the one with the least total time among the next few statements taken in round-robin order. So the
+   * profiler keeps approximately the top statements by total time, and eviction takes constant time.
+   *
+   * @param maxStatements maximum number of statements to keep statistics for, or 0 if unlimited
+   * @param normalizeSql if true, statistics are aggregated by SQL normalized with {@link #normalize}
+   */
+  public SQLiteProfiler(int maxStatements, boolean normalizeSql) {
+    if (maxStatements < 0)
+      throw new IllegalArgumentException("maxStatements " + maxStatements);
+    myMaxStatements = maxStatements;
+    myNormalizing = normalizeSql;
+    myResolved = normalizeSql ? new ConcurrentHashMap<String, SQLStat>() : null;
+  }
+
+  /**
+   * Sets the profiler that is used by all connections created after this call, so that statistics are collected
+   * for all connections and queues in the process. This method is <strong>thread-safe</strong>.
+   *
+   * @param profiler the profiler, or null to stop profiling new connections by default
+   */
+  public static void setDefault(SQLiteProfiler profiler) {
+    ourDefault = profiler;
+  }
+
+  /**
+   * This method is <strong>thread-safe</strong>.
+   *
+   * @return the profiler that is installed into new connections, or null
+   */
+  public static SQLiteProfiler getDefault() {
+    return ourDefault;
+  }
 
   /**
    * Outputs current report into PrintWriter.
@@ -46,14 +163,25 @@ public class SQLiteProfiler {
    */
   public void printReport(PrintWriter out) {
     ArrayList<SQLStat> stats = new ArrayList<SQLStat>(myStats.values());
+    final Map<SQLStat, Long> totals = new HashMap<SQLStat, Long>();
+    for (SQLStat stat : stats) {
+      totals.put(stat, stat.getTotalTime());
+    }
     Collections.sort(stats, new Comparator<SQLStat>() {
       public int compare(SQLStat o1, SQLStat o2) {
-        return o1.getTotalTime() < o2.getTotalTime() ? 1 : -1;
+        long t1 = totals.get(o1);
+        long t2 = totals.get(o2);
+        return t1 < t2 ? 1 : t1 > t2 ? -1 : 0;
       }
     });
     for (SQLStat stat : stats) {
       stat.printReport(out);
     }
+    long evicted = myEvictedCount.get();
+    if (evicted > 0) {
+      out.println(HEADER);
+      out.println(evicted + " statement(s) evicted");
+    }
   }
 
   /**
@@ -92,61 +220,281 @@ public class SQLiteProfiler {
     }
   }
 
-  void reportExec(String sql, long nfrom, long nto, int rc) {
-    getStat(sql).report(rc == 0 ? "exec" : "exec:error(" + rc + ")", nfrom, nto);
+  /**
+   * Returns the histogram of durations, in nanoseconds, of the given operation for the given SQL.
+   *
+   * @param sql the SQL of the statement
+   * @param operation operation name, as shown in the report, for example "step" or "prepare"
+   * @return the histogram, or null if the operation has not been recorded for this SQL
+   */
+  public SQLiteHistogram getHistogram(String sql, String operation) {
+    if (sql == null || operation == null)
+      return null;
+    SQLStat stat = myStats.get(myNormalizing ? normalize(sql) : sql);
+    if (stat == null)
+      return null;
+    Stat s = stat.getStat(operation);
+    return s == null ? null : s.getHistogram();
   }
 
-  void reportPrepare(String sql, long nfrom, long nto, int rc) {
-    getStat(sql).report(rc == 0 ? "prepare" : "prepare:error(" + rc + ")", nfrom, nto);
+  /**
+   * Returns the accumulated value of a statement counter for the given SQL. Counters are collected when a
+   * statement is reset or disposed. For <code>SQLITE_STMTSTATUS_MEMUSED</code>, which is not a counter, the
+   * maximum observed value is returned.
+   *
+   * @param sql the SQL of the statement
+   * @param op the counter, one of <code>SQLITE_STMTSTATUS_*</code> constants except for FILTER_HIT and FILTER_MISS
+   * @return the sum of the counter over all runs of the statement, or 0 if nothing was recorded
+   * @see SQLiteStatement#getStatus
+   */
+  public long getStatus(String sql, int op) {
+    if (sql == null)
+      return 0;
+    SQLStat stat = myStats.get(myNormalizing ? normalize(sql) : sql);
+    if (stat == null)
+      return 0;
+    for (int i = 0; i < STATUS_COUNTERS.length; i++) {
+      if (STATUS_COUNTERS[i] == op)
+        return stat.getStatus(i);
+    }
+    return 0;
   }
 
-  void reportStep(boolean alreadyStepped, String sql, long nfrom, long nto, int rc) {
+  /**
+   * Forgets all collected statistics.
+   */
+  public void clear() {
+    myStats.clear();
+    if (myResolved != null)
+      myResolved.clear();
+    myEvictedCount.set(0);
+  }
+
+  /**
+   * @return the number of statements that were evicted from the profiler because of the limit on the number
+   * of statements
+   */
+  public long getEvictedCount() {
+    return myEvictedCount.get();
+  }
+
+  /**
+   * Normalizes SQL so that statements that differ only in literal values are represented by the same string.
+   * <p/>
+   * String, numeric and BLOB literals, as well as named and numbered parameters, are replaced with
+   * <code>?</code>. Comments are removed and whitespace is collapsed. Parenthesized lists of parameters, such as
+   * produced by {@link SQLParts#appendParams}, are replaced with <code>(?,...)</code> regardless of their length,
+   * and lists of such rows (as in multi-row <code>VALUES</code>) are replaced with <code>(?,...),...</code>.
+   * Identifiers and keywords are not changed.
+   *
+   * @param sql SQL text
+   * @return normalized SQL
+   */
+  public static String normalize(String sql) {
+    int length = sql.length();
+    StringBuilder b = new StringBuilder(length);
+    int i = 0;
+    while (i < length) {
+      char c = sql.charAt(i);
+      char next = i + 1 < length ? sql.charAt(i + 1) : 0;
+      boolean tokenStart = b.length() == 0 || !isIdentifierChar(b.charAt(b.length() - 1));
+      if (Character.isWhitespace(c)) {
+        i++;
+        appendSpace(b);
+      } else if (c == '-' && next == '-') {
+        while (i < length && sql.charAt(i) != '\n') i++;
+        appendSpace(b);
+      } else if (c == '/' && next == '*') {
+        int end = sql.indexOf("*/", i + 2);
+        i = end < 0 ? length : end + 2;
+        appendSpace(b);
+      } else if (c == '\'' || ((c == 'x' || c == 'X') && next == '\'' && tokenStart)) {
+        i = skipQuoted(sql, c == '\'' ? i : i + 1, '\'');
+        b.append('?');
+      } else if (c == '"' || c == '`') {
+        int end = skipQuoted(sql, i, c);
+        b.append(sql, i, end);
+        i = end;
+      } else if (c == '[') {
+        int end = sql.indexOf(']', i + 1);
+        end = end < 0 ? length : end + 1;
+        b.append(sql, i, end);
+        i = end;
+      } else if (tokenStart && (Character.isDigit(c) || (c == '.' && Character.isDigit(next)))) {
+        i++;
+        while (i < length) {
+          char d = sql.charAt(i);
+          if (Character.isLetterOrDigit(d) || d == '.') {
+            i++;
+          } else if ((d == '+' || d == '-') && (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E')) {
+            i++;
+          } else {
+            break;
+          }
+        }
+        b.append('?');
+      } else if (c == '?' || ((c == ':' || c == '@' || c == '$') && isIdentifierChar(next))) {
+        i++;
+        while (i < length && isIdentifierChar(sql.charAt(i))) i++;
+        b.append('?');
+      } else {
+        if (c == ',' || c == '(' || c == ')') {
+          // remove space before punctuation to make lists uniform
+          if (b.length() > 0 && b.charAt(b.length() - 1) == ' ' && c != '(')
+            b.setLength(b.length() - 1);
+        }
+        b.append(c);
+        i++;
+      }
+    }
+    int len = b.length();
+    if (len > 0 && b.charAt(len - 1) == ' ')
+      b.setLength(len - 1);
+    String r = PARAMETER_LIST.matcher(b).replaceAll("(?,...)");
+    return ROW_LIST.matcher(r).replaceAll("(?,...),...");
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private static void appendSpace(StringBuilder b) {
+    int len = b.length();
+    if (len > 0 && b.charAt(len - 1) != ' ' && b.charAt(len - 1) != '(')
+      b.append(' ');
+  }
+
+  private static int skipQuoted(String sql, int start, char quote) {
+    int i = start + 1;
+    int length = sql.length();
+    while (i < length) {
+      if (sql.charAt(i) == quote) {
+        if (i + 1 < length && sql.charAt(i + 1) == quote) {
+          i += 2;
+          continue;
+        }
+        return i + 1;
+      }
+      i++;
+    }
+    return length;
+  }
+
+  void reportExec(String sql, long nfrom, long nto, int rc) {
     SQLStat stat = getStat(sql);
+    if (rc != 0) {
+      stat.reportError("exec:error(" + rc + ")", nfrom, nto);
+      return;
+    }
+    stat.report(EXEC, nfrom, nto);
+  }
+
+  void reportPrepare(SQLParts sql, long nfrom, long nto, int rc) {
+    SQLStat stat = getStat(sql.toString());
+    if (rc != 0) {
+      stat.reportError("prepare:error(" + rc + ")", nfrom, nto);
+      return;
+    }
+    stat.report(PREPARE, nfrom, nto);
+  }
+
+  void reportStep(boolean alreadyStepped, SQLParts sql, long nfrom, long nto, int rc) {
+    SQLStat stat = getStat(sql.toString());
     if (rc != SQLITE_ROW && rc != SQLITE_DONE) {
-      stat.report("step:error(" + rc + ")", nfrom, nto);
+      stat.reportError("step:error(" + rc + ")", nfrom, nto);
       return;
     }
-    stat.report("step", nfrom, nto);
+    stat.report(STEP, nfrom, nto);
     if (alreadyStepped || rc == SQLITE_ROW) {
-      stat.report(alreadyStepped ? "step:next" : "step:first", nfrom, nto);
+      stat.report(alreadyStepped ? STEP_NEXT : STEP_FIRST, nfrom, nto);
     }
   }
 
-  void reportLoadInts(boolean alreadyStepped, String sql, long nfrom, long nto, int rc, int count) {
-    SQLStat stat = getStat(sql);
+  void reportLoadInts(boolean alreadyStepped, SQLParts sql, long nfrom, long nto, int rc, int count) {
+    SQLStat stat = getStat(sql.toString());
     if (rc != SQLITE_ROW && rc != SQLITE_DONE) {
-      stat.report("loadInts:error(" + rc + ")", nfrom, nto);
+      stat.reportError("loadInts:error(" + rc + ")", nfrom, nto);
       return;
     }
-    stat.report("loadInts", nfrom, nto);
+    stat.report(LOAD_INTS, nfrom, nto);
     if (alreadyStepped || rc == SQLITE_ROW) {
-      stat.report(alreadyStepped ? "loadInts:next" : "loadInts:first", nfrom, nto);
+      stat.report(alreadyStepped ? LOAD_INTS_NEXT : LOAD_INTS_FIRST, nfrom, nto);
     }
     // todo count
   }
 
-  void reportLoadLongs(boolean alreadyStepped, String sql, long nfrom, long nto, int rc, int count) {
-    SQLStat stat = getStat(sql);
+  void reportLoadLongs(boolean alreadyStepped, SQLParts sql, long nfrom, long nto, int rc, int count) {
+    SQLStat stat = getStat(sql.toString());
     if (rc != SQLITE_ROW && rc != SQLITE_DONE) {
-      stat.report("loadLongs:error(" + rc + ")", nfrom, nto);
+      stat.reportError("loadLongs:error(" + rc + ")", nfrom, nto);
       return;
     }
-    stat.report("loadLongs", nfrom, nto);
+    stat.report(LOAD_LONGS, nfrom, nto);
     if (alreadyStepped || rc == SQLITE_ROW) {
-      stat.report(alreadyStepped ? "loadLongs:next" : "loadLongs:first", nfrom, nto);
+      stat.report(alreadyStepped ? LOAD_LONGS_NEXT : LOAD_LONGS_FIRST, nfrom, nto);
     }
     // todo count
   }
 
+  void reportStatus(SQLParts sql, int[] status) {
+    getStat(sql.toString()).reportStatus(status);
+  }
+
   private SQLStat getStat(String sql) {
+    if (!myNormalizing)
+      return getKeyedStat(sql);
+    SQLStat stat = myResolved.get(sql);
+    if (stat != null && stat.isEvicted()) {
+      myResolved.remove(sql, stat);
+      stat = null;
+    }
+    if (stat == null) {
+      stat = getKeyedStat(normalize(sql));
+      if (myResolved.size() >= Math.max(MIN_RESOLVED_CACHE_SIZE, myMaxStatements * 8))
+        myResolved.clear();
+      myResolved.put(sql, stat);
+    }
+    return stat;
+  }
+
+  private SQLStat getKeyedStat(String sql) {
     SQLStat stat = myStats.get(sql);
     if (stat == null) {
       stat = new SQLStat(sql);
-      myStats.put(sql, stat);
+      SQLStat existing = myStats.putIfAbsent(sql, stat);
+      if (existing != null) {
+        stat = existing;
+      } else if (myMaxStatements > 0 && myStats.size() > myMaxStatements) {
+        evict(stat);
+      }
     }
     return stat;
   }
 
+  /**
+   * Removes the statement with the least total time among a small sample, other than the one that has just been
+   * added. The sample is taken by advancing the clock hand over the statistics.
+   */
+  private void evict(SQLStat added) {
+    SQLStat victim = null;
+    synchronized (myEvictionLock) {
+      for (int i = 0; i < EVICTION_SAMPLE; i++) {
+        if (myEvictionHand == null || !myEvictionHand.hasNext()) {
+          myEvictionHand = myStats.values().iterator();
+          if (!myEvictionHand.hasNext())
+            break;
+        }
+        SQLStat stat = myEvictionHand.next();
+        if (stat != added && (victim == null || stat.getTotalTime() < victim.getTotalTime()))
+          victim = stat;
+      }
+    }
+    if (victim != null && myStats.remove(victim.getSQL(), victim)) {
+      victim.setEvicted();
+      myEvictedCount.incrementAndGet();
+    }
+  }
+
   private static String formatDuration(long nanos) {
     if (nanos > 1000000000L) {
       return String.format(Locale.US, "%.1fs", ((double) nanos) / 1000000000.0);
@@ -164,7 +512,11 @@ public class SQLiteProfiler {
 
   private static class SQLStat {
     private final String mySQL;
-    private final Map<String, Stat> myStats = new TreeMap<String, Stat>();
+    private final AtomicReferenceArray<Stat> myStats = new AtomicReferenceArray<Stat>(OPERATIONS.length);
+    private final ConcurrentMap<String, Stat> myErrors = new ConcurrentHashMap<String, Stat>();
+    private final AtomicLongArray myStatus = new AtomicLongArray(STATUS_COUNTERS.length);
+    private final AtomicLong myTotalTime = new AtomicLong();
+    private volatile boolean myEvicted;
 
     public SQLStat(String sql) {
       mySQL = sql;
@@ -174,46 +526,123 @@ public class SQLiteProfiler {
       return mySQL;
     }
 
-    public void report(String name, long nfrom, long nto) {
-      Stat stat = myStats.get(name);
+    public void report(int operation, long nfrom, long nto) {
+      Stat stat = myStats.get(operation);
+      if (stat == null) {
+        myStats.compareAndSet(operation, null, new Stat());
+        stat = myStats.get(operation);
+      }
+      stat.report(nfrom, nto);
+      addTotalTime(nfrom, nto);
+    }
+
+    public void reportError(String name, long nfrom, long nto) {
+      Stat stat = myErrors.get(name);
       if (stat == null) {
-        stat = new Stat();
-        myStats.put(name, stat);
+        Stat existing = myErrors.putIfAbsent(name, stat = new Stat());
+        if (existing != null)
+          stat = existing;
       }
       stat.report(nfrom, nto);
+      addTotalTime(nfrom, nto);
+    }
+
+    private void addTotalTime(long nfrom, long nto) {
+      long duration = nto - nfrom;
+      if (duration >= 0)
+        myTotalTime.addAndGet(duration);
+    }
+
+    public boolean isEvicted() {
+      return myEvicted;
+    }
+
+    public void setEvicted() {
+      myEvicted = true;
+    }
+
+    public void reportStatus(int[] status) {
+      for (int i = 0; i < STATUS_COUNTERS.length; i++) {
+        int value = status[i];
+        if (value <= 0)
+          continue;
+        if (STATUS_COUNTERS[i] == SQLITE_STMTSTATUS_MEMUSED) {
+          while (true) {
+            long max = myStatus.get(i);
+            if (value <= max || myStatus.compareAndSet(i, max, value))
+              break;
+          }
+        } else {
+          myStatus.addAndGet(i, value);
+        }
+      }
+    }
+
+    public long getStatus(int index) {
+      return myStatus.get(index);
+    }
+
+    public Stat getStat(String name) {
+      for (int i = 0; i < OPERATIONS.length; i++) {
+        if (OPERATIONS[i].equals(name))
+          return myStats.get(i);
+      }
+      return myErrors.get(name);
     }
 
     public long getTotalTime() {
-      long total = 0;
-      for (Stat stat : myStats.values()) {
-        total += stat.myTotalNanos;
+      return myTotalTime.get();
+    }
+
+    private Map<String, Stat> getStats() {
+      Map<String, Stat> r = new TreeMap<String, Stat>(myErrors);
+      for (int i = 0; i < OPERATIONS.length; i++) {
+        Stat stat = myStats.get(i);
+        if (stat != null)
+          r.put(OPERATIONS[i], stat);
       }
-      return total;
+      return r;
     }
 
     public void printReport(PrintWriter out) {
+      Map<String, Stat> stats = getStats();
       out.println(HEADER);
       out.println(mySQL);
       out.println(HEADER);
       String totalPrefix = "total time";
       int maxPrefix = totalPrefix.length();
-      for (String s : myStats.keySet()) {
+      for (String s : stats.keySet()) {
         maxPrefix = Math.max(maxPrefix, s.length());
       }
       StringBuilder b = new StringBuilder();
       addLeftColumn(b, totalPrefix, maxPrefix);
       b.append(formatDuration(getTotalTime()));
       out.println(b.toString());
-      for (Map.Entry<String, Stat> e : myStats.entrySet()) {
+      for (Map.Entry<String, Stat> e : stats.entrySet()) {
         b.setLength(0);
         addLeftColumn(b, e.getKey(), maxPrefix);
         Stat stat = e.getValue();
+        SQLiteHistogram h = stat.getHistogram();
         b.append("total:").append(formatDuration(stat.getTotalNanos())).append(' ');
         b.append("count:").append(stat.getTotalCount()).append(' ');
         b.append("min|avg|max:").append(formatDuration(stat.getMinNanos())).append('|').append(formatDuration(stat.getAvgNanos())).append('|').append(formatDuration(stat.getMaxNanos())).append(' ');
+        b.append("p50|p90|p99|p999:").append(formatDuration(h.getPercentile(50))).append('|').append(formatDuration(h.getPercentile(90))).append('|').append(formatDuration(h.getPercentile(99))).append('|').append(formatDuration(h.getPercentile(99.9))).append(' ');
         b.append("freq:").append(stat.getFrequency());
         out.println(b.toString());
       }
+      b.setLength(0);
+      for (int i = 0; i < STATUS_COUNTERS.length; i++) {
+        long value = myStatus.get(i);
+        if (value != 0)
+          b.append(STATUS_NAMES[i]).append(':').append(value).append(' ');
+      }
+      if (b.length() > 0) {
+        String counters = b.toString();
+        b.setLength(0);
+        addLeftColumn(b, "status", maxPrefix);
+        b.append(counters);
+        out.println(b.toString());
+      }
       out.println();
     }
 
@@ -226,54 +655,50 @@ public class SQLiteProfiler {
   }
 
   private static class Stat {
-    private int myTotalCount;
-    private long myTotalNanos;
-    private long myMinNanos = -1;
-    private long myMaxNanos = -1;
-    private long myFirstTime;
-    private long myLastTime;
+    private final SQLiteHistogram myHistogram = new SQLiteHistogram();
+    private volatile long myFirstTime;
+    private volatile long myLastTime;
 
     public void report(long nfrom, long nto) {
       long duration = nto - nfrom;
       if (duration < 0) return;
-      myTotalCount++;
-      myTotalNanos += duration;
-      if (myMinNanos < 0 || duration < myMinNanos)
-        myMinNanos = duration;
-      if (myMaxNanos < 0 || duration > myMaxNanos)
-        myMaxNanos = duration;
+      myHistogram.record(duration);
       myLastTime = System.currentTimeMillis();
       if (myFirstTime == 0)
         myFirstTime = myLastTime;
     }
 
+    public SQLiteHistogram getHistogram() {
+      return myHistogram;
+    }
+
     public long getTotalNanos() {
-      return myTotalNanos;
+      return myHistogram.getTotal();
     }
 
-    public int getTotalCount() {
-      return myTotalCount;
+    public long getTotalCount() {
+      return myHistogram.getCount();
     }
 
     public long getMinNanos() {
-      return myMinNanos;
+      return myHistogram.getMin();
     }
 
     public long getAvgNanos() {
-      return myTotalCount > 0 ? myTotalNanos / myTotalCount : 0;
+      return myHistogram.getMean();
     }
 
     public long getMaxNanos() {
-      return myMaxNanos;
+      return myHistogram.getMax();
     }
 
     public String getFrequency() {
-      if (myTotalCount < 10) return "-";
+      long count = getTotalCount();
+      if (count < 10) return "-";
       long millis = myLastTime - myFirstTime;
-      long t = millis / myTotalCount;
+      long t = millis / count;
       if (t == 0) return "-";
       return "1/" + formatDuration(t * 1000000L);
     }
   }
 }
-
@@ -48,6 +48,7 @@ import java.util.logging.Level;
  * should survive the reincarnation and execute in the new thread.
  * <p/>
  * Reincarnation is not possible for in-memory database, since the database is lost after connection closes.
+ * To work with a database in memory and keep it in a file, use {@link SQLiteReplicaQueue}.
  * <p/>
  * Some examples:
  * <pre>
@@ -126,6 +127,27 @@ public class SQLiteQueue {
    */
   private SQLiteConnection myConnection;
 
+  /**
+   * Job counters, exposed through {@link SQLiteManagement}. <p/><i>written by myThread only</i>
+   */
+  private volatile long myExecutedJobs;
+  private volatile long myFailedJobs;
+
+  /**
+   * Cache tuner to install on the connection, or null.
+   */
+  private volatile SQLiteCacheTuner myCacheTuner;
+
+  /**
+   * Backups scheduled with {@link #scheduleBackup} that are not finished yet. <p/><i>protected by myLock</i>
+   */
+  private final List<SQLiteBackupScheduler> myBackups = new ArrayList<SQLiteBackupScheduler>();
+
+  /**
+   * Configuration for connections opened by {@link #openConnection}, or null.
+   */
+  private volatile SQLiteConnectionConfig myConnectionConfig;
+
   /**
    * Constructs the queue, which will use an in-memory database.
    * <p/>
@@ -215,6 +237,7 @@ public class SQLiteQueue {
       }
       myThread = thread;
     }
+    SQLiteManagement.register(this);
     thread.start();
     return this;
   }
@@ -337,6 +360,70 @@ public class SQLiteQueue {
     return job;
   }
 
+  /**
+   * Sets the configuration applied to the connection when it is opened by {@link #openConnection}, including
+   * connections opened when the queue is reincarnated. If the configuration cannot be applied, the queue thread
+   * stops as if opening the database failed. It should be called before the queue is started.
+   * <p/>
+   * This method is thread-safe: it may be called from any thread.
+   *
+   * @param config the configuration, or null; the queue keeps a copy
+   * @return this queue
+   * @see SQLiteConnectionConfig
+   */
+  public SQLiteQueue setConnectionConfig(SQLiteConnectionConfig config) {
+    myConnectionConfig = config == null ? null : new SQLiteConnectionConfig(config);
+    return this;
+  }
+
+  /**
+   * Sets a tuner that adjusts the page cache size of the queue's connection. The tuner runs in the queue thread
+   * between jobs and while the queue is idle, so it can shrink the cache of a database that is no longer used.
+   * <p/>
+   * The tuner is installed on connections opened after this call, including connections opened when the queue
+   * is reincarnated. It should be called before the queue is started.
+   * <p/>
+   * This method is thread-safe: it may be called from any thread.
+   *
+   * @param tuner the tuner, or null
+   * @return this queue
+   * @see SQLiteCacheTuner
+   */
+  public SQLiteQueue setCacheTuner(SQLiteCacheTuner tuner) {
+    myCacheTuner = tuner;
+    return this;
+  }
+
+  /**
+   * Starts a background backup of the queue's database. Backup steps are made in the queue thread between jobs,
+   * paced as configured in the scheduler, so that the backup does not delay jobs for long.
+   * <p/>
+   * This method is thread-safe: it may be called from any thread.
+   *
+   * @param backup the backup to run; a scheduler can be used only once
+   * @return the backup, to watch progress and wait for completion
+   * @see SQLiteBackupScheduler
+   */
+  public SQLiteBackupScheduler scheduleBackup(SQLiteBackupScheduler backup) {
+    if (backup == null)
+      throw new NullPointerException();
+    boolean stopped;
+    synchronized (myLock) {
+      stopped = myStopRequested;
+      if (!stopped) {
+        if (Internal.isFineLogging()) {
+          Internal.logFine(this, "scheduling " + backup);
+        }
+        myBackups.add(backup);
+        myLock.notify();
+      }
+    }
+    if (stopped) {
+      backup.fail(new SQLiteException(SQLiteConstants.WRAPPER_MISUSE, this + " is stopped"));
+    }
+    return backup;
+  }
+
   /**
    * Waits until all jobs in the queue are executed.
    *
@@ -457,6 +544,7 @@ public class SQLiteQueue {
    */
   protected SQLiteConnection openConnection() throws SQLiteException {
     SQLiteConnection connection = new SQLiteConnection(myDatabaseFile);
+    connection.setConfig(myConnectionConfig);
     if (Internal.isFineLogging()) {
       Internal.logFine(this, "opening " + connection);
     }
@@ -527,17 +615,24 @@ public class SQLiteQueue {
     SQLiteConnection connection = myConnection;
     if (connection == null)
       throw new IllegalStateException(this + ": executeJob: no connection");
+    SQLiteEventListener listener = SQLite.getEventListener();
+    long from = listener == null ? 0 : System.nanoTime();
     try {
       if (Internal.isFineLogging()) {
         Internal.logFine(this, "executing " + job);
       }
       job.execute(connection, this);
+      if (listener != null)
+        listener.jobExecuted(job, System.nanoTime() - from, job.getError());
       afterExecute(job);
       if (Internal.isFineLogging()) {
         Internal.logFine(this, "finished executing " + job);
       }
     } catch (Throwable e) {
+      myFailedJobs++;
       handleJobException(job, e);
+    } finally {
+      myExecutedJobs++;
     }
   }
 
@@ -566,6 +661,76 @@ public class SQLiteQueue {
     if (e instanceof ThreadDeath) throw (ThreadDeath) e;
   }
 
+  /**
+   * Tells whether {@link #maintain} has work to do. Called in the queue thread before each job and, while the queue
+   * is idle, at least once a second, while holding the queue lock, so it must be fast and must not block. Override
+   * together with {@link #maintain} to run periodic or background work between jobs.
+   *
+   * @return true if maintenance should run without waiting
+   */
+  protected boolean isMaintenanceDue() {
+    SQLiteConnection connection = myConnection;
+    if (connection != null && connection.isCacheTuningDue())
+      return true;
+    synchronized (myLock) {
+      long now = System.nanoTime();
+      for (SQLiteBackupScheduler backup : myBackups) {
+        if (backup.isDue(now))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs in the queue thread between jobs when {@link #isMaintenanceDue} tells so; if nothing is due, maintenance
+   * does not run at all. Maintenance should take little time, because it delays queued jobs. The default
+   * implementation runs the cache tuner installed with {@link #setCacheTuner} and steps of scheduled backups.
+   * <p/>
+   * If this method throws an exception, the queue thread will terminate and possible reincarnate.
+   *
+   * @param connection the queue's connection
+   * @throws Throwable if maintenance fails
+   */
+  protected void maintain(SQLiteConnection connection) throws Throwable {
+    connection.tuneCacheIfDue();
+    List<SQLiteBackupScheduler> due = null;
+    synchronized (myLock) {
+      long now = System.nanoTime();
+      for (SQLiteBackupScheduler backup : myBackups) {
+        if (backup.isDue(now)) {
+          if (due == null)
+            due = new ArrayList<SQLiteBackupScheduler>(myBackups.size());
+          due.add(backup);
+        }
+      }
+    }
+    if (due == null)
+      return;
+    for (SQLiteBackupScheduler backup : due) {
+      backup.step(connection);
+    }
+    synchronized (myLock) {
+      for (Iterator<SQLiteBackupScheduler> ii = myBackups.iterator(); ii.hasNext(); ) {
+        if (ii.next().isFinished())
+          ii.remove();
+      }
+    }
+  }
+
+  /**
+   * @return how long the idle queue thread may wait for a job before maintenance is due, in milliseconds
+   */
+  private long getIdleWait() {
+    long wait = 1000;
+    long now = System.nanoTime();
+    for (SQLiteBackupScheduler backup : myBackups) {
+      if (!backup.isFinished())
+        wait = Math.min(wait, (backup.getNextStepTime() - now) / 1000000L);
+    }
+    return Math.max(1, wait);
+  }
+
   /**
    * Provides reincarnation timeout (the period to wait before reincarnating abnormally stopped queue thread).
    *
@@ -618,6 +783,28 @@ public class SQLiteQueue {
   }
 
 
+  SQLiteConnectionConfig getConnectionConfig() {
+    return myConnectionConfig;
+  }
+
+  int getPendingJobCount() {
+    synchronized (myLock) {
+      return myJobs == null ? 0 : myJobs.size();
+    }
+  }
+
+  long getExecutedJobCount() {
+    return myExecutedJobs;
+  }
+
+  long getFailedJobCount() {
+    return myFailedJobs;
+  }
+
+  boolean isRunning() {
+    return myThread != null;
+  }
+
   private void runQueue() {
     try {
       queueFunction();
@@ -640,6 +827,9 @@ public class SQLiteQueue {
     myConnection = null;
     myConnection = openConnection();
     initConnection(myConnection);
+    SQLiteCacheTuner tuner = myCacheTuner;
+    if (tuner != null)
+      myConnection.setCacheTuner(tuner);
 
     while (true) {
       if (Thread.interrupted())
@@ -655,16 +845,24 @@ public class SQLiteQueue {
             }
             return;
           }
+          if (isMaintenanceDue()) {
+            job = null;
+            break;
+          }
           job = selectJob();
           if (job != null) {
             myCurrentJob = job;
             break;
           }
-          myLock.wait(1000);
+          myLock.wait(getIdleWait());
           myLock.notify();
         }
       }
-      executeJob(job);
+      if (job != null) {
+        executeJob(job);
+      } else {
+        maintain(myConnection);
+      }
     }
   }
 
@@ -678,10 +876,19 @@ public class SQLiteQueue {
 
   private void threadStopped() {
     assert Thread.currentThread() == myThread : Thread.currentThread() + " " + myThread;
+    List<SQLiteBackupScheduler> released;
+    synchronized (myLock) {
+      released = new ArrayList<SQLiteBackupScheduler>(myBackups);
+    }
+    // backups must be finished before the source connection is closed
+    for (SQLiteBackupScheduler backup : released) {
+      backup.release();
+    }
     disposeConnection(myConnection);
     myConnection = null;
     boolean reincarnate;
     List<SQLiteJob> droppedJobs = null;
+    List<SQLiteBackupScheduler> droppedBackups = null;
     synchronized (myLock) {
       reincarnate = !myStopRequested;
       if (reincarnate && !isReincarnationPossible()) {
@@ -691,11 +898,18 @@ public class SQLiteQueue {
       }
       if (!reincarnate) {
         droppedJobs = removeJobsClearQueue();
+        // backups scheduled after the release above are dropped too
+        droppedBackups = new ArrayList<SQLiteBackupScheduler>(myBackups);
+        myBackups.clear();
       }
       myThread = null;
     }
     if (!reincarnate) {
+      SQLiteManagement.unregister(this);
       cancelJobs(droppedJobs);
+      for (SQLiteBackupScheduler backup : droppedBackups) {
+        backup.fail(new SQLiteException(SQLiteConstants.WRAPPER_MISUSE, this + " stopped"));
+      }
       if (Internal.isFineLogging()) {
         Internal.logFine(this, "stopped");
       }
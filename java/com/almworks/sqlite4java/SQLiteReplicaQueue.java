@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.io.File;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * SQLiteReplicaQueue is a job queue that works with an in-memory replica of a database file. When the queue thread
+ * starts, the file is loaded into an in-memory database with the backup API, and all jobs read and write the
+ * in-memory database. Changes are persisted back to the file periodically, on demand with {@link #persist}, and
+ * when the queue stops.
+ * <p/>
+ * This suits small but frequently used databases, such as configuration stores, where the latency of reading
+ * pages from the file matters more than durability of every single transaction: changes made since the last
+ * persist are lost if the process dies. Each persist writes the whole database in a single transaction, so the
+ * file always holds a consistent state; it is skipped if nothing has changed.
+ * <p/>
+ * Unlike a queue working on an in-memory database, the replica queue can reincarnate: when the queue thread
+ * terminates abnormally, the replica is persisted, and the new thread loads it again from the file.
+ * <p/>
+ * The connection configuration set with {@link #setConnectionConfig} is applied to the connection to the file,
+ * which is used to load and persist the replica, so it should define journal mode, synchronous mode and busy
+ * timeout rather than cache settings.
+ * <p/>
+ * The file should not be modified by other connections while the queue is running, because such changes are
+ * overwritten by the next persist.
+ */
+public class SQLiteReplicaQueue extends SQLiteQueue {
+  /**
+   * Default interval between persists, in milliseconds.
+   */
+  public static final long DEFAULT_PERSIST_INTERVAL = 5000;
+
+  private volatile long myPersistInterval = DEFAULT_PERSIST_INTERVAL;
+
+  /**
+   * Connection to the database file, used to load and persist the replica. <p/><i>confined to the queue thread</i>
+   */
+  private SQLiteConnection myFileConnection;
+
+  /**
+   * Total changes and schema version of the replica when it was last loaded or persisted. <p/><i>confined</i>
+   */
+  private int myPersistedChanges;
+  private int myPersistedSchema;
+
+  /**
+   * The value of System.currentTimeMillis() when the next periodic persist is due. <p/><i>confined</i>
+   */
+  private long myNextPersistTime;
+
+  private volatile long myPersistCount;
+  private volatile long myLastPersistTime;
+
+  /**
+   * Constructs the queue. The queue must be started in order for jobs to be executed.
+   *
+   * @param databaseFile database file to replicate, created if it does not exist
+   */
+  public SQLiteReplicaQueue(File databaseFile) {
+    super(checkFile(databaseFile));
+  }
+
+  /**
+   * Constructs the queue and allows to specify a factory for the queue thread.
+   *
+   * @param databaseFile database file to replicate, created if it does not exist
+   * @param threadFactory the factory for thread(s), cannot be null
+   */
+  public SQLiteReplicaQueue(File databaseFile, ThreadFactory threadFactory) {
+    super(checkFile(databaseFile), threadFactory);
+  }
+
+  private static File checkFile(File databaseFile) {
+    if (databaseFile == null)
+      throw new NullPointerException("databaseFile");
+    return databaseFile;
+  }
+
+  public SQLiteReplicaQueue start() {
+    return (SQLiteReplicaQueue) super.start();
+  }
+
+  public String toString() {
+    return "SQLiteReplicaQueue[" + getDatabaseFile().getName() + "]";
+  }
+
+  /**
+   * Sets the interval between periodic persists. Changes made by jobs reach the file at most this much time later.
+   *
+   * @param millis interval in milliseconds, or 0 to persist only on demand and when the queue stops
+   * @return this queue
+   */
+  public SQLiteReplicaQueue setPersistInterval(long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("interval " + millis);
+    myPersistInterval = millis;
+    return this;
+  }
+
+  /**
+   * @return the interval between periodic persists in milliseconds, 0 if there are no periodic persists
+   */
+  public long getPersistInterval() {
+    return myPersistInterval;
+  }
+
+  /**
+   * Schedules persisting the replica to the file. The job is executed in order with other jobs, so it persists
+   * all changes made by jobs queued before it.
+   *
+   * @return the job, which results in true if the file was written, or false if there were no changes
+   */
+  public SQLiteJob<Boolean> persist() {
+    return execute(new SQLiteJob<Boolean>() {
+      protected Boolean job(SQLiteConnection connection) throws Throwable {
+        return persistIfChanged(connection);
+      }
+    });
+  }
+
+  /**
+   * @return the number of times the replica was written to the file
+   */
+  public long getPersistCount() {
+    return myPersistCount;
+  }
+
+  /**
+   * @return the time of the last write of the replica to the file, or 0 if it has not been written
+   */
+  public long getLastPersistTime() {
+    return myLastPersistTime;
+  }
+
+  /**
+   * Opens the database file, and loads it into a new in-memory database.
+   *
+   * @return a connection to the in-memory replica
+   * @throws SQLiteException if the file cannot be opened or loaded
+   */
+  protected SQLiteConnection openConnection() throws SQLiteException {
+    SQLiteConnection file = new SQLiteConnection(getDatabaseFile());
+    file.setConfig(getConnectionConfig());
+    SQLiteConnection memory = new SQLiteConnection();
+    boolean loaded = false;
+    try {
+      file.open(true);
+      memory.open(true);
+      long time = System.currentTimeMillis();
+      // an in-memory database cannot change page size during backup, so it is set while the database is empty
+      memory.exec("PRAGMA page_size = " + pragmaInt(file, "PRAGMA page_size"));
+      copy(file, memory);
+      if (Internal.isFineLogging())
+        Internal.logFine(this, "loaded in " + (System.currentTimeMillis() - time) + "ms");
+      loaded = true;
+    } catch (SQLiteException e) {
+      Internal.log(Level.WARNING, this, "cannot load " + getDatabaseFile(), e);
+      throw e;
+    } finally {
+      if (!loaded) {
+        memory.dispose();
+        file.dispose();
+      }
+    }
+    myFileConnection = file;
+    myPersistedChanges = memory.getTotalChanges();
+    myPersistedSchema = pragmaInt(memory, "PRAGMA schema_version");
+    myNextPersistTime = System.currentTimeMillis() + myPersistInterval;
+    return memory;
+  }
+
+  /**
+   * Persists the replica and closes both the replica and the connection to the file.
+   *
+   * @param connection the connection to the replica
+   */
+  protected void disposeConnection(SQLiteConnection connection) {
+    SQLiteConnection file = myFileConnection;
+    if (connection != null && file != null) {
+      try {
+        if (!connection.getAutoCommit()) {
+          Internal.logWarn(this, "rolling back unfinished transaction before persisting");
+          connection.exec("ROLLBACK");
+        }
+        persistIfChanged(connection);
+      } catch (SQLiteException e) {
+        Internal.log(Level.SEVERE, this, "cannot persist replica, changes are lost", e);
+      }
+    }
+    myFileConnection = null;
+    super.disposeConnection(connection);
+    if (file != null)
+      super.disposeConnection(file);
+  }
+
+  protected boolean isMaintenanceDue() {
+    long interval = myPersistInterval;
+    return super.isMaintenanceDue() || (interval > 0 && System.currentTimeMillis() >= myNextPersistTime);
+  }
+
+  protected void maintain(SQLiteConnection connection) throws Throwable {
+    super.maintain(connection);
+    long interval = myPersistInterval;
+    if (interval <= 0 || System.currentTimeMillis() < myNextPersistTime)
+      return;
+    myNextPersistTime = System.currentTimeMillis() + interval;
+    if (!connection.getAutoCommit()) {
+      // a job has left a transaction open, its changes are persisted when it is finished
+      return;
+    }
+    try {
+      persistIfChanged(connection);
+    } catch (SQLiteBusyException e) {
+      Internal.logFine(this, "database file is busy, will persist later");
+    } catch (SQLiteException e) {
+      Internal.log(Level.WARNING, this, "cannot persist replica", e);
+    }
+  }
+
+  boolean persistIfChanged(SQLiteConnection memory) throws SQLiteException {
+    SQLiteConnection file = myFileConnection;
+    if (file == null)
+      throw new SQLiteException(SQLiteConstants.WRAPPER_NOT_OPENED, "replica is not loaded");
+    int changes = memory.getTotalChanges();
+    int schema = pragmaInt(memory, "PRAGMA schema_version");
+    if (changes == myPersistedChanges && schema == myPersistedSchema)
+      return false;
+    long time = System.currentTimeMillis();
+    copy(memory, file);
+    myPersistedChanges = changes;
+    myPersistedSchema = schema;
+    myPersistCount++;
+    myLastPersistTime = System.currentTimeMillis();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "persisted in " + (myLastPersistTime - time) + "ms");
+    return true;
+  }
+
+  private static void copy(SQLiteConnection source, SQLiteConnection destination) throws SQLiteException {
+    SQLiteBackup backup = source.initializeBackup("main", destination, "main");
+    try {
+      backup.backupStep(-1);
+    } finally {
+      backup.dispose(false);
+    }
+  }
+
+  private static int pragmaInt(SQLiteConnection connection, String sql) throws SQLiteException {
+    SQLiteStatement st = connection.prepare(sql, false);
+    try {
+      return st.step() ? st.columnInt(0) : 0;
+    } finally {
+      st.dispose();
+    }
+  }
+}
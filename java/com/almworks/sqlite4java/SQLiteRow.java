@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteRow is a reusable holder for the values of the current row of a statement. It is filled by
+ * {@link SQLiteStatement#loadRow} with a single native call, which reads the types of all columns and the values of
+ * numeric columns into primitive arrays. Text and BLOB values are read from the statement only when requested.
+ * <p/>
+ * Use a single instance of SQLiteRow for the whole result set to avoid allocating and boxing values for every row:
+ * <pre>
+ * SQLiteRow row = new SQLiteRow();
+ * while (statement.step()) {
+ *   statement.loadRow(row);
+ *   for (int i = 0; i &lt; row.getColumnCount(); i++) {
+ *     switch (row.getType(i)) {
+ *       case SQLiteConstants.SQLITE_INTEGER: out.writeLong(row.getLong(i)); break;
+ *       ...
+ *     }
+ *   }
+ * }
+ * </pre>
+ * <p/>
+ * The values are valid until the next call to step, reset or dispose of the statement. After that, numeric values
+ * remain readable, but text and BLOB values cannot be requested anymore.
+ * <p/>
+ * This class is not thread-safe; it is supposed to be used in the thread confined to the statement's connection.
+ */
+public final class SQLiteRow {
+  private int[] myTypes = new int[0];
+  private long[] myLongs = new long[0];
+  private double[] myDoubles = new double[0];
+  private int myColumnCount;
+  private SQLiteStatement myStatement;
+  private int myRowVersion;
+
+  /**
+   * Creates an empty row. Storage is allocated when the row is first loaded and reused afterwards.
+   */
+  public SQLiteRow() {
+  }
+
+  void load(SQLiteStatement statement, SWIGTYPE_p_sqlite3_stmt handle, int columnCount, int rowVersion) throws SQLiteException {
+    if (myTypes.length < columnCount) {
+      myTypes = new int[columnCount];
+      myLongs = new long[columnCount];
+      myDoubles = new double[columnCount];
+    }
+    myStatement = null;
+    myColumnCount = 0;
+    int rc = _SQLiteManual.wrapper_load_row(handle, columnCount, myTypes, myLongs, myDoubles);
+    if (rc != SQLITE_OK)
+      throw new SQLiteException(rc, "loadRow()");
+    myStatement = statement;
+    myColumnCount = columnCount;
+    myRowVersion = rowVersion;
+  }
+
+  /**
+   * @return the number of columns in the loaded row, or 0 if the row has not been loaded
+   */
+  public int getColumnCount() {
+    return myColumnCount;
+  }
+
+  /**
+   * @param column the index of the column, starting with 0
+   * @return type of the value, one of SQLITE_INTEGER, SQLITE_FLOAT, SQLITE_TEXT, SQLITE_BLOB or SQLITE_NULL
+   * @see SQLiteStatement#columnType
+   */
+  public int getType(int column) {
+    checkColumn(column);
+    return myTypes[column];
+  }
+
+  /**
+   * @param column the index of the column, starting with 0
+   * @return true if the value is NULL
+   */
+  public boolean isNull(int column) {
+    return getType(column) == SQLITE_NULL;
+  }
+
+  /**
+   * Returns the value as long. Text and BLOB values are converted by SQLite, which requires that the row
+   * is still current.
+   *
+   * @param column the index of the column, starting with 0
+   * @return a long value, or value converted to long, or 0L if value is NULL
+   * @throws SQLiteException if the value has to be converted, and the statement has moved to another row
+   * @see SQLiteStatement#columnLong
+   */
+  public long getLong(int column) throws SQLiteException {
+    switch (getType(column)) {
+      case SQLITE_INTEGER:
+        return myLongs[column];
+      case SQLITE_FLOAT:
+        return (long) myDoubles[column];
+      case SQLITE_NULL:
+        return 0L;
+      default:
+        return statement().columnLong(column);
+    }
+  }
+
+  /**
+   * @param column the index of the column, starting with 0
+   * @return an int value, or value converted to int, or 0 if value is NULL
+   * @throws SQLiteException if the value has to be converted, and the statement has moved to another row
+   * @see SQLiteStatement#columnInt
+   */
+  public int getInt(int column) throws SQLiteException {
+    switch (getType(column)) {
+      case SQLITE_INTEGER:
+      case SQLITE_FLOAT:
+      case SQLITE_NULL:
+        return (int) getLong(column);
+      default:
+        return statement().columnInt(column);
+    }
+  }
+
+  /**
+   * @param column the index of the column, starting with 0
+   * @return a double value, or value converted to double, or 0.0 if value is NULL
+   * @throws SQLiteException if the value has to be converted, and the statement has moved to another row
+   * @see SQLiteStatement#columnDouble
+   */
+  public double getDouble(int column) throws SQLiteException {
+    switch (getType(column)) {
+      case SQLITE_INTEGER:
+        return (double) myLongs[column];
+      case SQLITE_FLOAT:
+        return myDoubles[column];
+      case SQLITE_NULL:
+        return 0.0;
+      default:
+        return statement().columnDouble(column);
+    }
+  }
+
+  /**
+   * Reads text value from the statement. The row must still be current.
+   *
+   * @param column the index of the column, starting with 0
+   * @return a String value or null if database value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the statement has moved to another row
+   * @see SQLiteStatement#columnString
+   */
+  public String getString(int column) throws SQLiteException {
+    if (isNull(column))
+      return null;
+    return statement().columnString(column);
+  }
+
+  /**
+   * Reads BLOB value from the statement. The row must still be current.
+   *
+   * @param column the index of the column, starting with 0
+   * @return a byte array with the value, or null if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the statement has moved to another row
+   * @see SQLiteStatement#columnBlob
+   */
+  public byte[] getBlob(int column) throws SQLiteException {
+    if (isNull(column))
+      return null;
+    return statement().columnBlob(column);
+  }
+
+  /**
+   * Returns the value as an object, in the same way as {@link SQLiteStatement#columnValue} does. Numeric values
+   * are boxed, so prefer typed getters in performance-critical code.
+   *
+   * @param column the index of the column, starting with 0
+   * @return an object containing the value
+   * @throws SQLiteException if SQLite returns an error, or if the statement has moved to another row
+   */
+  public Object getValue(int column) throws SQLiteException {
+    int type = getType(column);
+    switch (type) {
+      case SQLITE_NULL:
+        return null;
+      case SQLITE_FLOAT:
+        return myDoubles[column];
+      case SQLITE_INTEGER:
+        long value = myLongs[column];
+        if (value == (int) value) {
+          return (int) value;
+        } else {
+          return value;
+        }
+      case SQLITE_TEXT:
+        return getString(column);
+      case SQLITE_BLOB:
+        return getBlob(column);
+      default:
+        Internal.recoverableError(this, "value type " + type + " not yet supported", true);
+        return null;
+    }
+  }
+
+  private void checkColumn(int column) {
+    if (column < 0 || column >= myColumnCount)
+      throw new IndexOutOfBoundsException("column " + column + " of " + myColumnCount);
+  }
+
+  private SQLiteStatement statement() throws SQLiteException {
+    SQLiteStatement statement = myStatement;
+    if (statement == null || !statement.isRowCurrent(myRowVersion))
+      throw new SQLiteException(WRAPPER_NO_ROW, "row is no longer current");
+    return statement;
+  }
+}
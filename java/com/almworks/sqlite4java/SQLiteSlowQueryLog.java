@@ -0,0 +1,243 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SQLiteSlowQueryLog keeps the most recent statements that took longer than a threshold to run, together
+ * with the information needed to understand why: a summary of bound parameters, statement counters and
+ * the query plan that SQLite has chosen.
+ * <p/>
+ * Install the log with {@link SQLiteConnection#setSlowQueryLog}. The run time of a statement is the sum of
+ * time spent in {@link SQLiteStatement#step}, {@link SQLiteStatement#loadInts} and
+ * {@link SQLiteStatement#loadLongs} between resets; the statement is checked against the threshold when it is
+ * reset or disposed. {@link SQLiteConnection#exec} calls are checked as well, but their entries have neither
+ * counters nor query plan.
+ * <p/>
+ * The output of <code>EXPLAIN QUERY PLAN</code> is captured on the connection that ran the statement, once for
+ * every distinct SQL, and cached. Only the types and sizes of bound values are recorded, never the values.
+ * <p/>
+ * The log keeps a fixed number of entries; when it is full, the oldest entry is overwritten.
+ * This class is <strong>thread-safe</strong>, so a single log can be shared by several connections.
+ */
+public final class SQLiteSlowQueryLog {
+  private static final int MIN_PLAN_CACHE_SIZE = 256;
+
+  private final long myThresholdNanos;
+  private final Entry[] myEntries;
+  private final ConcurrentMap<String, String> myPlans = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Index of the slot for the next entry, protected by myEntries.
+   */
+  private int myNext;
+
+  /**
+   * Total number of recorded entries, including overwritten, protected by myEntries.
+   */
+  private long myRecordedCount;
+
+  /**
+   * @param thresholdMillis statements that run at least this long are recorded
+   * @param capacity the maximum number of entries kept
+   */
+  public SQLiteSlowQueryLog(long thresholdMillis, int capacity) {
+    if (thresholdMillis < 0)
+      throw new IllegalArgumentException("thresholdMillis " + thresholdMillis);
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity " + capacity);
+    myThresholdNanos = thresholdMillis * 1000000L;
+    myEntries = new Entry[capacity];
+  }
+
+  /**
+   * @return the threshold in milliseconds
+   */
+  public long getThresholdMillis() {
+    return myThresholdNanos / 1000000L;
+  }
+
+  /**
+   * @return the maximum number of entries kept
+   */
+  public int getCapacity() {
+    return myEntries.length;
+  }
+
+  /**
+   * @return the number of entries recorded since the log was created or cleared, including the overwritten ones
+   */
+  public long getRecordedCount() {
+    synchronized (myEntries) {
+      return myRecordedCount;
+    }
+  }
+
+  /**
+   * @return the entries currently kept in the log, from the oldest to the newest
+   */
+  public List<Entry> getEntries() {
+    synchronized (myEntries) {
+      int capacity = myEntries.length;
+      int count = (int) Math.min(myRecordedCount, capacity);
+      List<Entry> r = new ArrayList<Entry>(count);
+      for (int i = 0; i < count; i++) {
+        r.add(myEntries[(myNext - count + i + capacity) % capacity]);
+      }
+      return r;
+    }
+  }
+
+  /**
+   * Removes all entries and cached query plans.
+   */
+  public void clear() {
+    synchronized (myEntries) {
+      for (int i = 0; i < myEntries.length; i++)
+        myEntries[i] = null;
+      myNext = 0;
+      myRecordedCount = 0;
+    }
+    myPlans.clear();
+  }
+
+  long getThresholdNanos() {
+    return myThresholdNanos;
+  }
+
+  /**
+   * Records a statement run.
+   *
+   * @param sql the SQL of the statement
+   * @param bindings the summary of bindings, or null
+   * @param nanos the run time
+   * @param status statement counters in the order of {@link SQLiteProfiler#STATUS_COUNTERS}, or null; copied
+   * @param controller controller used to get the query plan, or null if the plan should not be captured
+   */
+  void record(SQLParts sql, String bindings, long nanos, int[] status, SQLiteController controller) {
+    String sqlString = sql.toString();
+    String plan = null;
+    if (controller != null) {
+      plan = myPlans.get(sqlString);
+      if (plan == null) {
+        plan = controller.explainQueryPlan(sqlString);
+        if (plan != null) {
+          if (myPlans.size() >= Math.max(MIN_PLAN_CACHE_SIZE, myEntries.length * 4))
+            myPlans.clear();
+          myPlans.put(sqlString, plan);
+        }
+      }
+    }
+    Entry entry = new Entry(sqlString, bindings, nanos, System.currentTimeMillis(),
+      status == null ? null : status.clone(), plan);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, entry.toString());
+    synchronized (myEntries) {
+      myEntries[myNext] = entry;
+      myNext = (myNext + 1) % myEntries.length;
+      myRecordedCount++;
+    }
+  }
+
+
+  /**
+   * A single slow statement run. Instances are immutable.
+   */
+  public static final class Entry {
+    private final String mySQL;
+    private final String myBindings;
+    private final long myNanos;
+    private final long myTime;
+    private final int[] myStatus;
+    private final String myQueryPlan;
+
+    Entry(String sql, String bindings, long nanos, long time, int[] status, String queryPlan) {
+      mySQL = sql;
+      myBindings = bindings;
+      myNanos = nanos;
+      myTime = time;
+      myStatus = status;
+      myQueryPlan = queryPlan;
+    }
+
+    /**
+     * @return the SQL of the statement
+     */
+    public String getSQL() {
+      return mySQL;
+    }
+
+    /**
+     * @return types and sizes of bound parameters, for example <code>(INTEGER, TEXT[12], NULL)</code>, or null
+     * if not available; sizes of TEXT values are in UTF-8 bytes, like sizes of BLOB values
+     */
+    public String getBindings() {
+      return myBindings;
+    }
+
+    /**
+     * @return the run time of the statement, in nanoseconds
+     */
+    public long getElapsedNanos() {
+      return myNanos;
+    }
+
+    /**
+     * @return the time when the entry was recorded, as returned by <code>System.currentTimeMillis()</code>
+     */
+    public long getTime() {
+      return myTime;
+    }
+
+    /**
+     * Returns the value of a statement counter for this run.
+     *
+     * @param op the counter, one of <code>SQLITE_STMTSTATUS_*</code> constants except for FILTER_HIT and FILTER_MISS
+     * @return the value of the counter, or -1 if not available
+     * @see SQLiteStatement#getStatus
+     */
+    public int getStatus(int op) {
+      if (myStatus == null)
+        return -1;
+      for (int i = 0; i < SQLiteProfiler.STATUS_COUNTERS.length; i++) {
+        if (SQLiteProfiler.STATUS_COUNTERS[i] == op)
+          return myStatus[i];
+      }
+      return -1;
+    }
+
+    /**
+     * @return the output of EXPLAIN QUERY PLAN for the statement, one line per plan step, indented to show the
+     * tree structure; or null if not available
+     */
+    public String getQueryPlan() {
+      return myQueryPlan;
+    }
+
+    public String toString() {
+      StringBuilder b = new StringBuilder();
+      b.append("slow query (").append(myNanos / 1000000L).append("ms) [").append(mySQL).append(']');
+      if (myBindings != null)
+        b.append(' ').append(myBindings);
+      return b.toString();
+    }
+  }
+}
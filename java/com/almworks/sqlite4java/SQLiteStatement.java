@@ -19,9 +19,17 @@ package com.almworks.sqlite4java;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import static com.almworks.sqlite4java.SQLiteConstants.*;
@@ -60,6 +68,15 @@ public final class SQLiteStatement {
    */
   public static final SQLiteStatement DISPOSED = new SQLiteStatement();
 
+  /**
+   * Size of additional native memory segments allocated by the bind stream when the initial buffer is exhausted.
+   */
+  private static final int BIND_STREAM_SEGMENT_SIZE = 1 << 16;
+
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   /**
    * The SQL of this statement.
    */
@@ -70,6 +87,27 @@ public final class SQLiteStatement {
    */
   private SQLiteProfiler myProfiler;
 
+  /**
+   * Buffer for statement counters that are reported to the profiler, allocated when first needed.
+   */
+  private int[] myStatus;
+
+  /**
+   * If set, runs longer than the log's threshold are recorded.
+   */
+  private SQLiteSlowQueryLog mySlowQueryLog;
+
+  /**
+   * Time spent in step() and load*() since the last reset, measured when timing is needed.
+   */
+  private long myRunNanos;
+
+  /**
+   * Types and lengths of bound values, indexed by parameter index - 1. Recorded only when there's a slow query log.
+   */
+  private int[] myBindTypes;
+  private int[] myBindLengths;
+
   /**
    * The controller that handles connection-level operations. Initially it is set
    */
@@ -105,7 +143,31 @@ public final class SQLiteStatement {
    * All currently active bind streams.
    */
   private List<BindStream> myBindStreams;
-  private List<ColumnStream> myColumnStreams;
+  /**
+   * All currently open column streams and readers.
+   */
+  private List<ColumnView> myColumnStreams;
+
+  /**
+   * The column whose value a {@link SQLiteBufferVisitor} is given a view of, or -1; until the visitor returns,
+   * the statement must not move to another row and the value must not be converted to text.
+   */
+  private int myVisitingColumn = -1;
+
+  /**
+   * Decoder used by {@link #columnChars}, created at first need.
+   */
+  private CharsetDecoder myUtf8Decoder;
+
+  /**
+   * If set, text values returned by {@link #columnString} are looked up in this cache.
+   */
+  private SQLiteStringCache myStringCache;
+
+  /**
+   * Incremented each time the current row is invalidated, to let {@link SQLiteRow} detect stale values.
+   */
+  private int myRowVersion;
 
   /**
    * Contains progress handler instance - only when step() is in progress. Used to cancel the execution.
@@ -165,6 +227,32 @@ public final class SQLiteStatement {
     return mySqlParts;
   }
 
+  void setSlowQueryLog(SQLiteSlowQueryLog log) {
+    mySlowQueryLog = log;
+  }
+
+  /**
+   * Installs a cache of String values for {@link #columnString}. Repeated text values found in the cache are returned
+   * as the same String instance, which avoids allocating a new String for every row of low-cardinality columns.
+   * <p/>
+   * By default, the statement uses the cache set for the connection with {@link SQLiteConnection#setStringCache}
+   * at the time the statement was prepared.
+   *
+   * @param cache the cache, or null to create a new String for every value
+   * @return this statement
+   */
+  public SQLiteStatement setStringCache(SQLiteStringCache cache) {
+    myStringCache = cache;
+    return this;
+  }
+
+  /**
+   * @return the cache used by {@link #columnString}, or null
+   */
+  public SQLiteStringCache getStringCache() {
+    return myStringCache;
+  }
+
   /**
    * Disposes this statement and frees allocated resources. If the statement's handle is cached,
    * it is returned to the connection's cache and can be reused by later calls to <code>prepare</code>
@@ -179,11 +267,14 @@ public final class SQLiteStatement {
       return;
     try {
       myController.validate();
+      checkNotVisiting();
     } catch (SQLiteException e) {
       Internal.recoverableError(this, "invalid dispose: " + e, true);
       return;
     }
     Internal.logFine(this, "disposing");
+    if (myStepped)
+      reportRun(myHandle);
     myController.dispose(this);
     // clear may be called from dispose() too
     clear();
@@ -203,14 +294,16 @@ public final class SQLiteStatement {
    */
   public SQLiteStatement reset(boolean clearBindings) throws SQLiteException {
     myController.validate();
+    checkNotVisiting();
     boolean fineLogging = Internal.isFineLogging();
     if (fineLogging)
       Internal.logFine(this, "reset(" + clearBindings + ")");
     SWIGTYPE_p_sqlite3_stmt handle = handle();
-    clearColumnStreams();
+    invalidateRow();
     if (myStepped) {
       if (fineLogging)
         Internal.logFine(this, "resetting");
+      reportRun(handle);
       _SQLiteSwigged.sqlite3_reset(handle);
     }
     myHasRow = false;
@@ -222,6 +315,7 @@ public final class SQLiteStatement {
       int rc = _SQLiteSwigged.sqlite3_clear_bindings(handle);
       myController.throwResult(rc, "reset.clearBindings()", this);
       clearBindStreams(false);
+      clearRecordedBindings();
       myHasBindings = false;
     }
     synchronized (this) {
@@ -256,6 +350,7 @@ public final class SQLiteStatement {
       int rc = _SQLiteSwigged.sqlite3_clear_bindings(handle());
       myController.throwResult(rc, "clearBindings()", this);
       clearBindStreams(false);
+      clearRecordedBindings();
     }
     myHasBindings = false;
     return this;
@@ -284,6 +379,7 @@ public final class SQLiteStatement {
    */
   public boolean step() throws SQLiteException {
     myController.validate();
+    checkNotVisiting();
     if (Internal.isFineLogging())
       Internal.logFine(this, "step");
     SWIGTYPE_p_sqlite3_stmt handle = handle();
@@ -291,10 +387,18 @@ public final class SQLiteStatement {
     ProgressHandler ph = prepareStep();
     try {
       SQLiteProfiler profiler = myProfiler;
-      long from = profiler == null ? 0 : System.nanoTime();
+      SQLiteEventListener listener = SQLite.getEventListener();
+      boolean timed = profiler != null || listener != null || mySlowQueryLog != null;
+      long from = timed ? System.nanoTime() : 0;
       rc = _SQLiteSwigged.sqlite3_step(handle);
-      if (profiler != null)
-        profiler.reportStep(myStepped, mySqlParts.toString(), from, System.nanoTime(), rc);
+      if (timed) {
+        long to = System.nanoTime();
+        if (profiler != null)
+          profiler.reportStep(myStepped, mySqlParts, from, to, rc);
+        if (listener != null)
+          listener.stepped(mySqlParts, to - from, rc, rc == SQLITE_ROW ? 1 : 0);
+        myRunNanos += to - from;
+      }
     } finally {
       finalizeStep(ph, "step");
     }
@@ -420,10 +524,17 @@ public final class SQLiteStatement {
     try {
       _SQLiteManual manual = myController.getSQLiteManual();
       SQLiteProfiler profiler = myProfiler;
-      long from = profiler == null ? 0 : System.nanoTime();
+      SQLiteEventListener listener = SQLite.getEventListener();
+      boolean timed = profiler != null || listener != null || mySlowQueryLog != null;
+      long from = timed ? System.nanoTime() : 0;
       r = manual.wrapper_load_ints(handle, column, buffer, offset, length);
       rc = manual.getLastReturnCode();
-      if (profiler != null) profiler.reportLoadInts(myStepped, mySqlParts.toString(), from, System.nanoTime(), rc, r);
+      if (timed) {
+        long to = System.nanoTime();
+        if (profiler != null) profiler.reportLoadInts(myStepped, mySqlParts, from, to, rc, r);
+        if (listener != null) listener.stepped(mySqlParts, to - from, rc, r);
+        myRunNanos += to - from;
+      }
     } finally {
       finalizeStep(ph, "loadInts");
     }
@@ -480,10 +591,17 @@ public final class SQLiteStatement {
     try {
       _SQLiteManual manual = myController.getSQLiteManual();
       SQLiteProfiler profiler = myProfiler;
-      long from = profiler == null ? 0 : System.nanoTime();
+      SQLiteEventListener listener = SQLite.getEventListener();
+      boolean timed = profiler != null || listener != null || mySlowQueryLog != null;
+      long from = timed ? System.nanoTime() : 0;
       r = manual.wrapper_load_longs(handle, column, buffer, offset, length);
       rc = manual.getLastReturnCode();
-      if (profiler != null) profiler.reportLoadLongs(myStepped, mySqlParts.toString(), from, System.nanoTime(), rc, r);
+      if (timed) {
+        long to = System.nanoTime();
+        if (profiler != null) profiler.reportLoadLongs(myStepped, mySqlParts, from, to, rc, r);
+        if (listener != null) listener.stepped(mySqlParts, to - from, rc, r);
+        myRunNanos += to - from;
+      }
     } finally {
       finalizeStep(ph, "loadLongs");
     }
@@ -557,6 +675,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteSwigged.sqlite3_bind_double(handle(), index, value);
     myController.throwResult(rc, "bind(double)", this);
     myHasBindings = true;
+    recordBinding(index, SQLITE_FLOAT, 0);
     return this;
   }
 
@@ -591,6 +710,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteSwigged.sqlite3_bind_int(handle(), index, value);
     myController.throwResult(rc, "bind(int)", this);
     myHasBindings = true;
+    recordBinding(index, SQLITE_INTEGER, 0);
     return this;
   }
 
@@ -625,6 +745,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteSwigged.sqlite3_bind_int64(handle(), index, value);
     myController.throwResult(rc, "bind(long)", this);
     myHasBindings = true;
+    recordBinding(index, SQLITE_INTEGER, 0);
     return this;
   }
 
@@ -667,6 +788,8 @@ public final class SQLiteStatement {
     int rc = _SQLiteManual.sqlite3_bind_text(handle(), index, value);
     myController.throwResult(rc, "bind(String)", this);
     myHasBindings = true;
+    if (mySlowQueryLog != null)
+      recordBinding(index, SQLITE_TEXT, utf8Length(value));
     return this;
   }
 
@@ -738,6 +861,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteManual.sqlite3_bind_blob(handle(), index, value, offset, length);
     myController.throwResult(rc, "bind(blob)", this);
     myHasBindings = true;
+    recordBinding(index, SQLITE_BLOB, length);
     return this;
   }
 
@@ -779,6 +903,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteSwigged.sqlite3_bind_zeroblob(handle(), index, length);
     myController.throwResult(rc, "bindZeroBlob()", this);
     myHasBindings = true;
+    recordBinding(index, SQLITE_BLOB, length);
     return this;
   }
 
@@ -812,6 +937,7 @@ public final class SQLiteStatement {
     int rc = _SQLiteSwigged.sqlite3_bind_null(handle(), index);
     myController.throwResult(rc, "bind(null)", this);
     // specifically does not set myHasBindings to true
+    recordBinding(index, SQLITE_NULL, 0);
     return this;
   }
 
@@ -872,9 +998,14 @@ public final class SQLiteStatement {
    * After the application is done writing to the parameter stream, it should be closed.
    * <p/>
    * If statement is executed before the stream is closed, the value will not be set for the parameter.
+   * <p/>
+   * The data is accumulated in native memory. If the exact length of the value is known, pass it as
+   * <code>bufferSize</code> &mdash; in that case only one buffer is allocated and the value is bound without copying.
+   * Otherwise, when the buffer is exhausted, additional fixed-size segments are allocated, and all segments
+   * are gathered into a single value once when the stream is closed.
    *
    * @param index      the index of the boundable parameter, starting with 1
-   * @param bufferSize the number of bytes to be allocated for the buffer (the buffer will grow as needed)
+   * @param bufferSize the number of bytes to be allocated for the first buffer (more segments are added as needed)
    * @return stream to receive data for the BLOB parameter
    * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
    * @see <a href="http://www.sqlite.org/c3ref/bind_blob.html">sqlite3_bind_blob</a>
@@ -892,6 +1023,7 @@ public final class SQLiteStatement {
       }
       list.add(out);
       myHasBindings = true;
+      recordBinding(index, SQLITE_BLOB, -1);
       return out;
     } catch (IOException e) {
       throw new SQLiteException(WRAPPER_WEIRD, "cannot allocate buffer", e);
@@ -934,8 +1066,11 @@ public final class SQLiteStatement {
     checkColumn(column, handle, true);
     if (Internal.isFineLogging())
       Internal.logFine(this, "columnString(" + column + ")");
+    checkNotVisiting(column);
+    closeColumnStreams(column, false);
     _SQLiteManual sqlite = myController.getSQLiteManual();
-    String result = sqlite.sqlite3_column_text(handle, column);
+    SQLiteStringCache cache = myStringCache;
+    String result = cache == null ? sqlite.sqlite3_column_text(handle, column) : cache.columnString(sqlite, handle, column);
     myController.throwResult(sqlite.getLastReturnCode(), "columnString()", this);
     if (Internal.isFineLogging()) {
       if (result == null) {
@@ -949,6 +1084,134 @@ public final class SQLiteStatement {
     return result;
   }
 
+  /**
+   * Copies a text column value, encoded in UTF-8, into the specified buffer after step has returned a row
+   * of the result set.
+   * <p/>
+   * Use this method to forward or hash text values without creating a String. The value is written starting at
+   * the current position of the buffer, and the position is advanced by the number of bytes copied. If the value
+   * is longer than the remaining space in the buffer, only <code>dst.remaining()</code> bytes are copied, so
+   * the caller should compare the result with that number.
+   *
+   * @param column the index of the column, starting with 0
+   * @param dst buffer to copy the value into
+   * @return the length of the value in bytes, or -1 if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_text</a>
+   */
+  public int columnUtf8(int column, ByteBuffer dst) throws SQLiteException {
+    if (dst == null)
+      throw new NullPointerException();
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "columnUtf8(" + column + "," + dst + ")");
+    ByteBuffer buffer = getColumnTextBuffer(column, handle, "columnUtf8");
+    if (buffer == null)
+      return -1;
+    int length = buffer.remaining();
+    if (length > dst.remaining())
+      buffer.limit(buffer.position() + dst.remaining());
+    dst.put(buffer);
+    return length;
+  }
+
+  /**
+   * Copies a text column value into the specified array after step has returned a row of the result set.
+   * <p/>
+   * Use this method instead of {@link #columnString} to avoid creating a String for every value.
+   * If the value is longer than the space available in the array, only the first
+   * <code>dst.length - off</code> characters are copied, so the caller should compare the result with that number.
+   *
+   * @param column the index of the column, starting with 0
+   * @param dst array to copy the value into
+   * @param off offset in the array where the first character of the value is placed
+   * @return the length of the value in characters, or -1 if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_text</a>
+   */
+  public int columnChars(int column, char[] dst, int off) throws SQLiteException {
+    if (dst == null)
+      throw new NullPointerException();
+    if (off < 0 || off > dst.length)
+      throw new ArrayIndexOutOfBoundsException(off);
+    return columnChars(column, CharBuffer.wrap(dst, off, dst.length - off));
+  }
+
+  /**
+   * Copies a text column value into the specified buffer after step has returned a row of the result set.
+   * <p/>
+   * The value is written starting at the current position of the buffer, and the position is advanced by the
+   * number of characters copied. If the value is longer than the remaining space in the buffer, only
+   * the characters that fit are copied, so the caller should compare the result with the number of characters
+   * copied.
+   *
+   * @param column the index of the column, starting with 0
+   * @param dst buffer to copy the value into
+   * @return the length of the value in characters, or -1 if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_text</a>
+   */
+  public int columnChars(int column, CharBuffer dst) throws SQLiteException {
+    if (dst == null)
+      throw new NullPointerException();
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "columnChars(" + column + ")");
+    ByteBuffer buffer = getColumnTextBuffer(column, handle, "columnChars");
+    if (buffer == null)
+      return -1;
+    CharsetDecoder decoder = myUtf8Decoder;
+    if (decoder == null) {
+      myUtf8Decoder = decoder = createUtf8Decoder();
+    } else {
+      decoder.reset();
+    }
+    int start = dst.position();
+    CoderResult result = decoder.decode(buffer, dst, true);
+    int length = dst.position() - start;
+    if (result.isOverflow()) {
+      // count the characters that did not fit
+      CharBuffer rest = CharBuffer.allocate(Math.max(16, Math.min(buffer.remaining(), 1024)));
+      do {
+        rest.clear();
+        result = decoder.decode(buffer, rest, true);
+        length += rest.position();
+      } while (result.isOverflow());
+    }
+    return length;
+  }
+
+  /**
+   * Gets a Reader for a text column value after step has returned a row of the result set. The value is decoded
+   * from UTF-8 incrementally, so huge text values can be processed without creating a String.
+   * <p/>
+   * The reader should be read and closed before next call to step or reset. Otherwise, the reader is automatically
+   * closed, and the following attempts to read from it result in IOException. The reader is also closed when
+   * the same column is read with {@link #columnString} or {@link #columnValue}, which convert the value.
+   *
+   * @param column the index of the column, starting with 0
+   * @return a reader to read value from, or null if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_text</a>
+   */
+  public Reader columnReader(int column) throws SQLiteException {
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "columnReader(" + column + ")");
+    ByteBuffer buffer = getColumnTextBuffer(column, handle, "columnReader");
+    if (buffer == null)
+      return null;
+    ColumnReader in = new ColumnReader(column, buffer);
+    addColumnStream(in);
+    return in;
+  }
+
   /**
    * Gets a column value after step has returned a row of the result set.
    * <p/>
@@ -1045,7 +1308,8 @@ public final class SQLiteStatement {
    * Call this method to retrieve data of type BLOB after {@link #step()} has returned true.
    * <p/>
    * The stream should be read and closed before next call to step or reset. Otherwise, the stream is automatically
-   * closed and disposed, and the following attempts to read from it result in IOException.
+   * closed and disposed, and the following attempts to read from it result in IOException. The stream is also
+   * closed when the same column is read as text, because SQLite may move the value to convert it.
    *
    * @param column the index of the column, starting with 0
    * @return a stream to read value from, or null if the value is NULL
@@ -1063,14 +1327,116 @@ public final class SQLiteStatement {
     myController.throwResult(sqlite.getLastReturnCode(), "columnStream", this);
     if (buffer == null)
       return null;
-    ColumnStream in = new ColumnStream(buffer);
-    List<ColumnStream> table = myColumnStreams;
-    if (table == null)
-      myColumnStreams = table = new ArrayList<ColumnStream>(1);
-    table.add(in);
+    ColumnStream in = new ColumnStream(column, buffer);
+    addColumnStream(in);
     return in;
   }
 
+  /**
+   * Passes a read-only view of a BLOB column value to the visitor, without copying the value, after step has
+   * returned a row of the result set.
+   * <p/>
+   * The buffer given to the visitor is a direct buffer that points into memory owned by SQLite.
+   * <strong>This method is unsafe:</strong> the buffer, and every buffer derived from it, is valid only until
+   * the visitor returns. See {@link SQLiteBufferVisitor} for details. While the visitor runs, the statement cannot
+   * be stepped, reset or disposed, and the visited column cannot be read as text.
+   * <pre>
+   * while (st.step()) {
+   *   st.withColumnBuffer(0, parser);
+   * }
+   * </pre>
+   *
+   * @param column the index of the column, starting with 0
+   * @param visitor the code that reads the value
+   * @return the result of the visitor
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class,
+   * or if the visitor fails
+   * @throws IOException if the visitor fails
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_blob</a>
+   */
+  public <T> T withColumnBuffer(int column, SQLiteBufferVisitor<T> visitor) throws SQLiteException, IOException {
+    if (visitor == null)
+      throw new NullPointerException();
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    checkNotVisiting();
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "withColumnBuffer(" + column + ")");
+    ByteBuffer buffer = getColumnBuffer(column, handle, "withColumnBuffer");
+    if (buffer != null)
+      buffer = buffer.asReadOnlyBuffer();
+    myVisitingColumn = column;
+    try {
+      return visitor.visit(buffer);
+    } finally {
+      myVisitingColumn = -1;
+    }
+  }
+
+  /**
+   * Copies a BLOB column value into the specified array after step has returned a row of the result set.
+   * <p/>
+   * Use this method instead of {@link #columnBlob(int)} to avoid allocating a new array for every row.
+   * If the value is longer than the space available in the array, only the first
+   * <code>dst.length - off</code> bytes are copied, so the caller should compare the result with that number.
+   *
+   * @param column the index of the column, starting with 0
+   * @param dst array to copy the value into
+   * @param off offset in the array where the first byte of the value is placed
+   * @return the length of the value in bytes, or -1 if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_blob</a>
+   */
+  public int columnBlob(int column, byte[] dst, int off) throws SQLiteException {
+    if (dst == null)
+      throw new NullPointerException();
+    if (off < 0 || off > dst.length)
+      throw new ArrayIndexOutOfBoundsException(off);
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "columnBlob(" + column + ",[" + dst.length + "]," + off + ")");
+    ByteBuffer buffer = getColumnBuffer(column, handle, "columnBlob");
+    if (buffer == null)
+      return -1;
+    int length = buffer.remaining();
+    buffer.get(dst, off, Math.min(length, dst.length - off));
+    return length;
+  }
+
+  /**
+   * Copies a BLOB column value into the specified buffer after step has returned a row of the result set.
+   * <p/>
+   * The value is written starting at the current position of the buffer, and the position is advanced by the
+   * number of bytes copied. If the value is longer than the remaining space in the buffer, only
+   * <code>dst.remaining()</code> bytes are copied, so the caller should compare the result with that number.
+   *
+   * @param column the index of the column, starting with 0
+   * @param dst buffer to copy the value into
+   * @return the length of the value in bytes, or -1 if the value is NULL
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/column_blob.html">sqlite3_column_blob</a>
+   */
+  public int columnBlob(int column, ByteBuffer dst) throws SQLiteException {
+    if (dst == null)
+      throw new NullPointerException();
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    checkColumn(column, handle, true);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "columnBlob(" + column + "," + dst + ")");
+    ByteBuffer buffer = getColumnBuffer(column, handle, "columnBlob");
+    if (buffer == null)
+      return -1;
+    int length = buffer.remaining();
+    if (length > dst.remaining())
+      buffer.limit(buffer.position() + dst.remaining());
+    dst.put(buffer);
+    return length;
+  }
+
   /**
    * Checks if the value returned in the given column is null.
    *
@@ -1149,6 +1515,31 @@ public final class SQLiteStatement {
     }
   }
 
+  /**
+   * Loads the current row into a reusable holder after step has returned a row of the result set.
+   * <p/>
+   * Types of all columns and values of numeric columns are read with a single native call, without boxing.
+   * Text and BLOB values are read from the statement only when requested from the row. This method is a faster
+   * alternative to calling {@link #columnValue} for each column.
+   *
+   * @param row the row to fill, or null to create a new one
+   * @return the filled row
+   * @throws SQLiteException if SQLite returns an error, or if the call violates the contract of this class
+   * @see SQLiteRow
+   */
+  public SQLiteRow loadRow(SQLiteRow row) throws SQLiteException {
+    myController.validate();
+    SWIGTYPE_p_sqlite3_stmt handle = handle();
+    if (!myHasRow)
+      throw new SQLiteException(WRAPPER_NO_ROW, null);
+    if (Internal.isFineLogging())
+      Internal.logFine(this, "loadRow()");
+    if (row == null)
+      row = new SQLiteRow();
+    row.load(this, handle, getColumnCount(handle), myRowVersion);
+    return row;
+  }
+
   /**
    * Gets a type of a column after step() has returned a row.
    * <p/>
@@ -1254,6 +1645,26 @@ public final class SQLiteStatement {
     return r;
   }
 
+  /**
+   * Returns the value of a performance counter of this statement, such as the number of full table scan steps,
+   * sort operations or virtual machine steps. Counters that are non-zero for a statement that is run often
+   * point to a missing index.
+   * <p/>
+   * When the statement's connection is profiled, the counters are reset by the profiler each time the
+   * statement is reset or disposed, and accumulated in {@link SQLiteProfiler} for the statement's SQL. In that
+   * case this method shows values for the current run only.
+   *
+   * @param op the counter, one of <code>SQLITE_STMTSTATUS_*</code> constants
+   * @param reset if true, the counter is reset to zero after its value has been read
+   * @return the value of the counter
+   * @throws SQLiteException if the call violates the contract of this class
+   * @see <a href="http://www.sqlite.org/c3ref/stmt_status.html">sqlite3_stmt_status</a>
+   */
+  public int getStatus(int op, boolean reset) throws SQLiteException {
+    myController.validate();
+    return _SQLiteSwigged.sqlite3_stmt_status(handle(), op, reset ? 1 : 0);
+  }
+
   /**
    * Check if the underlying statement is a SELECT.
    *
@@ -1271,7 +1682,7 @@ public final class SQLiteStatement {
    */
   void clear() {
     clearBindStreams(false);
-    clearColumnStreams();
+    invalidateRow();
     myHandle = null;
     myHasRow = false;
     myColumnCount = -1;
@@ -1279,19 +1690,142 @@ public final class SQLiteStatement {
     myStepped = false;
     myController = SQLiteController.getDisposed(myController);
     myProfiler = null;
+    myStringCache = null;
+    mySlowQueryLog = null;
     Internal.logFine(this, "cleared");
   }
 
+  /**
+   * Called when a run of the statement is over. Moves statement counters into the profiler, if there is one,
+   * and records the run in the slow query log if it took too long.
+   */
+  private void reportRun(SWIGTYPE_p_sqlite3_stmt handle) {
+    SQLiteProfiler profiler = myProfiler;
+    SQLiteSlowQueryLog slowQueryLog = mySlowQueryLog;
+    long nanos = myRunNanos;
+    myRunNanos = 0;
+    boolean slow = slowQueryLog != null && nanos >= slowQueryLog.getThresholdNanos();
+    if (profiler == null && !slow)
+      return;
+    int[] status = myStatus;
+    if (status == null)
+      myStatus = status = new int[SQLiteProfiler.STATUS_COUNTERS.length];
+    for (int i = 0; i < status.length; i++) {
+      int op = SQLiteProfiler.STATUS_COUNTERS[i];
+      boolean reset = profiler != null && op != SQLITE_STMTSTATUS_MEMUSED;
+      status[i] = _SQLiteSwigged.sqlite3_stmt_status(handle, op, reset ? 1 : 0);
+    }
+    if (profiler != null)
+      profiler.reportStatus(mySqlParts, status);
+    if (slow)
+      slowQueryLog.record(mySqlParts, getBindingsSummary(handle), nanos, status, myController);
+  }
+
+  private void recordBinding(int index, int type, int length) {
+    if (mySlowQueryLog == null || index <= 0)
+      return;
+    int[] types = myBindTypes;
+    if (types == null || types.length < index) {
+      int size = Math.max(index, types == null ? 8 : types.length * 2);
+      myBindTypes = types = types == null ? new int[size] : Arrays.copyOf(types, size);
+      myBindLengths = myBindLengths == null ? new int[size] : Arrays.copyOf(myBindLengths, size);
+    }
+    types[index - 1] = type;
+    myBindLengths[index - 1] = length;
+  }
+
+  /**
+   * @return the length of the value encoded in UTF-8, in bytes, to report text sizes in the same units as BLOBs
+   */
+  private static int utf8Length(String value) {
+    int length = value.length();
+    int bytes = length;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (Character.isSurrogate(c)) {
+        // a surrogate pair takes 4 bytes, 2 for each of its halves
+        bytes++;
+      } else if (c >= 0x800) {
+        bytes += 2;
+      } else if (c >= 0x80) {
+        bytes++;
+      }
+    }
+    return bytes;
+  }
+
+  private void clearRecordedBindings() {
+    if (myBindTypes != null)
+      Arrays.fill(myBindTypes, 0);
+  }
+
+  /**
+   * @return types and sizes of bound values, as recorded by {@link #recordBinding}
+   */
+  private String getBindingsSummary(SWIGTYPE_p_sqlite3_stmt handle) {
+    int count = _SQLiteSwigged.sqlite3_bind_parameter_count(handle);
+    int[] types = myBindTypes;
+    StringBuilder b = new StringBuilder("(");
+    for (int i = 0; i < count; i++) {
+      if (i > 0)
+        b.append(", ");
+      int type = types != null && i < types.length ? types[i] : 0;
+      int length = myBindLengths != null && i < myBindLengths.length ? myBindLengths[i] : 0;
+      switch (type) {
+        case SQLITE_INTEGER:
+          b.append("INTEGER");
+          break;
+        case SQLITE_FLOAT:
+          b.append("FLOAT");
+          break;
+        case SQLITE_TEXT:
+          b.append("TEXT[").append(length).append(']');
+          break;
+        case SQLITE_BLOB:
+          b.append("BLOB");
+          if (length >= 0)
+            b.append('[').append(length).append(']');
+          break;
+        default:
+          b.append("NULL");
+      }
+    }
+    return b.append(')').toString();
+  }
+
+  private void invalidateRow() {
+    myRowVersion++;
+    clearColumnStreams();
+  }
+
+  boolean isRowCurrent(int rowVersion) {
+    return myHasRow && myHandle != null && rowVersion == myRowVersion;
+  }
+
   private void clearColumnStreams() {
-    List<ColumnStream> table = myColumnStreams;
+    List<ColumnView> table = myColumnStreams;
     if (table != null) {
       myColumnStreams = null;
-      for (ColumnStream stream : table) {
-        try {
-          stream.close();
-        } catch (IOException e) {
-          Internal.logFine(this, e.toString());
-        }
+      for (ColumnView stream : table) {
+        stream.invalidate();
+      }
+    }
+  }
+
+  /**
+   * Closes streams and readers over the column's value before the value is converted by SQLite, because
+   * the conversion frees or moves the memory they read from. When keepText is true, readers of the UTF-8 text
+   * are kept, because the text is not converted again.
+   */
+  private void closeColumnStreams(int column, boolean keepText) {
+    List<ColumnView> table = myColumnStreams;
+    if (table == null)
+      return;
+    for (Iterator<ColumnView> ii = table.iterator(); ii.hasNext(); ) {
+      ColumnView stream = ii.next();
+      if (stream.getColumn() == column && !(keepText && stream.isText())) {
+        ii.remove();
+        stream.invalidate();
       }
     }
   }
@@ -1315,6 +1849,16 @@ public final class SQLiteStatement {
     }
   }
 
+  private void checkNotVisiting() throws SQLiteException {
+    if (myVisitingColumn >= 0)
+      throw new SQLiteException(WRAPPER_MISUSE, "column buffer is in use");
+  }
+
+  private void checkNotVisiting(int column) throws SQLiteException {
+    if (myVisitingColumn == column)
+      throw new SQLiteException(WRAPPER_MISUSE, "column buffer is in use");
+  }
+
   private SWIGTYPE_p_sqlite3_stmt handle() throws SQLiteException {
     SWIGTYPE_p_sqlite3_stmt handle = myHandle;
     if (handle == null) {
@@ -1323,6 +1867,45 @@ public final class SQLiteStatement {
     return handle;
   }
 
+  /**
+   * Returns a direct buffer over the value in SQLite memory, or null if the value is NULL. Zero-length values
+   * are returned as empty buffers.
+   */
+  private ByteBuffer getColumnBuffer(int column, SWIGTYPE_p_sqlite3_stmt handle, String operation) throws SQLiteException {
+    _SQLiteManual sqlite = myController.getSQLiteManual();
+    ByteBuffer buffer = sqlite.wrapper_column_buffer(handle, column);
+    myController.throwResult(sqlite.getLastReturnCode(), operation, this);
+    if (buffer == null && _SQLiteSwigged.sqlite3_column_type(handle, column) != SQLITE_NULL)
+      buffer = EMPTY_BUFFER;
+    return buffer;
+  }
+
+  /**
+   * Returns a direct buffer over the value converted to UTF-8 text in SQLite memory, or null if the value is NULL.
+   */
+  private ByteBuffer getColumnTextBuffer(int column, SWIGTYPE_p_sqlite3_stmt handle, String operation) throws SQLiteException {
+    // a BLOB value may be reallocated to add the terminating zero
+    checkNotVisiting(column);
+    closeColumnStreams(column, true);
+    _SQLiteManual sqlite = myController.getSQLiteManual();
+    ByteBuffer buffer = sqlite.wrapper_column_text_buffer(handle, column);
+    myController.throwResult(sqlite.getLastReturnCode(), operation, this);
+    if (buffer == null && _SQLiteSwigged.sqlite3_column_type(handle, column) != SQLITE_NULL)
+      buffer = EMPTY_BUFFER;
+    return buffer;
+  }
+
+  private static CharsetDecoder createUtf8Decoder() {
+    return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  private void addColumnStream(ColumnView stream) {
+    List<ColumnView> table = myColumnStreams;
+    if (table == null)
+      myColumnStreams = table = new ArrayList<ColumnView>(1);
+    table.add(stream);
+  }
+
   private int getColumnType(int column, SWIGTYPE_p_sqlite3_stmt handle) throws SQLiteException {
     checkColumn(column, handle, false);
     if (Internal.isFineLogging())
@@ -1362,7 +1945,7 @@ public final class SQLiteStatement {
 
   private ProgressHandler prepareStep() throws SQLiteException {
     clearBindStreams(true);
-    clearColumnStreams();
+    invalidateRow();
     ProgressHandler ph = myController.getProgressHandler();
     ph.reset();
     synchronized (this) {
@@ -1424,6 +2007,7 @@ public final class SQLiteStatement {
   private final class BindStream extends OutputStream {
     private final int myIndex;
     private DirectBuffer myBuffer;
+    private List<DirectBuffer> myFilledBuffers;
 
     public BindStream(int index, DirectBuffer buffer) throws IOException {
       myIndex = index;
@@ -1434,7 +2018,7 @@ public final class SQLiteStatement {
     public void write(int b) throws IOException {
       try {
         myController.validate();
-        ByteBuffer data = buffer(1);
+        ByteBuffer data = buffer();
         data.put((byte) b);
       } catch (SQLiteException e) {
         dispose();
@@ -1445,32 +2029,42 @@ public final class SQLiteStatement {
     public void write(byte b[], int off, int len) throws IOException {
       try {
         myController.validate();
-        ByteBuffer data = buffer(len);
-        data.put(b, off, len);
+        while (len > 0) {
+          ByteBuffer data = buffer();
+          int count = Math.min(len, data.remaining());
+          data.put(b, off, count);
+          off += count;
+          len -= count;
+        }
       } catch (SQLiteException e) {
         dispose();
         throw new IOException("cannot write: " + e);
       }
     }
 
-    private ByteBuffer buffer(int len) throws IOException, SQLiteException {
+    /**
+     * Returns data buffer with at least one byte remaining. When current segment is full, it is kept
+     * as is and a new segment is allocated, so the written data is never copied until the stream is closed.
+     */
+    private ByteBuffer buffer() throws IOException, SQLiteException {
       DirectBuffer buffer = getBuffer();
       ByteBuffer data = buffer.data();
-      if (data.remaining() < len) {
+      if (!data.hasRemaining()) {
         DirectBuffer newBuffer = null;
         try {
-          newBuffer = myController.allocateBuffer(buffer.getCapacity() + len);
+          newBuffer = myController.allocateBuffer(BIND_STREAM_SEGMENT_SIZE - DirectBuffer.CONTROL_BYTES);
         } catch (IOException e) {
           dispose();
           throw e;
         }
-        ByteBuffer newData = newBuffer.data();
-        data.flip();
-        newData.put(data);
-        myController.freeBuffer(buffer);
-        data = newData;
+        List<DirectBuffer> filled = myFilledBuffers;
+        if (filled == null) {
+          myFilledBuffers = filled = new ArrayList<DirectBuffer>();
+        }
+        filled.add(buffer);
         myBuffer = newBuffer;
-        assert data.remaining() >= len : data.capacity();
+        data = newBuffer.data();
+        assert data.hasRemaining() : data.capacity();
       }
       return data;
     }
@@ -1481,9 +2075,19 @@ public final class SQLiteStatement {
         DirectBuffer buffer = myBuffer;
         if (buffer == null)
           return;
-        if (Internal.isFineLogging())
-          Internal.logFine(SQLiteStatement.this, "BindStream.close:bind([" + buffer.data().capacity() + "])");
-        int rc = _SQLiteManual.wrapper_bind_buffer(handle(), myIndex, buffer);
+        List<DirectBuffer> filled = myFilledBuffers;
+        int rc;
+        if (filled == null) {
+          if (Internal.isFineLogging())
+            Internal.logFine(SQLiteStatement.this, "BindStream.close:bind([" + buffer.data().capacity() + "])");
+          rc = _SQLiteManual.wrapper_bind_buffer(handle(), myIndex, buffer);
+        } else {
+          filled.add(buffer);
+          if (Internal.isFineLogging())
+            Internal.logFine(SQLiteStatement.this, "BindStream.close:bind(" + filled.size() + " segments)");
+          rc = _SQLiteManual.wrapper_bind_buffers(handle(), myIndex, filled);
+          filled.remove(filled.size() - 1);
+        }
         dispose();
         myController.throwResult(rc, "bind(buffer)", SQLiteStatement.this);
       } catch (SQLiteException e) {
@@ -1512,6 +2116,13 @@ public final class SQLiteStatement {
         myBuffer = null;
         myController.freeBuffer(buffer);
       }
+      List<DirectBuffer> filled = myFilledBuffers;
+      if (filled != null) {
+        myFilledBuffers = null;
+        for (DirectBuffer b : filled) {
+          myController.freeBuffer(b);
+        }
+      }
       List<BindStream> list = myBindStreams;
       if (list != null) {
         list.remove(this);
@@ -1519,14 +2130,42 @@ public final class SQLiteStatement {
     }
   }
 
-  private class ColumnStream extends InputStream {
+  /**
+   * A stream or a reader over a column value in SQLite memory.
+   */
+  private interface ColumnView {
+    int getColumn();
+
+    boolean isText();
+
+    /**
+     * Makes the following reads fail without removing the view from the statement.
+     */
+    void invalidate();
+  }
+
+  private class ColumnStream extends InputStream implements ColumnView {
+    private final int myColumn;
     private ByteBuffer myBuffer;
 
-    public ColumnStream(ByteBuffer buffer) {
+    public ColumnStream(int column, ByteBuffer buffer) {
       assert buffer != null;
+      myColumn = column;
       myBuffer = buffer;
     }
 
+    public int getColumn() {
+      return myColumn;
+    }
+
+    public boolean isText() {
+      return false;
+    }
+
+    public void invalidate() {
+      myBuffer = null;
+    }
+
     public int read() throws IOException {
       ByteBuffer buffer = getBuffer();
       if (buffer.remaining() <= 0)
@@ -1559,7 +2198,7 @@ public final class SQLiteStatement {
 
     public void close() throws IOException {
       myBuffer = null;
-      List<ColumnStream> table = myColumnStreams;
+      List<ColumnView> table = myColumnStreams;
       if (table != null)
         table.remove(this);
     }
@@ -1571,4 +2210,79 @@ public final class SQLiteStatement {
       return buffer;
     }
   }
+
+  private class ColumnReader extends Reader implements ColumnView {
+    private final CharsetDecoder myDecoder = createUtf8Decoder();
+    private final int myColumn;
+    private ByteBuffer myBuffer;
+
+    /**
+     * Holds a surrogate pair that did not fit into the caller's array.
+     */
+    private CharBuffer myPending;
+
+    public ColumnReader(int column, ByteBuffer buffer) {
+      assert buffer != null;
+      myColumn = column;
+      myBuffer = buffer;
+    }
+
+    public int getColumn() {
+      return myColumn;
+    }
+
+    public boolean isText() {
+      return true;
+    }
+
+    public void invalidate() {
+      myBuffer = null;
+    }
+
+    public int read(char cbuf[], int off, int len) throws IOException {
+      ByteBuffer buffer = getBuffer();
+      if (off < 0 || len < 0 || off + len > cbuf.length)
+        throw new IndexOutOfBoundsException();
+      if (len == 0)
+        return 0;
+      int count = 0;
+      CharBuffer pending = myPending;
+      if (pending != null && pending.hasRemaining()) {
+        count = Math.min(len, pending.remaining());
+        pending.get(cbuf, off, count);
+        off += count;
+        len -= count;
+      }
+      if (len > 0 && buffer.hasRemaining()) {
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        myDecoder.decode(buffer, out, true);
+        int decoded = out.position() - off;
+        if (decoded == 0 && count == 0 && buffer.hasRemaining()) {
+          if (pending == null)
+            myPending = pending = CharBuffer.allocate(2);
+          pending.clear();
+          myDecoder.decode(buffer, pending, true);
+          pending.flip();
+          decoded = Math.min(len, pending.remaining());
+          pending.get(cbuf, off, decoded);
+        }
+        count += decoded;
+      }
+      return count == 0 ? -1 : count;
+    }
+
+    public void close() throws IOException {
+      myBuffer = null;
+      List<ColumnView> table = myColumnStreams;
+      if (table != null)
+        table.remove(this);
+    }
+
+    private ByteBuffer getBuffer() throws IOException {
+      ByteBuffer buffer = myBuffer;
+      if (buffer == null)
+        throw new IOException("reader closed");
+      return buffer;
+    }
+  }
 }
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import static com.almworks.sqlite4java.SQLiteConstants.WRAPPER_WEIRD;
+
+/**
+ * SQLiteStreamBackup writes pages of a database directly to a stream or a channel, without an intermediate
+ * file or an in-memory copy of the whole database.
+ * <p/>
+ * {@link #writeTo} writes a full image of the database, which is a valid database file. {@link #writeChangesTo}
+ * writes a delta: only the pages that have changed since the baseline, which is the image written or read
+ * by the previous call to this object, or loaded with {@link #setBaseline}. The delta is applied to a copy of the
+ * baseline image with {@link #applyChanges}, so a series of snapshots may be shipped at the cost of the changed
+ * pages only.
+ * <p/>
+ * A delta carries a fingerprint of the image it was computed against and a fingerprint of the resulting image.
+ * {@link #applyChanges} refuses to apply a delta to any other image, or a delta that was damaged in transit.
+ * It builds the new image in a temporary file next to the target and then renames it over the target, so the
+ * previous image remains intact if the process fails halfway.
+ * <pre>
+ * SQLiteStreamBackup backup = new SQLiteStreamBackup(connection);
+ * backup.writeTo(new FileOutputStream(snapshot));
+ * ...
+ * backup.writeChangesTo(socketChannel);
+ * // on the receiving side
+ * SQLiteStreamBackup.applyChanges(socketChannel, snapshot);
+ * </pre>
+ * <p/>
+ * Pages are read through the <code>sqlite_dbpage</code> virtual table in a single read transaction, so the image
+ * is consistent and includes the content of the WAL. The native library must be compiled with
+ * <code>SQLITE_ENABLE_DBPAGE_VTAB</code>, otherwise the methods fail with "no such table". Pages are compared
+ * by a 64-bit checksum, and the baseline takes 8 bytes of memory per page.
+ * <p/>
+ * This class is not thread-safe; it is supposed to be used in the thread confined to the connection.
+ *
+ * @see SQLiteConnection#initializeBackup
+ * @see <a href="http://www.sqlite.org/dbpage.html">The SQLITE_DBPAGE Virtual Table</a>
+ */
+public final class SQLiteStreamBackup {
+  private static final int DELTA_MAGIC = 0x53514C44;
+  private static final int DELTA_VERSION = 1;
+  private static final int DELTA_HEADER_SIZE = 24;
+
+  /**
+   * Fingerprint of the base image in a delta that contains all pages and can be applied to any image.
+   */
+  private static final long NO_BASELINE = 0;
+
+  private final SQLiteConnection myConnection;
+  private final String myDbName;
+  private final CRC32 myCrc = new CRC32();
+  private final Adler32 myAdler = new Adler32();
+  private final ByteBuffer myRecordHeader = ByteBuffer.allocate(DELTA_HEADER_SIZE);
+
+  private long[] myBaseline;
+  private int myBaselinePageSize;
+  private int myPageCount;
+  private int myWrittenPages;
+
+  /**
+   * Creates a backup of the main database.
+   *
+   * @param connection an open connection to the source database
+   */
+  public SQLiteStreamBackup(SQLiteConnection connection) {
+    this(connection, "main");
+  }
+
+  /**
+   * @param connection an open connection to the source database
+   * @param dbName the name of the source database, for example "main" or the name of an attached database
+   */
+  public SQLiteStreamBackup(SQLiteConnection connection, String dbName) {
+    if (connection == null)
+      throw new NullPointerException();
+    myConnection = connection;
+    myDbName = dbName == null ? "main" : dbName;
+  }
+
+  /**
+   * @return the connection that the pages are read from
+   */
+  public SQLiteConnection getConnection() {
+    return myConnection;
+  }
+
+  /**
+   * Writes a full image of the database and makes it the baseline for the next call to {@link #writeChangesTo}.
+   *
+   * @param out the stream to write the image to; it is not closed
+   * @return the number of bytes written
+   * @throws SQLiteException if the pages could not be read
+   * @throws IOException if the stream fails
+   */
+  public long writeTo(OutputStream out) throws SQLiteException, IOException {
+    return write(Channels.newChannel(out), false);
+  }
+
+  /**
+   * Writes a full image of the database and makes it the baseline for the next call to {@link #writeChangesTo}.
+   *
+   * @param channel the channel to write the image to; it is not closed
+   * @return the number of bytes written
+   * @throws SQLiteException if the pages could not be read
+   * @throws IOException if the channel fails
+   */
+  public long writeTo(WritableByteChannel channel) throws SQLiteException, IOException {
+    return write(channel, false);
+  }
+
+  /**
+   * Writes the pages that have changed since the baseline, and makes the current state of the database
+   * the new baseline. If there is no baseline, or the page size has changed, all pages are written.
+   *
+   * @param out the stream to write the delta to; it is not closed
+   * @return the number of bytes written
+   * @throws SQLiteException if the pages could not be read
+   * @throws IOException if the stream fails
+   * @see #applyChanges(InputStream, File)
+   */
+  public long writeChangesTo(OutputStream out) throws SQLiteException, IOException {
+    return write(Channels.newChannel(out), true);
+  }
+
+  /**
+   * Writes the pages that have changed since the baseline, and makes the current state of the database
+   * the new baseline. If there is no baseline, or the page size has changed, all pages are written.
+   *
+   * @param channel the channel to write the delta to; it is not closed
+   * @return the number of bytes written
+   * @throws SQLiteException if the pages could not be read
+   * @throws IOException if the channel fails
+   * @see #applyChanges(ReadableByteChannel, File)
+   */
+  public long writeChangesTo(WritableByteChannel channel) throws SQLiteException, IOException {
+    return write(channel, true);
+  }
+
+  /**
+   * Reads a database image, for example a snapshot written earlier by another instance, and makes it the baseline.
+   *
+   * @param image database file
+   * @throws IOException if the file cannot be read, or it is not a database file
+   */
+  public void setBaseline(File image) throws IOException {
+    FileInputStream in = new FileInputStream(image);
+    try {
+      byte[] header = new byte[100];
+      int read = readFully(in, header, 0, header.length);
+      if (read == 0) {
+        myBaseline = new long[0];
+        myBaselinePageSize = 0;
+        return;
+      }
+      if (read < header.length)
+        throw new IOException("not a database image: " + image);
+      int pageSize = ((header[16] & 0xFF) << 8) | (header[17] & 0xFF);
+      if (pageSize == 1)
+        pageSize = 65536;
+      if (pageSize < 512 || (pageSize & (pageSize - 1)) != 0)
+        throw new IOException("bad page size " + pageSize + " in " + image);
+      long length = image.length();
+      int pageCount = (int) (length / pageSize);
+      long[] baseline = new long[pageCount];
+      byte[] page = new byte[pageSize];
+      System.arraycopy(header, 0, page, 0, header.length);
+      int filled = header.length;
+      for (int i = 0; i < pageCount; i++) {
+        if (readFully(in, page, filled, pageSize - filled) < pageSize - filled)
+          throw new EOFException(image.toString());
+        baseline[i] = hash(page, pageSize, myCrc, myAdler);
+        filled = 0;
+      }
+      myBaseline = baseline;
+      myBaselinePageSize = pageSize;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Forgets the baseline, so the next call to {@link #writeChangesTo} writes all pages.
+   */
+  public void clearBaseline() {
+    myBaseline = null;
+    myBaselinePageSize = 0;
+  }
+
+  /**
+   * @return true if there's a baseline to compare pages with
+   */
+  public boolean hasBaseline() {
+    return myBaseline != null;
+  }
+
+  /**
+   * @return the number of pages in the database when it was last written
+   */
+  public int getPageCount() {
+    return myPageCount;
+  }
+
+  /**
+   * @return the number of pages written by the last call to writeTo or writeChangesTo
+   */
+  public int getWrittenPageCount() {
+    return myWrittenPages;
+  }
+
+  /**
+   * Applies a delta written by {@link #writeChangesTo} to the database image it was computed against. The image
+   * must not be open by any connection while it is being changed.
+   * <p/>
+   * The new image is written to a temporary file in the same directory, which then replaces the image.
+   * If the delta does not match the image, or fails to read, the image is not changed.
+   *
+   * @param in the stream to read the delta from; it is not closed
+   * @param image database image to update; if it does not exist, the delta must contain all pages
+   * @throws IOException if the delta cannot be read or does not match the image, or the image cannot be written
+   */
+  public static void applyChanges(InputStream in, File image) throws IOException {
+    applyChanges(Channels.newChannel(in), image);
+  }
+
+  /**
+   * Applies a delta written by {@link #writeChangesTo} to the database image it was computed against. The image
+   * must not be open by any connection while it is being changed.
+   * <p/>
+   * The new image is written to a temporary file in the same directory, which then replaces the image.
+   * If the delta does not match the image, or fails to read, the image is not changed.
+   *
+   * @param channel the channel to read the delta from; it is not closed
+   * @param image database image to update; if it does not exist, the delta must contain all pages
+   * @throws IOException if the delta cannot be read or does not match the image, or the image cannot be written
+   */
+  public static void applyChanges(ReadableByteChannel channel, File image) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_SIZE);
+    readFully(channel, header);
+    if (header.getInt(0) != DELTA_MAGIC || header.getInt(4) != DELTA_VERSION)
+      throw new IOException("not a database delta");
+    int pageSize = header.getInt(8);
+    int pageCount = header.getInt(12);
+    long base = header.getLong(16);
+    if (pageSize < 512 || pageSize > 65536 || (pageSize & (pageSize - 1)) != 0 || pageCount < 0)
+      throw new IOException("bad delta header: page size " + pageSize + ", page count " + pageCount);
+    CRC32 crc = new CRC32();
+    Adler32 adler = new Adler32();
+    long[] hashes = new long[pageCount];
+    ByteBuffer pgno = ByteBuffer.allocate(8);
+    byte[] page = new byte[pageSize];
+    ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+    File temp = File.createTempFile(image.getName(), ".tmp", image.getAbsoluteFile().getParentFile());
+    boolean replaced = false;
+    try {
+      RandomAccessFile file = new RandomAccessFile(temp, "rw");
+      try {
+        FileChannel target = file.getChannel();
+        if (base != NO_BASELINE) {
+          long[] baseHashes = copyImage(image, target, page, crc, adler);
+          if (fingerprint(baseHashes, pageSize) != base)
+            throw new IOException("delta does not match " + image);
+          System.arraycopy(baseHashes, 0, hashes, 0, Math.min(baseHashes.length, pageCount));
+        }
+        while (true) {
+          pgno.clear().limit(4);
+          readFully(channel, pgno);
+          int n = pgno.getInt(0);
+          if (n == 0)
+            break;
+          if (n < 0 || n > pageCount)
+            throw new IOException("bad page number " + n);
+          pageBuffer.clear();
+          readFully(channel, pageBuffer);
+          hashes[n - 1] = hash(page, pageSize, crc, adler);
+          pageBuffer.flip();
+          long position = (long) (n - 1) * pageSize;
+          while (pageBuffer.hasRemaining())
+            position += target.write(pageBuffer, position);
+        }
+        pgno.clear();
+        readFully(channel, pgno);
+        if (fingerprint(hashes, pageSize) != pgno.getLong(0))
+          throw new IOException("delta is damaged or incomplete");
+        file.setLength((long) pageCount * pageSize);
+        target.force(true);
+      } finally {
+        file.close();
+      }
+      Files.move(temp.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      replaced = true;
+    } finally {
+      if (!replaced && !temp.delete())
+        Internal.logWarn(SQLiteStreamBackup.class, "cannot delete " + temp);
+    }
+  }
+
+  /**
+   * Copies the image to the target channel and computes page hashes on the way.
+   */
+  private static long[] copyImage(File image, FileChannel target, byte[] page, CRC32 crc, Adler32 adler)
+    throws IOException
+  {
+    int pageSize = page.length;
+    long length = image.length();
+    if (length % pageSize != 0)
+      throw new IOException("delta does not match " + image + ": size " + length);
+    long[] hashes = new long[(int) (length / pageSize)];
+    ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+    FileInputStream in = new FileInputStream(image);
+    try {
+      for (int i = 0; i < hashes.length; i++) {
+        if (readFully(in, page, 0, pageSize) < pageSize)
+          throw new EOFException(image.toString());
+        hashes[i] = hash(page, pageSize, crc, adler);
+        pageBuffer.clear();
+        writeFully(target, pageBuffer);
+      }
+    } finally {
+      in.close();
+    }
+    return hashes;
+  }
+
+  private long write(WritableByteChannel channel, boolean changesOnly) throws SQLiteException, IOException {
+    if (channel == null)
+      throw new NullPointerException();
+    SQLiteConnection connection = myConnection;
+    String schema = "\"" + myDbName.replace("\"", "\"\"") + "\"";
+    boolean transaction = connection.getAutoCommit();
+    if (transaction)
+      connection.exec("BEGIN");
+    SQLiteStatement st = null;
+    boolean success = false;
+    try {
+      int pageCount = pragma(connection, "PRAGMA " + schema + ".page_count");
+      int pageSize = pragma(connection, "PRAGMA " + schema + ".page_size");
+      long[] baseline = changesOnly && myBaselinePageSize == pageSize ? myBaseline : null;
+      long base = baseline == null ? NO_BASELINE : fingerprint(baseline, pageSize);
+      long[] hashes = new long[pageCount];
+      byte[] page = new byte[pageSize];
+      ByteBuffer pageBuffer = ByteBuffer.wrap(page);
+      ByteBuffer record = myRecordHeader;
+      long written = 0;
+      int pages = 0;
+      if (changesOnly) {
+        record.clear();
+        record.putInt(DELTA_MAGIC).putInt(DELTA_VERSION).putInt(pageSize).putInt(pageCount).putLong(base).flip();
+        written += writeFully(channel, record);
+      }
+      st = connection.prepare("SELECT pgno, data FROM sqlite_dbpage(?)", false);
+      st.bind(1, myDbName);
+      while (st.step()) {
+        int pgno = st.columnInt(0);
+        int length = st.columnBlob(1, page, 0);
+        if (pgno < 1 || pgno > pageCount || length != pageSize)
+          throw new SQLiteException(WRAPPER_WEIRD, "page " + pgno + " of " + pageCount + " has " + length + " bytes");
+        long hash = hash(page, pageSize, myCrc, myAdler);
+        hashes[pgno - 1] = hash;
+        if (changesOnly) {
+          if (baseline != null && pgno <= baseline.length && baseline[pgno - 1] == hash)
+            continue;
+          record.clear();
+          record.putInt(pgno).flip();
+          written += writeFully(channel, record);
+        }
+        pageBuffer.clear();
+        written += writeFully(channel, pageBuffer);
+        pages++;
+      }
+      if (changesOnly) {
+        record.clear();
+        record.putInt(0).putLong(fingerprint(hashes, pageSize)).flip();
+        written += writeFully(channel, record);
+      }
+      myBaseline = hashes;
+      myBaselinePageSize = pageSize;
+      myPageCount = pageCount;
+      myWrittenPages = pages;
+      if (Internal.isFineLogging())
+        Internal.logFine(this, "written " + pages + " of " + pageCount + " pages, " + written + " bytes");
+      success = true;
+      return written;
+    } finally {
+      if (st != null)
+        st.dispose();
+      if (transaction && !connection.getAutoCommit())
+        endTransaction(connection, success);
+    }
+  }
+
+  /**
+   * Ends the read transaction; if the write has already failed, a failure to commit is logged so that it
+   * does not hide the original exception.
+   */
+  private void endTransaction(SQLiteConnection connection, boolean success) throws SQLiteException {
+    try {
+      connection.exec("COMMIT");
+    } catch (SQLiteException e) {
+      if (success)
+        throw e;
+      Internal.log(Level.WARNING, this, "cannot end read transaction", e);
+    }
+  }
+
+  private static long hash(byte[] page, int length, CRC32 crc, Adler32 adler) {
+    crc.reset();
+    crc.update(page, 0, length);
+    adler.reset();
+    adler.update(page, 0, length);
+    return (crc.getValue() << 32) | adler.getValue();
+  }
+
+  /**
+   * Combines page hashes into a fingerprint of the whole image; never returns {@link #NO_BASELINE}.
+   */
+  private static long fingerprint(long[] hashes, int pageSize) {
+    long h = 0xCBF29CE484222325L ^ pageSize ^ ((long) hashes.length << 32);
+    for (long hash : hashes) {
+      h ^= hash;
+      h *= 0x100000001B3L;
+      h ^= h >>> 29;
+    }
+    return h == NO_BASELINE ? 1 : h;
+  }
+
+  private static int pragma(SQLiteConnection connection, String sql) throws SQLiteException {
+    SQLiteStatement st = connection.prepare(sql, false);
+    try {
+      if (!st.step())
+        throw new SQLiteException(WRAPPER_WEIRD, sql);
+      return st.columnInt(0);
+    } finally {
+      st.dispose();
+    }
+  }
+
+  private static int writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+    int count = buffer.remaining();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    return count;
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0)
+        throw new EOFException("unexpected end of delta");
+    }
+  }
+
+  private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int n = in.read(buffer, offset + total, length - total);
+      if (n < 0)
+        break;
+      total += n;
+    }
+    return total;
+  }
+
+  public String toString() {
+    return "StreamBackup[" + myDbName + "]@" + myConnection;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * SQLiteStringCache is a small bounded table of String values, keyed by their UTF-8 representation. When installed
+ * on a statement or a connection, {@link SQLiteStatement#columnString} looks the value up by its native bytes
+ * before creating a String, so repeated values of low-cardinality columns are returned as the same instance,
+ * without allocation.
+ * <p/>
+ * The table uses open addressing with a fixed number of probes. When all probed slots are taken, the value
+ * replaces the entry in its home slot, so the memory used by the cache never grows. Only values not longer than
+ * <code>maxValueLength</code> bytes are cached.
+ * <p/>
+ * The cache is not thread-safe. It may be shared by statements of the same connection, but not between
+ * connections that are confined to different threads.
+ *
+ * @see SQLiteStatement#setStringCache
+ * @see SQLiteConnection#setStringCache
+ */
+public final class SQLiteStringCache {
+  /**
+   * Default maximum length of cached values, in bytes.
+   */
+  public static final int DEFAULT_MAX_VALUE_LENGTH = 64;
+
+  static final int PROBES = 4;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final byte[][] myKeys;
+  private final String[] myValues;
+  private final int myMaxValueLength;
+  private final int[] myLookupResult = new int[3];
+
+  private long myHits;
+  private long myMisses;
+
+  /**
+   * Creates a cache with {@link #DEFAULT_MAX_VALUE_LENGTH}.
+   *
+   * @param capacity maximum number of cached values, rounded up to the power of two
+   */
+  public SQLiteStringCache(int capacity) {
+    this(capacity, DEFAULT_MAX_VALUE_LENGTH);
+  }
+
+  /**
+   * @param capacity maximum number of cached values, rounded up to the power of two
+   * @param maxValueLength maximum length of cached values in bytes; longer values are never cached
+   */
+  public SQLiteStringCache(int capacity, int maxValueLength) {
+    if (capacity <= 0 || capacity > (1 << 24))
+      throw new IllegalArgumentException("capacity " + capacity);
+    if (maxValueLength < 0)
+      throw new IllegalArgumentException("maxValueLength " + maxValueLength);
+    int size = 1;
+    while (size < capacity)
+      size <<= 1;
+    myKeys = new byte[size][];
+    myValues = new String[size];
+    myMaxValueLength = maxValueLength;
+  }
+
+  /**
+   * @return the number of values that were found in the cache
+   */
+  public long getHitCount() {
+    return myHits;
+  }
+
+  /**
+   * @return the number of cacheable values that were not found in the cache
+   */
+  public long getMissCount() {
+    return myMisses;
+  }
+
+  /**
+   * @return the number of slots in the cache
+   */
+  public int getCapacity() {
+    return myKeys.length;
+  }
+
+  /**
+   * Removes all values from the cache and resets counters.
+   */
+  public void clear() {
+    for (int i = 0; i < myKeys.length; i++) {
+      myKeys[i] = null;
+      myValues[i] = null;
+    }
+    myHits = 0;
+    myMisses = 0;
+  }
+
+  /**
+   * Reads text value of the current row, looking it up in the cache.
+   *
+   * @return the value, or null if the value is NULL
+   */
+  String columnString(_SQLiteManual sqlite, SWIGTYPE_p_sqlite3_stmt handle, int column) {
+    int[] r = myLookupResult;
+    sqlite.wrapper_column_text_lookup(handle, column, myKeys, PROBES, myMaxValueLength, r);
+    if (sqlite.getLastReturnCode() != SQLiteConstants.SQLITE_OK)
+      return null;
+    int length = r[1];
+    int slot = r[2];
+    if (length < 0)
+      return null;
+    if (slot >= 0) {
+      myHits++;
+      return myValues[slot];
+    }
+    if (length > myMaxValueLength) {
+      return sqlite.sqlite3_column_text(handle, column);
+    }
+    myMisses++;
+    ByteBuffer buffer = sqlite.wrapper_column_text_buffer(handle, column);
+    if (sqlite.getLastReturnCode() != SQLiteConstants.SQLITE_OK)
+      return null;
+    byte[] key = new byte[length];
+    if (buffer != null)
+      buffer.get(key);
+    String value = new String(key, UTF8);
+    put(r[0], key, value);
+    return value;
+  }
+
+  private void put(int hash, byte[] key, String value) {
+    int mask = myKeys.length - 1;
+    int slot = hash & mask;
+    for (int k = 0; k < PROBES; k++) {
+      int i = (hash + k) & mask;
+      if (myKeys[i] == null) {
+        slot = i;
+        break;
+      }
+    }
+    myKeys[slot] = key;
+    myValues[slot] = value;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 ALM Works Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.almworks.sqlite4java;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * SQLiteTrace receives events reported by SQLite itself through <code>sqlite3_trace_v2</code>. Unlike
+ * {@link SQLiteProfiler}, which measures JNI calls made from Java, trace events cover every statement run by the
+ * engine, including statements run by {@link SQLiteConnection#exec} scripts, triggers and virtual tables, and the
+ * reported run times are measured by SQLite.
+ * <p/>
+ * The trace is started with {@link SQLiteConnection#startTrace}. Events are written by native code into a ring
+ * buffer in native memory, without calling into Java, and are collected in batches with {@link #drain}. If the
+ * buffer fills up before it is drained, new events are dropped and counted in {@link #getDroppedCount}.
+ * <p/>
+ * Like the connection, the trace is confined to the connection's thread.
+ *
+ * @see <a href="http://www.sqlite.org/c3ref/trace_v2.html">sqlite3_trace_v2</a>
+ */
+public final class SQLiteTrace {
+  /**
+   * Default capacity of the ring buffer, in bytes.
+   */
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+  /**
+   * Default maximum number of bytes of SQL copied into each event.
+   */
+  public static final int DEFAULT_MAX_SQL_LENGTH = 256;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int HEADER_LONGS = 8;
+  private static final int OFFSET_WRITE = 0;
+  private static final int OFFSET_READ = 1;
+  private static final int OFFSET_DROPPED = 2;
+  private static final int OFFSET_CAPACITY = 3;
+  private static final int RECORD_HEADER = 32;
+
+  private final int myMask;
+
+  private SWIGTYPE_p_direct_buffer myPointer;
+  private ByteBuffer myBuffer;
+  private SQLiteConnection myConnection;
+
+  SQLiteTrace(SWIGTYPE_p_direct_buffer pointer, ByteBuffer buffer, int mask) {
+    assert buffer.isDirect();
+    myPointer = pointer;
+    myBuffer = buffer.order(ByteOrder.nativeOrder());
+    myMask = mask;
+  }
+
+  void setConnection(SQLiteConnection connection) {
+    myConnection = connection;
+  }
+
+  SWIGTYPE_p_direct_buffer dispose() {
+    SWIGTYPE_p_direct_buffer ptr = myPointer;
+    myPointer = null;
+    myBuffer = null;
+    myConnection = null;
+    return ptr;
+  }
+
+  /**
+   * @return the mask of traced events, a combination of SQLITE_TRACE_STMT, SQLITE_TRACE_PROFILE and
+   * SQLITE_TRACE_ROW
+   */
+  public int getMask() {
+    return myMask;
+  }
+
+  /**
+   * @return true if the trace has not been stopped
+   */
+  public boolean isActive() {
+    return myBuffer != null;
+  }
+
+  /**
+   * @return the number of events that were dropped because the buffer was full
+   * @throws SQLiteException if called from a different thread
+   */
+  public long getDroppedCount() throws SQLiteException {
+    checkThread();
+    ByteBuffer buffer = myBuffer;
+    return buffer == null ? 0 : buffer.getLong(OFFSET_DROPPED * 8);
+  }
+
+  /**
+   * Collects all events that have been buffered since the last call, freeing space in the buffer.
+   *
+   * @return the events in the order they have been reported, possibly empty
+   * @throws SQLiteException if called from a different thread
+   */
+  public List<Event> drain() throws SQLiteException {
+    List<Event> r = new ArrayList<Event>();
+    drain(r);
+    return r;
+  }
+
+  /**
+   * Collects all events that have been buffered since the last call, freeing space in the buffer.
+   *
+   * @param target the list to add events to
+   * @return the number of added events
+   * @throws SQLiteException if called from a different thread
+   */
+  public int drain(List<Event> target) throws SQLiteException {
+    checkThread();
+    ByteBuffer buffer = myBuffer;
+    if (buffer == null)
+      return 0;
+    long write = buffer.getLong(OFFSET_WRITE * 8);
+    long read = buffer.getLong(OFFSET_READ * 8);
+    long capacity = buffer.getLong(OFFSET_CAPACITY * 8);
+    int base = HEADER_LONGS * 8;
+    int count = 0;
+    byte[] text = null;
+    while (read < write) {
+      int pos = base + (int) (read % capacity);
+      int length = buffer.getInt(pos);
+      int type = buffer.getInt(pos + 4);
+      if (length <= 0) {
+        Internal.logWarn(this, "corrupt trace record at " + read);
+        read = write;
+        break;
+      }
+      read += length;
+      if (type == 0)
+        continue;
+      int textLength = buffer.getInt(pos + 8);
+      long statement = buffer.getLong(pos + 16);
+      long value = buffer.getLong(pos + 24);
+      String sql = null;
+      if (textLength > 0) {
+        if (text == null || text.length < textLength)
+          text = new byte[textLength];
+        for (int i = 0; i < textLength; i++)
+          text[i] = buffer.get(pos + RECORD_HEADER + i);
+        sql = new String(text, 0, textLength, UTF8);
+      }
+      target.add(new Event(type, statement, sql, type == SQLITE_TRACE_PROFILE ? value : 0));
+      count++;
+    }
+    buffer.putLong(OFFSET_READ * 8, read);
+    return count;
+  }
+
+  private void checkThread() throws SQLiteException {
+    SQLiteConnection connection = myConnection;
+    if (connection != null)
+      connection.checkThread();
+  }
+
+  public String toString() {
+    return "trace[" + myMask + "]" + (myBuffer == null ? "[stopped]" : "");
+  }
+
+
+  /**
+   * A single trace event. Instances are immutable.
+   */
+  public static final class Event {
+    private final int myType;
+    private final long myStatement;
+    private final String mySQL;
+    private final long myNanos;
+
+    Event(int type, long statement, String sql, long nanos) {
+      myType = type;
+      myStatement = statement;
+      mySQL = sql;
+      myNanos = nanos;
+    }
+
+    /**
+     * @return SQLITE_TRACE_STMT when a statement starts running, SQLITE_TRACE_PROFILE when it finishes, or
+     * SQLITE_TRACE_ROW when it returns a row
+     */
+    public int getType() {
+      return myType;
+    }
+
+    /**
+     * @return an identifier of the native statement, which is the same for all events of the statement while
+     * it exists
+     */
+    public long getStatementId() {
+      return myStatement;
+    }
+
+    /**
+     * @return for SQLITE_TRACE_STMT, the SQL text or a comment that identifies a trigger; for
+     * SQLITE_TRACE_PROFILE, the SQL of the statement; the text is truncated to the maximum length given when the
+     * trace was started. For SQLITE_TRACE_ROW, null.
+     */
+    public String getSQL() {
+      return mySQL;
+    }
+
+    /**
+     * @return for SQLITE_TRACE_PROFILE, the run time of the statement in nanoseconds, as measured by SQLite;
+     * otherwise 0
+     */
+    public long getNanos() {
+      return myNanos;
+    }
+
+    public String toString() {
+      String name = myType == SQLITE_TRACE_STMT ? "stmt" : myType == SQLITE_TRACE_PROFILE ? "profile" :
+        myType == SQLITE_TRACE_ROW ? "row" : String.valueOf(myType);
+      return name + "[" + Long.toHexString(myStatement) + "]" + (mySQL == null ? "" : " " + mySQL) +
+        (myType == SQLITE_TRACE_PROFILE ? " " + myNanos + "ns" : "");
+    }
+  }
+}
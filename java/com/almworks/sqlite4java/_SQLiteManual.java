@@ -17,6 +17,7 @@
 package com.almworks.sqlite4java;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import com.almworks.sqlite4java.SQLiteColumnMetadata;
 
@@ -91,10 +92,14 @@ final class _SQLiteManual {
   }
 
   public SWIGTYPE_p_sqlite3 sqlite3_open_v2(String filename, int flags) {
+    return sqlite3_open_v2(filename, flags, null);
+  }
+
+  public SWIGTYPE_p_sqlite3 sqlite3_open_v2(String filename, int flags, String vfs) {
     myLastReturnCode = 0;
     myLong[0] = 0;
     myString[0] = null;
-    myLastReturnCode = _SQLiteManualJNI.sqlite3_open_v2(filename, myLong, flags, myString);
+    myLastReturnCode = _SQLiteManualJNI.sqlite3_open_v2(filename, myLong, flags, vfs, myString);
     long ptr = myLong[0];
     myLong[0] = 0;
     myLastOpenError = myString[0];
@@ -179,6 +184,21 @@ final class _SQLiteManual {
     return _SQLiteManualJNI.wrapper_bind_buffer(SWIGTYPE_p_sqlite3_stmt.getCPtr(stmt), index, SWIGTYPE_p_direct_buffer.getCPtr(handle), size);
   }
 
+  public static int wrapper_bind_buffers(SWIGTYPE_p_sqlite3_stmt stmt, int index, List<DirectBuffer> buffers) {
+    int count = buffers.size();
+    long[] pointers = new long[count];
+    int[] sizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      DirectBuffer buffer = buffers.get(i);
+      SWIGTYPE_p_direct_buffer handle = buffer.getHandle();
+      if (handle == null)
+        return SQLiteConstants.WRAPPER_WEIRD;
+      pointers[i] = SWIGTYPE_p_direct_buffer.getCPtr(handle);
+      sizes[i] = buffer.getPosition();
+    }
+    return _SQLiteManualJNI.wrapper_bind_buffers(SWIGTYPE_p_sqlite3_stmt.getCPtr(stmt), index, pointers, sizes, count);
+  }
+
   public ByteBuffer wrapper_column_buffer(SWIGTYPE_p_sqlite3_stmt stmt, int column) {
     myLastReturnCode = 0;
     myObject[0] = null;
@@ -188,6 +208,24 @@ final class _SQLiteManual {
     return r;
   }
 
+  public ByteBuffer wrapper_column_text_buffer(SWIGTYPE_p_sqlite3_stmt stmt, int column) {
+    myLastReturnCode = 0;
+    myObject[0] = null;
+    myLastReturnCode = _SQLiteManualJNI.wrapper_column_text_buffer(SWIGTYPE_p_sqlite3_stmt.getCPtr(stmt), column, myObject);
+    ByteBuffer r = myObject[0] instanceof ByteBuffer ? (ByteBuffer) myObject[0] : null;
+    myObject[0] = null;
+    return r;
+  }
+
+  /**
+   * Looks up UTF-8 text value in a hash table of keys. Result array receives value's hash, length in bytes
+   * (-1 for NULL) and the index of the matching key (-1 if not found).
+   */
+  public void wrapper_column_text_lookup(SWIGTYPE_p_sqlite3_stmt stmt, int column, byte[][] keys, int probes, int maxLength, int[] result) {
+    myLastReturnCode = 0;
+    myLastReturnCode = _SQLiteManualJNI.wrapper_column_text_lookup(SWIGTYPE_p_sqlite3_stmt.getCPtr(stmt), column, keys, probes, maxLength, result);
+  }
+
   public ProgressHandler install_progress_handler(SWIGTYPE_p_sqlite3 db, int stepsPerCallback) {
     myLastReturnCode = 0;
     myLong[0] = 0;
@@ -209,6 +247,82 @@ final class _SQLiteManual {
     return _SQLiteManualJNI.uninstall_progress_handler(SWIGTYPE_p_sqlite3.getCPtr(db), SWIGTYPE_p_direct_buffer.getCPtr(pointer));
   }
 
+  public static int wrapper_status64(int op, boolean reset, long[] result) {
+    return _SQLiteManualJNI.wrapper_status64(op, reset ? 1 : 0, result);
+  }
+
+  public static int wrapper_config_mmap_size(long defaultSize, long maxSize) {
+    return _SQLiteManualJNI.wrapper_config_mmap_size(defaultSize, maxSize);
+  }
+
+  public static int wrapper_config(int op, int a, int b) {
+    return _SQLiteManualJNI.wrapper_config(op, a, b);
+  }
+
+  public static int wrapper_db_config_lookaside(SWIGTYPE_p_sqlite3 db, int size, int count) {
+    return _SQLiteManualJNI.wrapper_db_config_lookaside(SWIGTYPE_p_sqlite3.getCPtr(db), size, count);
+  }
+
+  public static boolean wrapper_db_has_mutex(SWIGTYPE_p_sqlite3 db) {
+    return _SQLiteManualJNI.wrapper_db_has_mutex(SWIGTYPE_p_sqlite3.getCPtr(db)) != 0;
+  }
+
+  public static int wrapper_serialize(SWIGTYPE_p_sqlite3 db, String schema, ByteBuffer buffer, long[] size) {
+    return _SQLiteManualJNI.wrapper_serialize(SWIGTYPE_p_sqlite3.getCPtr(db), schema, buffer, size);
+  }
+
+  public static int wrapper_deserialize(SWIGTYPE_p_sqlite3 db, String schema, ByteBuffer buffer, byte[] array, int offset,
+    int length, boolean copy, boolean readOnly)
+  {
+    return _SQLiteManualJNI.wrapper_deserialize(SWIGTYPE_p_sqlite3.getCPtr(db), schema, buffer, array, offset, length,
+      copy ? 1 : 0, readOnly ? 1 : 0);
+  }
+
+  public static int wrapper_install_shared_pcache(long budget) {
+    return _SQLiteManualJNI.wrapper_install_shared_pcache(budget);
+  }
+
+  public static int wrapper_shared_pcache(long budget, long[] result) {
+    return _SQLiteManualJNI.wrapper_shared_pcache(budget, result);
+  }
+
+  public static int wrapper_db_status(SWIGTYPE_p_sqlite3 db, boolean reset, int[] result) {
+    return _SQLiteManualJNI.wrapper_db_status(SWIGTYPE_p_sqlite3.getCPtr(db), reset ? 1 : 0, result);
+  }
+
+  public static int wrapper_register_iostat_vfs(String name, String parent, boolean makeDefault, boolean withFaults) {
+    return _SQLiteManualJNI.wrapper_register_iostat_vfs(name, parent, makeDefault ? 1 : 0, withFaults ? 1 : 0);
+  }
+
+  public static int wrapper_configure_fault_vfs(String name, long[] config, long[] counters) {
+    return _SQLiteManualJNI.wrapper_configure_fault_vfs(name, config, counters);
+  }
+
+  public static int wrapper_iostat(SWIGTYPE_p_sqlite3 db, boolean reset, long[] result) {
+    return _SQLiteManualJNI.wrapper_iostat(SWIGTYPE_p_sqlite3.getCPtr(db), reset ? 1 : 0, result);
+  }
+
+  public SQLiteTrace install_trace(SWIGTYPE_p_sqlite3 db, int mask, int capacity, int maxSqlLength) {
+    myLastReturnCode = 0;
+    myLong[0] = 0;
+    myObject[0] = null;
+    myLastReturnCode = _SQLiteManualJNI.install_trace(SWIGTYPE_p_sqlite3.getCPtr(db), mask, capacity, maxSqlLength, myLong, myObject);
+    ByteBuffer r = myObject[0] instanceof ByteBuffer ? (ByteBuffer) myObject[0] : null;
+    myObject[0] = null;
+    long ptr = myLong[0];
+    myLong[0] = 0;
+    if (ptr == 0 || r == null)
+      return null;
+    return new SQLiteTrace(new SWIGTYPE_p_direct_buffer(ptr, true), r, mask);
+  }
+
+  public static int uninstall_trace(SWIGTYPE_p_sqlite3 db, SQLiteTrace trace) {
+    SWIGTYPE_p_direct_buffer pointer = trace.dispose();
+    if (pointer == null)
+      return 0;
+    return _SQLiteManualJNI.uninstall_trace(SWIGTYPE_p_sqlite3.getCPtr(db), SWIGTYPE_p_direct_buffer.getCPtr(pointer));
+  }
+
   public int wrapper_load_ints(SWIGTYPE_p_sqlite3_stmt stmt, int column, int[] buffer, int offset, int count) {
     myLastReturnCode = 0;
     myInt[0] = 0;
@@ -227,6 +341,10 @@ final class _SQLiteManual {
     return r;
   }
 
+  public static int wrapper_load_row(SWIGTYPE_p_sqlite3_stmt stmt, int count, int[] types, long[] longs, double[] doubles) {
+    return _SQLiteManualJNI.wrapper_load_row(SWIGTYPE_p_sqlite3_stmt.getCPtr(stmt), count, types, longs, doubles);
+  }
+
   public SWIGTYPE_p_intarray_module sqlite3_intarray_register(SWIGTYPE_p_sqlite3 db) {
     myLastReturnCode = 0;
     myLong[0] = 0;
@@ -25,7 +25,7 @@ final class _SQLiteManualJNI {
    * @param flags see SQLITE_OPEN_* constants
    * @return return code SQLITE_OK or other
    */
-  public final static native int sqlite3_open_v2(String filename, long[] ppDb, int flags, String[] ppOpenError);
+  public final static native int sqlite3_open_v2(String filename, long[] ppDb, int flags, String vfs, String[] ppOpenError);
 
   /**
    * @param db handle
@@ -110,16 +110,54 @@ final class _SQLiteManualJNI {
 
   public final static native int wrapper_bind_buffer(long stmt, int index, long data, int size);
 
+  public final static native int wrapper_bind_buffers(long stmt, int index, long[] buffers, int[] sizes, int count);
+
   public final static native int wrapper_column_buffer(long cPtr, int column, Object[] ppByteBuffer);
 
+  public final static native int wrapper_column_text_buffer(long stmt, int column, Object[] ppByteBuffer);
+
+  public final static native int wrapper_column_text_lookup(long stmt, int column, byte[][] keys, int probes, int maxLength, int[] result);
+
+  public final static native int wrapper_status64(int op, int reset, long[] result);
+
+  public final static native int wrapper_config_mmap_size(long defaultSize, long maxSize);
+
+  public final static native int wrapper_config(int op, int a, int b);
+
+  public final static native int wrapper_db_config_lookaside(long db, int size, int count);
+
+  public final static native int wrapper_db_has_mutex(long db);
+
+  public final static native int wrapper_serialize(long db, String schema, Object buffer, long[] size);
+
+  public final static native int wrapper_deserialize(long db, String schema, Object buffer, byte[] array, int offset, int length, int copy, int readOnly);
+
+  public final static native int wrapper_install_shared_pcache(long budget);
+
+  public final static native int wrapper_shared_pcache(long budget, long[] result);
+
+  public final static native int wrapper_db_status(long db, int reset, int[] result);
+
+  public final static native int wrapper_register_iostat_vfs(String name, String parent, int makeDefault, int withFaults);
+
+  public final static native int wrapper_configure_fault_vfs(String name, long[] config, long[] counters);
+
+  public final static native int wrapper_iostat(long db, int reset, long[] result);
+
   public final static native int install_progress_handler(long db, int steps, long[] ppBuf, Object[] ppByteBuffer);
 
   public final static native int uninstall_progress_handler(long db, long ptr);
 
+  public final static native int install_trace(long db, int mask, int capacity, int maxSqlLength, long[] ppBuf, Object[] ppByteBuffer);
+
+  public final static native int uninstall_trace(long db, long ptr);
+
   public final static native int wrapper_load_ints(long stmt, int column, int[] buffer, int offset, int count, int[] ppCount);
 
   public final static native int wrapper_load_longs(long stmt, int column, long[] buffer, int offset, int count, int[] ppCount);
 
+  public final static native int wrapper_load_row(long stmt, int count, int[] types, long[] longs, double[] doubles);
+
   public final static native int sqlite3_intarray_register(long db, long[] ppIntarrayModule);
 
   public final static native int sqlite3_intarray_create(long module, String name, long[] ppIntarray);
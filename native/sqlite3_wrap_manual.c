@@ -19,6 +19,12 @@
 #include "intarray.h"
 #include <sqlite3.h>
 
+#ifdef SQLITE_OS_WIN
+#include <windows.h>
+#else
+#include <time.h>
+#endif
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -29,9 +35,10 @@ JNIEXPORT jstring JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrappe
 }
 
 JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_sqlite3_1open_1v2(JNIEnv *jenv, jclass jcls,
-  jstring jfilename, jlongArray jresult, jint jflags, jobjectArray joutError)
+  jstring jfilename, jlongArray jresult, jint jflags, jstring jvfs, jobjectArray joutError)
 {
   const char *filename = 0;
+  const char *vfs = 0;
   sqlite3* db = 0;
   int rc = 0;
   jlong r = 0;
@@ -42,9 +49,16 @@ JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_sqlite3_1
   if (!jresult) return WRAPPER_INVALID_ARG_2;
   filename = (*jenv)->GetStringUTFChars(jenv, jfilename, 0);
   if (!filename) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  if (jvfs) {
+    vfs = (*jenv)->GetStringUTFChars(jenv, jvfs, 0);
+    if (!vfs) {
+      (*jenv)->ReleaseStringUTFChars(jenv, jfilename, filename);
+      return WRAPPER_CANNOT_TRANSFORM_STRING;
+    }
+  }
 
   // todo(maybe) call jresult's getBytes("UTF-8") method to get filename in correct UTF-8
-  rc = sqlite3_open_v2(filename, &db, (int)jflags, 0);
+  rc = sqlite3_open_v2(filename, &db, (int)jflags, vfs);
 
   if (rc != SQLITE_OK) {
     errmsg = sqlite3_errmsg(db);
@@ -65,6 +79,7 @@ JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_sqlite3_1
     *((sqlite3**)&r) = db;
     (*jenv)->SetLongArrayRegion(jenv, jresult, 0, 1, &r);
   }
+  if (vfs) (*jenv)->ReleaseStringUTFChars(jenv, jvfs, vfs);
   (*jenv)->ReleaseStringUTFChars(jenv, jfilename, filename);
   return rc;
 }
@@ -576,6 +591,60 @@ void bind_release(void *ptr) {
   }
 }
 
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1bind_1buffers(JNIEnv *jenv, jclass jcls,
+  jlong jstmt, jint jindex, jlongArray jbuffers, jintArray jlengths, jint jcount)
+{
+  sqlite3_stmt *stmt = *(sqlite3_stmt**)&jstmt;
+  jlong *buffers = 0;
+  jint *lengths = 0;
+  unsigned char *buffer = 0;
+  unsigned char *result = 0;
+  sqlite3_uint64 total = 0;
+  sqlite3_uint64 position = 0;
+  int rc = 0;
+  int i = 0;
+
+  if (!stmt) return WRAPPER_INVALID_ARG_1;
+  if (!jbuffers) return WRAPPER_INVALID_ARG_2;
+  if (!jlengths) return WRAPPER_INVALID_ARG_3;
+  if (jcount < 0 || (*jenv)->GetArrayLength(jenv, jbuffers) < jcount || (*jenv)->GetArrayLength(jenv, jlengths) < jcount) return WRAPPER_INVALID_ARG_4;
+
+  buffers = (*jenv)->GetLongArrayElements(jenv, jbuffers, 0);
+  if (!buffers) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  lengths = (*jenv)->GetIntArrayElements(jenv, jlengths, 0);
+  if (!lengths) {
+    (*jenv)->ReleaseLongArrayElements(jenv, jbuffers, buffers, JNI_ABORT);
+    return WRAPPER_CANNOT_TRANSFORM_STRING;
+  }
+
+  for (i = 0; i < jcount; i++) {
+    if (!buffers[i] || lengths[i] < 0) {
+      rc = WRAPPER_INVALID_ARG_4;
+      break;
+    }
+    total += (sqlite3_uint64)lengths[i];
+  }
+
+  if (rc == SQLITE_OK) {
+    // gather all segments into a single block, owned by sqlite from now on
+    result = (unsigned char*)sqlite3_malloc64(total > 0 ? total : 1);
+    if (!result) {
+      rc = WRAPPER_OUT_OF_MEMORY;
+    } else {
+      for (i = 0; i < jcount; i++) {
+        buffer = *(unsigned char**)&buffers[i];
+        memcpy(result + position, buffer + 2, (size_t)lengths[i]);
+        position += (sqlite3_uint64)lengths[i];
+      }
+      rc = sqlite3_bind_blob64(stmt, jindex, (const void*)result, total, sqlite3_free);
+    }
+  }
+
+  (*jenv)->ReleaseIntArrayElements(jenv, jlengths, lengths, JNI_ABORT);
+  (*jenv)->ReleaseLongArrayElements(jenv, jbuffers, buffers, JNI_ABORT);
+  return rc;
+}
+
 JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1column_1buffer(JNIEnv *jenv, jclass jcls,
   jlong jstmt, jint jcolumn, jobjectArray joutBuffer)
 {
@@ -607,6 +676,1294 @@ JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1
 }
 
 
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1column_1text_1buffer(JNIEnv *jenv, jclass jcls,
+  jlong jstmt, jint jcolumn, jobjectArray joutBuffer)
+{
+  sqlite3_stmt* stmt = *(sqlite3_stmt**)&jstmt;
+  const unsigned char *value = 0;
+  sqlite3* db = 0;
+  int err = 0;
+  int length = 0;
+  jobject result = 0;
+
+  if (!stmt) return WRAPPER_INVALID_ARG_1;
+  if (!joutBuffer) return WRAPPER_INVALID_ARG_3;
+
+  // sqlite3_column_text always returns UTF-8, regardless of database encoding
+  value = sqlite3_column_text(stmt, jcolumn);
+  if (!value) {
+    // maybe we're out of memory
+    db = sqlite3_db_handle(stmt);
+    if (!db) return WRAPPER_WEIRD;
+    err = sqlite3_errcode(db);
+    if (err == SQLITE_NOMEM) return err;
+  } else {
+    length = sqlite3_column_bytes(stmt, jcolumn);
+    if (length < 0) return WRAPPER_WEIRD_2;
+    result = (*jenv)->NewDirectByteBuffer(jenv, (void*)value, length);
+    if (!result) return WRAPPER_CANNOT_ALLOCATE_STRING;
+  }
+  (*jenv)->SetObjectArrayElement(jenv, joutBuffer, 0, result);
+  return SQLITE_OK;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1column_1text_1lookup(JNIEnv *jenv, jclass jcls,
+  jlong jstmt, jint jcolumn, jobjectArray jkeys, jint jprobes, jint jmaxLength, jintArray jresult)
+{
+  sqlite3_stmt* stmt = *(sqlite3_stmt**)&jstmt;
+  const unsigned char *value = 0;
+  sqlite3* db = 0;
+  int err = 0;
+  int length = -1;
+  unsigned int hash = 2166136261u;
+  int mask = 0;
+  int slot = -1;
+  int i = 0;
+  int k = 0;
+  jbyteArray key = 0;
+  void *keyPtr = 0;
+  jint result[3] = {0, -1, -1}; // hash, length, matching slot
+
+  if (!stmt) return WRAPPER_INVALID_ARG_1;
+  if (!jkeys) return WRAPPER_INVALID_ARG_3;
+  if (!jresult || (*jenv)->GetArrayLength(jenv, jresult) < 3) return WRAPPER_INVALID_ARG_4;
+
+  value = sqlite3_column_text(stmt, jcolumn);
+  if (!value) {
+    // maybe we're out of memory
+    db = sqlite3_db_handle(stmt);
+    if (!db) return WRAPPER_WEIRD;
+    err = sqlite3_errcode(db);
+    if (err == SQLITE_NOMEM) return err;
+    if (sqlite3_column_type(stmt, jcolumn) != SQLITE_NULL) length = 0;
+  } else {
+    length = sqlite3_column_bytes(stmt, jcolumn);
+    if (length < 0) return WRAPPER_WEIRD_2;
+  }
+  result[1] = length;
+
+  if (length >= 0 && length <= jmaxLength) {
+    // FNV-1a
+    for (i = 0; i < length; i++) {
+      hash ^= value[i];
+      hash *= 16777619u;
+    }
+    result[0] = (jint)hash;
+    mask = (*jenv)->GetArrayLength(jenv, jkeys) - 1;
+    for (k = 0; k < jprobes && slot < 0 && mask >= 0; k++) {
+      i = (int)((hash + k) & (unsigned int)mask);
+      key = (jbyteArray)(*jenv)->GetObjectArrayElement(jenv, jkeys, i);
+      if (!key) continue;
+      if ((*jenv)->GetArrayLength(jenv, key) == length) {
+        keyPtr = (*jenv)->GetPrimitiveArrayCritical(jenv, key, 0);
+        if (!keyPtr) {
+          (*jenv)->DeleteLocalRef(jenv, key);
+          return WRAPPER_CANNOT_TRANSFORM_STRING;
+        }
+        if (length == 0 || memcmp(keyPtr, value, length) == 0) slot = i;
+        (*jenv)->ReleasePrimitiveArrayCritical(jenv, key, keyPtr, JNI_ABORT);
+      }
+      (*jenv)->DeleteLocalRef(jenv, key);
+    }
+    result[2] = slot;
+  }
+
+  (*jenv)->SetIntArrayRegion(jenv, jresult, 0, 3, result);
+  return SQLITE_OK;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1status64(JNIEnv *jenv, jclass jcls,
+  jint op, jint reset, jlongArray jresult)
+{
+  sqlite3_int64 cur = 0;
+  sqlite3_int64 hiwtr = 0;
+  jlong values[2];
+  int rc = 0;
+
+  if (!jresult) return WRAPPER_INVALID_ARG_3;
+  if ((*jenv)->GetArrayLength(jenv, jresult) < 2) return WRAPPER_INVALID_ARG_3;
+
+  rc = sqlite3_status64(op, &cur, &hiwtr, reset ? 1 : 0);
+  if (rc != SQLITE_OK) return rc;
+
+  values[0] = (jlong)cur;
+  values[1] = (jlong)hiwtr;
+  (*jenv)->SetLongArrayRegion(jenv, jresult, 0, 2, values);
+  return SQLITE_OK;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1config_1mmap_1size(JNIEnv *jenv, jclass jcls,
+  jlong defaultSize, jlong maxSize)
+{
+  return sqlite3_config(SQLITE_CONFIG_MMAP_SIZE, (sqlite3_int64)defaultSize, (sqlite3_int64)maxSize);
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1config(JNIEnv *jenv, jclass jcls,
+  jint op, jint a, jint b)
+{
+  // sqlite3_config is variadic, so each supported option is called with its own argument types
+  switch (op) {
+  case SQLITE_CONFIG_LOOKASIDE:
+    if (a < 0) return WRAPPER_INVALID_ARG_2;
+    if (b < 0) return WRAPPER_INVALID_ARG_3;
+    return sqlite3_config(op, (int)a, (int)b);
+  case SQLITE_CONFIG_PAGECACHE:
+    // with a null buffer, SQLite allocates the pool itself
+    if (a < 0) return WRAPPER_INVALID_ARG_2;
+    if (b < 0) return WRAPPER_INVALID_ARG_3;
+    return sqlite3_config(op, (void*)0, (int)a, (int)b);
+  case SQLITE_CONFIG_MEMSTATUS:
+    return sqlite3_config(op, (int)a);
+  case SQLITE_CONFIG_MULTITHREAD:
+  case SQLITE_CONFIG_SERIALIZED:
+    return sqlite3_config(op);
+  default:
+    return WRAPPER_INVALID_ARG_1;
+  }
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1db_1config_1lookaside(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jint size, jint count)
+{
+  sqlite3* db = 0;
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (size < 0) return WRAPPER_INVALID_ARG_2;
+  if (count < 0) return WRAPPER_INVALID_ARG_3;
+  db = *(sqlite3**)&jdb;
+  return sqlite3_db_config(db, SQLITE_DBCONFIG_LOOKASIDE, (void*)0, (int)size, (int)count);
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1db_1has_1mutex(JNIEnv *jenv, jclass jcls,
+  jlong jdb)
+{
+  sqlite3* db = 0;
+  if (!jdb) return 0;
+  db = *(sqlite3**)&jdb;
+  return sqlite3_db_mutex(db) != 0 ? 1 : 0;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1serialize(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jstring jschema, jobject jbuffer, jlongArray jsize)
+{
+  sqlite3* db = 0;
+  const char *schema = 0;
+  unsigned char *data = 0;
+  unsigned char *target = 0;
+  sqlite3_int64 size = -1;
+  jlong result = 0;
+  int rc = SQLITE_OK;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (!jsize || (*jenv)->GetArrayLength(jenv, jsize) < 1) return WRAPPER_INVALID_ARG_4;
+  if (jbuffer) {
+    target = (unsigned char*)(*jenv)->GetDirectBufferAddress(jenv, jbuffer);
+    if (!target) return WRAPPER_INVALID_ARG_3;
+  }
+  db = *(sqlite3**)&jdb;
+  if (jschema) {
+    schema = (*jenv)->GetStringUTFChars(jenv, jschema, 0);
+    if (!schema) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  }
+
+  // without copying, the size is reported for any database, and the data is returned only for in-memory ones
+  data = sqlite3_serialize(db, schema, &size, SQLITE_SERIALIZE_NOCOPY);
+  if (size < 0) {
+    rc = SQLITE_ERROR;
+  } else if (target) {
+    if ((*jenv)->GetDirectBufferCapacity(jenv, jbuffer) < size) {
+      rc = WRAPPER_INVALID_ARG_3;
+    } else if (data) {
+      memcpy(target, data, (size_t)size);
+    } else if (size > 0) {
+      // the database may have grown since the size was read, unless the caller holds a read transaction
+      data = sqlite3_serialize(db, schema, &size, 0);
+      if (!data) {
+        rc = SQLITE_NOMEM;
+      } else {
+        if ((*jenv)->GetDirectBufferCapacity(jenv, jbuffer) < size) {
+          rc = WRAPPER_BUFFER_TOO_SMALL;
+        } else {
+          memcpy(target, data, (size_t)size);
+        }
+        sqlite3_free(data);
+      }
+    }
+  }
+  if (schema) (*jenv)->ReleaseStringUTFChars(jenv, jschema, schema);
+  result = (jlong)size;
+  (*jenv)->SetLongArrayRegion(jenv, jsize, 0, 1, &result);
+  return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1deserialize(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jstring jschema, jobject jbuffer, jbyteArray jarray, jint offset, jint length, jint copy, jint readOnly)
+{
+  sqlite3* db = 0;
+  const char *schema = 0;
+  unsigned char *source = 0;
+  unsigned char *data = 0;
+  unsigned int flags = readOnly ? SQLITE_DESERIALIZE_READONLY : 0;
+  int rc = SQLITE_OK;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (!jbuffer && !jarray) return WRAPPER_INVALID_ARG_3;
+  if (offset < 0 || length < 0) return WRAPPER_INVALID_ARG_5;
+  if (jbuffer) {
+    source = (unsigned char*)(*jenv)->GetDirectBufferAddress(jenv, jbuffer);
+    if (!source) return WRAPPER_INVALID_ARG_3;
+    if ((*jenv)->GetDirectBufferCapacity(jenv, jbuffer) < (jlong)offset + length) return WRAPPER_INVALID_ARG_6;
+    source += offset;
+  } else {
+    if ((*jenv)->GetArrayLength(jenv, jarray) < (jlong)offset + length) return WRAPPER_INVALID_ARG_6;
+    // byte arrays may be moved by the garbage collector, so they are always copied
+    copy = 1;
+  }
+  if (!copy && !readOnly) return WRAPPER_INVALID_ARG_8;
+
+  db = *(sqlite3**)&jdb;
+  if (jschema) {
+    schema = (*jenv)->GetStringUTFChars(jenv, jschema, 0);
+    if (!schema) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  }
+  if (copy) {
+    // SQLite takes ownership of the copy and may grow it unless the database is read-only
+    data = (unsigned char*)sqlite3_malloc64(length > 0 ? (sqlite3_uint64)length : 1);
+    if (!data) {
+      rc = WRAPPER_OUT_OF_MEMORY;
+    } else {
+      if (source) {
+        memcpy(data, source, (size_t)length);
+      } else {
+        (*jenv)->GetByteArrayRegion(jenv, jarray, offset, length, (jbyte*)data);
+      }
+      flags |= SQLITE_DESERIALIZE_FREEONCLOSE;
+      if (!readOnly) flags |= SQLITE_DESERIALIZE_RESIZEABLE;
+      // on failure, SQLite frees the copy because of FREEONCLOSE
+      rc = sqlite3_deserialize(db, schema, data, length, length, flags);
+    }
+  } else {
+    rc = sqlite3_deserialize(db, schema, source, length, length, flags);
+  }
+  if (schema) (*jenv)->ReleaseStringUTFChars(jenv, jschema, schema);
+  return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1db_1status(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jint reset, jintArray jresult)
+{
+  sqlite3* db = 0;
+  jint values[2 * (SQLITE_DBSTATUS_MAX + 1)];
+  int op = 0;
+  int cur = 0;
+  int hiwtr = 0;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (!jresult) return WRAPPER_INVALID_ARG_3;
+  if ((*jenv)->GetArrayLength(jenv, jresult) < 2 * (SQLITE_DBSTATUS_MAX + 1)) return WRAPPER_INVALID_ARG_3;
+  db = *(sqlite3**)&jdb;
+
+  for (op = 0; op <= SQLITE_DBSTATUS_MAX; op++) {
+    cur = 0;
+    hiwtr = 0;
+    if (sqlite3_db_status(db, op, &cur, &hiwtr, reset ? 1 : 0) != SQLITE_OK) {
+      cur = -1;
+      hiwtr = -1;
+    }
+    values[2 * op] = cur;
+    values[2 * op + 1] = hiwtr;
+  }
+
+  (*jenv)->SetIntArrayRegion(jenv, jresult, 0, 2 * (SQLITE_DBSTATUS_MAX + 1), values);
+  return SQLITE_OK;
+}
+
+
+/*
+ * I/O statistics VFS: a pass-through shim over another VFS, which counts reads, writes and syncs of the main
+ * database file, the rollback journal and the WAL, as well as pages served with memory-mapped I/O, and records
+ * their latencies in log-linear histograms with the same bucket layout as SQLiteHistogram. Statistics are shared
+ * by all files of the same database and are kept while at least one of them is open. Temporary files are not
+ * counted.
+ *
+ * A shim may also inject faults: configurable latency, rare long stalls and errors on reads, writes, syncs and
+ * lock requests. Random decisions use a seeded generator, so a single-threaded workload is reproducible.
+ * Injected latency happens inside the measured interval, as if the disk was slow.
+ */
+
+#define IOSTAT_KINDS 3
+#define IOSTAT_OPS 4
+#define IOSTAT_SUB_BUCKET_BITS 3
+#define IOSTAT_SUB_BUCKETS (1 << IOSTAT_SUB_BUCKET_BITS)
+#define IOSTAT_MAX_EXPONENT 40
+#define IOSTAT_BUCKETS ((IOSTAT_MAX_EXPONENT - IOSTAT_SUB_BUCKET_BITS + 2) * IOSTAT_SUB_BUCKETS)
+// count, bytes, total nanos, min nanos, max nanos, then histogram buckets
+#define IOSTAT_HEADER 5
+#define IOSTAT_OP_LONGS (IOSTAT_HEADER + IOSTAT_BUCKETS)
+#define IOSTAT_LONGS (IOSTAT_KINDS * IOSTAT_OPS * IOSTAT_OP_LONGS)
+
+#define IOSTAT_READ 0
+#define IOSTAT_WRITE 1
+#define IOSTAT_SYNC 2
+// pages served with memory-mapped I/O
+#define IOSTAT_FETCH 3
+
+#define FAULT_LOCK 3
+
+// seed, file kinds mask, then for each op: base micros, jitter micros, stall ppm, stall micros, error ppm, error code
+#define FAULT_OPS 4
+#define FAULT_HEADER 2
+#define FAULT_OP_LONGS 6
+#define FAULT_CONFIG_LONGS (FAULT_HEADER + FAULT_OPS * FAULT_OP_LONGS)
+// for each op: delayed operations, stalls, errors
+#define FAULT_COUNTERS (FAULT_OPS * 3)
+
+#define IOSTAT_PARENT(vfs) (((iostat_vfs_data*)((vfs)->pAppData))->parent)
+
+typedef struct iostat_db {
+  struct iostat_db *next;
+  char *path;
+  int refs;
+  sqlite3_mutex *mutex;
+  sqlite3_int64 values[IOSTAT_LONGS];
+} iostat_db;
+
+typedef struct fault_state {
+  sqlite3_mutex *mutex;
+  sqlite3_uint64 random;
+  sqlite3_int64 config[FAULT_CONFIG_LONGS];
+  sqlite3_int64 counters[FAULT_COUNTERS];
+} fault_state;
+
+typedef struct iostat_vfs_data {
+  sqlite3_vfs *parent;
+  fault_state *faults;
+} iostat_vfs_data;
+
+typedef struct iostat_file {
+  sqlite3_file base;
+  sqlite3_io_methods methods;
+  sqlite3_file *real;
+  sqlite3_vfs *parent;
+  fault_state *faults;
+  iostat_db *db;
+  int kind;
+} iostat_file;
+
+// protected by SQLITE_MUTEX_STATIC_APP1
+static iostat_db *iostat_dbs = 0;
+
+static sqlite3_int64 iostat_nanos(void) {
+#ifdef SQLITE_OS_WIN
+  LARGE_INTEGER frequency;
+  LARGE_INTEGER counter;
+  QueryPerformanceFrequency(&frequency);
+  QueryPerformanceCounter(&counter);
+  return (sqlite3_int64)((double)counter.QuadPart * 1000000000.0 / (double)frequency.QuadPart);
+#else
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (sqlite3_int64)ts.tv_sec * 1000000000 + ts.tv_nsec;
+#endif
+}
+
+static int iostat_bucket(sqlite3_int64 value) {
+  int exponent = 0;
+  int sub = 0;
+  if (value < IOSTAT_SUB_BUCKETS) return (int)value;
+  while ((value >> (exponent + 1)) != 0) exponent++;
+  if (exponent > IOSTAT_MAX_EXPONENT) return IOSTAT_BUCKETS - 1;
+  sub = (int)(value >> (exponent - IOSTAT_SUB_BUCKET_BITS)) & (IOSTAT_SUB_BUCKETS - 1);
+  return (exponent - IOSTAT_SUB_BUCKET_BITS + 1) * IOSTAT_SUB_BUCKETS + sub;
+}
+
+static iostat_db *iostat_acquire(const char *path) {
+  sqlite3_mutex *mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_STATIC_APP1);
+  iostat_db *db = 0;
+  sqlite3_mutex_enter(mutex);
+  for (db = iostat_dbs; db; db = db->next) {
+    if (strcmp(db->path, path) == 0) break;
+  }
+  if (db) {
+    db->refs++;
+  } else {
+    db = (iostat_db*)sqlite3_malloc(sizeof(iostat_db));
+    if (db) {
+      memset(db, 0, sizeof(iostat_db));
+      db->path = sqlite3_mprintf("%s", path);
+      if (!db->path) {
+        sqlite3_free(db);
+        db = 0;
+      } else {
+        db->mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_FAST);
+        db->refs = 1;
+        db->next = iostat_dbs;
+        iostat_dbs = db;
+      }
+    }
+  }
+  sqlite3_mutex_leave(mutex);
+  return db;
+}
+
+static void iostat_release(iostat_db *db) {
+  sqlite3_mutex *mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_STATIC_APP1);
+  iostat_db **p = 0;
+  sqlite3_mutex_enter(mutex);
+  if (--db->refs == 0) {
+    for (p = &iostat_dbs; *p; p = &(*p)->next) {
+      if (*p == db) {
+        *p = db->next;
+        break;
+      }
+    }
+  } else {
+    db = 0;
+  }
+  sqlite3_mutex_leave(mutex);
+  if (db) {
+    sqlite3_mutex_free(db->mutex);
+    sqlite3_free(db->path);
+    sqlite3_free(db);
+  }
+}
+
+static void iostat_record(iostat_file *f, int op, int bytes, sqlite3_int64 nanos) {
+  sqlite3_int64 *v = 0;
+  if (!f->db) return;
+  if (nanos < 0) nanos = 0;
+  v = f->db->values + (f->kind * IOSTAT_OPS + op) * IOSTAT_OP_LONGS;
+  sqlite3_mutex_enter(f->db->mutex);
+  v[0]++;
+  v[1] += bytes;
+  v[2] += nanos;
+  if (v[0] == 1 || nanos < v[3]) v[3] = nanos;
+  if (nanos > v[4]) v[4] = nanos;
+  v[IOSTAT_HEADER + iostat_bucket(nanos)]++;
+  sqlite3_mutex_leave(f->db->mutex);
+}
+
+static sqlite3_uint64 fault_random(fault_state *faults) {
+  // xorshift64*
+  sqlite3_uint64 x = faults->random;
+  x ^= x >> 12;
+  x ^= x << 25;
+  x ^= x >> 27;
+  faults->random = x;
+  return x * 2685821657736338717ULL;
+}
+
+static void fault_seed(fault_state *faults, sqlite3_int64 seed) {
+  faults->random = seed ? (sqlite3_uint64)seed : 88172645463325252ULL;
+}
+
+/*
+ * Applies the configured latency and decides whether the operation should fail.
+ * Returns SQLITE_OK if the operation should be performed, or the error code to return instead.
+ */
+static int fault_inject(iostat_file *f, int op) {
+  fault_state *faults = f->faults;
+  sqlite3_int64 *c = 0;
+  sqlite3_int64 micros = 0;
+  int rc = SQLITE_OK;
+
+  if (!faults || f->kind < 0) return SQLITE_OK;
+  sqlite3_mutex_enter(faults->mutex);
+  if (faults->config[1] & (1 << f->kind)) {
+    c = faults->config + FAULT_HEADER + op * FAULT_OP_LONGS;
+    micros = c[0];
+    if (c[1] > 0) micros += (sqlite3_int64)(fault_random(faults) % (sqlite3_uint64)c[1]);
+    if (c[2] > 0 && (sqlite3_int64)(fault_random(faults) % 1000000) < c[2]) {
+      micros += c[3];
+      faults->counters[op * 3 + 1]++;
+    }
+    if (c[4] > 0 && (sqlite3_int64)(fault_random(faults) % 1000000) < c[4]) {
+      rc = (int)c[5];
+      faults->counters[op * 3 + 2]++;
+    }
+    if (micros > 0) faults->counters[op * 3]++;
+  }
+  sqlite3_mutex_leave(faults->mutex);
+  while (micros > 0) {
+    int chunk = micros > 1000000000 ? 1000000000 : (int)micros;
+    f->parent->xSleep(f->parent, chunk);
+    micros -= chunk;
+  }
+  return rc;
+}
+
+static int iostat_close(sqlite3_file *file) {
+  iostat_file *f = (iostat_file*)file;
+  int rc = f->real->pMethods->xClose(f->real);
+  if (f->db) {
+    iostat_release(f->db);
+    f->db = 0;
+  }
+  return rc;
+}
+
+static int iostat_read(sqlite3_file *file, void *buf, int amount, sqlite3_int64 offset) {
+  iostat_file *f = (iostat_file*)file;
+  sqlite3_int64 from = iostat_nanos();
+  int rc = fault_inject(f, IOSTAT_READ);
+  if (rc == SQLITE_OK) rc = f->real->pMethods->xRead(f->real, buf, amount, offset);
+  iostat_record(f, IOSTAT_READ, amount, iostat_nanos() - from);
+  return rc;
+}
+
+static int iostat_write(sqlite3_file *file, const void *buf, int amount, sqlite3_int64 offset) {
+  iostat_file *f = (iostat_file*)file;
+  sqlite3_int64 from = iostat_nanos();
+  int rc = fault_inject(f, IOSTAT_WRITE);
+  if (rc == SQLITE_OK) rc = f->real->pMethods->xWrite(f->real, buf, amount, offset);
+  iostat_record(f, IOSTAT_WRITE, amount, iostat_nanos() - from);
+  return rc;
+}
+
+static int iostat_truncate(sqlite3_file *file, sqlite3_int64 size) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xTruncate(f->real, size);
+}
+
+static int iostat_sync(sqlite3_file *file, int flags) {
+  iostat_file *f = (iostat_file*)file;
+  sqlite3_int64 from = iostat_nanos();
+  int rc = fault_inject(f, IOSTAT_SYNC);
+  if (rc == SQLITE_OK) rc = f->real->pMethods->xSync(f->real, flags);
+  iostat_record(f, IOSTAT_SYNC, 0, iostat_nanos() - from);
+  return rc;
+}
+
+static int iostat_file_size(sqlite3_file *file, sqlite3_int64 *size) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xFileSize(f->real, size);
+}
+
+static int iostat_lock(sqlite3_file *file, int lock) {
+  iostat_file *f = (iostat_file*)file;
+  int rc = fault_inject(f, FAULT_LOCK);
+  return rc == SQLITE_OK ? f->real->pMethods->xLock(f->real, lock) : rc;
+}
+
+static int iostat_unlock(sqlite3_file *file, int lock) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xUnlock(f->real, lock);
+}
+
+static int iostat_check_reserved_lock(sqlite3_file *file, int *result) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xCheckReservedLock(f->real, result);
+}
+
+static int iostat_file_control(sqlite3_file *file, int op, void *arg) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xFileControl(f->real, op, arg);
+}
+
+static int iostat_sector_size(sqlite3_file *file) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xSectorSize(f->real);
+}
+
+static int iostat_device_characteristics(sqlite3_file *file) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xDeviceCharacteristics(f->real);
+}
+
+static int iostat_shm_map(sqlite3_file *file, int region, int size, int extend, void volatile **p) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xShmMap(f->real, region, size, extend, p);
+}
+
+static int iostat_shm_lock(sqlite3_file *file, int offset, int n, int flags) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xShmLock(f->real, offset, n, flags);
+}
+
+static void iostat_shm_barrier(sqlite3_file *file) {
+  iostat_file *f = (iostat_file*)file;
+  f->real->pMethods->xShmBarrier(f->real);
+}
+
+static int iostat_shm_unmap(sqlite3_file *file, int deleteFlag) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xShmUnmap(f->real, deleteFlag);
+}
+
+static int iostat_fetch(sqlite3_file *file, sqlite3_int64 offset, int amount, void **p) {
+  iostat_file *f = (iostat_file*)file;
+  sqlite3_int64 from = iostat_nanos();
+  int rc = f->real->pMethods->xFetch(f->real, offset, amount, p);
+  // when the page is not mapped, SQLite falls back to xRead, which is counted separately
+  if (rc == SQLITE_OK && *p) iostat_record(f, IOSTAT_FETCH, amount, iostat_nanos() - from);
+  return rc;
+}
+
+static int iostat_unfetch(sqlite3_file *file, sqlite3_int64 offset, void *p) {
+  iostat_file *f = (iostat_file*)file;
+  return f->real->pMethods->xUnfetch(f->real, offset, p);
+}
+
+static const sqlite3_io_methods iostat_io_methods = {
+  3,
+  iostat_close,
+  iostat_read,
+  iostat_write,
+  iostat_truncate,
+  iostat_sync,
+  iostat_file_size,
+  iostat_lock,
+  iostat_unlock,
+  iostat_check_reserved_lock,
+  iostat_file_control,
+  iostat_sector_size,
+  iostat_device_characteristics,
+  iostat_shm_map,
+  iostat_shm_lock,
+  iostat_shm_barrier,
+  iostat_shm_unmap,
+  iostat_fetch,
+  iostat_unfetch
+};
+
+static int iostat_open(sqlite3_vfs *vfs, sqlite3_filename name, sqlite3_file *file, int flags, int *outFlags) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  iostat_file *f = (iostat_file*)file;
+  const char *dbname = 0;
+  int kind = -1;
+  int rc = 0;
+
+  memset(f, 0, sizeof(iostat_file));
+  f->real = (sqlite3_file*)&f[1];
+  f->parent = parent;
+  f->faults = ((iostat_vfs_data*)vfs->pAppData)->faults;
+  f->kind = -1;
+  rc = parent->xOpen(parent, name, f->real, flags, outFlags);
+  if (!f->real->pMethods) {
+    file->pMethods = 0;
+    return rc;
+  }
+  if (rc == SQLITE_OK && name) {
+    if (flags & SQLITE_OPEN_MAIN_DB) {
+      kind = 0;
+      dbname = name;
+    } else if (flags & SQLITE_OPEN_MAIN_JOURNAL) {
+      kind = 1;
+      dbname = sqlite3_filename_database(name);
+    } else if (flags & SQLITE_OPEN_WAL) {
+      kind = 2;
+      dbname = sqlite3_filename_database(name);
+    }
+    if (kind >= 0 && dbname) {
+      f->db = iostat_acquire(dbname);
+    }
+    f->kind = kind;
+  }
+  f->methods = iostat_io_methods;
+  if (f->real->pMethods->iVersion < f->methods.iVersion) f->methods.iVersion = f->real->pMethods->iVersion;
+  file->pMethods = &f->methods;
+  return rc;
+}
+
+static int iostat_delete(sqlite3_vfs *vfs, const char *name, int syncDir) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xDelete(parent, name, syncDir);
+}
+
+static int iostat_access(sqlite3_vfs *vfs, const char *name, int flags, int *result) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xAccess(parent, name, flags, result);
+}
+
+static int iostat_full_pathname(sqlite3_vfs *vfs, const char *name, int n, char *out) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xFullPathname(parent, name, n, out);
+}
+
+static void *iostat_dl_open(sqlite3_vfs *vfs, const char *name) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xDlOpen(parent, name);
+}
+
+static void iostat_dl_error(sqlite3_vfs *vfs, int n, char *message) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  parent->xDlError(parent, n, message);
+}
+
+static void (*iostat_dl_sym(sqlite3_vfs *vfs, void *handle, const char *symbol))(void) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xDlSym(parent, handle, symbol);
+}
+
+static void iostat_dl_close(sqlite3_vfs *vfs, void *handle) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  parent->xDlClose(parent, handle);
+}
+
+static int iostat_randomness(sqlite3_vfs *vfs, int n, char *out) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xRandomness(parent, n, out);
+}
+
+static int iostat_sleep(sqlite3_vfs *vfs, int micros) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xSleep(parent, micros);
+}
+
+static int iostat_current_time(sqlite3_vfs *vfs, double *now) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xCurrentTime(parent, now);
+}
+
+static int iostat_get_last_error(sqlite3_vfs *vfs, int n, char *out) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  return parent->xGetLastError ? parent->xGetLastError(parent, n, out) : 0;
+}
+
+static int iostat_current_time_int64(sqlite3_vfs *vfs, sqlite3_int64 *now) {
+  sqlite3_vfs *parent = IOSTAT_PARENT(vfs);
+  if (parent->iVersion >= 2 && parent->xCurrentTimeInt64) return parent->xCurrentTimeInt64(parent, now);
+  else {
+    double d = 0;
+    int rc = parent->xCurrentTime(parent, &d);
+    *now = (sqlite3_int64)(d * 86400000.0);
+    return rc;
+  }
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1register_1iostat_1vfs(JNIEnv *jenv, jclass jcls,
+  jstring jname, jstring jparent, jint makeDefault, jint withFaults)
+{
+  const char *name = 0;
+  const char *parentName = 0;
+  sqlite3_vfs *parent = 0;
+  sqlite3_vfs *vfs = 0;
+  iostat_vfs_data *data = 0;
+  fault_state *faults = 0;
+  size_t size = 0;
+  int rc = 0;
+
+  if (!jname) return WRAPPER_INVALID_ARG_1;
+  name = (*jenv)->GetStringUTFChars(jenv, jname, 0);
+  if (!name) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  if (jparent) {
+    parentName = (*jenv)->GetStringUTFChars(jenv, jparent, 0);
+    if (!parentName) {
+      (*jenv)->ReleaseStringUTFChars(jenv, jname, name);
+      return WRAPPER_CANNOT_TRANSFORM_STRING;
+    }
+  }
+
+  vfs = sqlite3_vfs_find(name);
+  if (vfs) {
+    // already registered
+    if (vfs->xOpen != iostat_open || (withFaults && !((iostat_vfs_data*)vfs->pAppData)->faults)) {
+      rc = SQLITE_MISUSE;
+    } else {
+      rc = makeDefault ? sqlite3_vfs_register(vfs, 1) : SQLITE_OK;
+    }
+  } else {
+    parent = sqlite3_vfs_find(parentName);
+    if (!parent) {
+      rc = SQLITE_NOTFOUND;
+    } else {
+      // vfs, shim data, fault state and the name are allocated in a single chunk that is never freed
+      size = sizeof(sqlite3_vfs) + sizeof(iostat_vfs_data) + sizeof(fault_state) + strlen(name) + 1;
+      vfs = (sqlite3_vfs*)sqlite3_malloc((int)size);
+      if (!vfs) {
+        rc = WRAPPER_OUT_OF_MEMORY;
+      } else {
+        memset(vfs, 0, size);
+        data = (iostat_vfs_data*)&vfs[1];
+        faults = (fault_state*)&data[1];
+        strcpy((char*)&faults[1], name);
+        data->parent = parent;
+        if (withFaults) {
+          faults->mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_FAST);
+          faults->config[1] = (1 << IOSTAT_KINDS) - 1;
+          fault_seed(faults, 0);
+          data->faults = faults;
+        }
+        vfs->iVersion = 2;
+        vfs->szOsFile = (int)sizeof(iostat_file) + parent->szOsFile;
+        vfs->mxPathname = parent->mxPathname;
+        vfs->zName = (const char*)&faults[1];
+        vfs->pAppData = data;
+        vfs->xOpen = iostat_open;
+        vfs->xDelete = iostat_delete;
+        vfs->xAccess = iostat_access;
+        vfs->xFullPathname = iostat_full_pathname;
+        vfs->xDlOpen = iostat_dl_open;
+        vfs->xDlError = iostat_dl_error;
+        vfs->xDlSym = iostat_dl_sym;
+        vfs->xDlClose = iostat_dl_close;
+        vfs->xRandomness = iostat_randomness;
+        vfs->xSleep = iostat_sleep;
+        vfs->xCurrentTime = iostat_current_time;
+        vfs->xGetLastError = iostat_get_last_error;
+        vfs->xCurrentTimeInt64 = iostat_current_time_int64;
+        rc = sqlite3_vfs_register(vfs, makeDefault ? 1 : 0);
+        if (rc != SQLITE_OK) {
+          if (faults->mutex) sqlite3_mutex_free(faults->mutex);
+          sqlite3_free(vfs);
+        }
+      }
+    }
+  }
+
+  if (parentName) (*jenv)->ReleaseStringUTFChars(jenv, jparent, parentName);
+  (*jenv)->ReleaseStringUTFChars(jenv, jname, name);
+  return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1iostat(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jint reset, jlongArray jresult)
+{
+  sqlite3* db = 0;
+  const char *path = 0;
+  sqlite3_mutex *mutex = 0;
+  iostat_db *p = 0;
+  jlong *values = 0;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (!jresult) return WRAPPER_INVALID_ARG_3;
+  if ((*jenv)->GetArrayLength(jenv, jresult) < IOSTAT_LONGS) return WRAPPER_INVALID_ARG_3;
+  db = *(sqlite3**)&jdb;
+
+  path = sqlite3_db_filename(db, "main");
+  if (!path || !*path) return SQLITE_NOTFOUND;
+  values = (jlong*)sqlite3_malloc(IOSTAT_LONGS * sizeof(jlong));
+  if (!values) return WRAPPER_OUT_OF_MEMORY;
+
+  mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_STATIC_APP1);
+  sqlite3_mutex_enter(mutex);
+  for (p = iostat_dbs; p; p = p->next) {
+    if (strcmp(p->path, path) == 0) break;
+  }
+  if (p) {
+    sqlite3_mutex_enter(p->mutex);
+    memcpy(values, p->values, IOSTAT_LONGS * sizeof(sqlite3_int64));
+    if (reset) memset(p->values, 0, IOSTAT_LONGS * sizeof(sqlite3_int64));
+    sqlite3_mutex_leave(p->mutex);
+  }
+  sqlite3_mutex_leave(mutex);
+
+  if (!p) {
+    sqlite3_free(values);
+    return SQLITE_NOTFOUND;
+  }
+  (*jenv)->SetLongArrayRegion(jenv, jresult, 0, IOSTAT_LONGS, values);
+  sqlite3_free(values);
+  return SQLITE_OK;
+}
+
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1configure_1fault_1vfs(JNIEnv *jenv, jclass jcls,
+  jstring jname, jlongArray jconfig, jlongArray jcounters)
+{
+  const char *name = 0;
+  sqlite3_vfs *vfs = 0;
+  fault_state *faults = 0;
+  jlong config[FAULT_CONFIG_LONGS];
+  jlong counters[FAULT_COUNTERS];
+  int i = 0;
+
+  if (!jname) return WRAPPER_INVALID_ARG_1;
+  if (jconfig && (*jenv)->GetArrayLength(jenv, jconfig) < FAULT_CONFIG_LONGS) return WRAPPER_INVALID_ARG_2;
+  if (jcounters && (*jenv)->GetArrayLength(jenv, jcounters) < FAULT_COUNTERS) return WRAPPER_INVALID_ARG_3;
+  name = (*jenv)->GetStringUTFChars(jenv, jname, 0);
+  if (!name) return WRAPPER_CANNOT_TRANSFORM_STRING;
+  vfs = sqlite3_vfs_find(name);
+  (*jenv)->ReleaseStringUTFChars(jenv, jname, name);
+  if (!vfs || vfs->xOpen != iostat_open) return SQLITE_NOTFOUND;
+  faults = ((iostat_vfs_data*)vfs->pAppData)->faults;
+  if (!faults) return SQLITE_NOTFOUND;
+
+  if (jconfig) {
+    (*jenv)->GetLongArrayRegion(jenv, jconfig, 0, FAULT_CONFIG_LONGS, config);
+  }
+  sqlite3_mutex_enter(faults->mutex);
+  if (jconfig) {
+    for (i = 0; i < FAULT_CONFIG_LONGS; i++) faults->config[i] = (sqlite3_int64)config[i];
+    fault_seed(faults, faults->config[0]);
+    memset(faults->counters, 0, sizeof(faults->counters));
+  }
+  for (i = 0; i < FAULT_COUNTERS; i++) counters[i] = (jlong)faults->counters[i];
+  sqlite3_mutex_leave(faults->mutex);
+  if (jcounters) {
+    (*jenv)->SetLongArrayRegion(jenv, jcounters, 0, FAULT_COUNTERS, counters);
+  }
+  return SQLITE_OK;
+}
+
+/*
+ * Shared page cache: an implementation of sqlite3_pcache_methods2 where pages of all connections are kept under
+ * a single process-wide memory budget. Unpinned pages of all caches are kept in one LRU list, so memory goes to
+ * the pages that were used most recently, regardless of the connection. Each cache still honors its own
+ * cache_size, for which unpinned pages are also linked into a per-cache LRU list, so that both kinds of eviction
+ * take constant time. All operations are protected by a single mutex, like pcache1 with a shared group.
+ */
+
+typedef struct spc_page {
+  sqlite3_pcache_page base;
+  struct spc_cache *cache;
+  struct spc_page *hashNext;
+  struct spc_page *lruPrev;
+  struct spc_page *lruNext;
+  // neighbours in the LRU list of unpinned pages of the same cache
+  struct spc_page *cacheLruPrev;
+  struct spc_page *cacheLruNext;
+  unsigned int key;
+  int pinned;
+} spc_page;
+
+typedef struct spc_cache {
+  int szPage;
+  int szExtra;
+  int purgeable;
+  unsigned int maxPages;
+  unsigned int pageCount;
+  unsigned int hashSize;
+  spc_page **hash;
+  // sentinel of the LRU list of unpinned pages of this cache, most recently used first
+  spc_page lru;
+} spc_cache;
+
+static struct {
+  int installed;
+  sqlite3_mutex *mutex;
+  // sentinel of the LRU list of unpinned pages, most recently used first
+  spc_page lru;
+  sqlite3_int64 budget;
+  sqlite3_int64 usedBytes;
+  sqlite3_int64 pageCount;
+  sqlite3_int64 pinnedCount;
+  sqlite3_int64 cacheCount;
+  sqlite3_int64 hits;
+  sqlite3_int64 misses;
+  sqlite3_int64 evictions;
+} spc;
+
+#define SPC_STATS 8
+
+static sqlite3_int64 spc_page_bytes(spc_cache *cache) {
+  return (sqlite3_int64)(sizeof(spc_page) + cache->szPage + cache->szExtra);
+}
+
+static void spc_lru_remove(spc_page *page) {
+  page->lruPrev->lruNext = page->lruNext;
+  page->lruNext->lruPrev = page->lruPrev;
+  page->lruPrev = page->lruNext = 0;
+  page->cacheLruPrev->cacheLruNext = page->cacheLruNext;
+  page->cacheLruNext->cacheLruPrev = page->cacheLruPrev;
+  page->cacheLruPrev = page->cacheLruNext = 0;
+}
+
+static void spc_lru_add(spc_page *page) {
+  spc_page *head = &page->cache->lru;
+  page->lruNext = spc.lru.lruNext;
+  page->lruPrev = &spc.lru;
+  spc.lru.lruNext->lruPrev = page;
+  spc.lru.lruNext = page;
+  page->cacheLruNext = head->cacheLruNext;
+  page->cacheLruPrev = head;
+  head->cacheLruNext->cacheLruPrev = page;
+  head->cacheLruNext = page;
+}
+
+static void spc_hash_remove(spc_page *page) {
+  spc_cache *cache = page->cache;
+  spc_page **p = &cache->hash[page->key & (cache->hashSize - 1)];
+  while (*p && *p != page) p = &(*p)->hashNext;
+  if (*p) *p = page->hashNext;
+  page->hashNext = 0;
+}
+
+// removes the page from the cache and frees it
+static void spc_free_page(spc_page *page) {
+  spc_cache *cache = page->cache;
+  if (page->pinned) {
+    spc.pinnedCount--;
+  } else {
+    spc_lru_remove(page);
+  }
+  spc_hash_remove(page);
+  cache->pageCount--;
+  spc.pageCount--;
+  spc.usedBytes -= spc_page_bytes(cache);
+  sqlite3_free(page);
+}
+
+static void spc_evict_lru(void) {
+  spc_free_page(spc.lru.lruPrev);
+  spc.evictions++;
+}
+
+static void spc_enforce_budget(void) {
+  while (spc.usedBytes > spc.budget && spc.lru.lruPrev != &spc.lru) spc_evict_lru();
+}
+
+// evicts least recently used unpinned pages of the cache until it has at most maxPages pages
+static void spc_enforce_cache_size(spc_cache *cache, unsigned int maxPages) {
+  while (cache->pageCount > maxPages && cache->lru.cacheLruPrev != &cache->lru) {
+    spc_free_page(cache->lru.cacheLruPrev);
+    spc.evictions++;
+  }
+}
+
+static int spc_resize_hash(spc_cache *cache) {
+  unsigned int size = cache->hashSize ? cache->hashSize * 2 : 256;
+  spc_page **hash = (spc_page**)sqlite3_malloc64((sqlite3_uint64)size * sizeof(spc_page*));
+  unsigned int i = 0;
+  spc_page *page = 0;
+  spc_page *next = 0;
+  if (!hash) return SQLITE_NOMEM;
+  memset(hash, 0, size * sizeof(spc_page*));
+  for (i = 0; i < cache->hashSize; i++) {
+    for (page = cache->hash[i]; page; page = next) {
+      next = page->hashNext;
+      page->hashNext = hash[page->key & (size - 1)];
+      hash[page->key & (size - 1)] = page;
+    }
+  }
+  sqlite3_free(cache->hash);
+  cache->hash = hash;
+  cache->hashSize = size;
+  return SQLITE_OK;
+}
+
+static int spc_init(void *arg) {
+  spc.mutex = sqlite3_mutex_alloc(SQLITE_MUTEX_STATIC_APP2);
+  spc.lru.lruNext = spc.lru.lruPrev = &spc.lru;
+  return SQLITE_OK;
+}
+
+static void spc_shutdown(void *arg) {
+}
+
+static sqlite3_pcache *spc_create(int szPage, int szExtra, int purgeable) {
+  spc_cache *cache = (spc_cache*)sqlite3_malloc(sizeof(spc_cache));
+  if (!cache) return 0;
+  memset(cache, 0, sizeof(spc_cache));
+  cache->szPage = szPage;
+  cache->szExtra = szExtra;
+  cache->purgeable = purgeable;
+  cache->maxPages = 100;
+  cache->lru.cacheLruNext = cache->lru.cacheLruPrev = &cache->lru;
+  if (spc_resize_hash(cache) != SQLITE_OK) {
+    sqlite3_free(cache);
+    return 0;
+  }
+  sqlite3_mutex_enter(spc.mutex);
+  spc.cacheCount++;
+  sqlite3_mutex_leave(spc.mutex);
+  return (sqlite3_pcache*)cache;
+}
+
+static void spc_cachesize(sqlite3_pcache *p, int maxPages) {
+  spc_cache *cache = (spc_cache*)p;
+  if (!cache->purgeable) return;
+  sqlite3_mutex_enter(spc.mutex);
+  cache->maxPages = maxPages > 0 ? (unsigned int)maxPages : 0;
+  spc_enforce_cache_size(cache, cache->maxPages);
+  sqlite3_mutex_leave(spc.mutex);
+}
+
+static int spc_pagecount(sqlite3_pcache *p) {
+  spc_cache *cache = (spc_cache*)p;
+  int r = 0;
+  sqlite3_mutex_enter(spc.mutex);
+  r = (int)cache->pageCount;
+  sqlite3_mutex_leave(spc.mutex);
+  return r;
+}
+
+static sqlite3_pcache_page *spc_fetch(sqlite3_pcache *p, unsigned int key, int createFlag) {
+  spc_cache *cache = (spc_cache*)p;
+  spc_page *page = 0;
+  sqlite3_int64 bytes = spc_page_bytes(cache);
+
+  sqlite3_mutex_enter(spc.mutex);
+  for (page = cache->hash[key & (cache->hashSize - 1)]; page; page = page->hashNext) {
+    if (page->key == key) break;
+  }
+  if (page) {
+    if (!page->pinned) {
+      spc_lru_remove(page);
+      page->pinned = 1;
+      spc.pinnedCount++;
+    }
+    spc.hits++;
+    sqlite3_mutex_leave(spc.mutex);
+    return &page->base;
+  }
+  if (!createFlag) {
+    sqlite3_mutex_leave(spc.mutex);
+    return 0;
+  }
+  if (cache->purgeable) {
+    // make room by evicting unpinned pages: of this cache for cache_size, of any cache for the budget
+    if (cache->pageCount >= cache->maxPages) spc_enforce_cache_size(cache, cache->maxPages > 0 ? cache->maxPages - 1 : 0);
+    while (spc.usedBytes + bytes > spc.budget && spc.lru.lruPrev != &spc.lru) spc_evict_lru();
+    if (createFlag == 1 && (cache->pageCount >= cache->maxPages || spc.usedBytes + bytes > spc.budget)) {
+      // SQLite will spill dirty pages and ask again with createFlag 2
+      sqlite3_mutex_leave(spc.mutex);
+      return 0;
+    }
+  }
+  if (cache->pageCount >= cache->hashSize && spc_resize_hash(cache) != SQLITE_OK && createFlag == 1) {
+    sqlite3_mutex_leave(spc.mutex);
+    return 0;
+  }
+  page = (spc_page*)sqlite3_malloc64((sqlite3_uint64)bytes);
+  if (page) {
+    memset(page, 0, sizeof(spc_page));
+    page->base.pBuf = (void*)&page[1];
+    page->base.pExtra = (char*)page->base.pBuf + cache->szPage;
+    memset(page->base.pExtra, 0, cache->szExtra);
+    page->cache = cache;
+    page->key = key;
+    page->pinned = 1;
+    page->hashNext = cache->hash[key & (cache->hashSize - 1)];
+    cache->hash[key & (cache->hashSize - 1)] = page;
+    cache->pageCount++;
+    spc.pageCount++;
+    spc.pinnedCount++;
+    spc.usedBytes += bytes;
+    spc.misses++;
+  }
+  sqlite3_mutex_leave(spc.mutex);
+  return page ? &page->base : 0;
+}
+
+static void spc_unpin(sqlite3_pcache *p, sqlite3_pcache_page *pg, int discard) {
+  spc_cache *cache = (spc_cache*)p;
+  spc_page *page = (spc_page*)pg;
+  sqlite3_mutex_enter(spc.mutex);
+  if (discard || !cache->purgeable) {
+    if (discard) {
+      spc_free_page(page);
+    } else {
+      // pages of non-purgeable caches (in-memory databases) are never evicted
+      page->pinned = 0;
+      spc.pinnedCount--;
+      page->lruPrev = page->lruNext = page;
+      page->cacheLruPrev = page->cacheLruNext = page;
+    }
+  } else {
+    page->pinned = 0;
+    spc.pinnedCount--;
+    spc_lru_add(page);
+    spc_enforce_budget();
+  }
+  sqlite3_mutex_leave(spc.mutex);
+}
+
+static void spc_rekey(sqlite3_pcache *p, sqlite3_pcache_page *pg, unsigned int oldKey, unsigned int newKey) {
+  spc_cache *cache = (spc_cache*)p;
+  spc_page *page = (spc_page*)pg;
+  spc_page *other = 0;
+  sqlite3_mutex_enter(spc.mutex);
+  for (other = cache->hash[newKey & (cache->hashSize - 1)]; other; other = other->hashNext) {
+    if (other->key == newKey) break;
+  }
+  if (other && other != page) spc_free_page(other);
+  spc_hash_remove(page);
+  page->key = newKey;
+  page->hashNext = cache->hash[newKey & (cache->hashSize - 1)];
+  cache->hash[newKey & (cache->hashSize - 1)] = page;
+  sqlite3_mutex_leave(spc.mutex);
+}
+
+static void spc_truncate(sqlite3_pcache *p, unsigned int limit) {
+  spc_cache *cache = (spc_cache*)p;
+  unsigned int i = 0;
+  spc_page *page = 0;
+  spc_page *next = 0;
+  sqlite3_mutex_enter(spc.mutex);
+  for (i = 0; i < cache->hashSize; i++) {
+    for (page = cache->hash[i]; page; page = next) {
+      next = page->hashNext;
+      if (page->key >= limit) spc_free_page(page);
+    }
+  }
+  sqlite3_mutex_leave(spc.mutex);
+}
+
+static void spc_destroy(sqlite3_pcache *p) {
+  spc_cache *cache = (spc_cache*)p;
+  unsigned int i = 0;
+  sqlite3_mutex_enter(spc.mutex);
+  for (i = 0; i < cache->hashSize; i++) {
+    while (cache->hash[i]) spc_free_page(cache->hash[i]);
+  }
+  spc.cacheCount--;
+  sqlite3_mutex_leave(spc.mutex);
+  sqlite3_free(cache->hash);
+  sqlite3_free(cache);
+}
+
+static void spc_shrink(sqlite3_pcache *p) {
+  spc_cache *cache = (spc_cache*)p;
+  if (!cache->purgeable) return;
+  sqlite3_mutex_enter(spc.mutex);
+  spc_enforce_cache_size(cache, 0);
+  sqlite3_mutex_leave(spc.mutex);
+}
+
+static const sqlite3_pcache_methods2 spc_methods = {
+  1,
+  0,
+  spc_init,
+  spc_shutdown,
+  spc_create,
+  spc_cachesize,
+  spc_pagecount,
+  spc_fetch,
+  spc_unpin,
+  spc_rekey,
+  spc_truncate,
+  spc_destroy,
+  spc_shrink
+};
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1install_1shared_1pcache(JNIEnv *jenv, jclass jcls,
+  jlong budget)
+{
+  int rc = 0;
+  if (budget <= 0) return WRAPPER_INVALID_ARG_1;
+  if (spc.installed) return SQLITE_OK;
+  spc.budget = (sqlite3_int64)budget;
+  rc = sqlite3_config(SQLITE_CONFIG_PCACHE2, &spc_methods);
+  if (rc == SQLITE_OK) spc.installed = 1;
+  return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1shared_1pcache(JNIEnv *jenv, jclass jcls,
+  jlong budget, jlongArray jresult)
+{
+  jlong values[SPC_STATS];
+  if (!spc.installed || !spc.mutex) return SQLITE_MISUSE;
+  if (jresult && (*jenv)->GetArrayLength(jenv, jresult) < SPC_STATS) return WRAPPER_INVALID_ARG_2;
+  sqlite3_mutex_enter(spc.mutex);
+  if (budget > 0) {
+    spc.budget = (sqlite3_int64)budget;
+    spc_enforce_budget();
+  }
+  values[0] = (jlong)spc.budget;
+  values[1] = (jlong)spc.usedBytes;
+  values[2] = (jlong)spc.pageCount;
+  values[3] = (jlong)spc.pinnedCount;
+  values[4] = (jlong)spc.cacheCount;
+  values[5] = (jlong)spc.hits;
+  values[6] = (jlong)spc.misses;
+  values[7] = (jlong)spc.evictions;
+  sqlite3_mutex_leave(spc.mutex);
+  if (jresult) (*jenv)->SetLongArrayRegion(jenv, jresult, 0, SPC_STATS, values);
+  return SQLITE_OK;
+}
+
 int progress_handler(void *ptr);
 
 JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_install_1progress_1handler(JNIEnv *jenv, jclass jcls,
@@ -674,6 +2031,131 @@ int progress_handler(void *ptr) {
   return 0;
 }
 
+/*
+** Trace ring buffer. The block starts with TRACE_HEADER_LONGS jlongs, followed by the ring:
+**   [0] total number of bytes written, [1] total number of bytes read (advanced by Java),
+**   [2] number of dropped events, [3] ring capacity in bytes, [4] maximum length of copied SQL.
+** Each record is aligned to 8 bytes: jint length, jint type, jint SQL length, jint reserved, jlong statement,
+** jlong value, then SQL bytes.
+** A record with type 0 is padding up to the end of the ring. The ring is written only by the trace callback
+** and drained by Java in the connection's thread.
+*/
+#define TRACE_HEADER_LONGS 8
+#define TRACE_RECORD_HEADER 32
+
+int trace_callback(unsigned type, void *ptr, void *p, void *x);
+
+static void trace_put(jlong *header, jint type, void *object, jlong value, const char *text) {
+  char *data = (char*)(header + TRACE_HEADER_LONGS);
+  jlong capacity = header[3];
+  jlong write = header[0];
+  jlong pos = write % capacity;
+  jlong pad = 0;
+  int textLength = 0;
+  int length = 0;
+  jlong lobject = 0;
+
+  if (text) {
+    while (textLength < header[4] && text[textLength]) textLength++;
+  }
+  length = (TRACE_RECORD_HEADER + textLength + 7) & ~7;
+  if (pos + length > capacity) pad = capacity - pos;
+  if (write + pad + length - header[1] > capacity) {
+    header[2]++;
+    return;
+  }
+  if (pad) {
+    *(jint*)(data + pos) = (jint)pad;
+    *(jint*)(data + pos + 4) = 0;
+    write += pad;
+    pos = 0;
+  }
+  *((void**)&lobject) = object;
+  *(jint*)(data + pos) = length;
+  *(jint*)(data + pos + 4) = type;
+  *(jint*)(data + pos + 8) = textLength;
+  *(jint*)(data + pos + 12) = 0;
+  *(jlong*)(data + pos + 16) = lobject;
+  *(jlong*)(data + pos + 24) = value;
+  if (textLength) memcpy(data + pos + TRACE_RECORD_HEADER, text, textLength);
+  header[0] = write + length;
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_install_1trace(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jint mask, jint capacity, jint maxSqlLength, jlongArray ppBuf, jobjectArray ppByteBuffer)
+{
+  sqlite3* db = 0;
+  void *ptr = 0;
+  jlong lptr = 0;
+  jobject buffer = 0;
+  jlong *header = 0;
+  int len = 0;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if ((mask & ~(SQLITE_TRACE_STMT | SQLITE_TRACE_PROFILE | SQLITE_TRACE_ROW)) != 0) return WRAPPER_INVALID_ARG_2;
+  if (capacity < 1024 || (capacity & 7) != 0) return WRAPPER_INVALID_ARG_3;
+  if (maxSqlLength < 0) return WRAPPER_INVALID_ARG_4;
+  if (!ppBuf) return WRAPPER_INVALID_ARG_5;
+  if (!ppByteBuffer) return WRAPPER_INVALID_ARG_6;
+  db = *(sqlite3**)&jdb;
+
+  len = TRACE_HEADER_LONGS * sizeof(jlong) + capacity;
+  ptr = sqlite3_malloc(len);
+  if (!ptr) return WRAPPER_OUT_OF_MEMORY;
+
+  *((void**)&lptr) = ptr;
+  buffer = (*jenv)->NewDirectByteBuffer(jenv, ptr, len);
+  if (!buffer) {
+    sqlite3_free(ptr);
+    return WRAPPER_OUT_OF_MEMORY;
+  }
+
+  memset(ptr, 0, len);
+  header = (jlong*)ptr;
+  header[3] = capacity;
+  header[4] = maxSqlLength;
+
+  (*jenv)->SetLongArrayRegion(jenv, ppBuf, 0, 1, &lptr);
+  (*jenv)->SetObjectArrayElement(jenv, ppByteBuffer, 0, buffer);
+
+  return sqlite3_trace_v2(db, (unsigned)mask, &trace_callback, ptr);
+}
+
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_uninstall_1trace(JNIEnv *jenv, jclass jcls,
+  jlong jdb, jlong jptr)
+{
+  sqlite3* db = 0;
+  void *ptr = 0;
+
+  if (!jdb) return WRAPPER_INVALID_ARG_1;
+  if (!jptr) return WRAPPER_INVALID_ARG_2;
+  db = *(sqlite3**)&jdb;
+  ptr = *(void**)&jptr;
+
+  sqlite3_trace_v2(db, 0, 0, 0);
+  sqlite3_free(ptr);
+
+  return SQLITE_OK;
+}
+
+int trace_callback(unsigned type, void *ptr, void *p, void *x) {
+  jlong *header = (jlong*)ptr;
+
+  if (!header) return 0;
+  switch (type) {
+  case SQLITE_TRACE_STMT:
+    trace_put(header, (jint)type, p, 0, (const char*)x);
+    break;
+  case SQLITE_TRACE_PROFILE:
+    trace_put(header, (jint)type, p, x ? *(sqlite3_int64*)x : 0, sqlite3_sql((sqlite3_stmt*)p));
+    break;
+  case SQLITE_TRACE_ROW:
+    trace_put(header, (jint)type, p, 0, 0);
+    break;
+  }
+  return 0;
+}
+
 JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1load_1ints(JNIEnv *jenv, jclass jcls,
   jlong jstmt, jint column, jintArray ppBuf, jint offset, jint count, jintArray ppCount)
 {
@@ -742,6 +2224,56 @@ JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1
   return rc;
 }
 
+JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_wrapper_1load_1row(JNIEnv *jenv, jclass jcls,
+  jlong jstmt, jint count, jintArray jtypes, jlongArray jlongs, jdoubleArray jdoubles)
+{
+  sqlite3_stmt* stmt = *(sqlite3_stmt**)&jstmt;
+  jint *types = 0;
+  jlong *longs = 0;
+  jdouble *doubles = 0;
+  int i = 0;
+  int type = 0;
+
+  if (!stmt) return WRAPPER_INVALID_ARG_1;
+  if (count < 0 || count > sqlite3_column_count(stmt)) return WRAPPER_INVALID_ARG_2;
+  if (!jtypes || (*jenv)->GetArrayLength(jenv, jtypes) < count) return WRAPPER_INVALID_ARG_3;
+  if (!jlongs || (*jenv)->GetArrayLength(jenv, jlongs) < count) return WRAPPER_INVALID_ARG_4;
+  if (!jdoubles || (*jenv)->GetArrayLength(jenv, jdoubles) < count) return WRAPPER_INVALID_ARG_5;
+
+  types = (*jenv)->GetIntArrayElements(jenv, jtypes, 0);
+  longs = (*jenv)->GetLongArrayElements(jenv, jlongs, 0);
+  doubles = (*jenv)->GetDoubleArrayElements(jenv, jdoubles, 0);
+
+  if (types && longs && doubles) {
+    for (i = 0; i < count; i++) {
+      type = sqlite3_column_type(stmt, i);
+      types[i] = type;
+      switch (type) {
+      case SQLITE_INTEGER:
+        longs[i] = sqlite3_column_int64(stmt, i);
+        doubles[i] = 0.0;
+        break;
+      case SQLITE_FLOAT:
+        doubles[i] = sqlite3_column_double(stmt, i);
+        longs[i] = 0;
+        break;
+      default:
+        // strings and blobs are read on demand
+        longs[i] = 0;
+        doubles[i] = 0.0;
+        break;
+      }
+    }
+  }
+
+  if (doubles) (*jenv)->ReleaseDoubleArrayElements(jenv, jdoubles, doubles, 0);
+  if (longs) (*jenv)->ReleaseLongArrayElements(jenv, jlongs, longs, 0);
+  if (types) (*jenv)->ReleaseIntArrayElements(jenv, jtypes, types, 0);
+
+  if (!types || !longs || !doubles) return WRAPPER_CANNOT_ALLOCATE_STRING;
+  return SQLITE_OK;
+}
+
 
 JNIEXPORT jint JNICALL Java_com_almworks_sqlite4java__1SQLiteManualJNI_sqlite3_1intarray_1register(JNIEnv *jenv, jclass jcls,
   jlong jdb, jlongArray ppBuf)
@@ -29,6 +29,7 @@
 #define WRAPPER_CANNOT_TRANSFORM_STRING (-20)
 #define WRAPPER_CANNOT_ALLOCATE_STRING (-21)
 #define WRAPPER_OUT_OF_MEMORY (-22)
+#define WRAPPER_BUFFER_TOO_SMALL (-23)
 
 #define WRAPPER_WEIRD (-99)
 #define WRAPPER_WEIRD_2 (-199)
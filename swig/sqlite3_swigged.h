@@ -111,4 +111,6 @@ int sqlite3_backup_pagecount(sqlite3_backup *p);
 int sqlite3_enable_load_extension(sqlite3 *db, int onoff);
 int sqlite3_db_readonly(sqlite3 *db, const char *zDbName);
 int sqlite3_db_cacheflush(sqlite3 *);
+int sqlite3_stmt_status(sqlite3_stmt*, int op, int resetFlg);
+int sqlite3_db_release_memory(sqlite3*);
 
@@ -259,4 +259,12 @@ class _SQLiteSwigged {
     return _SQLiteSwiggedJNI.sqlite3_db_cacheflush(SWIGTYPE_p_sqlite3.getCPtr(arg0));
   }
 
+  public static int sqlite3_stmt_status(SWIGTYPE_p_sqlite3_stmt arg0, int op, int resetFlg) {
+    return _SQLiteSwiggedJNI.sqlite3_stmt_status(SWIGTYPE_p_sqlite3_stmt.getCPtr(arg0), op, resetFlg);
+  }
+
+  public static int sqlite3_db_release_memory(SWIGTYPE_p_sqlite3 arg0) {
+    return _SQLiteSwiggedJNI.sqlite3_db_release_memory(SWIGTYPE_p_sqlite3.getCPtr(arg0));
+  }
+
 }
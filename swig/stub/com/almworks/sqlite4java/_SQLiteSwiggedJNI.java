@@ -71,4 +71,6 @@ class _SQLiteSwiggedJNI {
   public final static native int sqlite3_enable_load_extension(long jarg1, int jarg2);
   public final static native int sqlite3_db_readonly(long jarg1, String jarg2);
   public final static native int sqlite3_db_cacheflush(long jarg1);
+  public final static native int sqlite3_stmt_status(long jarg1, int jarg2, int jarg3);
+  public final static native int sqlite3_db_release_memory(long jarg1);
 }
@@ -101,4 +101,106 @@ public class DirectBufferTests extends SQLiteConnectionFixture {
 
     db.dispose();
   }
+
+  public void testBindSegments() throws SQLiteException, IOException {
+    SQLiteConnection db = memDb().open(true);
+    db.exec("create table T (value)");
+    SQLiteStatement st = db.prepare("insert into T values (?)");
+    byte[] data = generate(SIZE * SIZE * 2 + 17);
+    OutputStream out = st.bindStream(1, 100);
+    int p = 0;
+    int chunk = 1;
+    while (p < data.length) {
+      int length = Math.min(chunk, data.length - p);
+      if (length == 1) {
+        out.write(data[p]);
+      } else {
+        out.write(data, p, length);
+      }
+      p += length;
+      chunk = chunk * 3 + 1;
+    }
+    out.close();
+    st.step();
+    st.dispose();
+
+    st = db.prepare("select value from T");
+    assertTrue(st.step());
+    byte[] result = st.columnBlob(0);
+    assertEquals(data.length, result.length);
+    for (int i = 0; i < data.length; i++)
+      assertEquals("[" + i + "]", data[i], result[i]);
+    st.dispose();
+    db.dispose();
+  }
+
+  public void testColumnBuffer() throws SQLiteException, IOException {
+    SQLiteConnection db = memDb().open(true);
+    db.exec("create table T (id, value)");
+    byte[] data = generate(SIZE);
+    db.prepare("insert into T values (1, ?)").bind(1, data).stepThrough().dispose();
+    db.exec("insert into T values (2, NULL)");
+    db.exec("insert into T values (3, x'')");
+
+    final SQLiteStatement st = db.prepare("select value from T order by id");
+    assertTrue(st.step());
+    final byte[] expected = data;
+    int visited = st.withColumnBuffer(0, new SQLiteBufferVisitor<Integer>() {
+      public Integer visit(ByteBuffer buffer) throws SQLiteException {
+        assertTrue(buffer.isReadOnly());
+        assertEquals(SIZE, buffer.remaining());
+        for (int i = 0; i < SIZE; i++)
+          assertEquals("[" + i + "]", expected[i], buffer.get(i));
+        try {
+          st.step();
+          fail("stepped inside visitor");
+        } catch (SQLiteException e) {
+          assertEquals(SQLiteConstants.WRAPPER_MISUSE, e.getErrorCode());
+        }
+        try {
+          st.columnString(0);
+          fail("converted inside visitor");
+        } catch (SQLiteException e) {
+          assertEquals(SQLiteConstants.WRAPPER_MISUSE, e.getErrorCode());
+        }
+        return buffer.remaining();
+      }
+    });
+    assertEquals(SIZE, visited);
+
+    byte[] dst = new byte[SIZE + 10];
+    assertEquals(SIZE, st.columnBlob(0, dst, 10));
+    for (int i = 0; i < SIZE; i++)
+      assertEquals("[" + i + "]", data[i], dst[i + 10]);
+    assertEquals(SIZE, st.columnBlob(0, dst, SIZE));
+    for (int i = 0; i < 10; i++)
+      assertEquals("[" + i + "]", data[i], dst[i + SIZE]);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(SIZE / 2);
+    assertEquals(SIZE, st.columnBlob(0, direct));
+    assertFalse(direct.hasRemaining());
+    direct.flip();
+    for (int i = 0; i < SIZE / 2; i++)
+      assertEquals("[" + i + "]", data[i], direct.get(i));
+
+    assertTrue(st.step());
+    assertNull(st.withColumnBuffer(0, new SQLiteBufferVisitor<Integer>() {
+      public Integer visit(ByteBuffer buffer) {
+        return buffer == null ? null : buffer.remaining();
+      }
+    }));
+    assertEquals(-1, st.columnBlob(0, dst, 0));
+    assertEquals(-1, st.columnBlob(0, direct));
+
+    assertTrue(st.step());
+    assertEquals(Integer.valueOf(0), st.withColumnBuffer(0, new SQLiteBufferVisitor<Integer>() {
+      public Integer visit(ByteBuffer buffer) {
+        return buffer.remaining();
+      }
+    }));
+    assertEquals(0, st.columnBlob(0, dst, 0));
+
+    st.dispose();
+    db.dispose();
+  }
 }
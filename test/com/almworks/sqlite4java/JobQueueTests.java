@@ -210,6 +210,101 @@ public class JobQueueTests extends SQLiteConnectionFixture {
     q.stop(true).join();
   }
 
+  public void testReplica() throws Exception {
+    myQueue.stop(false).join();
+    SQLiteReplicaQueue q = new SQLiteReplicaQueue(dbFile()).setPersistInterval(0).start();
+    q.execute(new SQLiteJob<Object>() {
+      @Override
+      protected Object job(SQLiteConnection connection) throws Throwable {
+        assertTrue(connection.isMemoryDatabase());
+        connection.exec("create table x (x)");
+        connection.exec("insert into x values (1)");
+        return null;
+      }
+    }).complete();
+    assertEquals(Boolean.TRUE, q.persist().complete());
+    assertEquals(Boolean.FALSE, q.persist().complete());
+    assertEquals(1, q.getPersistCount());
+    assertEquals(1, countRowsInFile());
+
+    q.execute(new SQLiteJob<Object>() {
+      @Override
+      protected Object job(SQLiteConnection connection) throws Throwable {
+        connection.exec("insert into x values (2)");
+        return null;
+      }
+    }).complete();
+    assertEquals(1, countRowsInFile());
+    q.stop(true).join();
+    assertEquals(2, countRowsInFile());
+
+    q = new SQLiteReplicaQueue(dbFile()).start();
+    SQLiteJob<Integer> count = q.execute(new SQLiteJob<Integer>() {
+      @Override
+      protected Integer job(SQLiteConnection connection) throws Throwable {
+        SQLiteStatement st = connection.prepare("select count(*) from x");
+        st.step();
+        return st.columnInt(0);
+      }
+    });
+    assertEquals((Integer) 2, count.complete());
+    q.stop(true).join();
+  }
+
+  public void testBackupScheduler() throws Exception {
+    myQueue.execute(new SQLiteJob<Object>() {
+      @Override
+      protected Object job(SQLiteConnection connection) throws Throwable {
+        connection.exec("create table x (x)");
+        connection.exec("begin");
+        SQLiteStatement st = connection.prepare("insert into x values (?)");
+        for (int i = 0; i < 1000; i++) {
+          st.bind(1, new byte[1000]).step();
+          st.reset();
+        }
+        st.dispose();
+        connection.exec("commit");
+        return null;
+      }
+    }).complete();
+    File file = new File(tempName("backup.db"));
+    SQLiteBackupScheduler backup = myQueue.scheduleBackup(new SQLiteBackupScheduler(file).setInitialPages(1).setDutyCycle(0.5));
+    SQLiteJob<Object> job = myQueue.execute(new SQLiteJob<Object>() {
+      @Override
+      protected Object job(SQLiteConnection connection) throws Throwable {
+        connection.exec("insert into x values (null)");
+        return null;
+      }
+    });
+    assertTrue(backup.await(30, TimeUnit.SECONDS));
+    job.complete();
+    assertNull(backup.getError());
+    assertEquals(1.0, backup.getProgress());
+    assertTrue(backup.getStepCount() > 1);
+    assertEquals(0, backup.getRemaining());
+    assertEquals(1001, countRows(file));
+
+    myQueue.stop(true).join();
+    backup = myQueue.scheduleBackup(new SQLiteBackupScheduler(file));
+    assertTrue(backup.isFinished());
+    assertNotNull(backup.getError());
+  }
+
+  private int countRowsInFile() throws SQLiteException {
+    return countRows(dbFile());
+  }
+
+  private int countRows(File file) throws SQLiteException {
+    SQLiteConnection connection = new SQLiteConnection(file).openReadonly();
+    try {
+      SQLiteStatement st = connection.prepare("select count(*) from x");
+      st.step();
+      return st.columnInt(0);
+    } finally {
+      connection.dispose();
+    }
+  }
+
 
   public class TestQueue extends SQLiteQueue {
     public TestQueue() {
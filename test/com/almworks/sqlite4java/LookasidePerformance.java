@@ -0,0 +1,91 @@
+package com.almworks.sqlite4java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares throughput of parallel connections with and without lookaside memory. Each thread works with its own
+ * in-memory database, so the difference comes from the allocator rather than from I/O or locking.
+ * <p/>
+ * Run with <code>-Dsqlite4java.memstatus=false</code> to also see the effect of disabling memory statistics.
+ */
+public class LookasidePerformance extends SQLiteConnectionFixture {
+  private static final int OPERATIONS = 20000;
+  private static final int[] THREADS = {1, 4, 8};
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    String memstatus = System.getProperty("sqlite4java.memstatus");
+    if (memstatus != null) {
+      try {
+        SQLite.setMemoryStatistics(Boolean.parseBoolean(memstatus));
+      } catch (SQLiteException e) {
+        System.out.println("cannot configure memory statistics: " + e.getMessage());
+      }
+    }
+  }
+
+  public void testParallelThroughput() throws Exception {
+    // make hot
+    run(2, 0, 0);
+    run(2, 1200, 500);
+
+    System.out.println();
+    System.out.println("Result (operations per second):");
+    for (int threads : THREADS) {
+      long without = run(threads, 0, 0);
+      long with = run(threads, 1200, 500);
+      System.out.println(threads + " threads: no lookaside " + without + ", lookaside 1200x500 " + with);
+    }
+  }
+
+  private long run(int threads, final int slotSize, final int slotCount) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread("worker" + i) {
+        public void run() {
+          try {
+            work(start, slotSize, slotCount);
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      thread.start();
+      workers.add(thread);
+    }
+    long time = System.nanoTime();
+    start.countDown();
+    for (Thread thread : workers) {
+      thread.join();
+    }
+    time = System.nanoTime() - time;
+    if (!errors.isEmpty())
+      throw new AssertionError(errors.get(0));
+    return (long) threads * OPERATIONS * 1000000000L / Math.max(1, time);
+  }
+
+  private void work(CountDownLatch start, int slotSize, int slotCount) throws Exception {
+    SQLiteConnection db = new SQLiteConnection().open();
+    try {
+      db.setLookaside(slotSize, slotCount);
+      db.exec("create table t (id integer primary key, value text)");
+      start.await();
+      db.exec("begin");
+      for (int i = 0; i < OPERATIONS; i++) {
+        // uncached statements make SQLite parse and allocate on every operation
+        SQLiteStatement st = db.prepare("insert into t (value) values (?)", false);
+        st.bind(1, "value " + i).step();
+        st.dispose();
+      }
+      db.exec("commit");
+    } finally {
+      db.dispose();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.almworks.sqlite4java;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
+/**
+ * Measures the cost of the per-connection mutex, comparing a connection opened with SQLITE_OPEN_FULLMUTEX with a
+ * connection opened without mutex, which is the default for confined connections.
+ */
+public class MutexPerformance extends SQLiteConnectionFixture {
+  private static final int CALLS = 1000000;
+
+  public void testPerCallCost() throws SQLiteException {
+    SQLiteConnection full = new SQLiteConnection().openV2(SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE | SQLITE_OPEN_FULLMUTEX);
+    SQLiteConnection none = new SQLiteConnection().open();
+    assertFalse(full.isMutexFree());
+    assertTrue(none.isMutexFree());
+
+    // make hot
+    run(full);
+    run(none);
+
+    long fullTime = run(full);
+    long noneTime = run(none);
+    System.out.println();
+    System.out.println("Result (nanoseconds per bind/step/reset):");
+    System.out.println("FULLMUTEX: " + fullTime * 1.0 / CALLS);
+    System.out.println("NOMUTEX: " + noneTime * 1.0 / CALLS);
+
+    full.dispose();
+    none.dispose();
+  }
+
+  private long run(SQLiteConnection db) throws SQLiteException {
+    SQLiteStatement st = db.prepare("select ?");
+    long start = System.nanoTime();
+    for (int i = 0; i < CALLS; i++) {
+      st.bind(1, i);
+      st.step();
+      st.reset(false);
+    }
+    long time = System.nanoTime() - start;
+    st.dispose();
+    return time;
+  }
+}
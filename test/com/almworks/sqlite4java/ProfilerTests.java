@@ -1,5 +1,13 @@
 package com.almworks.sqlite4java;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
+
 public class ProfilerTests extends SQLiteConnectionFixture {
   public void testProfiler() throws SQLiteException {
     SQLiteConnection connection = memDb().open();
@@ -27,5 +35,282 @@ public class ProfilerTests extends SQLiteConnectionFixture {
 
     System.out.println("profiler output:");
     System.out.println(profiler.printReport());
+
+    SQLiteHistogram h = profiler.getHistogram("INSERT INTO test (id) VALUES (?)", "step");
+    assertNotNull(h);
+    assertEquals(9, h.getCount());
+    assertTrue(h.getPercentile(50) <= h.getPercentile(99));
+    assertTrue(h.getPercentile(99) <= h.getMax());
+    assertNull(profiler.getHistogram("INSERT INTO test (id) VALUES (?)", "loadLongs"));
+  }
+
+  public void testSharedProfiler() throws SQLiteException {
+    SQLiteProfiler profiler = new SQLiteProfiler();
+    SQLiteProfiler.setDefault(profiler);
+    SQLiteConnection c1;
+    SQLiteConnection c2;
+    try {
+      c1 = fileDb().open();
+      c2 = new SQLiteConnection(new File(tempName("db2"))).open();
+    } finally {
+      SQLiteProfiler.setDefault(null);
+    }
+    c1.exec("CREATE TABLE t (id INT)");
+    c2.exec("CREATE TABLE t (id INT)");
+    SQLiteStatement st = c1.prepare(new SQLParts("SELECT count(*) FROM t"));
+    st.step();
+    st.dispose();
+    st = c2.prepare(new SQLParts().append("SELECT count(*) ").append("FROM t"));
+    st.step();
+    st.dispose();
+    assertEquals(2, profiler.getHistogram("SELECT count(*) FROM t", "prepare").getCount());
+    assertSame(profiler, c2.stopProfiling());
+    assertNull(new SQLiteConnection().stopProfiling());
+    c1.dispose();
+    c2.dispose();
+  }
+
+  public void testNormalize() {
+    assertEquals("SELECT * FROM t WHERE id IN (?,...) AND name = ? AND x=?",
+      SQLiteProfiler.normalize("SELECT * FROM t WHERE id IN (1, 2, 3) AND name = 'it''s' -- comment\n AND x=1.5e+10"));
+    assertEquals("select a1, t2.b from t2 where c = ? and d=? and e = ?",
+      SQLiteProfiler.normalize("select a1, t2.b from t2 where c = :name and d=?5 and e = x'ABCD'"));
+    assertEquals("INSERT INTO t (a) VALUES (?,...),...", SQLiteProfiler.normalize("INSERT INTO t (a) VALUES (1),(2), (3)"));
+    assertEquals("INSERT INTO t (a, b) VALUES (?,...)", SQLiteProfiler.normalize("INSERT INTO t (a, b) VALUES (?, 'x')"));
+    assertEquals("select \"col 1\", [x y] from t where z in (?,...)",
+      SQLiteProfiler.normalize("select \"col 1\", [x y]  from t /* comment */ where z in (?,?,?,?)  "));
+    assertEquals(SQLiteProfiler.normalize(new SQLParts("SELECT * FROM t WHERE id IN (").appendParams(1).append(")").toString()),
+      SQLiteProfiler.normalize(new SQLParts("SELECT * FROM t WHERE id IN (").appendParams(20).append(")").toString()));
+  }
+
+  public void testNormalizedBoundedProfiler() throws SQLiteException {
+    SQLiteConnection connection = memDb().open();
+    SQLiteProfiler profiler = new SQLiteProfiler(3, true);
+    connection.profile(profiler);
+    connection.exec("CREATE TABLE test (id INT PRIMARY KEY)");
+    for (int i = 1; i < 10; i++) {
+      connection.exec("INSERT INTO test (id) VALUES (" + i + ")");
+    }
+    for (int i = 1; i < 10; i++) {
+      SQLiteStatement st = connection.prepare(new SQLParts("SELECT * FROM test WHERE id IN (").appendParams(i).append(")"));
+      for (int j = 1; j <= i; j++) {
+        st.bind(j, j);
+      }
+      while (st.step()) ;
+      st.dispose();
+    }
+    SQLiteHistogram h = profiler.getHistogram("INSERT INTO test (id) VALUES (42)", "exec");
+    assertNotNull(h);
+    assertEquals(9, h.getCount());
+    h = profiler.getHistogram("SELECT * FROM test WHERE id IN (?)", "prepare");
+    assertNotNull(h);
+    assertEquals(9, h.getCount());
+
+    for (int i = 0; i < 5; i++) {
+      connection.exec("CREATE TABLE t" + i + " (id)");
+    }
+    assertTrue(profiler.getEvictedCount() > 0);
+    assertTrue(profiler.printReport().contains("evicted"));
+    connection.dispose();
+  }
+
+  public void testStatementStatus() throws SQLiteException {
+    SQLiteConnection connection = memDb().open();
+    connection.exec("CREATE TABLE t (id INT, v INT)");
+    connection.exec("INSERT INTO t VALUES (1, 1), (2, 2), (3, 3)");
+    SQLiteStatement st = connection.prepare("SELECT id FROM t WHERE v > 1 ORDER BY id DESC");
+    while (st.step()) ;
+    int fullScan = st.getStatus(SQLITE_STMTSTATUS_FULLSCAN_STEP, false);
+    assertTrue(fullScan > 0);
+    assertEquals(1, st.getStatus(SQLITE_STMTSTATUS_SORT, true));
+    assertEquals(0, st.getStatus(SQLITE_STMTSTATUS_SORT, false));
+    assertTrue(st.getStatus(SQLITE_STMTSTATUS_VM_STEP, false) > 0);
+    st.dispose();
+
+    SQLiteProfiler profiler = connection.profile();
+    String sql = "SELECT id FROM t WHERE v = ?";
+    st = connection.prepare(sql);
+    for (int i = 0; i < 2; i++) {
+      st.reset(true);
+      st.bind(1, i);
+      while (st.step()) ;
+    }
+    st.dispose();
+    connection.stopProfiling();
+    assertEquals(2, profiler.getStatus(sql, SQLITE_STMTSTATUS_RUN));
+    assertEquals(2 * fullScan, profiler.getStatus(sql, SQLITE_STMTSTATUS_FULLSCAN_STEP));
+    assertEquals(0, profiler.getStatus(sql, SQLITE_STMTSTATUS_SORT));
+    assertTrue(profiler.getStatus(sql, SQLITE_STMTSTATUS_MEMUSED) > 0);
+    assertTrue(profiler.printReport().contains("fullscan:" + 2 * fullScan));
+    connection.dispose();
+  }
+
+  public void testSlowQueryLog() throws SQLiteException {
+    SQLiteConnection connection = memDb().open();
+    SQLiteSlowQueryLog log = new SQLiteSlowQueryLog(0, 2);
+    connection.setSlowQueryLog(log);
+    connection.exec("CREATE TABLE t (id INTEGER PRIMARY KEY, v TEXT)");
+    connection.exec("CREATE INDEX t_v ON t (v)");
+    SQLiteStatement st = connection.prepare("INSERT INTO t (v) VALUES (?)");
+    st.bind(1, "\u0444bc");
+    st.step();
+    st.dispose();
+    st = connection.prepare("SELECT id FROM t WHERE v = ? AND id > ?");
+    st.bind(1, "\u0444bc").bind(2, 10L);
+    while (st.step()) ;
+    st.reset(true);
+    st.bindNull(1);
+    st.step();
+    st.dispose();
+
+    assertEquals(5, log.getRecordedCount());
+    List<SQLiteSlowQueryLog.Entry> entries = log.getEntries();
+    assertEquals(2, entries.size());
+    SQLiteSlowQueryLog.Entry first = entries.get(0);
+    SQLiteSlowQueryLog.Entry second = entries.get(1);
+    assertEquals("SELECT id FROM t WHERE v = ? AND id > ?", first.getSQL());
+    // the Cyrillic letter takes 2 bytes in UTF-8
+    assertEquals("(TEXT[4], INTEGER)", first.getBindings());
+    assertEquals("(NULL, NULL)", second.getBindings());
+    assertTrue(first.getElapsedNanos() >= 0);
+    assertEquals(1, first.getStatus(SQLITE_STMTSTATUS_RUN));
+    assertEquals(0, first.getStatus(SQLITE_STMTSTATUS_FULLSCAN_STEP));
+    assertNotNull(first.getQueryPlan());
+    assertTrue(first.getQueryPlan(), first.getQueryPlan().contains("t_v"));
+    assertSame(first.getQueryPlan(), second.getQueryPlan());
+
+    connection.setSlowQueryLog(null);
+    log.clear();
+    st = connection.prepare("SELECT count(*) FROM t");
+    st.step();
+    st.dispose();
+    assertEquals(0, log.getEntries().size());
+    connection.dispose();
+  }
+
+  public void testTrace() throws SQLiteException {
+    SQLiteConnection connection = memDb().open();
+    connection.exec("CREATE TABLE t (id INTEGER PRIMARY KEY, v INT)");
+    connection.exec("CREATE TABLE log (id INT)");
+    connection.exec("CREATE TRIGGER tr AFTER INSERT ON t BEGIN INSERT INTO log VALUES (new.id); END");
+    SQLiteTrace trace = connection.startTrace(SQLITE_TRACE_STMT | SQLITE_TRACE_PROFILE | SQLITE_TRACE_ROW);
+    connection.exec("INSERT INTO t VALUES (1, 1); INSERT INTO t VALUES (2, 2)");
+    SQLiteStatement st = connection.prepare("SELECT id FROM t");
+    while (st.step()) ;
+    st.dispose();
+    List<SQLiteTrace.Event> events = trace.drain();
+    assertEquals(0, trace.getDroppedCount());
+    int profiles = 0;
+    int rows = 0;
+    boolean trigger = false;
+    for (SQLiteTrace.Event event : events) {
+      if (event.getType() == SQLITE_TRACE_PROFILE) {
+        profiles++;
+        assertTrue(event.getNanos() >= 0);
+        assertNotNull(event.getSQL());
+      } else if (event.getType() == SQLITE_TRACE_ROW) {
+        rows++;
+        assertNull(event.getSQL());
+      } else if (event.getSQL().contains("TRIGGER tr")) {
+        trigger = true;
+      }
+    }
+    assertEquals(3, profiles);
+    assertEquals(2, rows);
+    assertTrue(trigger);
+    assertTrue(trace.drain().isEmpty());
+
+    // small buffer overflows and wraps around
+    trace = connection.startTrace(SQLITE_TRACE_PROFILE, 1024, 16);
+    for (int i = 0; i < 100; i++) {
+      connection.exec("SELECT " + i);
+      if (i % 10 == 9) {
+        events = trace.drain();
+        assertEquals(10, events.size());
+        assertEquals("SELECT " + (i - 9), events.get(0).getSQL());
+      }
+    }
+    for (int i = 0; i < 100; i++)
+      connection.exec("SELECT " + i);
+    long dropped = trace.getDroppedCount();
+    assertTrue(dropped > 0);
+    events = connection.stopTrace();
+    assertEquals(100, events.size() + dropped);
+    assertEquals("SELECT 0", events.get(0).getSQL());
+    assertFalse(trace.isActive());
+    connection.dispose();
+  }
+
+  public void testEventListener() throws SQLiteException {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    SQLite.setEventListener(new SQLiteEventListener() {
+      public void prepared(SQLParts sql, long nanos, int rc) {
+        events.add("prepare " + sql + " " + rc);
+      }
+
+      public void stepped(SQLParts sql, long nanos, int rc, int rows) {
+        events.add("step " + sql + " " + rc + " " + rows);
+      }
+
+      public void executed(String sql, long nanos, int rc) {
+        events.add("exec " + sql + " " + rc);
+      }
+
+      public void blobIO(boolean write, int bytes, long nanos, int rc) {
+        events.add((write ? "write " : "read ") + bytes + " " + rc);
+      }
+    });
+    try {
+      SQLiteConnection connection = memDb().open();
+      connection.exec("CREATE TABLE t (id INTEGER PRIMARY KEY, b BLOB)");
+      SQLiteStatement st = connection.prepare("INSERT INTO t VALUES (1, zeroblob(10))");
+      st.step();
+      st.dispose();
+      SQLiteBlob blob = connection.blob("t", "b", 1, true);
+      blob.write(0, new byte[4], 0, 4);
+      blob.read(0, new byte[10], 0, 10);
+      blob.dispose();
+      SQLite.setEventListener(null);
+      connection.exec("DROP TABLE t");
+      connection.dispose();
+    } finally {
+      SQLite.setEventListener(null);
+    }
+    assertEquals(Arrays.asList(
+      "exec CREATE TABLE t (id INTEGER PRIMARY KEY, b BLOB) 0",
+      "prepare INSERT INTO t VALUES (1, zeroblob(10)) 0",
+      "step INSERT INTO t VALUES (1, zeroblob(10)) 101 0",
+      "write 4 0",
+      "read 10 0"), events);
+  }
+
+  public void testHistogram() {
+    SQLiteHistogram h = new SQLiteHistogram();
+    assertEquals(0, h.getPercentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      h.record(i * 1000L);
+    }
+    h.record(-1);
+    assertEquals(1000, h.getCount());
+    assertEquals(1000L, h.getMin());
+    assertEquals(1000000L, h.getMax());
+    assertEquals(500500L, h.getMean());
+    assertWithin(500000L, h.getPercentile(50));
+    assertWithin(900000L, h.getPercentile(90));
+    assertWithin(990000L, h.getPercentile(99));
+    assertEquals(1000000L, h.getPercentile(100));
+
+    SQLiteHistogram sum = new SQLiteHistogram();
+    sum.add(h);
+    sum.add(h);
+    assertEquals(2000, sum.getCount());
+    assertWithin(500000L, sum.getPercentile(50));
+    sum.clear();
+    assertEquals(0, sum.getCount());
+    assertEquals(0, sum.getMax());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue(expected + " " + actual, Math.abs(actual - expected) <= expected / SQLiteHistogram.SUB_BUCKETS);
   }
 }
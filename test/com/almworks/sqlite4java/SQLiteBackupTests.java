@@ -1,6 +1,6 @@
 package com.almworks.sqlite4java;
 
-import java.io.File;
+import java.io.*;
 import java.util.Arrays;
 import java.util.logging.Level;
 
@@ -185,6 +185,63 @@ public class SQLiteBackupTests extends SQLiteConnectionFixture {
   }
 
 
+  public void testStreamBackupWithChanges() throws SQLiteException, IOException {
+    SQLiteConnection source = createDB(false);
+    SQLiteStreamBackup backup = new SQLiteStreamBackup(source);
+    assertFalse(backup.hasBaseline());
+
+    File image = new File(tempName("image"));
+    FileOutputStream out = new FileOutputStream(image);
+    long written = backup.writeTo(out);
+    out.close();
+    assertTrue(backup.hasBaseline());
+    assertEquals(image.length(), written);
+    assertEquals(backup.getPageCount(), backup.getWrittenPageCount());
+
+    SQLiteConnection copy = new SQLiteConnection(image).openReadonly();
+    assertDBSEquals(source, copy);
+    copy.dispose();
+
+    source.exec("update tab set val = -1 where val = 7");
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    backup.writeChangesTo(delta);
+    assertTrue(backup.getWrittenPageCount() > 0);
+    assertTrue(backup.getWrittenPageCount() < backup.getPageCount());
+
+    byte[] stale = delta.toByteArray();
+    SQLiteStreamBackup.applyChanges(new ByteArrayInputStream(stale), image);
+    copy = new SQLiteConnection(image).openReadonly();
+    assertDBSEquals(source, copy);
+    copy.dispose();
+
+    modifyDB(source);
+    SQLiteStreamBackup other = new SQLiteStreamBackup(source);
+    other.setBaseline(image);
+    delta.reset();
+    other.writeChangesTo(delta);
+    assertTrue(other.getWrittenPageCount() < other.getPageCount());
+    SQLiteStreamBackup.applyChanges(new ByteArrayInputStream(delta.toByteArray()), image);
+    copy = new SQLiteConnection(image).openReadonly();
+    assertDBSEquals(source, copy);
+    copy.dispose();
+
+    delta.reset();
+    other.writeChangesTo(delta);
+    assertEquals(0, other.getWrittenPageCount());
+
+    try {
+      SQLiteStreamBackup.applyChanges(new ByteArrayInputStream(stale), image);
+      fail("stale delta applied");
+    } catch (IOException e) {
+      // normal
+    }
+    copy = new SQLiteConnection(image).openReadonly();
+    assertDBSEquals(source, copy);
+    copy.dispose();
+    source.dispose();
+  }
+
+
   private SQLiteConnection createDB(boolean inMemory) throws SQLiteException {
     SQLiteConnection connection = inMemory ? memDb() : fileDb();
     connection = connection.open().exec("create table tab (val integer)");
@@ -2,11 +2,14 @@ package com.almworks.sqlite4java;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_OPEN_READWRITE;
-import static com.almworks.sqlite4java.SQLiteConstants.SQLITE_OPEN_URI;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static com.almworks.sqlite4java.SQLiteConstants.*;
 
 public class SQLiteConnectionTests extends SQLiteConnectionFixture {
   public void testOpenFile() throws SQLiteException {
@@ -271,4 +274,361 @@ public class SQLiteConnectionTests extends SQLiteConnectionFixture {
     }
   }
 
+  public void testDbStatus() throws SQLiteException {
+    SQLiteConnection con = fileDb().open();
+    con.exec("create table x (x integer, y text)");
+    SQLiteDbStatus before = con.getDbStatus();
+    assertTrue(before.getCurrent(SQLITE_DBSTATUS_SCHEMA_USED) > 0);
+    assertTrue(before.getCurrent(SQLITE_DBSTATUS_CACHE_USED) > 0);
+    con.exec("begin");
+    SQLiteStatement st = con.prepare("insert into x values (?, ?)");
+    for (int i = 0; i < 1000; i++) {
+      st.reset(true).bind(1, i).bind(2, "value " + i).step();
+    }
+    st.dispose();
+    con.exec("commit");
+    SQLiteStatement select = con.prepare("select count(*) from x where y like 'value%'");
+    select.step();
+    assertEquals(1000, select.columnInt(0));
+    assertTrue(con.getDbStatus().getCurrent(SQLITE_DBSTATUS_STMT_USED) > 0);
+    select.dispose();
+
+    SQLiteDbStatus after = con.getDbStatus();
+    SQLiteDbStatus delta = after.delta(before);
+    assertTrue(delta.getCount(SQLITE_DBSTATUS_CACHE_HIT) > 0);
+    assertTrue(delta.getCount(SQLITE_DBSTATUS_CACHE_WRITE) > 0);
+    assertEquals(after.getCurrent(SQLITE_DBSTATUS_CACHE_HIT) - before.getCurrent(SQLITE_DBSTATUS_CACHE_HIT),
+      delta.getCurrent(SQLITE_DBSTATUS_CACHE_HIT));
+    assertEquals(after.getCurrent(SQLITE_DBSTATUS_CACHE_USED), delta.getCurrent(SQLITE_DBSTATUS_CACHE_USED));
+    double ratio = delta.getCacheHitRatio();
+    assertTrue(ratio > 0 && ratio <= 1);
+
+    con.getDbStatus(true);
+    assertEquals(0, con.getDbStatus().getCurrent(SQLITE_DBSTATUS_CACHE_HIT));
+    con.dispose();
+  }
+
+  public void testStatus() throws SQLiteException {
+    SQLiteConnection con = memDb().open();
+    con.exec("create table x (x integer)");
+    assertTrue(SQLite.getStatus(SQLITE_STATUS_MEMORY_USED) > 0);
+    assertTrue(SQLite.getStatusHighwater(SQLITE_STATUS_MEMORY_USED, false) >= SQLite.getStatus(SQLITE_STATUS_MEMORY_USED));
+    assertTrue(SQLite.getStatus(SQLITE_STATUS_MALLOC_COUNT) > 0);
+    con.dispose();
+  }
+
+  public void testManagement() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    SQLiteManagement.setEnabled(true);
+    try {
+      assertTrue(((Long) server.getAttribute(new ObjectName("com.almworks.sqlite4java:type=Library"), "MemoryUsed")) > 0);
+      SQLiteConnection con = memDb().open();
+      ObjectName name = new ObjectName("com.almworks.sqlite4java:type=Connection,name=" + con.getNumber());
+      ObjectName cacheName = new ObjectName("com.almworks.sqlite4java:type=StatementCache,name=" + con.getNumber());
+      assertTrue(server.isRegistered(name));
+      con.exec("create table x (x integer)");
+      for (int i = 0; i < 3; i++) {
+        con.prepare("insert into x values (1)").stepThrough().dispose();
+      }
+      assertEquals(1, server.getAttribute(cacheName, "CachedStatementCount"));
+      assertEquals(2L, server.getAttribute(cacheName, "HitCount"));
+      assertEquals(1L, server.getAttribute(cacheName, "MissCount"));
+      assertTrue((Long) server.getAttribute(name, "CacheUsed") > 0);
+      assertEquals(Boolean.TRUE, server.getAttribute(name, "Open"));
+      con.dispose();
+      assertFalse(server.isRegistered(name));
+      assertFalse(server.isRegistered(cacheName));
+    } finally {
+      SQLiteManagement.setEnabled(false);
+    }
+    assertTrue(server.queryNames(new ObjectName("com.almworks.sqlite4java:*"), null).isEmpty());
+  }
+
+  public void testCacheTuner() throws SQLiteException {
+    SQLiteConnection con = fileDb().open();
+    con.exec("PRAGMA cache_size = 10");
+    con.exec("create table x (x integer, y text)");
+    con.exec("begin");
+    SQLiteStatement st = con.prepare("insert into x values (?, ?)");
+    for (int i = 0; i < 10000; i++) {
+      st.reset(true).bind(1, i).bind(2, "some longer value to take pages " + i).step();
+    }
+    st.dispose();
+    con.exec("commit");
+
+    SQLiteProfiler profiler = con.profile();
+    SQLiteCacheTuner tuner = new SQLiteCacheTuner(1 << 20).setMinCacheSize(5);
+    assertEquals(10, tuner.tune(con));
+    SQLiteStatement select = con.prepare("select count(*) from x where y like 'some%'");
+    for (int i = 0; i < 3; i++) {
+      select.reset().step();
+    }
+    select.dispose();
+    assertEquals(20, tuner.tune(con));
+    assertEquals(1, tuner.getGrowCount());
+    assertEquals(10, tuner.tune(con));
+    assertEquals(1, tuner.getShrinkCount());
+    assertFalse(profiler.printReport(), profiler.printReport().contains("PRAGMA"));
+    con.stopProfiling();
+
+    con.setCacheTuner(new SQLiteCacheTuner(1 << 20, 0));
+    con.exec("select count(*) from x");
+    assertEquals(10, con.getCacheTuner().getCacheSize());
+    con.dispose();
+  }
+
+  public void testIOStats() throws SQLiteException {
+    assertEquals(SQLiteIOStats.VFS_NAME, SQLite.registerIOStatsVfs(false));
+    SQLiteConnection plain = fileDb().open();
+    assertNull(plain.getIOStats());
+    plain.dispose();
+
+    SQLiteConnection con = fileDb().setVfs(SQLiteIOStats.VFS_NAME).open();
+    assertEquals(SQLiteIOStats.VFS_NAME, con.getVfs());
+    con.exec("create table x (x integer, y text)");
+    SQLiteIOStats before = con.getIOStats();
+    assertNotNull(before);
+    con.exec("begin");
+    SQLiteStatement st = con.prepare("insert into x values (?, ?)");
+    for (int i = 0; i < 1000; i++) {
+      st.reset(true).bind(1, i).bind(2, "value " + i).step();
+    }
+    st.dispose();
+    con.exec("commit");
+
+    SQLiteIOStats io = con.getIOStats().delta(before);
+    assertTrue(io.getCount(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_WRITE) > 0);
+    assertTrue(io.getBytes(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_WRITE) > 0);
+    assertTrue(io.getCount(SQLiteIOStats.FILE_JOURNAL, SQLiteIOStats.OP_WRITE) > 0);
+    assertTrue(io.getCount(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_SYNC) > 0);
+    assertEquals(0, io.getCount(SQLiteIOStats.FILE_WAL, SQLiteIOStats.OP_WRITE));
+    SQLiteHistogram writes = io.getHistogram(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_WRITE);
+    assertEquals(io.getCount(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_WRITE), writes.getCount());
+    assertTrue(writes.getPercentile(50) <= writes.getMax());
+
+    con.getIOStats(true);
+    assertEquals(0, con.getIOStats().getCount(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_WRITE));
+    con.dispose();
+  }
+
+  public void testFaultVfs() throws SQLiteException {
+    SQLiteFaultVfs vfs = SQLiteFaultVfs.register("sqlite4java-test-faults", null);
+    vfs.setSeed(1).setLatency(SQLiteFaultVfs.OP_SYNC, 2000, 1000);
+    SQLiteConnection con = fileDb().setVfs(vfs.getName()).open();
+    con.exec("create table x (x integer)");
+    con.exec("insert into x values (1)");
+    long syncs = vfs.getDelayedCount(SQLiteFaultVfs.OP_SYNC);
+    assertTrue(syncs > 0);
+    SQLiteIOStats io = con.getIOStats();
+    assertTrue(io.getTotalNanos(SQLiteIOStats.OP_SYNC) >= syncs * 2000000L);
+
+    vfs.clear().setError(SQLiteFaultVfs.OP_WRITE, 1.0, SQLITE_IOERR_WRITE);
+    try {
+      con.exec("insert into x values (2)");
+      fail();
+    } catch (SQLiteException e) {
+      assertEquals(SQLITE_IOERR, e.getBaseErrorCode());
+    }
+    assertTrue(vfs.getErrorCount(SQLiteFaultVfs.OP_WRITE) > 0);
+
+    vfs.clear();
+    con.exec("insert into x values (3)");
+    SQLiteStatement st = con.prepare("select count(*) from x");
+    assertTrue(st.step());
+    assertEquals(2, st.columnInt(0));
+    st.dispose();
+    con.dispose();
+  }
+
+  public void testConfig() throws SQLiteException {
+    SQLiteConnectionConfig config = SQLiteConnectionConfig.durableOLTP().setPageSize(8192);
+    SQLiteConnection con = fileDb().setConfig(config).open();
+    config.setCacheSize(1);
+    assertEquals(Integer.valueOf(-16384), con.getConfig().getCacheSize());
+    SQLiteStatement st = con.prepare("PRAGMA journal_mode");
+    assertTrue(st.step());
+    assertEquals("wal", st.columnString(0));
+    st.dispose();
+    assertTrue(con.getConfig().validate(con).isEmpty());
+    con.exec("create table x (x integer)");
+    con.dispose();
+
+    SQLiteConnection mem = memDb().setConfig(SQLiteConnectionConfig.readMostly().setMmapSize(0));
+    try {
+      mem.open();
+      fail("WAL is not available for in-memory database");
+    } catch (SQLiteException e) {
+      assertEquals(WRAPPER_USER_ERROR, e.getErrorCode());
+    }
+    assertTrue(mem.isDisposed());
+
+    mem = memDb().setConfig(SQLiteConnectionConfig.readMostly().setMmapSize(0).setStrict(false)).open();
+    assertEquals(1, mem.getConfig().validate(mem).size());
+    mem.dispose();
+  }
+
+  public void testMmap() throws SQLiteException {
+    SQLite.registerIOStatsVfs(false);
+    SQLiteConnection con = fileDb().setVfs(SQLiteIOStats.VFS_NAME).open();
+    con.exec("create table x (x integer, y text)");
+    con.exec("begin");
+    SQLiteStatement st = con.prepare("insert into x values (?, ?)");
+    for (int i = 0; i < 1000; i++) {
+      st.reset(true).bind(1, i).bind(2, "value " + i).step();
+    }
+    st.dispose();
+    con.exec("commit");
+    con.dispose();
+
+    con = fileDb().setVfs(SQLiteIOStats.VFS_NAME).open();
+    assertEquals(1 << 20, con.setMmapSize(1 << 20));
+    assertEquals(1 << 20, con.getMmapSize());
+    SQLiteIOStats before = con.getIOStats();
+    st = con.prepare("select count(*) from x where y like 'value%'");
+    assertTrue(st.step());
+    assertEquals(1000, st.columnInt(0));
+    st.dispose();
+    SQLiteIOStats io = con.getIOStats().delta(before);
+    assertTrue(io.getCount(SQLiteIOStats.FILE_MAIN_DB, SQLiteIOStats.OP_FETCH) > 0);
+    assertTrue(io.getMmapRatio() > 0.5);
+
+    assertEquals(0, con.setMmapSize(0));
+    con.dispose();
+  }
+
+  public void testSharedPageCache() throws SQLiteException {
+    SQLiteConnection con = memDb().open();
+    SQLitePageCacheStats stats = SQLite.getSharedPageCacheStats();
+    if (stats == null) {
+      // SQLite is initialized by the first open, after that a page cache cannot be installed
+      try {
+        SQLite.installSharedPageCache(1 << 20);
+        fail("installed after initialization");
+      } catch (SQLiteException e) {
+        // ok
+      }
+      try {
+        SQLite.setSharedPageCacheBudget(1 << 20);
+        fail("budget set without shared page cache");
+      } catch (SQLiteException e) {
+        // ok
+      }
+    } else {
+      con.exec("create table x (x)");
+      con.exec("insert into x values (1)");
+      SQLitePageCacheStats after = SQLite.getSharedPageCacheStats();
+      assertTrue(after.getPageCount() > 0);
+      assertTrue(after.getUsedBytes() > 0);
+      assertTrue(after.delta(stats).getHitCount() + after.delta(stats).getMissCount() > 0);
+    }
+    con.dispose();
+  }
+
+  public void testLookaside() throws SQLiteException {
+    SQLiteConnection con = memDb().open();
+    con.setLookaside(512, 64);
+    con.exec("create table x (x)");
+    con.exec("insert into x values ('a'), ('b'), ('c')");
+    SQLiteDbStatus status = con.getDbStatus();
+    assertTrue(status.getCount(SQLITE_DBSTATUS_LOOKASIDE_HIT) > 0);
+    try {
+      SQLite.setDefaultLookaside(512, 64);
+      fail("configured after initialization");
+    } catch (SQLiteException e) {
+      // ok
+    }
+    try {
+      SQLite.setMemoryStatistics(false);
+      fail("configured after initialization");
+    } catch (SQLiteException e) {
+      // ok
+    }
+    con.dispose();
+  }
+
+  public void testNoMutex() throws Exception {
+    final SQLiteConnection con = memDb().open();
+    assertTrue(con.isMutexFree());
+    con.exec("create table x (x)");
+
+    final SQLiteDbStatus[] status = new SQLiteDbStatus[2];
+    final Exception[] error = new Exception[1];
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          con.interrupt();
+          status[0] = con.readDbStatus();
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNull(error[0]);
+    // the interrupt is consumed by the next statement
+    try {
+      con.exec("insert into x values (1)");
+    } catch (SQLiteInterruptedException e) {
+      // ok
+    }
+    con.exec("insert into x values (2)");
+    thread = new Thread() {
+      public void run() {
+        status[1] = con.readDbStatus();
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNotNull(status[1]);
+    con.dispose();
+
+    SQLiteConnection full = fileDb().setFullMutex(true).open();
+    assertFalse(full.isMutexFree());
+    assertNotNull(full.readDbStatus());
+    full.dispose();
+  }
+
+  public void testSerialize() throws SQLiteException {
+    SQLiteConnection con = fileDb().open();
+    con.exec("create table x (x integer, y text)");
+    con.exec("insert into x values (1, 'one'), (2, 'two')");
+    java.nio.ByteBuffer image = con.serialize();
+    assertTrue(image.isDirect());
+    assertEquals(0, image.remaining() % 512);
+    byte[] header = new byte[15];
+    image.duplicate().get(header);
+    assertEquals("SQLite format 3", new String(header));
+    con.dispose();
+
+    SQLiteConnection copy = new SQLiteConnection().open();
+    copy.deserialize("main", image, false);
+    copy.exec("insert into x values (3, 'three')");
+    SQLiteStatement st = copy.prepare("select count(*) from x");
+    assertTrue(st.step());
+    assertEquals(3, st.columnInt(0));
+    st.dispose();
+    assertEquals(copy.serialize().remaining(), copy.serialize("main").remaining());
+    copy.dispose();
+
+    SQLiteConnection view = new SQLiteConnection().open();
+    view.deserializeNoCopy("main", image);
+    st = view.prepare("select y from x where x = 2");
+    assertTrue(st.step());
+    assertEquals("two", st.columnString(0));
+    st.dispose();
+    try {
+      view.exec("insert into x values (3, 'three')");
+      fail("read-only image modified");
+    } catch (SQLiteException e) {
+      assertEquals(SQLITE_READONLY, e.getBaseErrorCode());
+    }
+    try {
+      view.serialize("nosuchdb");
+      fail("serialized unknown database");
+    } catch (SQLiteException e) {
+      // ok
+    }
+    view.dispose();
+  }
 }
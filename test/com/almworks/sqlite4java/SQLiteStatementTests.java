@@ -1,5 +1,10 @@
 package com.almworks.sqlite4java;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
 public class SQLiteStatementTests extends SQLiteConnectionFixture {
   public void testPrepareBad() throws SQLiteException {
     SQLiteConnection connection = fileDb();
@@ -285,4 +290,172 @@ public class SQLiteStatementTests extends SQLiteConnectionFixture {
     assertEquals(SQLiteConstants.SQLITE_NULL, st.columnType(4));
     st.dispose();
   }
+
+  public void testColumnText() throws SQLiteException, IOException {
+    String value = "abc \u0444\u044b\u0432 \ud834\udd1e xyz";
+    SQLiteConnection conn = memDb().open().exec("create table x (id, t)");
+    conn.prepare("insert into x values (1, ?)").bind(1, value).stepThrough().dispose();
+    conn.exec("insert into x values (2, null)");
+    conn.exec("insert into x values (3, '')");
+    SQLiteStatement st = conn.prepare("select t from x order by id");
+    assertTrue(st.step());
+
+    char[] chars = new char[100];
+    assertEquals(value.length(), st.columnChars(0, chars, 1));
+    assertEquals(value, new String(chars, 1, value.length()));
+    CharBuffer cb = CharBuffer.allocate(5);
+    assertEquals(value.length(), st.columnChars(0, cb));
+    assertEquals(value.substring(0, 5), new String(cb.array()));
+
+    byte[] utf8 = value.getBytes("UTF-8");
+    ByteBuffer bb = ByteBuffer.allocate(100);
+    assertEquals(utf8.length, st.columnUtf8(0, bb));
+    assertEquals(utf8.length, bb.position());
+    assertEquals(value, new String(bb.array(), 0, bb.position(), "UTF-8"));
+
+    Reader reader = st.columnReader(0);
+    StringBuilder b = new StringBuilder();
+    char[] one = new char[1];
+    int n;
+    while ((n = reader.read(one, 0, 1)) > 0)
+      b.append(one, 0, n);
+    assertEquals(value, b.toString());
+    reader.close();
+
+    Reader converted = st.columnReader(0);
+    assertEquals(value, st.columnString(0));
+    try {
+      converted.read();
+      fail("read after columnString");
+    } catch (IOException e) {
+      // ok
+    }
+    reader = st.columnReader(0);
+    b.setLength(0);
+    while ((n = reader.read(one, 0, 1)) > 0)
+      b.append(one, 0, n);
+    assertEquals(value, b.toString());
+
+    reader = st.columnReader(0);
+    assertTrue(st.step());
+    try {
+      reader.read();
+      fail("read after step");
+    } catch (IOException e) {
+      // ok
+    }
+    assertEquals(-1, st.columnChars(0, chars, 0));
+    assertEquals(-1, st.columnUtf8(0, bb));
+    assertNull(st.columnReader(0));
+
+    assertTrue(st.step());
+    assertEquals(0, st.columnChars(0, chars, 0));
+    assertEquals(-1, st.columnReader(0).read());
+    st.dispose();
+  }
+
+  public void testStringCache() throws SQLiteException {
+    SQLiteConnection conn = memDb().open().exec("create table x (id integer primary key, t)");
+    String[] values = {"active", "inactive", "\u0444\u044b\u0432", ""};
+    SQLiteStatement st = conn.prepare("insert into x (t) values (?)");
+    for (int i = 0; i < 100; i++) {
+      if (i % 5 == 4) {
+        st.bindNull(1);
+      } else {
+        st.bind(1, values[i % 5]);
+      }
+      st.step();
+      st.reset();
+    }
+    st.dispose();
+
+    SQLiteStringCache cache = new SQLiteStringCache(16);
+    conn.setStringCache(cache);
+    st = conn.prepare("select t from x order by id");
+    assertSame(cache, st.getStringCache());
+    String[] seen = new String[4];
+    int row = 0;
+    while (st.step()) {
+      String value = st.columnString(0);
+      if (row % 5 == 4) {
+        assertNull(value);
+      } else {
+        assertEquals(values[row % 5], value);
+        if (seen[row % 5] == null) {
+          seen[row % 5] = value;
+        } else {
+          assertSame(seen[row % 5], value);
+        }
+      }
+      row++;
+    }
+    st.dispose();
+    assertEquals(4, cache.getMissCount());
+    assertEquals(76, cache.getHitCount());
+
+    st = conn.prepare("select t from x order by id").setStringCache(null);
+    assertTrue(st.step());
+    assertEquals(values[0], st.columnString(0));
+    assertNotSame(seen[0], st.columnString(0));
+    st.dispose();
+  }
+
+  public void testLoadRow() throws SQLiteException {
+    SQLiteConnection conn = memDb().open().exec("create table x (a, b, c, d, e)");
+    SQLiteStatement st = conn.prepare("insert into x values (?, ?, ?, ?, ?)");
+    st.bind(1, 10).bind(2, 1L << 40).bind(3, 1.5).bind(4, "text").bind(5, new byte[]{1, 2, 3}).step();
+    st.dispose();
+    conn.exec("insert into x values (null, '42', -2.5, 'more', null)");
+
+    st = conn.prepare("select * from x order by rowid");
+    SQLiteRow row = new SQLiteRow();
+    assertEquals(0, row.getColumnCount());
+    assertTrue(st.step());
+    assertSame(row, st.loadRow(row));
+    assertEquals(5, row.getColumnCount());
+    assertEquals(SQLiteConstants.SQLITE_INTEGER, row.getType(0));
+    assertEquals(SQLiteConstants.SQLITE_FLOAT, row.getType(2));
+    assertEquals(SQLiteConstants.SQLITE_TEXT, row.getType(3));
+    assertEquals(SQLiteConstants.SQLITE_BLOB, row.getType(4));
+    assertEquals(10, row.getInt(0));
+    assertEquals(1L << 40, row.getLong(1));
+    assertEquals(1.5, row.getDouble(2));
+    assertEquals("text", row.getString(3));
+    assertEquals(3, row.getBlob(4).length);
+    for (int i = 0; i < 5; i++) {
+      Object expected = st.columnValue(i);
+      Object actual = row.getValue(i);
+      if (expected instanceof byte[]) {
+        assertEquals(((byte[]) expected).length, ((byte[]) actual).length);
+      } else {
+        assertEquals(expected, actual);
+      }
+    }
+
+    assertTrue(st.step());
+    st.loadRow(row);
+    assertTrue(row.isNull(0));
+    assertEquals(0, row.getLong(0));
+    assertNull(row.getString(0));
+    assertEquals(42, row.getInt(1));
+    assertEquals(-2.5, row.getDouble(2));
+    assertEquals("more", row.getString(3));
+    assertNull(row.getBlob(4));
+
+    assertFalse(st.step());
+    assertEquals(-2.5, row.getDouble(2));
+    try {
+      row.getString(3);
+      fail("read stale row");
+    } catch (SQLiteException e) {
+      // ok
+    }
+    try {
+      st.loadRow(row);
+      fail("loaded row without data");
+    } catch (SQLiteException e) {
+      // ok
+    }
+    st.dispose();
+  }
 }
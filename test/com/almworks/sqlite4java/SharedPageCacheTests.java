@@ -0,0 +1,111 @@
+package com.almworks.sqlite4java;
+
+import java.io.File;
+
+/**
+ * The shared page cache can be installed only before SQLite is initialized, so these tests must run in a JVM
+ * of their own, as the build does for every test class.
+ */
+public class SharedPageCacheTests extends SQLiteConnectionFixture {
+  private static final long BUDGET = 256 << 10;
+  private static final int ROWS = 2000;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    try {
+      SQLite.installSharedPageCache(64 << 20);
+    } catch (SQLiteException e) {
+      fail("SQLite has been initialized before the test, run it in a separate JVM: " + e);
+    }
+    SQLite.setSharedPageCacheBudget(64 << 20);
+  }
+
+  public void testEvictionUnderBudget() throws SQLiteException {
+    SQLiteConnection a = fill(fileDb().open(), 100000);
+    SQLiteConnection b = fill(new SQLiteConnection(new File(tempName("db2"))).open(), 100000);
+    SQLitePageCacheStats before = SQLite.getSharedPageCacheStats();
+    SQLite.setSharedPageCacheBudget(BUDGET);
+    for (int i = 0; i < 3; i++) {
+      checkRows(a);
+      checkRows(b);
+    }
+    SQLitePageCacheStats stats = SQLite.getSharedPageCacheStats();
+    assertEquals(BUDGET, stats.getBudget());
+    assertEquals(0, stats.getPinnedPageCount());
+    assertTrue(stats.getUsedBytes() + " > " + BUDGET, stats.getUsedBytes() <= BUDGET);
+    assertTrue(stats.delta(before).getEvictionCount() > 0);
+    assertTrue(stats.getCacheCount() >= 2);
+    a.dispose();
+    b.dispose();
+  }
+
+  public void testCacheSizeLimit() throws SQLiteException {
+    SQLiteConnection con = fill(fileDb().open(), 10);
+    SQLitePageCacheStats before = SQLite.getSharedPageCacheStats();
+    checkRows(con);
+    SQLitePageCacheStats stats = SQLite.getSharedPageCacheStats();
+    assertTrue(stats.getPageCount() + " pages", stats.getPageCount() <= 10);
+    assertTrue(stats.delta(before).getEvictionCount() > 0);
+    assertTrue(stats.getUsedBytes() < stats.getBudget());
+
+    con.exec("PRAGMA cache_size = 5");
+    assertTrue(SQLite.getSharedPageCacheStats().getPageCount() <= 5);
+    con.exec("PRAGMA shrink_memory");
+    assertEquals(0, SQLite.getSharedPageCacheStats().getPageCount());
+    checkRows(con);
+    con.dispose();
+  }
+
+  public void testTruncate() throws SQLiteException {
+    SQLiteConnection con = fileDb().open();
+    // full auto-vacuum moves pages on delete (rekey) and truncates the file after each transaction (truncate)
+    con.exec("PRAGMA auto_vacuum = FULL");
+    fill(con, 100000);
+    int pagesBefore = pragma(con, "page_count");
+    con.exec("DELETE FROM x WHERE id % 4 <> 0");
+    int pagesAfter = pragma(con, "page_count");
+    assertTrue(pagesAfter + " < " + pagesBefore, pagesAfter < pagesBefore);
+    assertTrue(SQLite.getSharedPageCacheStats().getPageCount() <= pagesAfter);
+
+    SQLiteStatement st = con.prepare("PRAGMA integrity_check");
+    assertTrue(st.step());
+    assertEquals("ok", st.columnString(0));
+    st.dispose();
+    st = con.prepare("SELECT count(*) FROM x");
+    assertTrue(st.step());
+    assertEquals(ROWS / 4, st.columnInt(0));
+    st.dispose();
+    con.dispose();
+  }
+
+  private static SQLiteConnection fill(SQLiteConnection con, int cacheSize) throws SQLiteException {
+    con.exec("PRAGMA cache_size = " + cacheSize);
+    con.exec("CREATE TABLE x (id INTEGER PRIMARY KEY, value BLOB)");
+    con.exec("BEGIN");
+    SQLiteStatement st = con.prepare("INSERT INTO x VALUES (?, zeroblob(1000) || ?)");
+    for (int i = 0; i < ROWS; i++) {
+      st.reset().bind(1, i).bind(2, i).step();
+    }
+    st.dispose();
+    con.exec("COMMIT");
+    return con;
+  }
+
+  private static void checkRows(SQLiteConnection con) throws SQLiteException {
+    SQLiteStatement st = con.prepare("SELECT count(*), sum(length(value)) FROM x");
+    assertTrue(st.step());
+    assertEquals(ROWS, st.columnInt(0));
+    assertTrue(st.columnLong(1) > 1000L * ROWS);
+    st.dispose();
+  }
+
+  private static int pragma(SQLiteConnection con, String name) throws SQLiteException {
+    SQLiteStatement st = con.prepare("PRAGMA " + name);
+    try {
+      assertTrue(st.step());
+      return st.columnInt(0);
+    } finally {
+      st.dispose();
+    }
+  }
+}